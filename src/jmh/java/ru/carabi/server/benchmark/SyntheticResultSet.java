@@ -0,0 +1,128 @@
+package ru.carabi.server.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Выборка в памяти вместо курсора Oracle.
+ * Реализует только методы, которые используют {@link ru.carabi.server.Utls#fetchRow}
+ * и {@link ru.carabi.server.kernel.oracle.Fetch}; остальные бросают
+ * {@link UnsupportedOperationException}.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public final class SyntheticResultSet implements InvocationHandler {
+	/** Шапка типовой выборки: номер, наименование, сумма, дата, комментарий */
+	public static final String[][] COLUMNS = {
+		{"DOCUMENT_ID", "NUMBER"},
+		{"NAME", "VARCHAR2"},
+		{"AMOUNT", "NUMBER"},
+		{"CREATED", "DATE"},
+		{"NOTE", "VARCHAR2"}
+	};
+
+	private final Object[][] rows;
+	private int position = -1;
+	private int fetchSize = 10;
+	private boolean closed = false;
+
+	private SyntheticResultSet(Object[][] rows) {
+		this.rows = rows;
+	}
+
+	/**
+	 * Заполнение строк типовой выборки.
+	 * @param count число строк
+	 * @return строки со значениями тех типов, которые выдаёт драйвер Oracle
+	 */
+	public static Object[][] generateRows(int count) {
+		Object[][] rows = new Object[count][];
+		long time = 1420070400000L;
+		for (int i = 0; i < count; i++) {
+			rows[i] = new Object[] {
+				new BigDecimal(100000 + i),
+				"Документ " + (i % 50),
+				new BigDecimal(i * 37).movePointLeft(2),
+				new Timestamp(time + i * 3600000L),
+				i % 3 == 0 ? null : "Комментарий к документу номер " + i
+			};
+		}
+		return rows;
+	}
+
+	/**
+	 * Новая выборка, установленная перед первой строкой.
+	 * @param rows строки (не копируются)
+	 */
+	public static ResultSet open(Object[][] rows) {
+		return (ResultSet) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(),
+				new Class<?>[] {ResultSet.class}, new SyntheticResultSet(rows));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+			case "next":
+				checkOpen();
+				if (position + 1 < rows.length) {
+					position++;
+					return true;
+				}
+				position = rows.length;
+				return false;
+			case "getObject":
+				checkOpen();
+				return rows[position][(Integer) args[0] - 1];
+			case "getMetaData":
+				return metaData();
+			case "isClosed":
+				return closed;
+			case "close":
+				closed = true;
+				return null;
+			case "getFetchSize":
+				return fetchSize;
+			case "setFetchSize":
+				fetchSize = (Integer) args[0];
+				return null;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "SyntheticResultSet@" + position;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private void checkOpen() throws SQLException {
+		if (closed) {
+			throw new SQLException("ResultSet is closed");
+		}
+	}
+
+	private static ResultSetMetaData metaData() {
+		return (ResultSetMetaData) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(),
+				new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						switch (method.getName()) {
+							case "getColumnCount":
+								return COLUMNS.length;
+							case "getColumnName":
+								return COLUMNS[(Integer) args[0] - 1][0];
+							case "getColumnTypeName":
+								return COLUMNS[(Integer) args[0] - 1][1];
+							default:
+								throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+	}
+}
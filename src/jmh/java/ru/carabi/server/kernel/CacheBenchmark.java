@@ -0,0 +1,61 @@
+package ru.carabi.server.kernel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Обращения к сессионному кешу ({@link Cache}) из многих потоков:
+ * преобладающее чтение и запись новых значений.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+	private static final int TOKENS = 64;
+	private static final int KEYS_BY_TOKEN = 32;
+
+	private Cache<String> cache;
+
+	@Setup
+	public void setup() {
+		cache = new Cache<>();
+		cache.init();
+		for (int token = 0; token < TOKENS; token++) {
+			for (int key = 0; key < KEYS_BY_TOKEN; key++) {
+				cache.put(token(token), new String[] {token(token), "query" + key}, "value" + key);
+			}
+		}
+	}
+
+	private static String token(int i) {
+		return "token" + i;
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(7)
+	public String get() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String token = token(random.nextInt(TOKENS));
+		return cache.get(new String[] {token, "query" + random.nextInt(KEYS_BY_TOKEN)});
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(1)
+	public void put() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String token = token(random.nextInt(TOKENS));
+		cache.put(token, new String[] {token, "query" + random.nextInt(KEYS_BY_TOKEN * 2)}, "value");
+	}
+}
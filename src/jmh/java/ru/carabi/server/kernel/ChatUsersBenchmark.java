@@ -0,0 +1,105 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.carabi.server.entities.CarabiUser;
+import ru.carabi.server.entities.UserRelation;
+import ru.carabi.server.entities.UserRelationType;
+
+/**
+ * Формирование списка контактов чата ({@link ChatBean#printUsersTable}).
+ * Статистика (пользователи в сети, непрочитанные сообщения, отношения) собирается
+ * заранее, замеряется только построение JSON.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatUsersBenchmark {
+	@Param({"50", "1000"})
+	int usersCount;
+
+	private CarabiUser client;
+	private List<CarabiUser> users;
+	private Map<Long, Date> lastContact;
+	private Set<String> onlineUsers;
+	private JsonObject unreadMessagesSenders;
+	private Map<String, UserRelation> relations;
+
+	@Setup
+	public void setup() {
+		client = user(0);
+		users = new ArrayList<>(usersCount);
+		lastContact = new HashMap<>();
+		onlineUsers = new HashSet<>();
+		relations = new HashMap<>();
+		JsonObjectBuilder unread = Json.createObjectBuilder();
+		UserRelationType favourite = new UserRelationType();
+		favourite.setSysname("favourite");
+		for (int i = 1; i <= usersCount; i++) {
+			CarabiUser user = user(i);
+			users.add(user);
+			lastContact.put(user.getId(), new Date(1420070400000L + i * 60000L));
+			if (i % 4 == 0) {
+				onlineUsers.add(user.getLogin());
+			}
+			if (i % 5 == 0) {
+				unread.add(user.getLogin(), Json.createObjectBuilder()
+						.add("messages", i % 7)
+						.add("lastMessageId", 1000 + i)
+						.add("lastMessage", "Последнее сообщение от " + user.getFirstname()));
+			}
+			if (i % 10 == 0) {
+				UserRelation relation = new UserRelation();
+				relation.setMainUser(client);
+				relation.setRelatedUser(user);
+				relation.setRelationTypes(Collections.singletonList(favourite));
+				relations.put(user.getLogin(), relation);
+			}
+		}
+		unreadMessagesSenders = unread.build();
+	}
+
+	private static CarabiUser user(int i) {
+		CarabiUser user = new CarabiUser();
+		user.setId((long) i);
+		user.setLogin("user" + i);
+		user.setFirstname("Имя" + i);
+		user.setMiddlename("Отчество" + i);
+		user.setLastname("Фамилия" + i);
+		user.setEmail("user" + i + "@example.com");
+		user.setCarabiDepartment("Отдел " + (i % 10));
+		user.setCarabiRole("Сотрудник");
+		user.setShowOnline(true);
+		user.setLastActive(new Date(1420070400000L + i * 1000L));
+		return user;
+	}
+
+	@Benchmark
+	public String contacts() {
+		return ChatBean.printUsersTable(client, users, null, true, onlineUsers, unreadMessagesSenders, relations).toString();
+	}
+
+	@Benchmark
+	public String interlocutors() {
+		return ChatBean.printUsersTable(client, users, lastContact, false, onlineUsers, unreadMessagesSenders, relations).toString();
+	}
+}
@@ -0,0 +1,67 @@
+package ru.carabi.server.kernel.oracle;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.carabi.server.Utls;
+import ru.carabi.server.benchmark.SyntheticResultSet;
+
+/**
+ * Разбор строк выборки: {@link Utls#fetchRow}, {@link Fetch#processFetching(int)}
+ * и сериализация результата в JSON ({@link Utls#listToJson}) и {@link BinaryRows}.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FetchBenchmark {
+	@Param({"100", "5000"})
+	int rowsCount;
+
+	private Object[][] rows;
+	private ArrayList<String> columnsNames;
+	private List<ArrayList<?>> fetched;
+
+	@Setup
+	public void setup() throws SQLException {
+		rows = SyntheticResultSet.generateRows(rowsCount);
+		columnsNames = Utls.getResultSetColumnsNames(SyntheticResultSet.open(rows));
+		Fetch fetch = new Fetch(SyntheticResultSet.open(rows), null, 0, 0);
+		fetched = fetch.processFetching(rowsCount);
+	}
+
+	@Benchmark
+	public void fetchRow(Blackhole blackhole) throws SQLException {
+		ResultSet resultSet = SyntheticResultSet.open(rows);
+		while (resultSet.next()) {
+			blackhole.consume(Utls.fetchRow(resultSet, columnsNames));
+		}
+	}
+
+	@Benchmark
+	public List<ArrayList<?>> processFetching() throws SQLException {
+		Fetch fetch = new Fetch(SyntheticResultSet.open(rows), null, 0, 0);
+		return fetch.processFetching(rowsCount);
+	}
+
+	@Benchmark
+	public String listToJson() {
+		return Utls.listToJson(fetched).build().toString();
+	}
+
+	@Benchmark
+	public byte[] binaryRows() {
+		return BinaryRows.encode(fetched, true);
+	}
+}
@@ -0,0 +1,78 @@
+package ru.carabi.server.kernel.oracle;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import oracle.jdbc.OraclePreparedStatement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.carabi.server.CarabiException;
+
+/**
+ * Установка входных параметров ({@link OracleUtls#setInputParameters}) и разбор дат
+ * ({@link CarabiDate}). Выражение-заглушка только подсчитывает вызовы.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParameterBindingBenchmark {
+	private OraclePreparedStatement statement;
+	private int calls;
+	private ArrayList<QueryParameter> parameters;
+
+	@Setup
+	public void setup() {
+		statement = (OraclePreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {OraclePreparedStatement.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						calls++;
+						return null;
+					}
+				});
+		parameters = new ArrayList<>();
+		parameters.add(parameter("VARCHAR2", "Документ"));
+		parameters.add(parameter("NUMBER", "1234567"));
+		parameters.add(parameter("NUMBER", "1 234,56"));
+		parameters.add(parameter("DATE", "31.12.2015^23:59:00"));
+		parameters.add(parameter("CLOB", "Длинный текст"));
+		//NULL задаётся как префиксом типа, так и флагом
+		parameters.add(parameter("NULL_NUMBER", null));
+		QueryParameter nullParameter = parameter("VARCHAR2", null);
+		nullParameter.setIsNull(1);
+		parameters.add(nullParameter);
+	}
+
+	private static QueryParameter parameter(String type, String value) {
+		QueryParameter parameter = new QueryParameter();
+		parameter.setType(type);
+		parameter.setValue(value);
+		return parameter;
+	}
+
+	@Benchmark
+	public int setInputParameters() throws SQLException, CarabiException {
+		OracleUtls.setInputParameters(statement, parameters);
+		return calls;
+	}
+
+	@Benchmark
+	public long parseDate() throws ParseException {
+		return CarabiDate.parseCarabiDate("31.12.2015^23:59:00");
+	}
+
+	@Benchmark
+	public long parseShortDate() throws ParseException {
+		return CarabiDate.parseCarabiDate("31.12.2015");
+	}
+}
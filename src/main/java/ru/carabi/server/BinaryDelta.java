@@ -0,0 +1,272 @@
+package ru.carabi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Двоичная разница (патч) между двумя версиями файла.
+ * Патч строится по принципу rsync: исходный файл разбивается на блоки, для каждого блока
+ * считается кольцевая контрольная сумма, затем новый файл просматривается скользящим окном,
+ * и совпавшие участки записываются ссылками на исходный файл, остальные -- данными.
+ * <br>
+ * Формат (сжат gzip): заголовок (int "CDLT", int версия формата, long размер нового файла),
+ * затем команды: 1 -- копирование (long смещение в исходном файле, int длина),
+ * 2 -- данные (int длина, байты), 0 -- конец.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public class BinaryDelta {
+	private static final int MAGIC = 0x43444c54;
+	private static final int FORMAT_VERSION = 1;
+	private static final int OP_END = 0, OP_COPY = 1, OP_DATA = 2;
+	private static final int MAX_DATA_LENGTH = 64 * 1024;
+	//Сколько блоков с одинаковой кольцевой суммой сравнивать побайтно
+	private static final int MAX_CANDIDATES = 16;
+
+	/**
+	 * Размер блока исходного файла по умолчанию
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 2048;
+
+	/**
+	 * Построение патча.
+	 * @param source исходный (старый) файл
+	 * @param target новый файл
+	 * @param patch файл для записи патча
+	 * @param blockSize размер блока исходного файла
+	 * @throws IOException при ошибке чтения или записи, а также если файлы больше 2 ГиБ
+	 */
+	public static void create(File source, File target, File patch, int blockSize) throws IOException {
+		try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+				FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(patch))))) {
+			if (sourceChannel.size() > Integer.MAX_VALUE || targetChannel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Files are too large for delta");
+			}
+			MappedByteBuffer sourceData = sourceChannel.map(FileChannel.MapMode.READ_ONLY, 0, sourceChannel.size());
+			MappedByteBuffer targetData = targetChannel.map(FileChannel.MapMode.READ_ONLY, 0, targetChannel.size());
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeLong(targetChannel.size());
+			new Encoder(sourceData, targetData, blockSize, output).encode();
+		}
+	}
+
+	/**
+	 * Восстановление нового файла по исходному и патчу.
+	 * @param source исходный (старый) файл
+	 * @param patch поток с патчем
+	 * @param target поток для записи нового файла
+	 * @return размер нового файла
+	 * @throws IOException при ошибке чтения или записи, а также если патч повреждён
+	 */
+	public static long apply(File source, InputStream patch, OutputStream target) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(patch)));
+		if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+			throw new IOException("Unknown delta format");
+		}
+		long targetLength = input.readLong();
+		long written = 0;
+		byte[] buffer = new byte[MAX_DATA_LENGTH];
+		try (RandomAccessFile sourceFile = new RandomAccessFile(source, "r")) {
+			int operation;
+			while ((operation = input.readUnsignedByte()) != OP_END) {
+				switch (operation) {
+					case OP_COPY:
+						sourceFile.seek(input.readLong());
+						int length = input.readInt();
+						while (length > 0) {
+							int part = Math.min(length, buffer.length);
+							sourceFile.readFully(buffer, 0, part);
+							target.write(buffer, 0, part);
+							length -= part;
+							written += part;
+						}
+						break;
+					case OP_DATA:
+						int dataLength = input.readInt();
+						if (dataLength > buffer.length) {
+							throw new IOException("Delta data block is too large: " + dataLength);
+						}
+						input.readFully(buffer, 0, dataLength);
+						target.write(buffer, 0, dataLength);
+						written += dataLength;
+						break;
+					default:
+						throw new IOException("Unknown delta operation: " + operation);
+				}
+			}
+		}
+		if (written != targetLength) {
+			throw new IOException("Delta produced " + written + " bytes, expected " + targetLength);
+		}
+		return written;
+	}
+
+	/**
+	 * Построение команд патча для пары отображённых в память файлов.
+	 */
+	private static class Encoder {
+		private final MappedByteBuffer source, target;
+		private final int blockSize;
+		private final DataOutputStream output;
+		//Кольцевая сумма -> номер первого блока; next[блок] -> следующий блок с той же суммой
+		private final Map<Integer, Integer> firstBlock = new HashMap<>();
+		private final int[] nextBlock;
+		private long copyOffset = 0;
+		private int copyLength = 0;
+
+		Encoder(MappedByteBuffer source, MappedByteBuffer target, int blockSize, DataOutputStream output) {
+			this.source = source;
+			this.target = target;
+			this.blockSize = blockSize;
+			this.output = output;
+			this.nextBlock = new int[source.limit() / blockSize];
+			Arrays.fill(nextBlock, -1);
+			for (int block = nextBlock.length - 1; block >= 0; block--) {
+				int hash = checksum(source, block * blockSize);
+				Integer first = firstBlock.put(hash, block);
+				if (first != null) {
+					nextBlock[block] = first;
+				}
+			}
+		}
+
+		void encode() throws IOException {
+			int length = target.limit();
+			int position = 0, literalStart = 0;
+			int a = 0, b = 0;
+			if (length >= blockSize) {
+				a = sumA(target, 0);
+				b = sumB(target, 0);
+			}
+			while (position + blockSize <= length) {
+				int block = findBlock(position, a | (b << 16));
+				if (block >= 0) {
+					emitData(literalStart, position);
+					int sourceOffset = block * blockSize;
+					int matched = blockSize;
+					while (position + matched < length && sourceOffset + matched < source.limit()
+							&& target.get(position + matched) == source.get(sourceOffset + matched)) {
+						matched++;
+					}
+					emitCopy(sourceOffset, matched);
+					position += matched;
+					literalStart = position;
+					if (position + blockSize <= length) {
+						a = sumA(target, position);
+						b = sumB(target, position);
+					}
+				} else {
+					if (position + blockSize < length) {
+						int removed = target.get(position) & 0xff;
+						int added = target.get(position + blockSize) & 0xff;
+						a = (a - removed + added) & 0xffff;
+						b = (b - blockSize * removed + a) & 0xffff;
+					}
+					position++;
+					if (position - literalStart >= MAX_DATA_LENGTH) {
+						emitData(literalStart, position);
+						literalStart = position;
+					}
+				}
+			}
+			emitData(literalStart, length);
+			flushCopy();
+			output.writeByte(OP_END);
+		}
+
+		private int findBlock(int position, int hash) {
+			Integer block = firstBlock.get(hash);
+			int candidates = 0;
+			while (block != null && block >= 0 && candidates < MAX_CANDIDATES) {
+				if (blockEquals(block * blockSize, position)) {
+					return block;
+				}
+				block = nextBlock[block];
+				candidates++;
+			}
+			return -1;
+		}
+
+		private boolean blockEquals(int sourceOffset, int targetOffset) {
+			for (int i = 0; i < blockSize; i++) {
+				if (source.get(sourceOffset + i) != target.get(targetOffset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void emitCopy(long offset, int length) throws IOException {
+			if (copyLength > 0 && copyOffset + copyLength == offset) {
+				copyLength += length;
+				return;
+			}
+			flushCopy();
+			copyOffset = offset;
+			copyLength = length;
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyLength > 0) {
+				output.writeByte(OP_COPY);
+				output.writeLong(copyOffset);
+				output.writeInt(copyLength);
+				copyLength = 0;
+			}
+		}
+
+		private void emitData(int from, int to) throws IOException {
+			if (to <= from) {
+				return;
+			}
+			flushCopy();
+			byte[] buffer = new byte[Math.min(to - from, MAX_DATA_LENGTH)];
+			for (int offset = from; offset < to; offset += buffer.length) {
+				int length = Math.min(buffer.length, to - offset);
+				for (int i = 0; i < length; i++) {
+					buffer[i] = target.get(offset + i);
+				}
+				output.writeByte(OP_DATA);
+				output.writeInt(length);
+				output.write(buffer, 0, length);
+			}
+		}
+
+		private int checksum(MappedByteBuffer data, int offset) {
+			return sumA(data, offset) | (sumB(data, offset) << 16);
+		}
+
+		private int sumA(MappedByteBuffer data, int offset) {
+			int a = 0;
+			for (int i = 0; i < blockSize; i++) {
+				a += data.get(offset + i) & 0xff;
+			}
+			return a & 0xffff;
+		}
+
+		private int sumB(MappedByteBuffer data, int offset) {
+			int b = 0;
+			for (int i = 0; i < blockSize; i++) {
+				b += (blockSize - i) * (data.get(offset + i) & 0xff);
+			}
+			return b & 0xffff;
+		}
+	}
+}
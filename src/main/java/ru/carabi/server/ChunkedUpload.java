@@ -0,0 +1,347 @@
+package ru.carabi.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import ru.carabi.libs.CarabiFunc;
+import ru.carabi.server.entities.CarabiAppServer;
+import ru.carabi.server.entities.FileOnServer;
+import ru.carabi.server.kernel.FileStorage;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Докачиваемая загрузка файла частями. Этапы:<br>
+ * 1 создание сессии с известным полным размером файла и целевыми файлами (на текущем
+ * сервере -- сразу в окончательном расположении, на удалённых -- через такую же сессию там)<br>
+ * 2 приём частей строго по порядку: каждая часть проверяется по CRC32 и записывается во все
+ * целевые файлы со своим смещением; при обрыве клиент узнаёт принятое смещение и продолжает с него<br>
+ * 3 завершение: обновление объектов {@link FileOnServer} и выдача их ID
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public class ChunkedUpload {
+	private static final Logger logger = CarabiLogging.getLogger(ChunkedUpload.class);
+
+	/**
+	 * Назначение загружаемого файла.
+	 */
+	public interface Target {
+		/**
+		 * Запись проверенной части файла.
+		 * @param offset смещение части в файле
+		 * @param data буфер с данными
+		 * @param length объём данных в буфере
+		 * @param crc32 контрольная сумма части
+		 */
+		void writeChunk(long offset, byte[] data, int length, long crc32) throws IOException;
+
+		/**
+		 * Завершение записи.
+		 * @return ID созданного {@link FileOnServer}
+		 */
+		Long commit() throws IOException;
+
+		/**
+		 * Отмена записи с удалением недокачанных данных.
+		 */
+		void abort();
+	}
+
+	/**
+	 * Запись в файл на текущем сервере (сразу в окончательное расположение).
+	 */
+	public static class LocalTarget implements Target {
+		private FileOnServer fileMetadata;
+		private final FileStorage fileStorage;
+		private final File file;
+
+		/**
+		 * @param filename пользовательское имя файла
+		 * @param fileStorage хранилище, создающее метаданные файла
+		 */
+		public LocalTarget(String filename, FileStorage fileStorage) {
+			this.fileStorage = fileStorage;
+			this.fileMetadata = fileStorage.createFileMetadata(filename);
+			this.file = new File(fileMetadata.getContentAddress());
+		}
+
+		/**
+		 * @param fileMetadata данные о файле с заполненным расположением
+		 * @param fileStorage хранилище, обновляющее метаданные файла (может быть null)
+		 */
+		public LocalTarget(FileOnServer fileMetadata, FileStorage fileStorage) {
+			this.fileStorage = fileStorage;
+			this.fileMetadata = fileMetadata;
+			this.file = new File(fileMetadata.getContentAddress());
+		}
+
+		@Override
+		public void writeChunk(long offset, byte[] data, int length, long crc32) throws IOException {
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				FileChannel channel = randomAccessFile.getChannel();
+				channel.truncate(offset);
+				channel.write(ByteBuffer.wrap(data, 0, length), offset);
+			}
+		}
+
+		@Override
+		public Long commit() throws IOException {
+			fileMetadata.setMimeType(Files.probeContentType(file.toPath()));
+			fileMetadata.setContentLength(file.length());
+			if (fileStorage != null) {
+				fileMetadata = fileStorage.updateFileMetadata(fileMetadata);
+			}
+			return fileMetadata.getId();
+		}
+
+		@Override
+		public void abort() {
+			file.delete();
+		}
+
+		public FileOnServer getFileMetadata() {
+			return fileMetadata;
+		}
+	}
+
+	/**
+	 * Передача частей в такую же сессию на другом сервере.
+	 */
+	public static class RemoteTarget implements Target {
+		private final String url;
+		private final String token;
+		private final CloseableHttpClient httpClient = HttpClients.createDefault();
+		private String remoteUploadId;
+
+		/**
+		 * Создание сессии на удалённом сервере.
+		 * @param targetServer целевой сервер
+		 * @param urlPattern адрес сервлета, принимающего части
+		 * @param token токен пользователя (в незашифрованном виде)
+		 * @param filename пользовательское имя файла
+		 * @param contentLength полный размер файла
+		 */
+		public RemoteTarget(CarabiAppServer targetServer, String urlPattern, String token, String filename, long contentLength) throws IOException {
+			this.url = "http://" + targetServer.getComputer() + ":" + targetServer.getGlassfishPort() + "/" + targetServer.getContextroot() + urlPattern;
+			try {
+				this.token = CarabiFunc.encrypt(token);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+			HttpPost init = new HttpPost(url + "?upload=init_file&length=" + contentLength);
+			init.setHeader("Filename-Base64", DatatypeConverter.printBase64Binary(filename.getBytes("UTF-8")));
+			remoteUploadId = execute(init).getString("upload_id");
+		}
+
+		@Override
+		public void writeChunk(long offset, byte[] data, int length, long crc32) throws IOException {
+			HttpPut put = new HttpPut(url + "?upload_id=" + remoteUploadId + "&offset=" + offset);
+			put.setHeader("Chunk-CRC32", Long.toHexString(crc32));
+			put.setEntity(new ByteArrayEntity(data, 0, length));
+			execute(put);
+		}
+
+		@Override
+		public Long commit() throws IOException {
+			try {
+				HttpPost commit = new HttpPost(url + "?upload=commit_file&upload_id=" + remoteUploadId);
+				return execute(commit).getJsonNumber("file_id").longValue();
+			} finally {
+				httpClient.close();
+			}
+		}
+
+		@Override
+		public void abort() {
+			try {
+				execute(new HttpPost(url + "?upload=abort&upload_id=" + remoteUploadId));
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "abort remote upload " + remoteUploadId, ex);
+			} finally {
+				try {
+					httpClient.close();
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, null, ex);
+				}
+			}
+		}
+
+		private JsonObject execute(HttpRequestBase request) throws IOException {
+			request.setHeader("Token", token);
+			HttpResponse response = httpClient.execute(request);
+			String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw new IOException("Bad response from " + url + ": " + response.getStatusLine() + " " + body);
+			}
+			try (JsonReader reader = Json.createReader(new StringReader(body))) {
+				return reader.readObject();
+			}
+		}
+	}
+
+	/**
+	 * Ошибка при приёме части: часть не совпадает с текущим смещением или повреждена.
+	 */
+	public static class ChunkException extends Exception {
+		private final boolean checksumError;
+
+		ChunkException(String message, boolean checksumError) {
+			super(message);
+			this.checksumError = checksumError;
+		}
+
+		/**
+		 * @return true, если не совпала контрольная сумма, false -- если смещение
+		 */
+		public boolean isChecksumError() {
+			return checksumError;
+		}
+	}
+
+	private final String id;
+	private final String token;
+	private final long contentLength;
+	private final List<Target> targets = new ArrayList<>();
+	private final Map<String, String> properties = new HashMap<>();
+	private long offset = 0;
+	private Date lastActive = new Date();
+
+	/**
+	 * @param id идентификатор сессии
+	 * @param token токен владельца
+	 * @param contentLength полный размер файла
+	 */
+	public ChunkedUpload(String id, String token, long contentLength) {
+		this.id = id;
+		this.token = token;
+		this.contentLength = contentLength;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	public synchronized Date getLastActive() {
+		return lastActive;
+	}
+
+	public void addTarget(Target target) {
+		targets.add(target);
+	}
+
+	public List<Target> getTargets() {
+		return Collections.unmodifiableList(targets);
+	}
+
+	/**
+	 * Параметры, переданные при создании сессии и используемые при её завершении
+	 * (получатель, комментарий и т.п.).
+	 */
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Приём очередной части.
+	 * Часть, целиком лежащая до текущего смещения, считается повтором и игнорируется.
+	 * @param chunkOffset смещение части в файле
+	 * @param inputStream данные части
+	 * @param crc32Hex контрольная сумма CRC32 в шестнадцатеричном виде (если не задана -- не проверяется)
+	 * @return новое смещение (объём принятых данных)
+	 * @throws ChunkException если часть не совпадает с текущим смещением, превышает допустимый
+	 * размер или не совпала контрольная сумма
+	 */
+	public synchronized long writeChunk(long chunkOffset, InputStream inputStream, String crc32Hex) throws IOException, ChunkException {
+		lastActive = new Date();
+		if (chunkOffset < offset) {
+			return offset;
+		} else if (chunkOffset > offset) {
+			throw new ChunkException("Expected offset " + offset + ", got " + chunkOffset, false);
+		}
+		int maxLength = (int) Math.min(Settings.UPLOAD_CHUNK_MAX_SIZE, contentLength - offset);
+		byte[] buffer = new byte[maxLength];
+		int length = 0, bytesRead;
+		while (length < maxLength && (bytesRead = inputStream.read(buffer, length, maxLength - length)) > 0) {
+			length += bytesRead;
+		}
+		if (length == maxLength && inputStream.read() >= 0) {
+			throw new ChunkException("Chunk is too large, max size is " + maxLength, false);
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(buffer, 0, length);
+		if (crc32Hex != null && crc32.getValue() != Long.parseLong(crc32Hex.trim(), 16)) {
+			throw new ChunkException("Checksum mismatch at offset " + offset, true);
+		}
+		for (Target target: targets) {
+			target.writeChunk(offset, buffer, length, crc32.getValue());
+		}
+		offset += length;
+		return offset;
+	}
+
+	/**
+	 * Проверка, что файл получен полностью.
+	 */
+	public synchronized boolean isComplete() {
+		return offset == contentLength;
+	}
+
+	/**
+	 * Завершение записи во все целевые файлы.
+	 * @return ID созданных {@link FileOnServer} в порядке добавления целей
+	 */
+	public synchronized List<Long> commit() throws IOException {
+		List<Long> result = new ArrayList<>(targets.size());
+		for (Target target: targets) {
+			result.add(target.commit());
+		}
+		return result;
+	}
+
+	/**
+	 * Отмена загрузки во все целевые файлы.
+	 */
+	public synchronized void abort() {
+		for (Target target: targets) {
+			target.abort();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package ru.carabi.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Параллельное копирование входного потока в несколько выходных.
+ * Каждый выходной поток пишется своим потоком выполнения из собственного ограниченного
+ * буфера, поэтому медленный получатель не тормозит остальных, пока его буфер не заполнен.
+ * Ошибка записи в один поток отключает только его -- остальные дописываются до конца.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public class FanOutWriter {
+	private static final Logger logger = CarabiLogging.getLogger(FanOutWriter.class);
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final byte[] EOF = new byte[0];
+	//Сколько ждать остановки потоков записи при ошибке чтения (мс)
+	private static final long STOP_TIMEOUT = 10 * 1000L;
+
+	/**
+	 * Выходной поток с буфером и результатом записи.
+	 */
+	private static class Target implements Runnable {
+		private final String name;
+		private final OutputStream outputStream;
+		private final BlockingQueue<byte[]> buffer;
+		private CountDownLatch finished;
+		private volatile IOException error;
+		private volatile long written = 0;
+
+		Target(String name, OutputStream outputStream, int bufferChunks) {
+			this.name = name;
+			this.outputStream = outputStream;
+			this.buffer = new ArrayBlockingQueue<>(bufferChunks);
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] chunk;
+				while ((chunk = buffer.take()) != EOF) {
+					outputStream.write(chunk);
+					written += chunk.length;
+				}
+				outputStream.flush();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "writing to " + name + " failed", e);
+				error = e;
+				buffer.clear();
+			} catch (InterruptedException e) {
+				error = new IOException(e);
+				Thread.currentThread().interrupt();
+			} finally {
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Передача части в буфер. Ожидает освобождения места, пока запись не прервана ошибкой.
+		 */
+		void offer(byte[] chunk) throws InterruptedException {
+			boolean accepted = false;
+			while (error == null && !accepted) {
+				accepted = buffer.offer(chunk, 100, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private final Executor executor;
+	private final int bufferChunks;
+	private final List<Target> targets = new ArrayList<>();
+
+	/**
+	 * @param executor исполнитель для потоков записи
+	 * @param bufferSize объём буфера каждого выходного потока в байтах
+	 */
+	public FanOutWriter(Executor executor, int bufferSize) {
+		this.executor = executor;
+		this.bufferChunks = Math.max(1, bufferSize / CHUNK_SIZE);
+	}
+
+	/**
+	 * Добавление выходного потока.
+	 * @param name название для журнала
+	 * @param outputStream выходной поток
+	 * @return номер потока для получения результата
+	 */
+	public int addTarget(String name, OutputStream outputStream) {
+		targets.add(new Target(name, outputStream, bufferChunks));
+		return targets.size() - 1;
+	}
+
+	/**
+	 * Копирование входного потока во все выходные.
+	 * Возвращает управление (в т.ч. с ошибкой) после завершения записи во все выходные потоки,
+	 * после этого их можно закрывать.
+	 * @param inputStream входной поток
+	 * @return объём прочитанных данных
+	 * @throws IOException при ошибке чтения или если запись не удалась ни в один поток
+	 */
+	public long transfer(InputStream inputStream) throws IOException {
+		CountDownLatch finished = new CountDownLatch(targets.size());
+		for (Target target: targets) {
+			target.finished = finished;
+			executor.execute(target);
+		}
+		long size = 0;
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int bytesRead;
+			while ((bytesRead = inputStream.read(buffer)) > 0) {
+				size += bytesRead;
+				byte[] chunk = Arrays.copyOf(buffer, bytesRead);
+				boolean anyAlive = false;
+				for (Target target: targets) {
+					target.offer(chunk);
+					anyAlive |= target.error == null;
+				}
+				if (!anyAlive) {
+					throw new IOException("Writing failed for all targets");
+				}
+			}
+			for (Target target: targets) {
+				target.offer(EOF);
+			}
+			finished.await();
+		} catch (InterruptedException e) {
+			IOException error = new IOException(e);
+			stopWriters(error, finished);
+			Thread.currentThread().interrupt();
+			throw error;
+		} catch (IOException e) {
+			stopWriters(e, finished);
+			throw e;
+		}
+		return size;
+	}
+
+	/**
+	 * Остановка записи при ошибке: буферы очищаются, потокам записи передаётся конец данных.
+	 * Ожидает завершения потоков записи, чтобы вызывающий код закрывал выходные потоки
+	 * уже после них. Если поток записи завис в записи дольше {@link #STOP_TIMEOUT},
+	 * его прервёт закрытие выходного потока.
+	 */
+	private void stopWriters(IOException error, CountDownLatch finished) {
+		for (Target target: targets) {
+			target.error = target.error == null ? error : target.error;
+			target.buffer.clear();
+			target.buffer.offer(EOF);
+		}
+		try {
+			if (!finished.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				logger.log(Level.WARNING, "Writers did not stop in {0} ms", STOP_TIMEOUT);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ошибка записи в указанный поток.
+	 * @param target номер потока из {@link #addTarget(java.lang.String, java.io.OutputStream)}
+	 * @return ошибка или null, если запись прошла успешно
+	 */
+	public IOException getError(int target) {
+		return targets.get(target).error;
+	}
+
+	/**
+	 * Объём данных, записанных в указанный поток.
+	 * @param target номер потока из {@link #addTarget(java.lang.String, java.io.OutputStream)}
+	 */
+	public long getWritten(int target) {
+		return targets.get(target).written;
+	}
+}
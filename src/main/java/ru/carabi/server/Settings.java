@@ -19,6 +19,7 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
+import org.apache.commons.lang3.StringUtils;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.logging.CarabiLogging;
 
@@ -44,6 +45,19 @@ public class Settings implements ServletContextListener {
 	 * Каталог, куда дублируются Караби-логи (записываемые так же в Oracle).
 	 */
 	public static final String CARABI_LOGS_LOCATION = getLogsLocation(settings.getString("CARABI_LOGS_LOCATION"), "../logs/carabi");
+	/**
+	 * Максимальное количество записей в очереди Караби-логов, ожидающих фоновой записи.
+	 * При заполнении очереди отладочные записи отбрасываются, предупреждения и ошибки пишутся сразу.
+	 */
+	public static final int CARABI_LOG_QUEUE_SIZE = Integer.valueOf(settings.getString("CARABI_LOG_QUEUE_SIZE"));
+	/**
+	 * Максимальное количество одновременно открытых файлов Караби-логов (журнал ведётся на пользователя)
+	 */
+	public static final int CARABI_LOGS_MAX_OPEN_FILES = Integer.valueOf(settings.getString("CARABI_LOGS_MAX_OPEN_FILES"));
+	/**
+	 * Время в секундах, после которого закрывается файл Караби-лога, в который не писали
+	 */
+	public static final int CARABI_LOGS_IDLE_TIMEOUT = Integer.valueOf(settings.getString("CARABI_LOGS_IDLE_TIMEOUT"));
 	
 	/**
 	 * каталог, в котором хранятся вложения чата
@@ -65,6 +79,10 @@ public class Settings implements ServletContextListener {
 	 * каталог, в котором хранятся версии продуктов
 	 */
 	public static String SOFTWARE_LOCATION = settings.getString("SOFTWARE_LOCATION");
+	/**
+	 * Максимальный размер версии продукта, для которой строится патч от предыдущей версии
+	 */
+	public static final long SOFTWARE_DELTA_MAX_SIZE = Long.valueOf(settings.getString("SOFTWARE_DELTA_MAX_SIZE")) * 1024 * 1024;
 	
 	/**
 	 * Максимальный объём оригинала аватара
@@ -74,6 +92,69 @@ public class Settings implements ServletContextListener {
 	 * Максимальный объём вложения чата
 	 */
 	public static int maxAttachmentSize = Integer.valueOf(settings.getString("MAX_ATTACHMENT_SIZE")) * 1024 * 1024;
+	/**
+	 * Объём буфера на каждый сервер при параллельной записи вложения на несколько серверов
+	 */
+	public static final int ATTACHMENT_FAN_OUT_BUFFER = Integer.valueOf(settings.getString("ATTACHMENT_FAN_OUT_BUFFER")) * 1024 * 1024;
+	/**
+	 * Максимальный объём одной части при докачиваемой загрузке
+	 */
+	public static final int UPLOAD_CHUNK_MAX_SIZE = Integer.valueOf(settings.getString("UPLOAD_CHUNK_MAX_SIZE")) * 1024 * 1024;
+	/**
+	 * Время в минутах, через которое отменяется докачиваемая загрузка без активности
+	 */
+	public static final int UPLOAD_LIFETIME = Integer.valueOf(settings.getString("UPLOAD_LIFETIME"));
+
+	/**
+	 * Стандартные размеры миниатюр через запятую (например, "64x64,128x128"),
+	 * создаваемые сразу после загрузки изображения
+	 */
+	public static final String THUMBNAIL_SIZES = settings.getString("THUMBNAIL_SIZES");
+	/**
+	 * Допустимое отклонение (в процентах) запрошенного размера миниатюры от стандартного,
+	 * при котором отдаётся стандартная миниатюра
+	 */
+	public static final int THUMBNAIL_SIZE_TOLERANCE = Integer.valueOf(settings.getString("THUMBNAIL_SIZE_TOLERANCE"));
+	
+	/**
+	 * Объём памяти под содержимое аватаров и миниатюр (0 -- не кешировать)
+	 */
+	public static final long IMAGES_CACHE_SIZE = Long.valueOf(settings.getString("IMAGES_CACHE_SIZE")) * 1024 * 1024;
+	/**
+	 * Максимальный размер изображения, хранимого в памяти
+	 */
+	public static final long IMAGES_CACHE_ITEM_SIZE = Long.valueOf(settings.getString("IMAGES_CACHE_ITEM_SIZE")) * 1024;
+	/**
+	 * Время в секундах, сколько хранятся данные об аватаре (ETag) без перепроверки в базе
+	 */
+	public static final int IMAGES_CACHE_LIFETIME = Integer.valueOf(settings.getString("IMAGES_CACHE_LIFETIME"));
+	/**
+	 * Время в секундах, сколько хранятся ответы каталога продукции (доступные продукты,
+	 * списки версий) без перепроверки в базе (0 -- не кешировать)
+	 */
+	public static final int PRODUCTION_CACHE_LIFETIME = Integer.valueOf(settings.getString("PRODUCTION_CACHE_LIFETIME"));
+	/**
+	 * Сколько ответов каталога продукции хранится в кеше
+	 */
+	public static final int PRODUCTION_CACHE_SIZE = Integer.valueOf(settings.getString("PRODUCTION_CACHE_SIZE"));
+	/**
+	 * Время в секундах, сколько хранятся сведения о пользователе из прикладной базы
+	 * для повторных авторизаций (0 -- не кешировать)
+	 */
+	public static final int USER_INFO_CACHE_LIFETIME = Integer.valueOf(settings.getString("USER_INFO_CACHE_LIFETIME"));
+	/**
+	 * Сколько результатов запросов, привязанных к сессиям, хранится в кеше
+	 */
+	public static final int SESSION_CACHE_SIZE = Integer.valueOf(settings.getString("SESSION_CACHE_SIZE"));
+	/**
+	 * Время в секундах, сколько хранится результат запроса, привязанный к сессии
+	 */
+	public static final int SESSION_CACHE_LIFETIME = Integer.valueOf(settings.getString("SESSION_CACHE_LIFETIME"));
+	/**
+	 * Сколько ячеек (строк, умноженных на столбцы) результатов хранимых запросов
+	 * хранится в общем кеше (см. {@link ru.carabi.server.entities.QueryEntity#getResultCacheLifetime()})
+	 */
+	public static final int QUERY_RESULT_CACHE_SIZE = Integer.valueOf(settings.getString("QUERY_RESULT_CACHE_SIZE"));
 	/**
 	 * Получение абсолютного пути к каталогу с логами.
 	 * Вычисление абсолютного пути из относительного в конфиге. При ошибке возвращает запасной
@@ -115,11 +196,59 @@ public class Settings implements ServletContextListener {
 	 */
 	public static final int TOKEN_LENGTH = Integer.valueOf(settings.getString("TOKEN_LENGTH"));
 	
+	/**
+	 * Ключ для подписи токенов сессий, не хранящихся в служебной БД, и извещений
+	 * между серверами. Должен совпадать на всех серверах. Если не задан -- генерируется
+	 * при запуске (извещения между серверами при этом не работают).
+	 */
+	public static final String SESSION_TOKEN_SECRET = settings.getString("SESSION_TOKEN_SECRET");
+	
+	/**
+	 * Время в секундах, сколько действует подписанный токен сессии.
+	 * Такие токены выдаются для разовых запросов, поэтому срок короткий.
+	 */
+	public static final int SIGNED_TOKEN_LIFETIME = Integer.valueOf(settings.getString("SIGNED_TOKEN_LIFETIME"));
+	
+	/**
+	 * UDP-порт для извещений об изменении данных между серверами
+	 * (одинаковый на всех серверах, 0 -- не использовать).
+	 */
+	public static final int CACHE_BUS_PORT = Integer.valueOf(settings.getString("CACHE_BUS_PORT"));
+	
+	/**
+	 * Отправлять события во внешний Eventer. Если false -- события доставляются
+	 * только клиентам, подключённым через WebSocket ({@link ru.carabi.server.kernel.PushBean}).
+	 */
+	public static final boolean EVENTER_ENABLED = Boolean.parseBoolean(settings.getString("EVENTER_ENABLED"));
+	
+	/**
+	 * Сколько событий может ждать отправки в одно WebSocket-соединение.
+	 * Клиент, не успевающий принимать события, отключается.
+	 */
+	public static final int PUSH_QUEUE_LIMIT = Integer.valueOf(settings.getString("PUSH_QUEUE_LIMIT"));
+	
 	/**
 	 * Сколько открытых курсоров может держать пользователь.
 	 */
 	public static final int FETCHES_BY_USER = Integer.valueOf(settings.getString("FETCHES_BY_USER"));
 	
+	/**
+	 * Сколько открытых курсоров могут держать все пользователи сервера.
+	 * При превышении закрываются давно не используемые.
+	 */
+	public static final int FETCHES_TOTAL = Integer.valueOf(settings.getString("FETCHES_TOTAL"));
+	
+	/**
+	 * Оценка памяти (в мегабайтах), которую могут занимать открытые курсоры всех пользователей.
+	 */
+	public static final int FETCHES_MEMORY = Integer.valueOf(settings.getString("FETCHES_MEMORY"));
+	
+	/**
+	 * Сколько последних прочитанных строк прокрутки хранится в памяти для возврата
+	 * к ним без повторного запроса (0 -- не хранить).
+	 */
+	public static final int FETCH_WINDOW_SIZE = Integer.valueOf(settings.getString("FETCH_WINDOW_SIZE"));
+	
 	/**
 	 * Максимальный шаг прокрутки
 	 */
@@ -187,8 +316,8 @@ public class Settings implements ServletContextListener {
 			return masterServer;
 		}
 		CarabiLogging.getLogger(Settings.class).warning("masterServer was not init in contextInitialized");
-		currentServer = initCurrentServer();
-		return currentServer;
+		masterServer = initMasterServer();
+		return masterServer;
 	}
 
 	private static CarabiAppServer initMasterServer() {
@@ -214,6 +343,12 @@ public class Settings implements ServletContextListener {
 		em = emf.createEntityManager();
 		currentServer = initCurrentServer();
 		masterServer = initMasterServer();
+		if (StringUtils.isEmpty(SESSION_TOKEN_SECRET)) {
+			CarabiLogging.getLogger(Settings.class).warning("SESSION_TOKEN_SECRET is empty: signed tokens are valid only on the server that issued them");
+			if (!EVENTER_ENABLED) {
+				CarabiLogging.getLogger(Settings.class).warning("SESSION_TOKEN_SECRET is empty and EVENTER_ENABLED=false: events will reach only WebSocket clients of the same server");
+			}
+		}
 	}
 
 	@Override
@@ -34,6 +34,7 @@ import ru.carabi.server.kernel.ConnectionsGateBean;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.kernel.oracle.CursorFetcherBean;
 import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 
 /**
  * Сессия пользователя Carabi.
@@ -53,6 +54,10 @@ import ru.carabi.server.logging.CarabiLogging;
 public class UserLogon implements Serializable, AutoCloseable {
 	private static final long serialVersionUID = 3L;
 	private static final Logger logger = Logger.getLogger(UserLogon.class.getName());
+	private static final Metrics.Counter connectionsReused = Metrics.counter("carabi_session_connections_total",
+			"Oracle connections given to session requests", "source", "reused");
+	private static final Metrics.Counter connectionsOpened = Metrics.counter("carabi_session_connections_total",
+			"Oracle connections given to session requests", "source", "opened");
 	
 	@Id
 	private String token;
@@ -254,6 +259,7 @@ public class UserLogon implements Serializable, AutoCloseable {
 			}
 		}
 		if (connection != null) { //Свободное подключение найдено
+			connectionsReused.increment();
 			connectionsFree.put(key, false);
 			connectionsLastActive.put(key, new Date());
 			return checkConnection(connection, true);
@@ -261,6 +267,7 @@ public class UserLogon implements Serializable, AutoCloseable {
 		try {
 			//Свободное подключение не найдено
 			connection = connectionsGate.connectToSchema(schema);
+			connectionsOpened.increment();
 			authorize(connection, true);
 			key = getConnectionKey(connection);
 			connections.put(key, connection);
@@ -272,6 +279,26 @@ public class UserLogon implements Serializable, AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Число подключений во встроенном пуле сессии.
+	 */
+	public int countConnections() {
+		return connections.size();
+	}
+	
+	/**
+	 * Число занятых подключений во встроенном пуле сессии.
+	 */
+	public int countBusyConnections() {
+		int busy = 0;
+		for (Boolean free: connectionsFree.values()) {
+			if (!free) {
+				busy++;
+			}
+		}
+		return busy;
+	}
+	
 	/**
 	 * Освобождение подключения во встроенном пуле.
 	 */
@@ -319,7 +346,7 @@ public class UserLogon implements Serializable, AutoCloseable {
 						this.lastActive = new Date();
 						connectionsLastActive.put(key, this.lastActive);
 					}
-				} else if (! cursorFetcher.hasThisConnection(connection)){ //подключение свободно.
+				} else if (! cursorFetcher.hasThisConnection(this, key)){ //подключение свободно.
 					// Если свободно уже давно -- закрываем,
 					// убедившись, что не осталось открытых ResultSet-ов (Fetch-ей)
 					long lastActiveTimestamp = connectionsLastActive.get(key).getTime();
@@ -495,15 +495,11 @@ public class Utls {
 	 * @throws IOException 
 	 */
 	public static FileOnServer saveToFileOnServer(InputStream inputStream, String path, String filename) throws IOException {
-		File file = new File(path);
-		int i = 1;
-		while (file.exists()) {
-			file = new File(path + "-" + i);
-			i++;
+		File file = createUniqueFile(path);
+		long contentLength;
+		try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+			contentLength = Utls.proxyStreams(inputStream, fileOutputStream);
 		}
-		file.createNewFile();
-		FileOutputStream fileOutputStream = new FileOutputStream(file);
-		long contentLength = Utls.proxyStreams(inputStream, fileOutputStream);
 		FileOnServer fileOnServer = new FileOnServer();
 		fileOnServer.setContentAddress(file.getAbsolutePath());
 		fileOnServer.setContentLength(contentLength);
@@ -512,6 +508,23 @@ public class Utls {
 		return fileOnServer;
 	}
 	
+	/**
+	 * Создание пустого файла с адресом path. Если такой файл существует --
+	 * добавляется числовой постфикс.
+	 * @param path путь к файлу
+	 * @return созданный файл
+	 * @throws IOException 
+	 */
+	public static File createUniqueFile(String path) throws IOException {
+		File file = new File(path);
+		int i = 1;
+		while (!file.createNewFile()) {
+			file = new File(path + "-" + i);
+			i++;
+		}
+		return file;
+	}
+	
 	/**
 	 * Запись входного потока в файл.
 	 * @param inputStream поток данных
@@ -57,15 +57,23 @@ import javax.persistence.Temporal;
 		query = "select U from CarabiUser U where U.id in :idlist and (" +
 				"upper(U.login) like :search or upper(U.firstname) like :search " + 
 				"or upper(U.middlename) like :search or upper(U.lastname) like :search " + 
-				"or upper(U.carabiRole) like :search or upper(U.carabiDepartment) like :search )" + 
+				"or upper(U.carabiRole) like :search or upper(U.carabiDepartment) like :search " + 
+				"or upper(U.email) like :search )" + 
 				"order by U.firstname, U.middlename, U.lastname "),
 	@NamedQuery(name="getActiveUsersListSearch",
 		query = "select U from CarabiUser U where U.status.sysname = 'active' and (" +
 				"upper(U.login) like :search or upper(U.firstname) like :search " + 
 				"or upper(U.middlename) like :search or upper(U.lastname) like :search " + 
-				"or upper(U.carabiRole) like :search or upper(U.carabiDepartment) like :search )" + 
+				"or upper(U.carabiRole) like :search or upper(U.carabiDepartment) like :search " + 
+				"or upper(U.email) like :search )" + 
 				"AND (U.corporation.sysname in :departments) " +
 				"order by U.firstname, U.middlename, U.lastname "),
+	@NamedQuery(name="getUsersSearchData",
+		query = "select U.id, U.login, U.firstname, U.middlename, U.lastname, U.carabiDepartment, U.carabiRole, U.email, S.sysname, C.sysname " +
+				"from CarabiUser U left join U.status S left join U.corporation C"),
+	@NamedQuery(name="getUserSearchData",
+		query = "select U.id, U.login, U.firstname, U.middlename, U.lastname, U.carabiDepartment, U.carabiRole, U.email, S.sysname, C.sysname " +
+				"from CarabiUser U left join U.status S left join U.corporation C where U.login = :login"),
 	@NamedQuery(name="getRelatedUsersList",
 		query = "select UR.relatedUser from UserRelation UR where UR.mainUser = :user")
 })
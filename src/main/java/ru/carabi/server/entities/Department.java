@@ -23,7 +23,9 @@ import javax.persistence.Table;
 @Table(name="DEPARTMENT")
 @NamedQueries({
 	@NamedQuery(name="getDepartmantInfo",
-		query = "select D from Department D where D.sysname = :sysname")
+		query = "select D from Department D where D.sysname = :sysname"),
+	@NamedQuery(name="getAllDepartments",
+		query = "select D from Department D")
 })
 public class Department extends AbstractEntity implements Serializable {
 	private static final long serialVersionUID = 1L;
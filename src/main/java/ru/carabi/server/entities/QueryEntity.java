@@ -65,6 +65,9 @@ public class QueryEntity extends AbstractEntity implements Serializable {
 	@Column(name="SYSNAME")
 	private String sysname;
 	
+	@Column(name="RESULT_CACHE_LIFETIME")
+	private int resultCacheLifetime;
+	
 	@Override
 	public Long getId() {
 		return id;
@@ -126,6 +129,18 @@ public class QueryEntity extends AbstractEntity implements Serializable {
 		this.isDeprecated = isDeprecated;
 	}
 	
+	/**
+	 * Время хранения результата запроса на сервере в секундах.
+	 * @return 0, если результат не кешируется
+	 */
+	public int getResultCacheLifetime() {
+		return resultCacheLifetime;
+	}
+	
+	public void setResultCacheLifetime(int resultCacheLifetime) {
+		this.resultCacheLifetime = resultCacheLifetime;
+	}
+	
 	public List<QueryParameterEntity> getParameters() {
 		return parameters;
 	}
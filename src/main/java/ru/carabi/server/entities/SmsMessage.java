@@ -0,0 +1,168 @@
+package ru.carabi.server.entities;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+
+/**
+ * Исходящее SMS-сообщение в очереди на отправку.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Entity
+@Table(name="SMS_MESSAGE")
+@NamedQueries({
+	@NamedQuery(name="getDueSmsMessages",
+		query="select SM.id from SmsMessage SM where SM.status in ('queued', 'sending') and SM.nextAttempt <= :now order by SM.nextAttempt"),
+	@NamedQuery(name="claimSmsMessage",
+		query="update SmsMessage SM set SM.status = 'sending', SM.nextAttempt = :leaseEnd, SM.attempts = SM.attempts + 1 "
+				+ "where SM.id = :id and SM.status in ('queued', 'sending') and SM.nextAttempt <= :now"),
+	@NamedQuery(name="deleteOldSmsMessages",
+		query="delete from SmsMessage SM where SM.status in ('sent', 'failed') and SM.created < :long_ago")
+})
+public class SmsMessage extends AbstractEntity implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	//typical statuses
+	public static final String QUEUED = "queued";
+	public static final String SENDING = "sending";
+	public static final String SENT = "sent";
+	public static final String FAILED = "failed";
+	
+	@Id
+	@Column(name="SMS_ID")
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long id;
+	
+	private String phone;
+	private String text;
+	private String sender;
+	
+	@ManyToOne
+	@JoinColumn(name="AUTHOR_ID")
+	private CarabiUser author;
+	
+	private String status;
+	private int attempts;
+	
+	@Column(name="NEXT_ATTEMPT")
+	@Temporal(javax.persistence.TemporalType.TIMESTAMP)
+	private Date nextAttempt;
+	
+	@Temporal(javax.persistence.TemporalType.TIMESTAMP)
+	private Date created;
+	
+	@Temporal(javax.persistence.TemporalType.TIMESTAMP)
+	private Date sent;
+	
+	private String gate;
+	
+	@Column(name="LAST_ERROR")
+	private String lastError;
+	
+	@Override
+	public Long getId() {
+		return id;
+	}
+	
+	public void setId(Long id) {
+		this.id = id;
+	}
+	
+	public String getPhone() {
+		return phone;
+	}
+	
+	public void setPhone(String phone) {
+		this.phone = phone;
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public void setText(String text) {
+		this.text = text;
+	}
+	
+	public String getSender() {
+		return sender;
+	}
+	
+	public void setSender(String sender) {
+		this.sender = sender;
+	}
+	
+	public CarabiUser getAuthor() {
+		return author;
+	}
+	
+	public void setAuthor(CarabiUser author) {
+		this.author = author;
+	}
+	
+	public String getStatus() {
+		return status;
+	}
+	
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	
+	public int getAttempts() {
+		return attempts;
+	}
+	
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+	
+	public void setNextAttempt(Date nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+	
+	public Date getCreated() {
+		return created;
+	}
+	
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+	
+	public Date getSent() {
+		return sent;
+	}
+	
+	public void setSent(Date sent) {
+		this.sent = sent;
+	}
+	
+	public String getGate() {
+		return gate;
+	}
+	
+	public void setGate(String gate) {
+		this.gate = gate;
+	}
+	
+	public String getLastError() {
+		return lastError;
+	}
+	
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+}
@@ -51,6 +51,7 @@ import ru.carabi.server.entities.UserRelation;
 import ru.carabi.server.entities.UserRelationType;
 import ru.carabi.server.entities.UserRole;
 import ru.carabi.server.entities.UserStatus;
+import ru.carabi.server.kernel.oracle.QueryResultCache;
 
 @Stateless
 /**
@@ -71,8 +72,14 @@ public class AdminBean {
 	private @EJB ConnectionsGateBean cg;
 	private @EJB EventerBean eventer;
 	private @EJB ImagesBean images;
+	private @EJB ImagesCache imagesCache;
+	private @EJB UserInfoCache userInfoCache;
+	private @EJB InvalidationBus invalidationBus;
+	private @EJB Topology topology;
+	private @EJB QueryResultCache queryResultCache;
 	private @EJB UsersControllerBean uc;
 	private @EJB DepartmentsPercistenceBean departmentsPercistence;
+	private @EJB UsersSearchIndex usersSearchIndex;
 	
 	/**
 	 * Получение списка схем, доступных пользователю.
@@ -412,6 +419,10 @@ public class AdminBean {
 		}
 		// save user data
 		user = em.merge(user);
+		em.flush();
+		userInfoCache.remove(user.getLogin());
+		usersSearchIndex.put(user);
+		invalidationBus.publish(InvalidationBus.Kind.USER, user.getLogin());
 		close();
 		
 		return user.getId();
@@ -440,6 +451,9 @@ public class AdminBean {
 			logger.log(Level.WARNING, "" , e);
 			throw e;
 		}
+		userInfoCache.remove(login);
+		usersSearchIndex.remove(login);
+		invalidationBus.publish(InvalidationBus.Kind.USER, login);
 	}
 	
 	public List<UserRole> getRolesList(UserLogon logon) throws CarabiException {
@@ -563,6 +577,8 @@ public class AdminBean {
 			department.setParentDepartmentId(parentDepartment.getId());
 		}
 		department = em.merge(department);
+		em.flush();
+		departmentsPercistence.updateDepartmentsTree(department);
 		return department;
 	}
 	
@@ -685,6 +701,8 @@ public class AdminBean {
 		// save user data
 		schema = em.merge(schema);
 		close();
+		topology.invalidate();
+		invalidationBus.publish(InvalidationBus.Kind.SCHEMA, schema.getId());
 		
 		return schema.getId();
 	}
@@ -706,6 +724,8 @@ public class AdminBean {
 			logger.log(Level.WARNING, "" , e);
 			throw e;			
 		}
+		topology.invalidate();
+		invalidationBus.publish(InvalidationBus.Kind.SCHEMA, id);
 	}
 	
 	public String getCategoriesList(UserLogon logon) throws CarabiException {
@@ -934,6 +954,7 @@ public class AdminBean {
 				"" : queryEntity.getSchema().getId().toString());
 		jsonQuery.add("text", queryEntity.getBody());
 		jsonQuery.add("sysname", queryEntity.getSysname());
+		jsonQuery.add("resultCacheLifetime", queryEntity.getResultCacheLifetime());
 		
 		// fill params
 		final JsonArrayBuilder jsonParams = Json.createArrayBuilder();
@@ -1003,6 +1024,9 @@ public class AdminBean {
 		queryEntity.setSchema(schema);
 		queryEntity.setBody(jsonQuery.getString("text"));
 		queryEntity.setSysname(jsonQuery.getString("sysname"));
+		if (jsonQuery.containsKey("resultCacheLifetime")) {
+			queryEntity.setResultCacheLifetime(jsonQuery.getInt("resultCacheLifetime"));
+		}
 		
 		// удалить удаленные, создать новые объекты параметров и 
 		// обновить существующие
@@ -1038,6 +1062,8 @@ public class AdminBean {
 		// save user data
 		queryEntity = em.merge(queryEntity);
 		close();
+		queryResultCache.invalidate(queryEntity.getId());
+		invalidationBus.publish(InvalidationBus.Kind.QUERY, queryEntity.getId());
 		
 		return queryEntity.getId();
 	}
@@ -1059,6 +1085,8 @@ public class AdminBean {
 			logger.log(Level.WARNING, "" , e);
 			throw e;
 		}
+		queryResultCache.invalidate(id);
+		invalidationBus.publish(InvalidationBus.Kind.QUERY, id);
 	}
 	
 	public void setQueryDeprecated(UserLogon logon, Long id, boolean isDeprecated) throws CarabiException {
@@ -1082,6 +1110,21 @@ public class AdminBean {
 		query.setParameter(1, isDeprecated);
 		query.setParameter(2, id);
 		query.executeUpdate();
+		queryResultCache.invalidate(id);
+		invalidationBus.publish(InvalidationBus.Kind.QUERY, id);
+	}
+	
+	/**
+	 * Удаление сохранённых результатов хранимого запроса на всех серверах
+	 * (например, после изменения справочника в прикладной базе).
+	 * @param logon текущий пользователь
+	 * @param id ID запроса (null -- удалить результаты всех запросов)
+	 * @throws CarabiException нет прав на редактирование запросов
+	 */
+	public void clearQueryResultCache(UserLogon logon, Long id) throws CarabiException {
+		logon.assertAllowed("ADMINISTRATING-QUERIES-EDIT");
+		queryResultCache.invalidate(id);
+		invalidationBus.publish(InvalidationBus.Kind.QUERY, id);
 	}
 
 	
@@ -1111,6 +1154,8 @@ public class AdminBean {
 			user = targetUser;
 		}
 		String login = user.getLogin();
+		imagesCache.removeAvatar(login);
+		invalidationBus.publish(InvalidationBus.Kind.USER, login);
 		FileOnServer avatar = user.getAvatar();
 		if (avatar != null) { //Удалить старый аватар
 			user.setAvatar(null);
@@ -1137,6 +1182,7 @@ public class AdminBean {
 	
 	private void deleteAvatar(FileOnServer avatar) {
 		images.removeThumbnails(avatar, true);
+		imagesCache.removeContent(avatar.getId());
 		File avatarFile = new File(avatar.getContentAddress());
 		avatarFile.delete();
 		em.remove(em.find(FileOnServer.class, avatar.getId()));
@@ -1572,6 +1618,8 @@ public class AdminBean {
 			user.setStatus(status);
 			em.merge(user);
 			em.flush();
+			usersSearchIndex.put(user);
+			invalidationBus.publish(InvalidationBus.Kind.USER, login);
 		} catch (NoResultException e) {
 			throw new CarabiException("status " + statusSysname + " not found");
 		}
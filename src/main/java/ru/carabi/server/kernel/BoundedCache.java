@@ -0,0 +1,494 @@
+package ru.carabi.server.kernel;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import ru.carabi.server.CarabiException;
+import ru.carabi.server.logging.Metrics;
+
+/**
+ * Ограниченный кеш в памяти для использования внутри бинов.
+ * <ul>
+ * <li>Суммарный вес записей ограничен (по умолчанию вес записи -- 1, т.е. ограничено количество),
+ * при превышении вытесняются записи по алгоритму сегментированного LRU: новые записи попадают
+ * в испытательный сегмент, при повторном обращении переходят в защищённый, вытесняются
+ * в первую очередь давно не использованные записи испытательного сегмента. Это защищает
+ * часто используемые записи от вытеснения потоком разовых.
+ * <li>Запись живёт не дольше заданного времени.
+ * <li>{@link #get(java.lang.Object, ru.carabi.server.kernel.BoundedCache.Loader)} при
+ * одновременных запросах одного ключа вызывает загрузчик однократно.
+ * <li>Ведётся статистика обращений; кеши регистрируются по названию (области) и доступны
+ * через {@link #getRegions()}.
+ * </ul>
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public class BoundedCache<K, V> {
+	//Доля защищённого сегмента в общем весе
+	private static final double PROTECTED_SHARE = 0.8;
+	private static final Map<String, BoundedCache<?, ?>> regions = new ConcurrentHashMap<>();
+
+	/**
+	 * Вычисление веса записи.
+	 */
+	public interface Weigher<K, V> {
+		long weigh(K key, V value);
+	}
+
+	/**
+	 * Загрузка значения при отсутствии в кеше.
+	 */
+	public interface Loader<K, V> {
+		/**
+		 * @param key ключ
+		 * @return значение (null не кешируется)
+		 * @throws CarabiException ошибка загрузки (передаётся всем ожидающим)
+		 */
+		V load(K key) throws CarabiException;
+	}
+
+	/**
+	 * Извещение о вытеснении или удалении записи.
+	 */
+	public interface RemovalListener<K, V> {
+		void removed(K key, V value);
+	}
+
+	/**
+	 * Отбор ключей для группового удаления.
+	 */
+	public interface KeyFilter<K> {
+		boolean accept(K key);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long weight;
+		final long expires;
+		boolean isProtected;
+
+		Entry(V value, long weight, long expires) {
+			this.value = value;
+			this.weight = weight;
+			this.expires = expires;
+		}
+	}
+
+	private final String name;
+	private final long maxWeight;
+	private final long lifetime;
+	private final Weigher<? super K, ? super V> weigher;
+	private volatile RemovalListener<? super K, ? super V> removalListener;
+
+	//Оба сегмента -- в порядке обращения, первым идёт давно не использованный
+	private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<K, Entry<V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+	private long probationWeight = 0;
+	private long protectedWeight = 0;
+	private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * Кеш с ограничением количества записей.
+	 * @param name название области (для статистики)
+	 * @param maxSize максимальное количество записей
+	 * @param lifetime время жизни записи в миллисекундах (0 или меньше -- без ограничения)
+	 */
+	public BoundedCache(String name, long maxSize, long lifetime) {
+		this(name, maxSize, lifetime, null);
+	}
+
+	/**
+	 * Кеш с ограничением суммарного веса записей.
+	 * @param name название области (для статистики)
+	 * @param maxWeight максимальный суммарный вес
+	 * @param lifetime время жизни записи в миллисекундах (0 или меньше -- без ограничения)
+	 * @param weigher вычисление веса записи (null -- вес каждой записи равен 1)
+	 */
+	public BoundedCache(String name, long maxWeight, long lifetime, Weigher<? super K, ? super V> weigher) {
+		this.name = name;
+		this.maxWeight = Math.max(1, maxWeight);
+		this.lifetime = lifetime;
+		this.weigher = weigher;
+		regions.put(name, this);
+		registerMetrics();
+	}
+
+	/**
+	 * Выгрузка статистики области в {@link Metrics}.
+	 * Новый кеш с тем же названием заменяет показатели прежнего.
+	 */
+	private void registerMetrics() {
+		Metrics.gauge("carabi_cache_entries", "Entries in cache region", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return size();
+			}
+		}, "region", name);
+		Metrics.gauge("carabi_cache_weight", "Total weight of cache region entries", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				synchronized (BoundedCache.this) {
+					return probationWeight + protectedWeight;
+				}
+			}
+		}, "region", name);
+		registerCounter("carabi_cache_hits_total", "Cache hits", hits);
+		registerCounter("carabi_cache_misses_total", "Cache misses", misses);
+		registerCounter("carabi_cache_evictions_total", "Entries evicted by size limit", evictions);
+		registerCounter("carabi_cache_expirations_total", "Entries removed by lifetime", expirations);
+	}
+
+	private void registerCounter(String metric, String help, final AtomicLong source) {
+		Metrics.counter(metric, help, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return source.get();
+			}
+		}, "region", name);
+	}
+
+	/**
+	 * Зарегистрированные кеши по названиям областей.
+	 */
+	public static Map<String, BoundedCache<?, ?>> getRegions() {
+		return Collections.unmodifiableMap(regions);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setRemovalListener(RemovalListener<? super K, ? super V> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * Получение значения.
+	 * @param key ключ
+	 * @return значение или null, если его нет или оно устарело
+	 */
+	public V get(K key) {
+		V value = getIfPresent(key);
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Получение значения с загрузкой при отсутствии.
+	 * Если значение уже загружается другим потоком -- ожидается его результат.
+	 * @param key ключ
+	 * @param loader загрузчик
+	 * @return значение из кеша или загруженное
+	 * @throws CarabiException ошибка загрузки
+	 */
+	public V get(final K key, final Loader<? super K, V> loader) throws CarabiException {
+		V value = getIfPresent(key);
+		if (value != null) {
+			hits.incrementAndGet();
+			return value;
+		}
+		misses.incrementAndGet();
+		FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				return loader.load(key);
+			}
+		});
+		FutureTask<V> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			loads.incrementAndGet();
+			try {
+				task.run();
+				value = awaitLoad(task);
+				put(key, value);
+				return value;
+			} finally {
+				loading.remove(key);
+			}
+		}
+		return awaitLoad(running);
+	}
+
+	private V awaitLoad(FutureTask<V> task) throws CarabiException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			loadFailures.incrementAndGet();
+			Throwable cause = e.getCause();
+			if (cause instanceof CarabiException) {
+				throw (CarabiException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new CarabiException(cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private V getIfPresent(K key) {
+		Entry<V> expired;
+		synchronized (this) {
+			Entry<V> entry = protectedSegment.get(key);
+			if (entry == null) {
+				entry = probation.get(key);
+			}
+			if (entry == null) {
+				return null;
+			}
+			if (!isExpired(entry, System.currentTimeMillis())) {
+				if (!entry.isProtected) {
+					promote(key, entry);
+				}
+				return entry.value;
+			}
+			expired = unlink(key);
+			expirations.incrementAndGet();
+		}
+		notifyRemoved(key, expired);
+		return null;
+	}
+
+	/**
+	 * Сохранение значения.
+	 * @param key ключ
+	 * @param value значение (null не сохраняется)
+	 */
+	public void put(K key, V value) {
+		put(key, value, lifetime);
+	}
+
+	/**
+	 * Сохранение значения с собственным временем жизни.
+	 * @param key ключ
+	 * @param value значение (null не сохраняется)
+	 * @param lifetime время жизни записи в миллисекундах (0 или меньше -- без ограничения)
+	 */
+	public void put(K key, V value, long lifetime) {
+		if (value == null) {
+			return;
+		}
+		long weight = weigher == null ? 1 : Math.max(1, weigher.weigh(key, value));
+		if (weight > maxWeight) {
+			return;
+		}
+		long expires = lifetime > 0 ? System.currentTimeMillis() + lifetime : Long.MAX_VALUE;
+		Map<K, Entry<V>> removed = new LinkedHashMap<>();
+		synchronized (this) {
+			Entry<V> previous = unlink(key);
+			if (previous != null && previous.value != value) {
+				removed.put(key, previous);
+			}
+			probation.put(key, new Entry<>(value, weight, expires));
+			probationWeight += weight;
+			evict(removed);
+		}
+		for (Map.Entry<K, Entry<V>> entry: removed.entrySet()) {
+			notifyRemoved(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Удаление значения.
+	 * @param key ключ
+	 */
+	public void remove(K key) {
+		Entry<V> removed;
+		synchronized (this) {
+			removed = unlink(key);
+		}
+		notifyRemoved(key, removed);
+	}
+
+	/**
+	 * Удаление значений по ключам, отобранным фильтром.
+	 * @param filter фильтр ключей
+	 */
+	public void removeKeys(KeyFilter<? super K> filter) {
+		Map<K, Entry<V>> removed = new LinkedHashMap<>();
+		synchronized (this) {
+			collectKeys(probation, filter, removed);
+			collectKeys(protectedSegment, filter, removed);
+			for (K key: removed.keySet()) {
+				unlink(key);
+			}
+		}
+		for (Map.Entry<K, Entry<V>> entry: removed.entrySet()) {
+			notifyRemoved(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Удаление всех значений.
+	 */
+	public void clear() {
+		Map<K, Entry<V>> removed = new LinkedHashMap<>();
+		synchronized (this) {
+			removed.putAll(probation);
+			removed.putAll(protectedSegment);
+			probation.clear();
+			protectedSegment.clear();
+			probationWeight = 0;
+			protectedWeight = 0;
+		}
+		for (Map.Entry<K, Entry<V>> entry: removed.entrySet()) {
+			notifyRemoved(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Удаление устаревших значений (для периодического вызова).
+	 */
+	public void removeExpired() {
+		long now = System.currentTimeMillis();
+		Map<K, Entry<V>> removed = new LinkedHashMap<>();
+		synchronized (this) {
+			collectExpired(probation, now, removed);
+			collectExpired(protectedSegment, now, removed);
+			for (K key: removed.keySet()) {
+				unlink(key);
+			}
+		}
+		expirations.addAndGet(removed.size());
+		for (Map.Entry<K, Entry<V>> entry: removed.entrySet()) {
+			notifyRemoved(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Количество записей.
+	 */
+	public synchronized int size() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	/**
+	 * Статистика обращений.
+	 * @return счётчики: size, weight, hits, misses, loads, loadFailures, evictions, expirations
+	 */
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> statistics = new LinkedHashMap<>();
+		synchronized (this) {
+			statistics.put("size", (long) size());
+			statistics.put("weight", probationWeight + protectedWeight);
+		}
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("loads", loads.get());
+		statistics.put("loadFailures", loadFailures.get());
+		statistics.put("evictions", evictions.get());
+		statistics.put("expirations", expirations.get());
+		return statistics;
+	}
+
+	@Override
+	public String toString() {
+		return name + getStatistics();
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return entry.expires < now;
+	}
+
+	private void promote(K key, Entry<V> entry) {
+		probation.remove(key);
+		probationWeight -= entry.weight;
+		entry.isProtected = true;
+		protectedSegment.put(key, entry);
+		protectedWeight += entry.weight;
+		//Переполнение защищённого сегмента -- давно не использованные возвращаются в испытательный
+		long protectedLimit = (long) (maxWeight * PROTECTED_SHARE);
+		Iterator<Map.Entry<K, Entry<V>>> iterator = protectedSegment.entrySet().iterator();
+		while (protectedWeight > protectedLimit && iterator.hasNext()) {
+			Map.Entry<K, Entry<V>> eldest = iterator.next();
+			iterator.remove();
+			Entry<V> demoted = eldest.getValue();
+			protectedWeight -= demoted.weight;
+			demoted.isProtected = false;
+			probation.put(eldest.getKey(), demoted);
+			probationWeight += demoted.weight;
+		}
+	}
+
+	private void evict(Map<K, Entry<V>> removed) {
+		Iterator<Map.Entry<K, Entry<V>>> iterator = probation.entrySet().iterator();
+		while (probationWeight + protectedWeight > maxWeight && iterator.hasNext()) {
+			Map.Entry<K, Entry<V>> eldest = iterator.next();
+			iterator.remove();
+			probationWeight -= eldest.getValue().weight;
+			removed.put(eldest.getKey(), eldest.getValue());
+			evictions.incrementAndGet();
+		}
+		iterator = protectedSegment.entrySet().iterator();
+		while (probationWeight + protectedWeight > maxWeight && iterator.hasNext()) {
+			Map.Entry<K, Entry<V>> eldest = iterator.next();
+			iterator.remove();
+			protectedWeight -= eldest.getValue().weight;
+			removed.put(eldest.getKey(), eldest.getValue());
+			evictions.incrementAndGet();
+		}
+	}
+
+	private Entry<V> unlink(K key) {
+		Entry<V> entry = probation.remove(key);
+		if (entry != null) {
+			probationWeight -= entry.weight;
+			return entry;
+		}
+		entry = protectedSegment.remove(key);
+		if (entry != null) {
+			protectedWeight -= entry.weight;
+		}
+		return entry;
+	}
+
+	private void collectExpired(Map<K, Entry<V>> segment, long now, Map<K, Entry<V>> removed) {
+		for (Map.Entry<K, Entry<V>> entry: segment.entrySet()) {
+			if (isExpired(entry.getValue(), now)) {
+				removed.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void collectKeys(Map<K, Entry<V>> segment, KeyFilter<? super K> filter, Map<K, Entry<V>> removed) {
+		for (Map.Entry<K, Entry<V>> entry: segment.entrySet()) {
+			if (filter.accept(entry.getKey())) {
+				removed.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void notifyRemoved(K key, Entry<V> entry) {
+		RemovalListener<? super K, ? super V> listener = removalListener;
+		if (listener != null && entry != null) {
+			listener.removed(key, entry.value);
+		}
+	}
+}
@@ -1,38 +1,81 @@
 package ru.carabi.server.kernel;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.Settings;
 
 /**
- *
+ * Кеш результатов запросов, привязанных к пользовательским сессиям.
+ * Хранится не более {@link Settings#SESSION_CACHE_SIZE} записей (вытеснение -- см.
+ * {@link BoundedCache}), каждая не дольше {@link Settings#SESSION_CACHE_LIFETIME} секунд.
+ * При завершении сессии удаляются все её записи.
  * @author sasha
  */
 @Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class Cache<T> {
 	private static final String DELIMITER = "|";
-	private final Map<String, Object> cache = new ConcurrentHashMap<>();
-	private final Map<String, Set<String>> usersKeys = new ConcurrentHashMap<>();
+	private final BoundedCache<String, Owned<T>> cache = new BoundedCache<>("session", Settings.SESSION_CACHE_SIZE, Settings.SESSION_CACHE_LIFETIME * 1000L);
+	//Токен -> ключи записей сессии
+	private final ConcurrentHashMap<String, Set<String>> usersKeys = new ConcurrentHashMap<>();
 	
+	/**
+	 * Значение с токеном сессии, которой оно принадлежит.
+	 */
+	private static class Owned<T> {
+		final String token;
+		final T value;
+		
+		Owned(String token, T value) {
+			this.token = token;
+			this.value = value;
+		}
+	}
 	
-	public void put(String token, String key, Object value) {
+	@PostConstruct
+	public void init() {
+		//Вытесненные записи убираем из списков ключей сессий
+		cache.setRemovalListener(new BoundedCache.RemovalListener<String, Owned<T>>() {
+			@Override
+			public void removed(String key, Owned<T> owned) {
+				Set<String> userKeys = usersKeys.get(owned.token);
+				if (userKeys != null) {
+					userKeys.remove(key);
+				}
+			}
+		});
+	}
+	
+	public void put(String token, String key, T value) {
 		Set<String> userKeys = usersKeys.get(token);
 		if (userKeys == null) {
-			userKeys = new HashSet<>();
-			usersKeys.put(token, userKeys);
+			Set<String> newUserKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			userKeys = usersKeys.putIfAbsent(token, newUserKeys);
+			if (userKeys == null) {
+				userKeys = newUserKeys;
+			}
 		}
+		cache.put(key, new Owned<>(token, value));
+		//Ключ добавляем после записи: при замене значения слушатель удаления
+		//убирает ключ из списка прежнего владельца, которым может быть эта же сессия
 		userKeys.add(key);
-		cache.put(key, value);
 	}
-	public void put(String token, String[] keys, Object value) {
+	
+	public void put(String token, String[] keys, T value) {
 		put(token, StringUtils.join(keys, DELIMITER), value);
 	}
 	
 	public T get(String key) {
-		return (T) cache.get(key);
+		Owned<T> owned = cache.get(key);
+		return owned == null ? null : owned.value;
 	}
 	
 	public T get(String[] keys) {
@@ -40,7 +83,7 @@ public class Cache<T> {
 	}
 	
 	public void removeUserData(String token) {
-		Set<String> userKeys = usersKeys.get(token);
+		Set<String> userKeys = usersKeys.remove(token);
 		if (userKeys == null) {
 			return;
 		}
@@ -48,4 +91,19 @@ public class Cache<T> {
 			cache.remove(key);
 		}
 	}
+	
+	/**
+	 * Статистика обращений (см. {@link BoundedCache#getStatistics()}).
+	 */
+	public Map<String, Long> getStatistics() {
+		return cache.getStatistics();
+	}
+	
+	/**
+	 * Удаление устаревших записей.
+	 */
+	@Schedule(minute="*/10", hour="*")
+	public void removeExpired() {
+		cache.removeExpired();
+	}
 }
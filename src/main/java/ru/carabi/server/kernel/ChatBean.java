@@ -58,6 +58,7 @@ import ru.carabi.server.entities.UserRelation;
 import ru.carabi.server.entities.UserRelationType;
 import ru.carabi.server.kernel.oracle.CarabiDate;
 import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 import ru.carabi.server.rest.RestException;
 import ru.carabi.stub.CarabiException_Exception;
 import ru.carabi.stub.ChatService;
@@ -70,10 +71,18 @@ import ru.carabi.stub.ChatService_Service;
 @Stateless
 public class ChatBean {
 	private static final Logger logger = CarabiLogging.getLogger(ChatBean.class);
+	private static final Metrics.Histogram sendTime = Metrics.histogram("carabi_chat_send_seconds",
+			"Time to deliver a chat message to the receiver and sender");
+	private static final Metrics.Counter sendFailures = Metrics.counter("carabi_chat_send_failures_total",
+			"Chat messages that could not be delivered");
+	private static final Metrics.Counter remoteCalls = Metrics.counter("carabi_chat_remote_calls_total",
+			"Chat messages forwarded to other servers by SOAP");
 	
 	private @EJB UsersControllerBean uc;
 	private @EJB DepartmentsPercistenceBean departmentsPercistence;
 	private @EJB EventerBean eventer;
+	private @EJB Topology topology;
+	private @EJB UsersSearchIndex usersSearchIndex;
 	
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-chat")
 	private EntityManager emChat;
@@ -96,6 +105,21 @@ public class ChatBean {
 	 * @throws ru.carabi.server.CarabiException 
 	 */
 	public Long sendMessage(CarabiUser sender, CarabiUser receiver, String messageText, Long senderAttachmentId, Long receiverAttachmentId, Integer extensionTypeId, String extensionValue, boolean markRead) throws CarabiException {
+		long start = System.nanoTime();
+		boolean sent = false;
+		try {
+			Long sentMessageId = sendMessage_Internal(sender, receiver, messageText, senderAttachmentId, receiverAttachmentId, extensionTypeId, extensionValue, markRead);
+			sent = true;
+			return sentMessageId;
+		} finally {
+			sendTime.recordSince(start);
+			if (!sent) {
+				sendFailures.increment();
+			}
+		}
+	}
+	
+	private Long sendMessage_Internal(CarabiUser sender, CarabiUser receiver, String messageText, Long senderAttachmentId, Long receiverAttachmentId, Integer extensionTypeId, String extensionValue, boolean markRead) throws CarabiException {
 		if (sender.equals(receiver)) { //пометки самому себе по умолчанию известны пользователю
 			markRead = true;
 		}
@@ -105,6 +129,7 @@ public class ChatBean {
 		if (Settings.getCurrentServer().equals(receiverServer)) {
 			recievedMessageId = forwardMessage(sender, receiver, messageText, receiverAttachmentId, extensionTypeId, extensionValue, markRead);
 		} else { //иначе по SOAP
+			remoteCalls.increment();
 			recievedMessageId = callForwardMessageSoap(receiverServer, sender, receiver, messageText, receiverAttachmentId, extensionTypeId, extensionValue, markRead);
 		}
 		if (recievedMessageId < 0) {
@@ -521,14 +546,91 @@ public class ChatBean {
 	}
 	
 	public String getContactList(UserLogon client, String department, String search) throws CarabiException {
-		//Выбираем пользователей
-		TypedQuery<CarabiUser> getUsersList;
-		if (!StringUtils.isEmpty(search)) {
-			getUsersList = emKernel.createNamedQuery("getActiveUsersListSearch", CarabiUser.class);
-			getUsersList.setParameter("search", "%" + search.toUpperCase() + "%");
+		Collection<String> departments = getSearchDepartments(client, department);
+		List<CarabiUser> usersList;
+		//индекс используется, только если даёт тот же результат, что и запрос к базе
+		if (UsersSearchIndex.isSubstringQuery(search) && usersSearchIndex.isReady()) {
+			List<Long> idList = new ArrayList<>();
+			for (UsersSearchIndex.Entry entry: usersSearchIndex.search(search, departments, true, 0)) {
+				idList.add(entry.getId());
+			}
+			usersList = getUsersOrdered(idList);
 		} else {
-			getUsersList = emKernel.createNamedQuery("getActiveUsersList", CarabiUser.class);
+			//Выбираем пользователей
+			TypedQuery<CarabiUser> getUsersList;
+			if (!StringUtils.isEmpty(search)) {
+				getUsersList = emKernel.createNamedQuery("getActiveUsersListSearch", CarabiUser.class);
+				getUsersList.setParameter("search", "%" + search.toUpperCase() + "%");
+			} else {
+				getUsersList = emKernel.createNamedQuery("getActiveUsersList", CarabiUser.class);
+			}
+			getUsersList.setParameter("departments", departments);
+			usersList = getUsersList.getResultList();
 		}
+		return printUsersForOutput(client, usersList, null, false).toString();
+	}
+	
+	/**
+	 * Быстрый поиск контактов для подсказок при наборе. Ищет по индексу в памяти
+	 * ({@link UsersSearchIndex}) среди тех же пользователей, что и {@link #getContactList},
+	 * без обращения к базе.
+	 * @param client текущий пользователь
+	 * @param department кодовое название подразделения, в котором ищем (null -- искать во всех доступных)
+	 * @param search начало слова или часть (от трёх символов) логина, ФИО, подразделения, должности или email
+	 * @param limit максимальное количество (0 или меньше -- без ограничения)
+	 * @return JSON-массив: id, login, firstname, middlename, lastname, department, role
+	 * @throws CarabiException если индекс ещё не построен или подразделение недоступно
+	 */
+	public String searchContacts(UserLogon client, String department, String search, int limit) throws CarabiException {
+		if (!usersSearchIndex.isReady()) {
+			throw new CarabiException("Users search index is not ready");
+		}
+		JsonArrayBuilder result = Json.createArrayBuilder();
+		if (StringUtils.isEmpty(search)) {
+			return result.build().toString();
+		}
+		for (UsersSearchIndex.Entry entry: usersSearchIndex.search(search, getSearchDepartments(client, department), true, limit)) {
+			JsonObjectBuilder user = Json.createObjectBuilder();
+			user.add("id", entry.getId());
+			Utls.addJsonObject(user, "login", entry.getLogin());
+			Utls.addJsonObject(user, "firstname", entry.getFirstname());
+			Utls.addJsonObject(user, "middlename", entry.getMiddlename());
+			Utls.addJsonObject(user, "lastname", entry.getLastname());
+			Utls.addJsonObject(user, "department", entry.getDepartment());
+			Utls.addJsonObject(user, "role", entry.getRole());
+			result.add(user);
+		}
+		return result.build().toString();
+	}
+	
+	/**
+	 * Загрузка пользователей по ID с сохранением порядка.
+	 */
+	private List<CarabiUser> getUsersOrdered(List<Long> idList) {
+		if (idList.isEmpty()) {
+			return new ArrayList<>(0);
+		}
+		TypedQuery<CarabiUser> getSelectedUsersList = emKernel.createNamedQuery("getSelectedUsersList", CarabiUser.class);
+		getSelectedUsersList.setParameter("idlist", idList);
+		Map<Long, CarabiUser> usersPerId = new HashMap<>();
+		for (CarabiUser user: getSelectedUsersList.getResultList()) {
+			usersPerId.put(user.getId(), user);
+		}
+		List<CarabiUser> result = new ArrayList<>(idList.size());
+		for (Long id: idList) {
+			CarabiUser user = usersPerId.get(id);
+			if (user != null) {
+				result.add(user);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Корпорации, в которых ищутся контакты: указанное подразделение (если к нему есть доступ)
+	 * или корпорация, подразделение и связанные подразделения текущего пользователя.
+	 */
+	private Collection<String> getSearchDepartments(UserLogon client, String department) throws CarabiException {
 		Collection<String> departments = new HashSet<>();
 		CarabiUser user = client.getUser();
 		if (!StringUtils.isEmpty(department)) {
@@ -553,9 +655,7 @@ public class ChatBean {
 				departments.add(relatedDepartment.getSysname());
 			}
 		}
-		getUsersList.setParameter("departments", departments);
-		List<CarabiUser> usersList = getUsersList.getResultList();
-		return printUsersForOutput(client, usersList, null, false).toString();
+		return departments;
 	}
 	
 	public String getRelatedUsersList(UserLogon client, String relationsStr, boolean conjunction) throws CarabiException {
@@ -660,8 +760,9 @@ public class ChatBean {
 		if (!interlocutorsIdOrdered.isEmpty()) {
 			//получаем данные особеседниках
 			List<CarabiUser> users;
-			if (search != null && !search.isEmpty()) {
-				
+			if (UsersSearchIndex.isSubstringQuery(search) && usersSearchIndex.isReady()) {
+				users = getUsersOrdered(usersSearchIndex.filter(interlocutorsIdOrdered, search));
+			} else if (search != null && !search.isEmpty()) {
 				TypedQuery<CarabiUser> getSelectedUsersListSearch = emKernel.createNamedQuery("getSelectedUsersListSearch", CarabiUser.class);
 				getSelectedUsersListSearch.setParameter("idlist", interlocutorsIdOrdered);
 				getSelectedUsersListSearch.setParameter("search", "%" + search.toUpperCase() + "%");
@@ -734,7 +835,22 @@ public class ChatBean {
 			unreadMessagesSenders = Json.createObjectBuilder().build();
 			userRelations = new HashMap<>();
 		}
-		
+		return printUsersTable(client.getUser(), usersList, userLastContact, addLastMessages, onlineUsers, unreadMessagesSenders, userRelations);
+	}
+	
+	/**
+	 * Формирование таблицы пользователей по собранной статистике
+	 * (вынесено из {@link #printUsersForOutput} для замеров без базы).
+	 * @param clientUser текущий пользователь (не выводится)
+	 * @param usersList выводимые пользователи
+	 * @param userLastContact даты последнего общения или null
+	 * @param addLastMessages выводить последние сообщения
+	 * @param onlineUsers логины пользователей в сети
+	 * @param unreadMessagesSenders непрочитанные сообщения по логинам отправителей
+	 * @param userRelations отношения с пользователями по логинам
+	 */
+	static JsonObject printUsersTable(CarabiUser clientUser, List<CarabiUser> usersList, Map<Long, Date> userLastContact, boolean addLastMessages,
+			Set<String> onlineUsers, JsonObject unreadMessagesSenders, Map<String, UserRelation> userRelations) {
 		//формируем вывод
 		JsonArrayBuilder headerColumns = Json.createArrayBuilder();
 		headerColumns.add(Utls.parametersToJson("LOGIN", "VARCHAR2"));
@@ -763,7 +879,7 @@ public class ChatBean {
 		result.add("columns", headerColumns);
 		JsonArrayBuilder rows = Json.createArrayBuilder();
 		for (CarabiUser user: usersList) {
-			if (user.equals(client.getUser())) {
+			if (user.equals(clientUser)) {
 				continue;
 			}
 			JsonArrayBuilder userJson = Json.createArrayBuilder();
@@ -846,8 +962,7 @@ public class ChatBean {
 	
 	private synchronized Set<String> scanOnlineUsers() {
 		//С каждого Eventer пытаемся получить список подключенных пользователей
-		TypedQuery<CarabiAppServer> getSevers = emKernel.createNamedQuery("getAllServers", CarabiAppServer.class);
-		List<CarabiAppServer> servers = getSevers.getResultList();
+		List<CarabiAppServer> servers = topology.getServers();
 		Set<String> newOnlineUsers = new ConcurrentSkipListSet<>();
 		for (CarabiAppServer server: servers) {
 			try {
@@ -1059,8 +1174,7 @@ public class ChatBean {
 			eventer.fireEvent("", "", CarabiEventType.userOnlineEvent.getCode(), "{\"login\":\"" + logon.getUser().getLogin() + "\",\"online\":true}");
 		} else {
 			//При отключении проверяем, что других сессий этого пользователя нет
-			TypedQuery<CarabiAppServer> getSevers = emKernel.createNamedQuery("getAllServers", CarabiAppServer.class);
-			List<CarabiAppServer> servers = getSevers.getResultList();
+			List<CarabiAppServer> servers = topology.getServers();
 			//На каждом Eventer проверяем наличие данного пользователя
 			boolean stillOnline = false;
 			for (CarabiAppServer server: servers) {
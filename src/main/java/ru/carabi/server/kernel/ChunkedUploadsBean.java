@@ -0,0 +1,94 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import org.apache.commons.lang3.RandomStringUtils;
+import ru.carabi.server.ChunkedUpload;
+import ru.carabi.server.Settings;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Незавершённые докачиваемые загрузки ({@link ChunkedUpload}) на текущем сервере.
+ * Загрузки, не получавшие данных дольше {@link Settings#UPLOAD_LIFETIME} минут,
+ * отменяются с удалением недокачанных файлов.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ChunkedUploadsBean {
+	private static final Logger logger = CarabiLogging.getLogger(ChunkedUploadsBean.class);
+
+	private final Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+
+	/**
+	 * Создание новой загрузки.
+	 * @param token токен владельца
+	 * @param contentLength полный размер файла
+	 * @return загрузка без целевых файлов (их добавляет вызывающий код)
+	 */
+	public ChunkedUpload createUpload(String token, long contentLength) {
+		String id = RandomStringUtils.randomAlphanumeric(Settings.TOKEN_LENGTH);
+		while (uploads.containsKey(id)) {
+			id = RandomStringUtils.randomAlphanumeric(Settings.TOKEN_LENGTH);
+		}
+		ChunkedUpload upload = new ChunkedUpload(id, token, contentLength);
+		uploads.put(id, upload);
+		return upload;
+	}
+
+	/**
+	 * Получение загрузки с проверкой владельца.
+	 * @param id идентификатор загрузки
+	 * @param token токен пользователя
+	 * @return загрузка или null, если её нет или она принадлежит другому пользователю
+	 */
+	public ChunkedUpload getUpload(String id, String token) {
+		if (id == null) {
+			return null;
+		}
+		ChunkedUpload upload = uploads.get(id);
+		if (upload == null || !upload.getToken().equals(token)) {
+			return null;
+		}
+		return upload;
+	}
+
+	/**
+	 * Удаление завершённой загрузки из списка.
+	 * @param upload загрузка
+	 */
+	public void removeUpload(ChunkedUpload upload) {
+		uploads.remove(upload.getId());
+	}
+
+	/**
+	 * Отмена загрузки с удалением недокачанных данных.
+	 * @param upload загрузка
+	 */
+	public void abortUpload(ChunkedUpload upload) {
+		removeUpload(upload);
+		upload.abort();
+	}
+
+	/**
+	 * Отмена заброшенных загрузок.
+	 */
+	@Schedule(minute="*/10", hour="*")
+	public void dispatchAbandonedUploads() {
+		long timestamp = new Date().getTime();
+		for (ChunkedUpload upload: new ArrayList<>(uploads.values())) {
+			if (timestamp - upload.getLastActive().getTime() > Settings.UPLOAD_LIFETIME * 60 * 1000L) {
+				logger.log(Level.INFO, "aborting abandoned upload {0}", upload.getId());
+				abortUpload(upload);
+			}
+		}
+	}
+}
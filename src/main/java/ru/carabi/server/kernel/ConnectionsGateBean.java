@@ -21,6 +21,7 @@ import ru.carabi.server.CarabiException;
 import ru.carabi.server.OracleConnectionError;
 import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 import ru.carabi.server.entities.ConnectionSchema;
 import ru.carabi.server.Settings;
 
@@ -37,7 +38,14 @@ public class ConnectionsGateBean {
 	private EntityManager em;//Доступ через JPA -- только для служебной информации в ядровой базе
 	
 	@EJB ConnectorBean connector;
+	@EJB private Topology topology;
 	static final Logger logger = Logger.getLogger(ConnectionsGateBean.class.getName());
+	private static final Metrics.Histogram poolConnectTime = Metrics.histogram("carabi_oracle_connect_seconds",
+			"Time to get an Oracle connection", "source", "pool");
+	private static final Metrics.Histogram jdbcConnectTime = Metrics.histogram("carabi_oracle_connect_seconds",
+			"Time to get an Oracle connection", "source", "jdbc");
+	private static final Metrics.Counter connectFailures = Metrics.counter("carabi_oracle_connect_failures_total",
+			"Failed attempts to get an Oracle connection");
 	
 	/**
 	 * Возвращает указанную в настройках пользователя базу по умолчанию
@@ -61,10 +69,10 @@ public class ConnectionsGateBean {
 	}
 	
 	/**
-	 * Получение подключения к базе Carabi по ID
+	 * Получение подключения к базе Carabi по ID (из снимка {@link Topology})
 	 */
 	public ConnectionSchema getConnectionSchemaByID(int id) throws CarabiException {
-		ConnectionSchema schema = em.find(ConnectionSchema.class, new Integer(id));
+		ConnectionSchema schema = topology.getSchema(id);
 		if (schema == null) {
 			throw new OracleConnectionError("No schema with id: " + id);
 		}
@@ -72,21 +80,17 @@ public class ConnectionsGateBean {
 	}
 	
 	/**
-	 * Получение подключения к базе Carabi по псевдониму.
+	 * Получение подключения к базе Carabi по псевдониму (из снимка {@link Topology}).
 	 * @param sysname псевдоним схемы Carabi
 	 * @throws CarabiException если такой схемы нет
 	 */
 	public ConnectionSchema getConnectionSchemaByAlias(String sysname) throws CarabiException {
 		logger.log(Level.FINE, "ru.carabi.server.kernel.getConnectionSchemaByAlias with params: sysname={0}", new Object[]{sysname});
-		
-		TypedQuery<ConnectionSchema> query = em.createNamedQuery("findSchemaBySysname", ConnectionSchema.class);
-		query.setParameter("sysname", sysname);
-		try {
-			ConnectionSchema schema = query.getSingleResult();
-			return schema;
-		} catch (NoResultException e) {
+		ConnectionSchema schema = topology.getSchema(sysname);
+		if (schema == null) {
 			throw new OracleConnectionError("Схема не найдена по имени: "+sysname);
 		}
+		return schema;
 	}
 	
 	/**
@@ -216,10 +220,23 @@ public class ConnectionsGateBean {
 	 * @throws CarabiException база недоступна
 	 */
 	public Connection connectToSchema(ConnectionSchema schema) throws CarabiException, NamingException, SQLException {
-		if (Settings.USE_SYSTEM_POOL) {
-			return getDatabaseConnectionByJNDI(schema.getJNDI());
-		} else {
-			return getDatabaseConnectionByJDBC(schema.getAddress(), schema.getLogin(), schema.getPassword());
+		long start = System.nanoTime();
+		boolean connected = false;
+		try {
+			Connection connection;
+			if (Settings.USE_SYSTEM_POOL) {
+				connection = getDatabaseConnectionByJNDI(schema.getJNDI());
+				poolConnectTime.recordSince(start);
+			} else {
+				connection = getDatabaseConnectionByJDBC(schema.getAddress(), schema.getLogin(), schema.getPassword());
+				jdbcConnectTime.recordSince(start);
+			}
+			connected = connection != null;
+			return connection;
+		} finally {
+			if (!connected) {
+				connectFailures.increment();
+			}
 		}
 	}
 	
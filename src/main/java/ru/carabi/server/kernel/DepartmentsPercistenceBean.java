@@ -1,15 +1,15 @@
 package ru.carabi.server.kernel;
 
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
-import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import org.apache.commons.lang3.StringUtils;
 import ru.carabi.server.CarabiException;
@@ -30,6 +30,9 @@ public class DepartmentsPercistenceBean {
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	private EntityManager em;
 	
+	@EJB private DepartmentsTree departmentsTree;
+	@EJB private InvalidationBus invalidationBus;
+	
 	/**
 	 * Поиск подразделения по кодовому названию
 	 * @param sysname кодовое название подразделения ({@link Department#sysname})
@@ -89,57 +92,42 @@ public class DepartmentsPercistenceBean {
 		}
 		department = em.merge(department);
 		em.flush();
+		departmentsTree.update(department);
+		invalidationBus.publish(InvalidationBus.Kind.DEPARTMENT, department.getId());
 		return department;
 	}
 	
 	/**
 	 * Получение всех вышестоящих подразделений от указанного
+	 * (из иерархии в памяти, см. {@link DepartmentsTree})
 	 * @param departmentLeaf текущее подразделение, вышестоящие к которому ищем
 	 * @return Список подразделений в порядке от высшего к текущему
 	 */
 	public List<Department> getDepartmentBranch(Department departmentLeaf) {
-		String sql = "select * from appl_department.get_departments_branch_detailed(?)";
-		Query query = em.createNativeQuery(sql);
-		query.setParameter(1, departmentLeaf.getId());
-		List resultList = query.getResultList();
-		int i = resultList.size();
-		Department[] result = new Department[i];
-		for (Object row: resultList) {
-			i--;
-			Object[] data = (Object[])row;
-			Department department = new Department();
-			department.setId((Integer) data[0]);
-			department.setName((String) data[1]);
-			department.setSysname((String) data[2]);
-			department.setDescription((String) data[3]);
-			result[i] = department;
-		}
-		return Arrays.asList(result);
+		return departmentsTree.getBranch(departmentLeaf.getId());
 	}
 	
 	/**
 	 * Получение всех подразделений для текущего пользователя от основного и выше
+	 * (из иерархии в памяти, см. {@link DepartmentsTree})
 	 * @param userLogon сессия пользователя
 	 * @return Список подразделений в порядке от высшего к основному для текущего пользователя
 	 */
 	public List<Department> getDepartmentBranch(UserLogon userLogon) {
-		String sql = "select * from appl_department.get_departments_branch_detailed(?, null)";
-		Query query = em.createNativeQuery(sql);
-		query.setParameter(1, userLogon.getToken());
-		List resultList = query.getResultList();
-		int i = resultList.size();
-		Department[] result = new Department[i];
-		for (Object row: resultList) {
-			i--;
-			Object[] data = (Object[])row;
-			Department department = new Department();
-			department.setId((Integer) data[0]);
-			department.setName((String) data[1]);
-			department.setSysname((String) data[2]);
-			department.setDescription((String) data[3]);
-			result[i] = department;
+		Department department = userLogon.getUser().getDepartment();
+		if (department == null) {
+			return Collections.emptyList();
 		}
-		return Arrays.asList(result);
+		return departmentsTree.getBranch(department.getId());
+	}
+	
+	/**
+	 * Обновление иерархии в памяти после сохранения подразделения.
+	 * @param department сохранённое подразделение
+	 */
+	public void updateDepartmentsTree(Department department) {
+		departmentsTree.update(department);
+		invalidationBus.publish(InvalidationBus.Kind.DEPARTMENT, department.getId());
 	}
 	
 	/**
@@ -151,14 +139,16 @@ public class DepartmentsPercistenceBean {
 	 * @return 
 	 */
 	public boolean isDepartmentAvailable(UserLogon logon, Department department) {
-		List<Department> userDepartmentBranch = getDepartmentBranch(logon);
-		List<Department> departmentBranch = getDepartmentBranch(department);
-		if (!userDepartmentBranch.isEmpty() && !departmentBranch.isEmpty() && userDepartmentBranch.get(0).equals(departmentBranch.get(0))) {
+		Department root = departmentsTree.getRoot(department.getId());
+		if (root == null) {
+			return false;
+		}
+		Department userDepartment = logon.getUser().getDepartment();
+		if (userDepartment != null && root.equals(departmentsTree.getRoot(userDepartment.getId()))) {
 			return true;
 		}
 		for (Department relatedDepartment: logon.getUser().getRelatedDepartments()) {
-			userDepartmentBranch = getDepartmentBranch(relatedDepartment);
-			if (!userDepartmentBranch.isEmpty() && !departmentBranch.isEmpty() && userDepartmentBranch.get(0).equals(departmentBranch.get(0))) {
+			if (root.equals(departmentsTree.getRoot(relatedDepartment.getId()))) {
 				return true;
 			}
 		}
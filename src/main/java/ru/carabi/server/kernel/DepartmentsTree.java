@@ -0,0 +1,180 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import ru.carabi.server.entities.Department;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Иерархия подразделений в памяти.
+ * Для каждого подразделения хранится готовая ветка предков (от корневого до данного),
+ * поэтому получение ветки и проверка общего предка не требуют обращения к базе.
+ * Дерево загружается при первом обращении, обновляется при сохранении подразделений
+ * через ядро и периодически перечитывается целиком (на случай изменений через
+ * другие серверы или напрямую в базе).
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DepartmentsTree {
+	private static final Logger logger = CarabiLogging.getLogger(DepartmentsTree.class);
+
+	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
+	private EntityManager em;
+
+	/**
+	 * Неизменяемый снимок дерева: ID подразделения -> ветка от корня до него.
+	 * При изменениях строится новый снимок.
+	 */
+	private volatile Map<Integer, List<Department>> branches = null;
+	//Родительские связи и данные подразделений, из которых строился снимок
+	private Map<Integer, Department> departments = new HashMap<>();
+
+	/**
+	 * Ветка от корневого подразделения до указанного.
+	 * @param departmentId ID подразделения
+	 * @return неизменяемый список в порядке от высшего к указанному,
+	 * пустой, если подразделение не найдено
+	 */
+	public List<Department> getBranch(Integer departmentId) {
+		if (departmentId == null) {
+			return Collections.emptyList();
+		}
+		Map<Integer, List<Department>> currentBranches = branches;
+		if (currentBranches == null) {
+			currentBranches = reload();
+		}
+		List<Department> branch = currentBranches.get(departmentId);
+		if (branch == null) {
+			return Collections.emptyList();
+		}
+		return branch;
+	}
+
+	/**
+	 * Корневое подразделение (компания) для указанного.
+	 * @param departmentId ID подразделения
+	 * @return корневое подразделение или null, если указанное не найдено
+	 */
+	public Department getRoot(Integer departmentId) {
+		List<Department> branch = getBranch(departmentId);
+		return branch.isEmpty() ? null : branch.get(0);
+	}
+
+	/**
+	 * Занесение нового или изменённого подразделения в дерево.
+	 * Ветки пересчитываются в памяти, без повторного чтения из базы.
+	 * @param department сохранённое подразделение (с ID)
+	 */
+	public synchronized void update(Department department) {
+		if (department.getId() == null) {
+			return;
+		}
+		if (branches == null) {
+			reload();
+			return;
+		}
+		Map<Integer, Department> updatedDepartments = new HashMap<>(departments);
+		updatedDepartments.put(department.getId(), copy(department));
+		departments = updatedDepartments;
+		branches = buildBranches(updatedDepartments);
+	}
+
+	/**
+	 * Сброс дерева (при изменении подразделений через другой сервер).
+	 * Дерево будет перечитано из базы при следующем обращении.
+	 */
+	public synchronized void invalidate() {
+		branches = null;
+	}
+	
+	/**
+	 * Периодическое перечитывание дерева из базы.
+	 */
+	@Schedule(minute="*/5", hour="*")
+	public void scheduledReload() {
+		reload();
+	}
+
+	/**
+	 * Полное перечитывание дерева из базы.
+	 * @return новый снимок дерева
+	 */
+	private synchronized Map<Integer, List<Department>> reload() {
+		TypedQuery<Department> getAllDepartments = em.createNamedQuery("getAllDepartments", Department.class);
+		Map<Integer, Department> loadedDepartments = new HashMap<>();
+		for (Department department: getAllDepartments.getResultList()) {
+			loadedDepartments.put(department.getId(), copy(department));
+		}
+		departments = loadedDepartments;
+		branches = buildBranches(loadedDepartments);
+		return branches;
+	}
+
+	private static Map<Integer, List<Department>> buildBranches(Map<Integer, Department> departments) {
+		Map<Integer, List<Department>> result = new HashMap<>(departments.size() * 2);
+		for (Department department: departments.values()) {
+			buildBranch(department, departments, result);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Построение ветки с использованием уже построенных веток предков.
+	 */
+	private static List<Department> buildBranch(Department department, Map<Integer, Department> departments, Map<Integer, List<Department>> result) {
+		List<Department> branch = result.get(department.getId());
+		if (branch != null) {
+			return branch;
+		}
+		//Поднимаемся до предка с готовой веткой или до корня
+		List<Department> path = new ArrayList<>();
+		List<Department> base = Collections.emptyList();
+		Department current = department;
+		while (current != null) {
+			List<Department> ready = result.get(current.getId());
+			if (ready != null) {
+				base = ready;
+				break;
+			}
+			if (path.contains(current)) {
+				logger.log(Level.SEVERE, "Cycle in departments hierarchy at {0}", current.getSysname());
+				break;
+			}
+			path.add(current);
+			Integer parentId = current.getParentDepartmentId();
+			current = parentId == null ? null : departments.get(parentId);
+		}
+		List<Department> prefix = new ArrayList<>(base);
+		for (int i = path.size() - 1; i >= 0; i--) {
+			prefix.add(path.get(i));
+			result.put(path.get(i).getId(), Collections.unmodifiableList(new ArrayList<>(prefix)));
+		}
+		return result.get(department.getId());
+	}
+
+	/**
+	 * Отсоединённая копия подразделения с основными полями (как в ветке, выдаваемой базой).
+	 */
+	private static Department copy(Department source) {
+		Department department = new Department();
+		department.setId(source.getId());
+		department.setName(source.getName());
+		department.setSysname(source.getSysname());
+		department.setDescription(source.getDescription());
+		department.setParentDepartmentId(source.getParentDepartmentId());
+		return department;
+	}
+}
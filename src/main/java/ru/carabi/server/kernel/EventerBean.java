@@ -9,10 +9,14 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.persistence.EntityManager;
@@ -27,17 +31,38 @@ import ru.carabi.server.UserLogon;
 import ru.carabi.server.entities.CarabiAppServer;
 import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 import ru.carabi.server.soap.GuestService;
 
 /**
  * Служебный сервис для работы TCP Eventer и его клиентов.
+ * События доставляются также клиентам, подключённым по WebSocket ({@link PushBean});
+ * если Eventer не используется (EVENTER_ENABLED=false) -- только им.
  * @author sasha<kopilov.ad@gmail.com>
  */
 @Stateless
 public class EventerBean {
 	private static final Logger logger = CarabiLogging.getLogger(EventerBean.class);
+	//События, ещё не доставленные в Eventer
+	private static final AtomicInteger eventsPending = new AtomicInteger();
+	private static final Metrics.Histogram deliveryTime = Metrics.histogram("carabi_eventer_request_seconds",
+			"Time of a request to Eventer");
+	private static final Metrics.Counter deliveryFailures = Metrics.counter("carabi_eventer_failures_total",
+			"Requests to Eventer that failed");
+	
+	static {
+		Metrics.gauge("carabi_eventer_pending_events", "Events waiting for delivery to Eventer", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return eventsPending.get();
+			}
+		});
+	}
 	
 	@EJB private UsersControllerBean usersController;
+	@EJB private Topology topology;
+	@EJB private PushBean pushBean;
+	@Resource private ManagedExecutorService executor;
 	
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	EntityManager em;
@@ -61,7 +86,9 @@ public class EventerBean {
 	}
 	
 	/**
-	 * Отправить событие клиенту через Eventer.
+	 * Отправить событие клиенту через WebSocket и Eventer.
+	 * Клиентам данного сервера событие ставится в очередь сразу,
+	 * на другие сервера и в Eventer отправляется в фоновом потоке.
 	 * @param schema БД, из которой идёт событие
 	 * @param login логин клиента
 	 * @param eventcode код события
@@ -70,30 +97,48 @@ public class EventerBean {
 	 * @throws CarabiException Если адресат не найден
 	 */
 	public void fireEvent(
-			String schema,
-			String login,
-			short eventcode,
-			String message) throws IOException, CarabiException {
+			final String schema,
+			final String login,
+			final short eventcode,
+			final String message) throws IOException, CarabiException {
 		logger.log(Level.FINE, "fireEvent, parameters: {0}, {1}, {2}, {3}", new Object[] {schema, login, eventcode, message});
-		final byte[] eventPackage = prepareFireEventPackage(schema, login, eventcode, message);
+		final byte[] eventPackage = Settings.EVENTER_ENABLED ? prepareFireEventPackage(schema, login, eventcode, message) : null;
 		final List<CarabiAppServer> servers = getTargetServers(login);
 		logger.log(Level.FINE, "target servers: {0}", servers.size());
-		new Thread (new Runnable() {
-			@Override
-			public void run() {
-				for (CarabiAppServer server: servers) {
-					if (!server.isEnabled()) {
-						continue;
-					}
-					logger.log(Level.FINE, "send to server {0}", server.getSysname());
+		pushBean.push(schema, login, eventcode, message);
+		final CarabiAppServer currentServer = Settings.getCurrentServer();
+		eventsPending.incrementAndGet();
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						eventerSingleRequestResponse(server, eventPackage, new Holder<>(CarabiEventType.fireEvent.getCode()), false);
-					} catch (IOException ex) {
-						Logger.getLogger(EventerBean.class.getName()).log(Level.SEVERE, null, ex);
+						for (CarabiAppServer server: servers) {
+							if (!server.isEnabled()) {
+								continue;
+							}
+							logger.log(Level.FINE, "send to server {0}", server.getSysname());
+							if (!server.equals(currentServer)) {
+								pushBean.forward(server, schema, login, eventcode, message);
+							}
+							if (eventPackage == null) {
+								continue;
+							}
+							try {
+								eventerSingleRequestResponse(server, eventPackage, new Holder<>(CarabiEventType.fireEvent.getCode()), false);
+							} catch (IOException ex) {
+								Logger.getLogger(EventerBean.class.getName()).log(Level.SEVERE, null, ex);
+							}
+						}
+					} finally {
+						eventsPending.decrementAndGet();
 					}
 				}
-			}
-		}).start();
+			});
+		} catch (RejectedExecutionException e) {
+			eventsPending.decrementAndGet();
+			logger.log(Level.SEVERE, "event delivery to other servers rejected", e);
+		}
 	}
 	
 	/**
@@ -104,17 +149,15 @@ public class EventerBean {
 	 * @throws CarabiException если нет пользователя с именем из параметра login 
 	 */
 	private List<CarabiAppServer> getTargetServers(String login) throws CarabiException {
-		TypedQuery<CarabiAppServer> getSevers;
 		if (login == null || login.equals("")) {
-			getSevers = em.createNamedQuery("getAllServers", CarabiAppServer.class);
-		} else {
-			CarabiUser user = usersController.findUser(login);
-			getSevers = em.createNamedQuery("getAllUserSevers", CarabiAppServer.class);
-			getSevers.setParameter("user", user);
-			GregorianCalendar calendar = new GregorianCalendar();
-			calendar.add(GregorianCalendar.SECOND, -Settings.SESSION_LIFETIME);
-			getSevers.setParameter("newer_than", calendar.getTime());
+			return topology.getServers();
 		}
+		CarabiUser user = usersController.findUser(login);
+		TypedQuery<CarabiAppServer> getSevers = em.createNamedQuery("getAllUserSevers", CarabiAppServer.class);
+		getSevers.setParameter("user", user);
+		GregorianCalendar calendar = new GregorianCalendar();
+		calendar.add(GregorianCalendar.SECOND, -Settings.SESSION_LIFETIME);
+		getSevers.setParameter("newer_than", calendar.getTime());
 		return getSevers.getResultList();
 	}
 	
@@ -160,6 +203,21 @@ public class EventerBean {
 	}
 	
 	public String eventerSingleRequestResponse(CarabiAppServer targetServer, byte[] eventPackage, Holder<Short> code, boolean waitResponse) throws IOException {
+		long start = System.nanoTime();
+		boolean connected = false;
+		try {
+			String response = eventerSingleRequestResponse_Internal(targetServer, eventPackage, code, waitResponse);
+			connected = true;
+			return response;
+		} finally {
+			deliveryTime.recordSince(start);
+			if (!connected) {
+				deliveryFailures.increment();
+			}
+		}
+	}
+	
+	private String eventerSingleRequestResponse_Internal(CarabiAppServer targetServer, byte[] eventPackage, Holder<Short> code, boolean waitResponse) throws IOException {
 		ByteBuffer shortBuffer;
 		String computer;
 		//Если мы находимся на том компьютере, куда шлём событие --
@@ -199,6 +257,7 @@ public class EventerBean {
 					return null;
 				}
 			} catch (IOException e) {
+				deliveryFailures.increment();
 				logger.log(Level.SEVERE, "Error on eventerSingleRequestResponse to " + computer + ":" + targetServer.getEventerPort(), e);
 			}
 		}
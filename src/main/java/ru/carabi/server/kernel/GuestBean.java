@@ -59,6 +59,7 @@ public class GuestBean {
 	@EJB private SqlQueryBean sqlQueryBean;
 
 	@EJB private ConnectionsGateBean connectionsGate;
+	@EJB private UserInfoCache userInfoCache;
 	
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	private EntityManager em;
@@ -271,10 +272,42 @@ public class GuestBean {
 			Holder<String> schemaName,
 			Holder<String> token
 		) throws CarabiException {
-		logger.log(Level.INFO,
-				   "GuestService.registerUserLight called with params: user={0}, password={1}, "
-				   +"requireSession={2}, schemaName={3}", 
-				   new Object[]{user.getLogin(), passwordCipherClient, requireSession, schemaName.value});
+		return registerUserLight(user, passwordCipherClient, userAgent, requireSession, notConnectToOracle, connectionProperties, schemaName, token, false);
+	}
+	
+	/**
+	 * Облегчённая авторизация без записи сессии в служебную БД -- для разовых запросов.
+	 * Выдаётся подписанный токен, проверяемый без обращения к базе. Сессию следует закрыть
+	 * по окончании работы (см. {@link UsersControllerBean#removeTemporaryLogon(java.lang.String)}).
+	 * Параметры -- как в {@link #registerUserLight(ru.carabi.server.entities.CarabiUser, java.lang.String, java.lang.String, boolean, boolean, java.util.Properties, javax.xml.ws.Holder, javax.xml.ws.Holder)}.
+	 */
+	public long registerUserStateless(
+			CarabiUser user,
+			String passwordCipherClient,
+			String userAgent,
+			boolean notConnectToOracle,
+			Properties connectionProperties,
+			Holder<String> schemaName,
+			Holder<String> token
+		) throws CarabiException {
+		return registerUserLight(user, passwordCipherClient, userAgent, false, notConnectToOracle, connectionProperties, schemaName, token, true);
+	}
+	
+	private long registerUserLight(
+			CarabiUser user,
+			String passwordCipherClient,
+			String userAgent,
+			boolean requireSession,
+			boolean notConnectToOracle,
+			Properties connectionProperties,
+			Holder<String> schemaName,
+			Holder<String> token,
+			boolean stateless
+		) throws CarabiException {
+		logger.log(Level.FINE,
+				   "GuestService.registerUserLight called with params: user={0}, "
+				   +"requireSession={1}, schemaName={2}", 
+				   new Object[]{user.getLogin(), requireSession, schemaName.value});
 		try {
 			String login = user.getLogin();
 			if (schemaName.value == null || schemaName.value.isEmpty()) {
@@ -283,7 +316,7 @@ public class GuestBean {
 					throw new RegisterException(RegisterException.MessageCode.NO_SCHEMA);
 				}
 				schemaName.value = defaultSchema.getSysname();
-				logger.log(Level.INFO, "User {0} got schema {1} as default", new Object[] {login, schemaName.value});
+				logger.log(Level.FINE, "User {0} got schema {1} as default", new Object[] {login, schemaName.value});
 			}
 			//Сверяем пароль
 			if (!user.getPassword().equalsIgnoreCase(passwordCipherClient)) {
@@ -297,11 +330,17 @@ public class GuestBean {
 			logon.setGreyIpAddr(connectionProperties.getProperty("ipAddrGrey"));
 			logon.setWhiteIpAddr(connectionProperties.getProperty("ipAddrWhite"));
 			logon.setServerContext(connectionProperties.getProperty("serverContext"));
-			logger.log(Level.INFO, "По имени схемы и логину ({0}, {1}) получен пользователь: {2}", 
-					new Object[] {schemaName, login, String.valueOf(logon)});
-			//Запоминаем пользователя
-			token.value = authorizeUserLogon(logon, requireSession);
-			logger.log(Level.INFO, "Пользователю выдан токен: {0}", token.value);
+			logger.log(Level.FINE, "По имени схемы и логину ({0}, {1}) получен пользователь: {2}", 
+					new Object[] {schemaName.value, login, logon});
+			//Запоминаем пользователя (запись в служебную БД -- в фоне или без неё)
+			logon.setRequireSession(requireSession);
+			if (stateless) {
+				logon = usersController.addUserStateless(logon);
+			} else {
+				logon = usersController.addUserLight(logon);
+			}
+			token.value = logon.getToken();
+			logger.log(Level.FINE, "Пользователю выдан токен: {0}", token.value);
 			return logon.getExternalId();
 		} catch (CarabiException ex) {
 			if (RegisterException.class.isInstance(ex)) {
@@ -323,13 +362,18 @@ public class GuestBean {
 			if (schema == null) {
 				throw new CarabiException("connectToOracle == true, but schema == null for user: " + user.getLogin());
 			}
-			try (Connection connection = connectionsGate.connectToSchema(schema)) {
-				//Проверяем наличие пользователя в Oracle, получаем доп. данные о нём
-				userInfo = authorize.getDetailedUserInfo(connection, user.getLogin());
+			//Проверяем наличие пользователя в Oracle, получаем доп. данные о нём
+			//(подключаемся к базе, только если данных нет в кеше)
+			userInfo = userInfoCache.get(schema, user.getLogin());
+			if (userInfo == null) {
+				try (Connection connection = connectionsGate.connectToSchema(schema)) {
+					userInfo = authorize.getDetailedUserInfo(connection, user.getLogin());
+				}
 				if (userInfo == null) {
 					logger.log(Level.INFO, messages.getString("registerRefused"), user.getLogin());
 					throw new RegisterException(RegisterException.MessageCode.NO_LOGIN_ORACLE);
 				}
+				userInfoCache.put(schema, user.getLogin(), userInfo);
 			}
 		}
 		UserLogon logon = new UserLogon();
@@ -7,14 +7,18 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import org.apache.commons.lang3.StringUtils;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.Settings;
 import ru.carabi.server.UserLogon;
@@ -38,8 +42,94 @@ public class ImagesBean {
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	EntityManager emKernel;
 	
+	@EJB private ImagesCache imagesCache;
+	
+	/**
+	 * Стандартные размеры миниатюр (пары {ширина, высота}) из {@link Settings#THUMBNAIL_SIZES}.
+	 */
+	private static final List<int[]> sizeLadder = parseSizeLadder(Settings.THUMBNAIL_SIZES);
+	
+	private static List<int[]> parseSizeLadder(String sizes) {
+		List<int[]> ladder = new ArrayList<>();
+		for (String size: StringUtils.split(sizes, ", ")) {
+			String[] widthHeight = StringUtils.split(size.toLowerCase(), "x");
+			try {
+				ladder.add(new int[] {Integer.parseInt(widthHeight[0]), Integer.parseInt(widthHeight[1])});
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				logger.log(Level.WARNING, "Illegal thumbnail size in settings: {0}", size);
+			}
+		}
+		return ladder;
+	}
+	
+	/**
+	 * Приведение запрошенного размера миниатюры к ближайшему стандартному.
+	 * Если заданы оба измерения -- ищется стандартный размер, у которого и ширина, и высота
+	 * отличаются от запрошенных не более чем на {@link Settings#THUMBNAIL_SIZE_TOLERANCE} процентов.
+	 * Если задано одно -- оно приводится к ближайшему стандартному значению по той же оси.
+	 * При отсутствии подходящего стандартного размера запрос возвращается без изменений.
+	 * @param width желаемая ширина
+	 * @param height желаемая высота
+	 * @return пара {ширина, высота}
+	 */
+	public static int[] snapToLadder(int width, int height) {
+		int[] result = new int[] {width, height};
+		double bestDistance = Double.MAX_VALUE;
+		for (int[] size: sizeLadder) {
+			double distance;
+			if (width > 0 && height > 0) {
+				distance = Math.max(deviation(width, size[0]), deviation(height, size[1]));
+			} else if (width > 0) {
+				distance = deviation(width, size[0]);
+			} else if (height > 0) {
+				distance = deviation(height, size[1]);
+			} else {
+				return result;
+			}
+			if (distance * 100 <= Settings.THUMBNAIL_SIZE_TOLERANCE && distance < bestDistance) {
+				bestDistance = distance;
+				result[0] = width > 0 ? size[0] : width;
+				result[1] = height > 0 ? size[1] : height;
+			}
+		}
+		return result;
+	}
+	
+	private static double deviation(int requested, int standard) {
+		return Math.abs(requested - standard) / (double) requested;
+	}
+	
+	/**
+	 * Фоновое создание миниатюр всех стандартных размеров после загрузки изображения.
+	 * Уже существующие миниатюры не пересоздаются, ошибки конвертации только журналируются.
+	 * @param original данные о загруженном изображении
+	 * @param useKernelBase данные о файлах хранятся в ядровой, а не в локальной базе
+	 */
+	@Asynchronous
+	public void createStandardThumbnails(FileOnServer original, boolean useKernelBase) {
+		if (original == null || original.getMimeType() == null || !original.getMimeType().startsWith("image/")) {
+			return;
+		}
+		EntityManager em = useKernelBase ? emKernel : emChat;
+		for (int[] size: sizeLadder) {
+			TypedQuery<ThumbnailMeta> findThumbnail = em.createNamedQuery("findThumbnail", ThumbnailMeta.class);
+			findThumbnail.setParameter("original", original);
+			findThumbnail.setParameter("width", size[0]);
+			findThumbnail.setParameter("height", size[1]);
+			if (!findThumbnail.getResultList().isEmpty()) {
+				continue;
+			}
+			try {
+				createThumbnail(original, size[0], size[1], useKernelBase);
+			} catch (CarabiException e) {
+				logger.log(Level.WARNING, "createStandardThumbnails " + size[0] + "x" + size[1] + " for " + original.getId(), e);
+			}
+		}
+	}
+	
 	/**
 	 * Создание миниатюры.
+	 * Запрошенный размер приводится к ближайшему стандартному (см. {@link #snapToLadder(int, int)}).
 	 * @param logon пользовательская сессия
 	 * @param targetServer сервер с оригиналом
 	 * @param original данные об оригинале
@@ -49,6 +139,9 @@ public class ImagesBean {
 	 * @return 
 	 */
 	public FileOnServer getThumbnail(UserLogon logon, CarabiAppServer targetServer, FileOnServer original, int width, int height, boolean useKernelBase) throws CarabiException {
+		int[] size = snapToLadder(width, height);
+		width = size[0];
+		height = size[1];
 		if (!Settings.getCurrentServer().equals(targetServer)) {
 			return callGetThumbnailSoap(targetServer, logon, original, width, height, useKernelBase);
 		}
@@ -89,6 +182,7 @@ public class ImagesBean {
 		TypedQuery<ThumbnailMeta> findThumbnails = em.createNamedQuery("findAllThumbnails", ThumbnailMeta.class);
 		findThumbnails.setParameter("original", original);
 		List<ThumbnailMeta> thumbnails = findThumbnails.getResultList();
+		imagesCache.removeContent(original.getId());
 		for (ThumbnailMeta thumbnailMeta: thumbnails) {
 			FileOnServer thumbnail = thumbnailMeta.getThumbnail();
 			if (thumbnail != null) {
@@ -0,0 +1,196 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import ru.carabi.server.Settings;
+import ru.carabi.server.entities.FileOnServer;
+
+/**
+ * Кеш аватаров и миниатюр в памяти.
+ * Состоит из двух частей:
+ * <ul>
+ * <li>индекс ETag -- для пары (логин, размер) хранит метаданные отдаваемого файла и
+ * его ETag, что позволяет отвечать на условный запрос без обращения к JPA и файловой системе;
+ * <li>LRU-кеш содержимого -- байты горячих изображений по ключу (ID оригинала, ширина, высота),
+ * суммарный объём ограничен {@link Settings#IMAGES_CACHE_SIZE}.
+ * </ul>
+ * Записи индекса живут не дольше {@link Settings#IMAGES_CACHE_LIFETIME} секунд, так как
+ * аватар может быть изменён через другой сервер.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ImagesCache {
+
+	/**
+	 * Данные об изображении, отдаваемом клиенту.
+	 */
+	public static class CachedImage {
+		private final long originalId;
+		private final int width, height;
+		private final FileOnServer file;
+		private final String etag;
+		private final long created = System.currentTimeMillis();
+
+		CachedImage(long originalId, int width, int height, FileOnServer file, String etag) {
+			this.originalId = originalId;
+			this.width = width;
+			this.height = height;
+			this.file = file;
+			this.etag = etag;
+		}
+
+		public long getOriginalId() {
+			return originalId;
+		}
+
+		public FileOnServer getFile() {
+			return file;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		private boolean isExpired(long now) {
+			return now - created > Settings.IMAGES_CACHE_LIFETIME * 1000L;
+		}
+	}
+
+	//Индекс ETag: "логин|ширина|высота" -> данные о файле
+	private final Map<String, CachedImage> avatarsIndex = new ConcurrentHashMap<>();
+
+	//Содержимое файлов в порядке использования: "ID оригинала|ширина|высота" -> байты
+	private final LinkedHashMap<String, byte[]> contents = new LinkedHashMap<>(64, 0.75f, true);
+	private long contentsSize = 0;
+
+	/**
+	 * Поиск данных об аватаре в индексе.
+	 * @param login логин владельца аватара
+	 * @param width требуемая ширина (-1, если без масштабирования)
+	 * @param height требуемая высота (-1, если без масштабирования)
+	 * @return данные о файле или null, если их нет или они устарели
+	 */
+	public CachedImage getAvatar(String login, int width, int height) {
+		String key = avatarKey(login, width, height);
+		CachedImage image = avatarsIndex.get(key);
+		if (image != null && image.isExpired(System.currentTimeMillis())) {
+			avatarsIndex.remove(key);
+			return null;
+		}
+		return image;
+	}
+
+	/**
+	 * Занесение данных об аватаре в индекс.
+	 * @param login логин владельца аватара
+	 * @param width требуемая ширина
+	 * @param height требуемая высота
+	 * @param original оригинал аватара
+	 * @param file отдаваемый файл (оригинал или миниатюра)
+	 * @param etag ETag отдаваемого файла
+	 * @return созданная запись
+	 */
+	public CachedImage putAvatar(String login, int width, int height, FileOnServer original, FileOnServer file, String etag) {
+		CachedImage image = new CachedImage(original.getId(), width, height, file, etag);
+		avatarsIndex.put(avatarKey(login, width, height), image);
+		return image;
+	}
+
+	/**
+	 * Удаление из индекса всех размеров аватара пользователя (при смене аватара).
+	 * @param login логин владельца аватара
+	 */
+	public void removeAvatar(String login) {
+		String prefix = login + "|";
+		Iterator<String> keys = avatarsIndex.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Может ли файл данного объёма храниться в памяти.
+	 * @param contentLength размер файла в байтах
+	 * @return true, если файл не больше {@link Settings#IMAGES_CACHE_ITEM_SIZE}
+	 */
+	public boolean isCacheable(Long contentLength) {
+		return contentLength != null && contentLength <= Settings.IMAGES_CACHE_ITEM_SIZE && Settings.IMAGES_CACHE_SIZE > 0;
+	}
+
+	/**
+	 * Получение содержимого изображения из памяти.
+	 * @param image данные об изображении
+	 * @return содержимое или null, если его нет в кеше
+	 */
+	public byte[] getContent(CachedImage image) {
+		String key = contentKey(image.originalId, image.width, image.height);
+		synchronized (contents) {
+			return contents.get(key);
+		}
+	}
+
+	/**
+	 * Сохранение содержимого изображения в памяти.
+	 * Если суммарный объём превышает лимит -- вытесняются давно не использованные изображения.
+	 * @param image данные об изображении
+	 * @param content содержимое файла
+	 */
+	public void putContent(CachedImage image, byte[] content) {
+		if (!isCacheable((long) content.length)) {
+			return;
+		}
+		String key = contentKey(image.originalId, image.width, image.height);
+		synchronized (contents) {
+			byte[] old = contents.put(key, content);
+			if (old != null) {
+				contentsSize -= old.length;
+			}
+			contentsSize += content.length;
+			Iterator<byte[]> eldest = contents.values().iterator();
+			while (contentsSize > Settings.IMAGES_CACHE_SIZE && eldest.hasNext()) {
+				contentsSize -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Удаление из памяти оригинала и всех миниатюр (при удалении файла).
+	 * @param originalId ID оригинала
+	 */
+	public void removeContent(long originalId) {
+		String prefix = originalId + "|";
+		synchronized (contents) {
+			List<String> keys = new ArrayList<>(contents.keySet());
+			for (String key: keys) {
+				if (key.startsWith(prefix)) {
+					contentsSize -= contents.remove(key).length;
+				}
+			}
+		}
+		Iterator<CachedImage> images = avatarsIndex.values().iterator();
+		while (images.hasNext()) {
+			if (images.next().originalId == originalId) {
+				images.remove();
+			}
+		}
+	}
+
+	private static String avatarKey(String login, int width, int height) {
+		return login + "|" + Math.max(width, -1) + "|" + Math.max(height, -1);
+	}
+
+	private static String contentKey(long originalId, int width, int height) {
+		return originalId + "|" + Math.max(width, -1) + "|" + Math.max(height, -1);
+	}
+}
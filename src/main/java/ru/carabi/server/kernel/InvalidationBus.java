@@ -0,0 +1,335 @@
+package ru.carabi.server.kernel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.Settings;
+import ru.carabi.server.entities.CarabiAppServer;
+import ru.carabi.server.entities.CarabiUser;
+import ru.carabi.server.entities.ConnectionSchema;
+import ru.carabi.server.entities.Department;
+import ru.carabi.server.entities.QueryEntity;
+import ru.carabi.server.kernel.oracle.QueryResultCache;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Рассылка извещений об изменении данных ядра между серверами Carabi.
+ * Сервер, изменивший данные, сам обновляет свои кеши и рассылает извещение
+ * остальным включённым серверам (UDP, порт {@link Settings#CACHE_BUS_PORT} -- одинаковый
+ * на всех серверах). Получатели сбрасывают соответствующие записи в своих кешах и
+ * в общем кеше JPA.
+ * <p>
+ * Извещение подписывается общим ключом серверов ({@link Settings#SESSION_TOKEN_SECRET})
+ * и содержит номер версии (сервер, запуск, порядковый номер), по которому получатель
+ * отбрасывает повторы. Доставка не гарантируется: кеши, использующие шину, должны
+ * сохранять ограниченное время жизни записей.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class InvalidationBus {
+	private static final Logger logger = CarabiLogging.getLogger(InvalidationBus.class);
+	private static final String PROTOCOL_VERSION = "1";
+	private static final int MAX_PACKET_SIZE = 1024;
+	//Сколько последних номеров от отправителя запоминается для отбрасывания повторов
+	private static final int REPLAY_WINDOW = 64;
+
+	/**
+	 * Вид изменённых данных.
+	 */
+	public enum Kind {
+		/** Пользователь (ID -- логин) */
+		USER(CarabiUser.class),
+		/** Подразделение (ID -- ID подразделения) */
+		DEPARTMENT(Department.class),
+		/** Продукты, версии и права на них */
+		PRODUCTION(null),
+		/** Прикладная база */
+		SCHEMA(ConnectionSchema.class),
+		/** Хранимый запрос и его сохранённые результаты */
+		QUERY(QueryEntity.class),
+		/** Сервер Carabi */
+		SERVER(CarabiAppServer.class),
+		/** Завершённая сессия (ID -- токен) */
+		LOGON(null);
+
+		private final Class<?> entityClass;
+
+		private Kind(Class<?> entityClass) {
+			this.entityClass = entityClass;
+		}
+	}
+
+	@PersistenceUnit(unitName = "ru.carabi.server_carabiserver-kernel")
+	private EntityManagerFactory emf;
+
+	@Resource private ManagedThreadFactory threadFactory;
+	@Resource private TransactionSynchronizationRegistry transactionRegistry;
+
+	@EJB private DepartmentsTree departmentsTree;
+	@EJB private ProductionCache productionCache;
+	@EJB private UserInfoCache userInfoCache;
+	@EJB private ImagesCache imagesCache;
+	@EJB private UsersControllerBean usersController;
+	@EJB private Topology topology;
+	@EJB private QueryResultCache queryResultCache;
+	@EJB private UsersSearchIndex usersSearchIndex;
+
+	private DatagramSocket socket;
+	private Thread receiver;
+	private volatile List<InetSocketAddress> peers = null;
+	private final String instance = Long.toString(System.currentTimeMillis(), 36);
+	private final AtomicLong sequence = new AtomicLong();
+	//"сервер|запуск" -> {наибольший номер, битовая маска последних номеров}
+	private final Map<String, long[]> received = new HashMap<>();
+
+	@PostConstruct
+	public void start() {
+		if (Settings.CACHE_BUS_PORT <= 0) {
+			logger.info("Cache invalidation bus is disabled");
+			return;
+		}
+		if (StringUtils.isEmpty(Settings.SESSION_TOKEN_SECRET)) {
+			logger.warning("Cache invalidation bus is disabled: SESSION_TOKEN_SECRET is not set");
+			return;
+		}
+		try {
+			socket = new DatagramSocket(Settings.CACHE_BUS_PORT);
+		} catch (SocketException e) {
+			logger.log(Level.SEVERE, "Could not open cache invalidation bus port", e);
+			return;
+		}
+		receiver = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		});
+		receiver.setName("carabi-invalidation-bus");
+		receiver.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Извещение других серверов об изменении данных.
+	 * Собственные кеши вызывающий код обновляет сам. Если вызов сделан в транзакции,
+	 * извещение отправляется после её успешного завершения.
+	 * @param kind вид данных
+	 * @param id идентификатор изменённого объекта (null -- все объекты данного вида)
+	 */
+	public void publish(final Kind kind, final Object id) {
+		if (socket == null) {
+			return;
+		}
+		final List<InetSocketAddress> currentPeers = peers == null ? loadPeers() : peers;
+		if (currentPeers.isEmpty()) {
+			return;
+		}
+		if (transactionRegistry.getTransactionKey() == null) {
+			send(currentPeers, kind, id);
+			return;
+		}
+		transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					send(currentPeers, kind, id);
+				}
+			}
+		});
+	}
+
+	private void send(List<InetSocketAddress> currentPeers, Kind kind, Object id) {
+		String payload = PROTOCOL_VERSION
+				+ "|" + Settings.getCurrentServer().getId()
+				+ "|" + instance
+				+ "|" + sequence.incrementAndGet()
+				+ "|" + kind.name()
+				+ "|" + (id == null ? "" : id);
+		byte[] data = (payload + "|" + SessionTokens.sign(payload)).getBytes(StandardCharsets.UTF_8);
+		if (data.length > MAX_PACKET_SIZE) {
+			logger.log(Level.WARNING, "Invalidation message too long: {0}", payload);
+			return;
+		}
+		for (InetSocketAddress peer: currentPeers) {
+			try {
+				socket.send(new DatagramPacket(data, data.length, peer));
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not send invalidation to " + peer, e);
+			}
+		}
+	}
+
+	/**
+	 * Периодическое обновление списка серверов.
+	 */
+	@Schedule(minute="*/5", hour="*")
+	public void scheduledReloadPeers() {
+		if (socket != null) {
+			loadPeers();
+		}
+	}
+
+	private List<InetSocketAddress> loadPeers() {
+		CarabiAppServer currentServer = Settings.getCurrentServer();
+		List<InetSocketAddress> result = new ArrayList<>();
+		for (CarabiAppServer server: topology.getServers()) {
+			if (server.isEnabled() && !server.equals(currentServer)) {
+				result.add(new InetSocketAddress(server.getComputer(), Settings.CACHE_BUS_PORT));
+			}
+		}
+		peers = Collections.unmodifiableList(result);
+		return peers;
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[MAX_PACKET_SIZE];
+		while (!socket.isClosed()) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.log(Level.WARNING, "Cache invalidation bus receive failed", e);
+				}
+				continue;
+			}
+			String message = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+			try {
+				handle(message);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Could not apply invalidation " + message, e);
+			}
+		}
+	}
+
+	private void handle(String message) {
+		int signatureStart = message.lastIndexOf('|');
+		if (signatureStart < 0) {
+			return;
+		}
+		String payload = message.substring(0, signatureStart);
+		byte[] expected = SessionTokens.sign(payload).getBytes(StandardCharsets.UTF_8);
+		byte[] actual = message.substring(signatureStart + 1).getBytes(StandardCharsets.UTF_8);
+		if (!MessageDigest.isEqual(expected, actual)) {
+			logger.log(Level.INFO, "Invalidation message with bad signature ignored");
+			return;
+		}
+		String[] parts = payload.split("\\|", 6);
+		if (parts.length != 6 || !PROTOCOL_VERSION.equals(parts[0])) {
+			return;
+		}
+		if (!isNew(parts[1] + "|" + parts[2], Long.parseLong(parts[3]))) {
+			return;
+		}
+		Kind kind;
+		try {
+			kind = Kind.valueOf(parts[4]);
+		} catch (IllegalArgumentException e) {
+			logger.log(Level.FINE, "Unknown invalidation kind {0}", parts[4]);
+			return;
+		}
+		String id = parts[5].isEmpty() ? null : parts[5];
+		logger.log(Level.FINE, "Invalidation from server {0}: {1} {2}", new Object[] {parts[1], kind, id});
+		apply(kind, id);
+	}
+
+	/**
+	 * Проверка, что извещение с таким номером от этого отправителя ещё не получено.
+	 */
+	private synchronized boolean isNew(String sender, long number) {
+		long[] state = received.get(sender);
+		if (state == null) {
+			received.put(sender, new long[] {number, 1});
+			return true;
+		}
+		long highest = state[0];
+		if (number > highest) {
+			long shift = number - highest;
+			state[1] = shift >= REPLAY_WINDOW ? 1 : (state[1] << shift) | 1;
+			state[0] = number;
+			return true;
+		}
+		long age = highest - number;
+		if (age >= REPLAY_WINDOW || (state[1] & (1L << age)) != 0) {
+			return false;
+		}
+		state[1] |= 1L << age;
+		return true;
+	}
+
+	private void apply(Kind kind, String id) {
+		if (kind.entityClass != null) {
+			emf.getCache().evict(kind.entityClass);
+		}
+		switch (kind) {
+			case USER:
+				if (id != null) {
+					userInfoCache.remove(id);
+					imagesCache.removeAvatar(id);
+					usersSearchIndex.reload(id);
+				}
+				break;
+			case DEPARTMENT:
+				departmentsTree.invalidate();
+				break;
+			case PRODUCTION:
+				productionCache.clear();
+				break;
+			case QUERY:
+				queryResultCache.invalidate(id);
+				break;
+			case SCHEMA:
+			case SERVER:
+				topology.invalidate();
+				break;
+			case LOGON:
+				if (id != null) {
+					//в том числе отзыв подписанного токена, иначе сессия будет восстановлена по подписи
+					usersController.removeLogonLocally(id);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+}
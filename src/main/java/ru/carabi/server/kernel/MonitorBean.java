@@ -4,6 +4,7 @@ import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import ru.carabi.server.logging.Metrics;
 
 /**
  *
@@ -26,4 +27,18 @@ public class MonitorBean {
 		Object result = locksCountQuery.getSingleResult();
 		return ((Number)result).intValue();
 	}
+	
+	/**
+	 * Показатели производительности сервера (см. {@link Metrics}) в JSON.
+	 */
+	public String getMetricsJson() {
+		return Metrics.toJson().toString();
+	}
+	
+	/**
+	 * Показатели производительности сервера в текстовом формате Prometheus.
+	 */
+	public String getMetricsText() {
+		return Metrics.toPrometheus();
+	}
 }
@@ -1,9 +1,13 @@
 package ru.carabi.server.kernel;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -14,6 +18,8 @@ import java.util.Map;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
@@ -21,6 +27,7 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.BinaryDelta;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.EntityManagerTool;
 import ru.carabi.server.Settings;
@@ -49,6 +56,8 @@ public class ProductionBean {
 	@EJB private UsersPercistenceBean usersPercistence;
 	@EJB private DepartmentsPercistenceBean departmentsPercistence;
 	@EJB private AdminBean admin;
+	@EJB private ProductionCache productionCache;
+	@EJB private InvalidationBus invalidationBus;
 	/**
 	 * Получение списка продуктов/модулей, с которыми может работать пользователь.
 	 * @param logon сессия текущего пользователя
@@ -67,6 +76,19 @@ public class ProductionBean {
 	 * @return
 	 */
 	public List<SoftwareProduct> getAvailableProduction(UserLogon logon, String currentProduct, boolean controlResources, boolean showInvisible) {
+		String key = ProductionCache.makeKey("getAvailableProduction", logon,
+				logon.getSchema() == null ? null : logon.getSchema().getId(),
+				logon.getAppServer() == null ? null : logon.getAppServer().getId(),
+				currentProduct, controlResources, showInvisible);
+		List<SoftwareProduct> result = productionCache.get(key);
+		if (result == null) {
+			result = searchAvailableProduction(logon, currentProduct, controlResources, showInvisible);
+			productionCache.put(key, result);
+		}
+		return copyProducts(result);
+	}
+	
+	private List<SoftwareProduct> searchAvailableProduction(UserLogon logon, String currentProduct, boolean controlResources, boolean showInvisible) {
 		String sql;
 		if (StringUtils.isEmpty(currentProduct)) {
 			sql = "select production_id, name, sysname, home_url, parent_production from appl_production.get_available_production(?, ?, ?)";
@@ -123,6 +145,75 @@ public class ProductionBean {
 			boolean ignoreDepartment,
 			boolean showAllDepartments)
 	throws CarabiException {
+		String key = ProductionCache.makeKey("getVersionsList", logon, productName, department, ignoreDepartment, showAllDepartments);
+		List<ProductVersion> versions = productionCache.get(key);
+		if (versions == null) {
+			versions = searchVersions(logon, productName, department, ignoreDepartment, showAllDepartments);
+			productionCache.put(key, versions);
+		}
+		List<ProductVersion> result = new ArrayList<>(versions.size());
+		for (ProductVersion version: versions) {
+			result.add(copyVersion(version));
+		}
+		return result;
+	}
+	
+	/**
+	 * Копия списка продуктов из {@link ProductionCache} для выдачи наружу
+	 * (заполняются те же поля, что в {@link #searchAvailableProduction}).
+	 */
+	private static List<SoftwareProduct> copyProducts(List<SoftwareProduct> products) {
+		List<SoftwareProduct> result = new ArrayList<>(products.size());
+		for (SoftwareProduct product: products) {
+			SoftwareProduct copy = new SoftwareProduct();
+			copy.setId(product.getId());
+			copy.setName(product.getName());
+			copy.setSysname(product.getSysname());
+			copy.setHomeUrl(product.getHomeUrl());
+			copy.setParentProductId(product.getParentProductId());
+			result.add(copy);
+		}
+		return result;
+	}
+	
+	/**
+	 * Копия версии из {@link ProductionCache} для выдачи наружу
+	 * (заполняются те же поля, что в {@link #searchVersions}).
+	 */
+	private static ProductVersion copyVersion(ProductVersion version) {
+		if (version == null) {
+			return null;
+		}
+		ProductVersion copy = new ProductVersion();
+		copy.setId(version.getId());
+		copy.setVersionNumber(version.getVersionNumber());
+		copy.setIssueDate(version.getIssueDate() == null ? null : new Date(version.getIssueDate().getTime()));
+		copy.setSingularity(version.getSingularity());
+		copy.setDownloadUrl(version.getDownloadUrl());
+		if (version.getFile() != null) {
+			FileOnServer file = new FileOnServer();
+			file.setId(version.getFile().getId());
+			copy.setFile(file);
+		}
+		copy.setIsSignificantUpdate(version.isSignificantUpdate());
+		copy.setDoNotAdviceNewerCommon(version.isDoNotAdviceNewerCommon());
+		Department department = version.getDestinatedForDepartment();
+		if (department != null) {
+			Department departmentCopy = new Department();
+			departmentCopy.setId(department.getId());
+			departmentCopy.setSysname(department.getSysname());
+			departmentCopy.setName(department.getName());
+			copy.setDestinatedForDepartment(departmentCopy);
+		}
+		return copy;
+	}
+	
+	private List<ProductVersion> searchVersions(
+			UserLogon logon,
+			String productName,
+			String department,
+			boolean ignoreDepartment,
+			boolean showAllDepartments) {
 		String sql = "select current_versions.*, department.sysname as department_sysname, department.name as department_name\n"+
 				//product_version_id, version_number, issue_date, singularity, download_url, is_significant_update, destinated_for_department, do_not_advice_newer_common
 				"from appl_production.search_product_versions(?, ?, ?, ?, ?) as current_versions\n" +
@@ -168,17 +259,34 @@ public class ProductionBean {
 		return versions;
 	}
 	
+	/**
+	 * Выбор последней версии продукта, подходящей пользователю.
+	 * Результат хранится в {@link ProductionCache}.
+	 * @param logon сессия текущего пользователя
+	 * @param productName кодовое название продукта
+	 * @param department подразделение, к которому должны относиться версии (если null, то берётся из текущего пользователя)
+	 * @param ignoreDepartment не учитывать версии для подразделений (только общие)
+	 * @return выбранная версия, null, если подходящих нет
+	 * @throws CarabiException 
+	 */
 	public ProductVersion getLastVersion(
 			UserLogon logon,
 			String productName,
 			String department,
 			boolean ignoreDepartment 
 	) throws CarabiException {
+		String key = ProductionCache.makeKey("getLastVersion", logon, productName, department, ignoreDepartment);
+		ProductVersion lastVersion = productionCache.get(key);
+		if (lastVersion != null) {
+			return copyVersion(lastVersion);
+		}
 		//Упорядоченный (от старых к новым)список версий.
 		List<ProductVersion> versions = getVersionsList(logon, productName, department, ignoreDepartment, false);
 		//Список ID подразделений от требуемого к вышестоящим
 		List<Integer> departmentsBranch = getDepartmentsBranch(logon, department);
-		return selectRelevantVersion(versions, departmentsBranch);
+		lastVersion = selectRelevantVersion(versions, departmentsBranch);
+		productionCache.put(key, lastVersion);
+		return copyVersion(lastVersion);
 	}
 	
 	/**
@@ -306,6 +414,8 @@ public class ProductionBean {
 			allowForUser(logon, em.find(SoftwareProduct.class, parentProductId), user, isAllowed, false);
 		}
 		admin.assignPermissionForUser(logon, user, permissionToUse, isAllowed);
+		productionCache.clear();
+		invalidationBus.publish(InvalidationBus.Kind.PRODUCTION, null);
 		return permissionToUse;
 	}
 	
@@ -345,17 +455,24 @@ public class ProductionBean {
 		Permission grantPermission = EntityManagerTool.findBySysname(em, Permission.class, grantPermissionSysname);
 		permissionToUse.setPermissionToAssignId(grantPermission.getId());
 		em.merge(permissionToUse);
+		productionCache.clear();
+		invalidationBus.publish(InvalidationBus.Kind.PRODUCTION, null);
 	}
 	
-	private List<Integer> getDepartmentsBranch(UserLogon logon, String department) {
-		String sql = "select * from appl_department.get_departments_branch(?, ?)";
-		Query getDepartmentsBranch = em.createNativeQuery(sql);
-		getDepartmentsBranch.setParameter(1, logon.getToken());
-		getDepartmentsBranch.setParameter(2, department);
-		List departmentsBranchResultList = getDepartmentsBranch.getResultList();
-		List<Integer> departmentsBranch = new ArrayList<>();
-		for (Object departmentID: departmentsBranchResultList) {
-			departmentsBranch.add((Integer)departmentID);
+	/**
+	 * Список ID подразделений от указанного (или пользовательского) к вышестоящим.
+	 */
+	private List<Integer> getDepartmentsBranch(UserLogon logon, String department) throws CarabiException {
+		List<Department> branch;
+		if (StringUtils.isEmpty(department)) {
+			branch = departmentsPercistence.getDepartmentBranch(logon);
+		} else {
+			Department departmentObj = departmentsPercistence.findDepartment(department);
+			branch = departmentObj == null ? new ArrayList<Department>() : departmentsPercistence.getDepartmentBranch(departmentObj);
+		}
+		List<Integer> departmentsBranch = new ArrayList<>(branch.size() + 1);
+		for (int i = branch.size() - 1; i >= 0; i--) {
+			departmentsBranch.add(branch.get(i).getId());
 		}
 		departmentsBranch.add(null);//общие версии, апстрим
 		return departmentsBranch;
@@ -490,6 +607,29 @@ public class ProductionBean {
 	 * @throws IOException 
 	 */
 	public Publication uploadPublication(UserLogon logon, String name, String description, InputStream inputStream, String filename, CarabiUser receiver, Department departmentDestination, boolean isCommon) throws CarabiException, IOException {
+		FileOnServer attachment = preparePublicationFile(logon, filename, receiver, departmentDestination, isCommon);
+		File file = new File(attachment.getContentAddress());
+		try (OutputStream outputStream = new FileOutputStream(file)) {
+			attachment.setContentLength(Utls.proxyStreams(inputStream, outputStream));
+		}
+		attachment.setMimeType(Files.probeContentType(file.toPath()));
+		return createPublication(name, description, attachment, receiver, departmentDestination);
+	}
+	
+	/**
+	 * Проверка прав на создание публикации и создание пустого файла для неё
+	 * (в каталоге подразделения текущего пользователя).
+	 * Используется при загрузке как одним запросом, так и частями.
+	 * @param logon сессия текущего пользователя
+	 * @param filename пользовательское название файла
+	 * @param receiver пользователь-получатель
+	 * @param departmentDestination подразделение-получатель
+	 * @param isCommon общая публикация (receiver и departmentDestination null)
+	 * @return данные о файле (без ID, объёма и MIME-типа)
+	 * @throws CarabiException
+	 * @throws IOException 
+	 */
+	public FileOnServer preparePublicationFile(UserLogon logon, String filename, CarabiUser receiver, Department departmentDestination, boolean isCommon) throws CarabiException, IOException {
 		if (departmentDestination == null && receiver == null && !isCommon) {
 			throw new CarabiException("Illegal arguments: no recevier: user, department or everybody");
 		}
@@ -522,8 +662,23 @@ public class ProductionBean {
 		Files.createDirectories(new File(pathBuilder.toString()).toPath());
 		pathBuilder.append(File.separatorChar);
 		pathBuilder.append(filename);
-		String path = pathBuilder.toString();
-		FileOnServer attachment = Utls.saveToFileOnServer(inputStream, path, filename);
+		File file = Utls.createUniqueFile(pathBuilder.toString());
+		FileOnServer attachment = new FileOnServer();
+		attachment.setContentAddress(file.getAbsolutePath());
+		attachment.setName(filename);
+		return attachment;
+	}
+	
+	/**
+	 * Запись в БД публикации с уже записанным файлом.
+	 * @param name название публикации
+	 * @param description описание публикации
+	 * @param attachment данные о файле
+	 * @param receiver пользователь-получатель
+	 * @param departmentDestination подразделение-получатель
+	 * @return созданная публикация
+	 */
+	public Publication createPublication(String name, String description, FileOnServer attachment, CarabiUser receiver, Department departmentDestination) {
 		Publication publication = new Publication();
 		publication.setName(name);
 		publication.setAttachment(attachment);
@@ -570,7 +725,10 @@ public class ProductionBean {
 		version.setDestinatedForDepartment(departmentDestination);
 		version.setIssueDate(new Date());
 		version.setIsSignificantUpdate(significantUpdate);
-		return em.merge(version);
+		version = em.merge(version);
+		productionCache.clear();
+		invalidationBus.publish(InvalidationBus.Kind.PRODUCTION, null);
+		return version;
 	}
 	
 	/**
@@ -591,23 +749,152 @@ public class ProductionBean {
 		for (ProductVersion removingVersion: resultList) {
 			FileOnServer file = removingVersion.getFile();
 			if (file != null) {
+				removeDistributionFiles(file);
 				new File(file.getContentAddress()).delete();
 				em.remove(file);
 			}
 			em.remove(removingVersion);
 		}
+		productionCache.clear();
+		invalidationBus.publish(InvalidationBus.Kind.PRODUCTION, null);
+	}
+	/**
+	 * Подготовка версии к раздаче (выполняется в фоне после загрузки):
+	 * создание сжатой копии файла и патча от предыдущей версии того же продукта
+	 * для того же подразделения (см. {@link BinaryDelta}).
+	 * Патч не сохраняется, если он не меньше сжатой копии.
+	 * @param version загруженная версия
+	 */
+	@Asynchronous
+	public void prepareDistribution(ProductVersion version) {
+		FileOnServer file = version.getFile();
+		if (file == null) {
+			return;
+		}
+		File content = new File(file.getContentAddress());
+		File compressed = getCompressedFile(version);
+		try {
+			File compressedTemp = new File(compressed.getPath() + ".tmp");
+			try (InputStream inputStream = new FileInputStream(content);
+					OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(compressedTemp))) {
+				Utls.proxyStreams(inputStream, outputStream);
+			}
+			Files.move(compressedTemp.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "compressing version " + version.getId() + " failed", e);
+			compressed.delete();
+		}
+		ProductVersion previousVersion = findPreviousVersion(version);
+		if (previousVersion == null) {
+			return;
+		}
+		File previousContent = new File(previousVersion.getFile().getContentAddress());
+		if (content.length() > Settings.SOFTWARE_DELTA_MAX_SIZE || previousContent.length() > Settings.SOFTWARE_DELTA_MAX_SIZE) {
+			return;
+		}
+		File delta = getDeltaFile(previousVersion, version);
+		File deltaTemp = new File(delta.getPath() + ".tmp");
+		try {
+			BinaryDelta.create(previousContent, content, deltaTemp, BinaryDelta.DEFAULT_BLOCK_SIZE);
+			if (compressed.exists() && deltaTemp.length() >= compressed.length()) {
+				logger.log(Level.INFO, "delta {0} -> {1} is not smaller than full file", new Object[]{previousVersion.getVersionNumber(), version.getVersionNumber()});
+				deltaTemp.delete();
+				return;
+			}
+			Files.move(deltaTemp.toPath(), delta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "delta for version " + version.getId() + " failed", e);
+			deltaTemp.delete();
+		}
+	}
+	
+	/**
+	 * Сжатая (gzip) копия файла версии. Файла может не быть, если подготовка не завершена.
+	 * @param version версия продукта с сохранённым файлом
+	 * @return 
+	 */
+	public File getCompressedFile(ProductVersion version) {
+		return new File(version.getFile().getContentAddress() + ".gz");
+	}
+	
+	/**
+	 * Патч для перехода между версиями. Файла может не быть, если версии не соседние
+	 * или подготовка не завершена.
+	 * @param fromVersion версия, установленная у клиента
+	 * @param toVersion целевая версия с сохранённым файлом
+	 * @return 
+	 */
+	public File getDeltaFile(ProductVersion fromVersion, ProductVersion toVersion) {
+		return new File(toVersion.getFile().getContentAddress() + ".from-" + fromVersion.getId() + ".delta");
 	}
+	
+	/**
+	 * Поиск предыдущей версии с сохранённым файлом среди версий того же продукта
+	 * для того же подразделения.
+	 */
+	private ProductVersion findPreviousVersion(ProductVersion version) {
+		TypedQuery<ProductVersion> getProductVersions;
+		if (version.getDestinatedForDepartment() == null) {
+			getProductVersions = em.createNamedQuery("getProductVersionsForNobody", ProductVersion.class);
+		} else {
+			getProductVersions = em.createNamedQuery("getProductVersionsForDepartment", ProductVersion.class);
+			getProductVersions.setParameter("departmentDestination", version.getDestinatedForDepartment());
+		}
+		getProductVersions.setParameter("product", version.getSoftwareProduct());
+		ProductVersion previousVersion = null;
+		for (ProductVersion candidate: getProductVersions.getResultList()) {
+			if (candidate.getFile() == null || VersionComparator.compareVersions(candidate, version) >= 0) {
+				continue;
+			}
+			if (previousVersion == null || VersionComparator.compareVersions(candidate, previousVersion) > 0) {
+				previousVersion = candidate;
+			}
+		}
+		return previousVersion;
+	}
+	
+	/**
+	 * Удаление сжатой копии и патчей, построенных для файла версии.
+	 */
+	private void removeDistributionFiles(FileOnServer file) {
+		File content = new File(file.getContentAddress());
+		new File(content.getPath() + ".gz").delete();
+		File[] deltas = content.getAbsoluteFile().getParentFile().listFiles();
+		if (deltas == null) {
+			return;
+		}
+		for (File delta: deltas) {
+			if (delta.getName().startsWith(content.getName() + ".from-")) {
+				delta.delete();
+			}
+		}
+	}
+	/**
+	 * Сравнение версий по номеру. Экземпляр запоминает разобранные номера,
+	 * чтобы при сортировке каждый номер разбирался один раз.
+	 */
 	private static class VersionComparator implements Comparator<ProductVersion> {
+		private final Map<String, int[]> parsedVersions = new HashMap<>();
+		
 		@Override
 		public int compare(ProductVersion t, ProductVersion t1) {
-			return compareVersions(t, t1);
+			return compareNumbers(parse(t.getVersionNumber()), parse(t1.getVersionNumber()));
+		}
+		
+		private int[] parse(String version) {
+			int[] numbers = parsedVersions.get(version);
+			if (numbers == null) {
+				numbers = parseVersion(version);
+				parsedVersions.put(version, numbers);
+			}
+			return numbers;
 		}
 		
 		public static int compareVersions(ProductVersion t, ProductVersion t1) {
-			String version = t.getVersionNumber();
-			String version1 = t1.getVersionNumber();
-			int[] numbers = parseVersion(version);
-			int[] numbers1 = parseVersion(version1);
+			return compareNumbers(parseVersion(t.getVersionNumber()), parseVersion(t1.getVersionNumber()));
+		}
+		
+		private static int compareNumbers(int[] numbers, int[] numbers1) {
 			for (int i=0; i<Math.min(numbers.length, numbers1.length); i++) {
 				if (numbers[i] != numbers1[i]) {
 					return numbers[i] - numbers1[i];
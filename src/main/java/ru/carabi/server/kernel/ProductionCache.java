@@ -0,0 +1,83 @@
+package ru.carabi.server.kernel;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import ru.carabi.server.Settings;
+import ru.carabi.server.UserLogon;
+
+/**
+ * Кеш каталога продукции: списков доступных продуктов, списков версий и выбранных
+ * последних версий. Ответы зависят от пользователя (права, подразделение), поэтому
+ * ключ строится из ID пользователя и параметров запроса.
+ * <p>
+ * Хранится не более {@link Settings#PRODUCTION_CACHE_SIZE} ответов (вытеснение -- см.
+ * {@link BoundedCache}). Кеш сбрасывается целиком при загрузке и удалении версий и при изменении
+ * прав на продукты через {@link ProductionBean}. Изменения, сделанные в обход ядра или через
+ * другие серверы, становятся видны не позже чем через {@link Settings#PRODUCTION_CACHE_LIFETIME} секунд.
+ * <p>
+ * Сохранённые ответы общие для всех запросов, поэтому вызывающий код выдаёт наружу их копии.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ProductionCache {
+
+	private final BoundedCache<String, Object> entries = new BoundedCache<>("production",
+			Settings.PRODUCTION_CACHE_SIZE, Settings.PRODUCTION_CACHE_LIFETIME * 1000L);
+
+	/**
+	 * Построение ключа для ответа, зависящего от пользователя.
+	 * @param kind вид ответа (название метода)
+	 * @param logon сессия пользователя
+	 * @param parameters параметры запроса
+	 * @return ключ
+	 */
+	public static String makeKey(String kind, UserLogon logon, Object... parameters) {
+		StringBuilder key = new StringBuilder(kind);
+		key.append('|').append(logon.getUser().getId());
+		for (Object parameter: parameters) {
+			key.append('|').append(parameter);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Получение сохранённого ответа.
+	 * @param key ключ из {@link #makeKey(java.lang.String, ru.carabi.server.UserLogon, java.lang.Object...)}
+	 * @return ответ или null, если его нет или он устарел
+	 */
+	public <T> T get(String key) {
+		if (Settings.PRODUCTION_CACHE_LIFETIME <= 0) {
+			return null;
+		}
+		return (T) entries.get(key);
+	}
+
+	/**
+	 * Сохранение ответа.
+	 * @param key ключ из {@link #makeKey(java.lang.String, ru.carabi.server.UserLogon, java.lang.Object...)}
+	 * @param value ответ (не должен меняться после сохранения)
+	 */
+	public void put(String key, Object value) {
+		if (Settings.PRODUCTION_CACHE_LIFETIME > 0 && value != null) {
+			entries.put(key, value);
+		}
+	}
+
+	/**
+	 * Сброс всех ответов (при изменении версий или прав на продукты).
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Удаление устаревших ответов.
+	 */
+	@Schedule(minute="*/10", hour="*")
+	public void removeExpired() {
+		entries.removeExpired();
+	}
+}
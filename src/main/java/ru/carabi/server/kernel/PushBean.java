@@ -0,0 +1,304 @@
+package ru.carabi.server.kernel;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import ru.carabi.server.Settings;
+import ru.carabi.server.entities.CarabiAppServer;
+import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
+
+/**
+ * Доставка событий клиентам, подключённым к серверу через WebSocket
+ * ({@link ru.carabi.server.websocket.EventsEndpoint}), без внешнего Eventer.
+ * <p>
+ * У клиента может быть несколько соединений (с разных устройств). Событие
+ * сериализуется один раз и ставится в очередь каждого соединения
+ * (см. {@link PushConnection}). События для клиентов других серверов
+ * пересылаются по HTTP (<code>webresources/push_event</code>) с подписью общим ключом
+ * серверов ({@link Settings#SESSION_TOKEN_SECRET}). Подписывается и время отправки:
+ * получатель отбрасывает события старше {@link #FORWARD_WINDOW} и повторы
+ * уже принятых в этом интервале.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PushBean {
+	private static final Logger logger = CarabiLogging.getLogger(PushBean.class);
+	public static final String SIGNATURE_HEADER = "X-Carabi-Signature";
+	//Допустимый возраст пересланного события (мс), с учётом расхождения часов серверов
+	private static final long FORWARD_WINDOW = 60 * 1000L;
+
+	private static final Metrics.Counter pushedEvents = Metrics.counter("carabi_push_events_total",
+			"Events queued to WebSocket connections");
+	private static final Metrics.Counter forwardFailures = Metrics.counter("carabi_push_forward_failures_total",
+			"Events not forwarded to other servers");
+
+	//логин -> соединения клиента
+	private final Map<String, Set<PushConnection>> connections = new ConcurrentHashMap<>();
+	private final AtomicInteger connectionsCount = new AtomicInteger();
+	private CloseableHttpClient httpClient;
+	//подписи принятых пересланных событий -> время отправки, для отбрасывания повторов
+	private final ConcurrentHashMap<String, Long> acceptedSignatures = new ConcurrentHashMap<>();
+	private final AtomicLong lastPurge = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(5000)
+				.setConnectionRequestTimeout(5000)
+				.setSocketTimeout(10000)
+				.build();
+		httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(requestConfig)
+				.setMaxConnPerRoute(8)
+				.setMaxConnTotal(64)
+				.build();
+		Metrics.gauge("carabi_push_connections", "Open WebSocket connections", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return connectionsCount.get();
+			}
+		});
+	}
+
+	@PreDestroy
+	public void destroy() {
+		for (Set<PushConnection> userConnections: connections.values()) {
+			for (PushConnection connection: userConnections) {
+				connection.close(CloseReason.CloseCodes.GOING_AWAY, "Server shutdown");
+			}
+		}
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Error on closing HTTP client", e);
+		}
+	}
+
+	/**
+	 * Регистрация нового соединения авторизованного клиента.
+	 * @param session WebSocket-сессия
+	 * @param login логин клиента
+	 * @param token токен сессии клиента
+	 * @return соединение (передаётся в {@link #unregister(ru.carabi.server.kernel.PushConnection)} при закрытии)
+	 */
+	public PushConnection register(Session session, String login, String token) {
+		PushConnection connection = new PushConnection(session, login, token, Settings.PUSH_QUEUE_LIMIT);
+		synchronized (connections) {
+			Set<PushConnection> userConnections = connections.get(login);
+			if (userConnections == null) {
+				userConnections = Collections.newSetFromMap(new ConcurrentHashMap<PushConnection, Boolean>());
+				connections.put(login, userConnections);
+			}
+			userConnections.add(connection);
+		}
+		connectionsCount.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Удаление закрытого соединения.
+	 */
+	public void unregister(PushConnection connection) {
+		synchronized (connections) {
+			Set<PushConnection> userConnections = connections.get(connection.getLogin());
+			if (userConnections == null || !userConnections.remove(connection)) {
+				return;
+			}
+			if (userConnections.isEmpty()) {
+				connections.remove(connection.getLogin());
+			}
+		}
+		connectionsCount.decrementAndGet();
+	}
+
+	/**
+	 * Закрытие соединений, открытых с данным токеном (при выходе клиента,
+	 * завершении сессии на другом сервере или по неактивности).
+	 * @param token токен завершённой сессии
+	 */
+	public void disconnectToken(String token) {
+		for (Set<PushConnection> userConnections: connections.values()) {
+			for (PushConnection connection: userConnections) {
+				if (connection.getToken().equals(token)) {
+					connection.close(CloseReason.CloseCodes.NORMAL_CLOSURE, "Session closed");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Есть ли у клиента соединения с данным сервером.
+	 */
+	public boolean isConnected(String login) {
+		return connections.containsKey(login);
+	}
+
+	/**
+	 * Отправка события клиентам, подключённым к данному серверу.
+	 * @param schema БД, из которой идёт событие
+	 * @param login логин клиента (пустой -- всем клиентам)
+	 * @param eventcode код события
+	 * @param message текст события
+	 * @return в сколько соединений поставлено событие
+	 */
+	public int push(String schema, String login, short eventcode, String message) {
+		if (connections.isEmpty()) {
+			return 0;
+		}
+		JsonObjectBuilder event = Json.createObjectBuilder();
+		event.add("schema", StringUtils.defaultString(schema));
+		event.add("eventcode", eventcode);
+		event.add("message", StringUtils.defaultString(message));
+		String text = event.build().toString();
+		List<PushConnection> targets = new ArrayList<>();
+		if (StringUtils.isEmpty(login)) {
+			for (Set<PushConnection> userConnections: connections.values()) {
+				targets.addAll(userConnections);
+			}
+		} else {
+			Set<PushConnection> userConnections = connections.get(login);
+			if (userConnections != null) {
+				targets.addAll(userConnections);
+			}
+		}
+		int delivered = 0;
+		for (PushConnection connection: targets) {
+			if (connection.send(text)) {
+				delivered++;
+			}
+		}
+		pushedEvents.add(delivered);
+		return delivered;
+	}
+
+	/**
+	 * Пересылка события на другой сервер для его WebSocket-клиентов.
+	 * Выполняется синхронно, вызывать из фонового потока.
+	 * @param server сервер-адресат
+	 * @param schema БД, из которой идёт событие
+	 * @param login логин клиента (пустой -- всем клиентам сервера)
+	 * @param eventcode код события
+	 * @param message текст события
+	 */
+	public void forward(CarabiAppServer server, String schema, String login, short eventcode, String message) {
+		if (StringUtils.isEmpty(Settings.SESSION_TOKEN_SECRET)) {
+			//без общего ключа другой сервер не сможет проверить подпись
+			return;
+		}
+		JsonObjectBuilder event = Json.createObjectBuilder();
+		event.add("schema", StringUtils.defaultString(schema));
+		event.add("login", StringUtils.defaultString(login));
+		event.add("eventcode", eventcode);
+		event.add("message", StringUtils.defaultString(message));
+		event.add("sent", System.currentTimeMillis());
+		String body = event.build().toString();
+		StringBuilder url = new StringBuilder("http://");
+		url.append(server.getComputer());
+		url.append(":");
+		url.append(server.getGlassfishPort());
+		url.append("/");
+		url.append(server.getContextroot());
+		url.append("/webresources/push_event");
+		HttpPost request = new HttpPost(url.toString());
+		request.setHeader(SIGNATURE_HEADER, SessionTokens.sign(body));
+		request.setEntity(new StringEntity(body, ContentType.create("application/json", StandardCharsets.UTF_8)));
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status < 200 || status >= 300) {
+				forwardFailures.increment();
+				logger.log(Level.WARNING, "Push forward to {0} returned {1}", new Object[] {server.getSysname(), status});
+			}
+		} catch (IOException e) {
+			forwardFailures.increment();
+			logger.log(Level.WARNING, "Push forward to " + server.getSysname() + " failed", e);
+		}
+	}
+
+	/**
+	 * Приём события, пересланного другим сервером ({@link #forward}).
+	 * @param body JSON-объект события
+	 * @param signature подпись из заголовка {@link #SIGNATURE_HEADER}
+	 * @return false, если подпись неверна, событие устарело, повторяется или не разобрано
+	 */
+	public boolean acceptForwarded(String body, String signature) {
+		if (StringUtils.isEmpty(Settings.SESSION_TOKEN_SECRET) || signature == null) {
+			return false;
+		}
+		byte[] expected = SessionTokens.sign(body).getBytes(StandardCharsets.UTF_8);
+		if (!MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.UTF_8))) {
+			logger.log(Level.INFO, "Forwarded push event with bad signature ignored");
+			return false;
+		}
+		JsonObject event;
+		try (JsonReader reader = Json.createReader(new StringReader(body))) {
+			event = reader.readObject();
+		} catch (JsonException | ClassCastException e) {
+			return false;
+		}
+		JsonNumber sent = event.getJsonNumber("sent");
+		long now = System.currentTimeMillis();
+		if (sent == null || Math.abs(now - sent.longValue()) > FORWARD_WINDOW) {
+			logger.log(Level.INFO, "Stale forwarded push event ignored");
+			return false;
+		}
+		purgeAcceptedSignatures(now);
+		if (acceptedSignatures.putIfAbsent(signature, sent.longValue()) != null) {
+			logger.log(Level.INFO, "Repeated forwarded push event ignored");
+			return false;
+		}
+		push(event.getString("schema", ""), event.getString("login", ""),
+				(short) event.getInt("eventcode", 0), event.getString("message", ""));
+		return true;
+	}
+
+	/**
+	 * Удаление подписей событий, которые отброшены бы и так по времени (не чаще раза в секунду).
+	 */
+	private void purgeAcceptedSignatures(long now) {
+		long last = lastPurge.get();
+		if (now - last < 1000 || !lastPurge.compareAndSet(last, now)) {
+			return;
+		}
+		Iterator<Long> sentTimes = acceptedSignatures.values().iterator();
+		while (sentTimes.hasNext()) {
+			if (now - sentTimes.next() > FORWARD_WINDOW) {
+				sentTimes.remove();
+			}
+		}
+	}
+}
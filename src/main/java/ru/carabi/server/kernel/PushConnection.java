@@ -0,0 +1,150 @@
+package ru.carabi.server.kernel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.websocket.CloseReason;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * WebSocket-соединение клиента для доставки событий.
+ * Отправка асинхронная, в соединение одновременно пишется не более одного события,
+ * остальные ждут в очереди ограниченного размера. Если очередь переполнена
+ * (клиент не успевает принимать события) -- соединение закрывается с кодом
+ * TRY_AGAIN_LATER, клиент должен переподключиться и перечитать состояние.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public final class PushConnection {
+	private static final Logger logger = CarabiLogging.getLogger(PushConnection.class);
+
+	private final Session session;
+	private final String login;
+	private final String token;
+	private final int queueLimit;
+	private final Queue<String> queue = new ArrayDeque<>();
+	//Идёт асинхронная отправка, следующее событие будет взято из очереди по её завершении
+	private boolean sending = false;
+	private boolean closed = false;
+
+	private final SendHandler sendHandler = new SendHandler() {
+		@Override
+		public void onResult(SendResult result) {
+			if (!result.isOK()) {
+				logger.log(Level.FINE, "Push to " + login + " failed", result.getException());
+				close(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Send failed");
+				return;
+			}
+			String next;
+			synchronized (PushConnection.this) {
+				next = closed ? null : queue.poll();
+				if (next == null) {
+					sending = false;
+					return;
+				}
+			}
+			sendAsync(next);
+		}
+	};
+
+	PushConnection(Session session, String login, String token, int queueLimit) {
+		this.session = session;
+		this.login = login;
+		this.token = token;
+		this.queueLimit = queueLimit;
+	}
+
+	/**
+	 * Постановка события в очередь на отправку.
+	 * @param text событие
+	 * @return false, если соединение закрыто или закрывается из-за переполнения очереди
+	 */
+	boolean send(String text) {
+		boolean overflow = false;
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			if (sending) {
+				if (queue.size() >= queueLimit) {
+					closed = true;
+					overflow = true;
+					queue.clear();
+				} else {
+					queue.add(text);
+					return true;
+				}
+			} else {
+				sending = true;
+			}
+		}
+		if (overflow) {
+			logger.log(Level.INFO, "Push queue of {0} overflowed, closing connection", login);
+			closeSession(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many pending events");
+			return false;
+		}
+		return sendAsync(text);
+	}
+
+	private boolean sendAsync(String text) {
+		try {
+			session.getAsyncRemote().sendText(text, sendHandler);
+			return true;
+		} catch (RuntimeException e) {
+			//сессия закрыта клиентом
+			logger.log(Level.FINE, "Push to " + login + " failed", e);
+			close(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Send failed");
+			return false;
+		}
+	}
+
+	/**
+	 * Закрытие соединения сервером.
+	 */
+	void close(CloseReason.CloseCode code, String reason) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			queue.clear();
+		}
+		closeSession(code, reason);
+	}
+
+	private void closeSession(CloseReason.CloseCode code, String reason) {
+		try {
+			if (session.isOpen()) {
+				session.close(new CloseReason(code, reason));
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Error on closing push connection of " + login, e);
+		}
+	}
+
+	public Session getSession() {
+		return session;
+	}
+
+	public String getLogin() {
+		return login;
+	}
+
+	/**
+	 * Токен сессии, с которым подключился клиент.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Число событий, ждущих отправки.
+	 */
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+}
@@ -0,0 +1,188 @@
+package ru.carabi.server.kernel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.Settings;
+import ru.carabi.server.UserLogon;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Подписанные токены для сессий без записи в служебную БД (разовые REST-вызовы).
+ * Токен содержит ID пользователя, ID схемы, ID пользователя в схеме и срок действия,
+ * заверенные HMAC-SHA256 с ключом {@link Settings#SESSION_TOKEN_SECRET}, поэтому любой
+ * сервер с тем же ключом может восстановить сессию без поиска токена в базе.
+ * Формат: S.пользователь.схема.ID_в_схеме.срок.случайная_строка.подпись
+ * <p>
+ * Обычные входы (SOAP, REST authorize) по-прежнему получают случайный токен с записью
+ * в USER_LOGON: по этой таблице определяются сервера пользователя для доставки событий
+ * и ведётся учёт сессий.
+ * <p>
+ * Закрытые токены до истечения их срока хранятся в списке отозванных
+ * ({@link #revoke(java.lang.String)}), иначе сессия восстанавливалась бы по подписи.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+final class SessionTokens {
+	private static final Logger logger = CarabiLogging.getLogger(SessionTokens.class);
+	private static final String PREFIX = "S.";
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int SIGNATURE_LENGTH = 32;
+	private static final SecretKeySpec key = createKey();
+	//Отозванные токены -> срок действия (секунды)
+	private static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+	/**
+	 * Данные, извлечённые из проверенного токена.
+	 */
+	static class Claims {
+		final long userId;
+		final Integer schemaId;
+		final long externalId;
+
+		Claims(long userId, Integer schemaId, long externalId) {
+			this.userId = userId;
+			this.schemaId = schemaId;
+			this.externalId = externalId;
+		}
+	}
+
+	private SessionTokens() {
+	}
+
+	/**
+	 * Проверка, что токен имеет формат подписанного (без проверки подписи).
+	 */
+	static boolean isSigned(String token) {
+		return token != null && token.startsWith(PREFIX);
+	}
+
+	/**
+	 * Создание подписанного токена для сессии.
+	 * @param logon сессия с заданными пользователем и схемой
+	 * @return токен, действительный {@link Settings#SIGNED_TOKEN_LIFETIME} секунд
+	 */
+	static String create(UserLogon logon) {
+		long expires = System.currentTimeMillis() / 1000 + Settings.SIGNED_TOKEN_LIFETIME;
+		Integer schemaId = logon.getSchema() == null ? null : logon.getSchema().getId();
+		String payload = PREFIX + logon.getUser().getId()
+				+ "." + (schemaId == null ? "" : schemaId)
+				+ "." + logon.getExternalId()
+				+ "." + expires
+				+ "." + RandomStringUtils.randomAlphanumeric(8);
+		return payload + "." + sign(payload);
+	}
+
+	/**
+	 * Проверка подписи и срока действия токена.
+	 * @param token токен
+	 * @return данные сессии или null, если токен подделан, повреждён, просрочен или отозван
+	 */
+	static Claims verify(String token) {
+		if (!isSigned(token)) {
+			return null;
+		}
+		if (revoked.containsKey(token)) {
+			logger.log(Level.FINE, "token {0} revoked", token);
+			return null;
+		}
+		int signatureStart = token.lastIndexOf('.');
+		String payload = token.substring(0, signatureStart);
+		byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+		byte[] actual = token.substring(signatureStart + 1).getBytes(StandardCharsets.US_ASCII);
+		if (!MessageDigest.isEqual(expected, actual)) {
+			logger.log(Level.INFO, "bad signature in token {0}", token);
+			return null;
+		}
+		String[] parts = payload.split("\\.", -1);
+		if (parts.length != 6) {
+			return null;
+		}
+		try {
+			long expires = Long.parseLong(parts[4]);
+			if (expires < System.currentTimeMillis() / 1000) {
+				logger.log(Level.FINE, "token {0} expired", token);
+				return null;
+			}
+			Integer schemaId = parts[2].isEmpty() ? null : Integer.valueOf(parts[2]);
+			return new Claims(Long.parseLong(parts[1]), schemaId, Long.parseLong(parts[3]));
+		} catch (NumberFormatException e) {
+			logger.log(Level.INFO, "malformed token {0}", token);
+			return null;
+		}
+	}
+
+	/**
+	 * Отзыв токена: сессия по нему больше не будет восстановлена
+	 * (до истечения срока действия токена, после которого он недействителен и так).
+	 * @param token закрытый токен
+	 */
+	static void revoke(String token) {
+		if (!isSigned(token)) {
+			return;
+		}
+		String[] parts = token.split("\\.", -1);
+		if (parts.length != 7) {
+			return;
+		}
+		try {
+			long expires = Long.parseLong(parts[4]);
+			if (expires >= System.currentTimeMillis() / 1000) {
+				revoked.put(token, expires);
+			}
+		} catch (NumberFormatException e) {
+			logger.log(Level.FINE, "malformed token {0}", token);
+		}
+	}
+	
+	/**
+	 * Удаление из списка отозванных токенов с истёкшим сроком действия.
+	 */
+	static void purgeRevoked() {
+		long now = System.currentTimeMillis() / 1000;
+		Iterator<Long> expires = revoked.values().iterator();
+		while (expires.hasNext()) {
+			if (expires.next() < now) {
+				expires.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Подпись строки общим ключом серверов (см. также {@link InvalidationBus}).
+	 * @param payload подписываемые данные
+	 * @return подпись в шестнадцатеричном виде
+	 */
+	static String sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			byte[] signature = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+			return DatatypeConverter.printHexBinary(signature).substring(0, SIGNATURE_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static SecretKeySpec createKey() {
+		byte[] secret;
+		if (StringUtils.isEmpty(Settings.SESSION_TOKEN_SECRET)) {
+			logger.warning("SESSION_TOKEN_SECRET is not set, signed tokens will be valid only on this server until restart");
+			secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+		} else {
+			secret = Settings.SESSION_TOKEN_SECRET.getBytes(StandardCharsets.UTF_8);
+		}
+		return new SecretKeySpec(secret, ALGORITHM);
+	}
+}
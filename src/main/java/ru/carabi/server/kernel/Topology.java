@@ -0,0 +1,145 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import ru.carabi.server.entities.CarabiAppServer;
+import ru.carabi.server.entities.ConnectionSchema;
+
+/**
+ * Схемы подключения и серверы Carabi в памяти.
+ * Хранится неизменяемый снимок, поэтому чтение не требует блокировок и обращения к базе.
+ * Снимок перечитывается при изменении схем через ядро (в т.ч. на других серверах, см.
+ * {@link InvalidationBus}) и периодически.
+ * Снимок читается вне транзакции вызывающего кода, поэтому выдаваемые объекты не связаны
+ * с его контекстом JPA (и не отсоединяют его сущности) и используются только для чтения.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class Topology {
+
+	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
+	private EntityManager em;
+
+	@Resource private TransactionSynchronizationRegistry transactionRegistry;
+
+	private static class Snapshot {
+		final Map<Integer, ConnectionSchema> schemasById = new HashMap<>();
+		final Map<String, ConnectionSchema> schemasBySysname = new HashMap<>();
+		final List<CarabiAppServer> servers;
+
+		Snapshot(List<ConnectionSchema> schemas, List<CarabiAppServer> servers) {
+			for (ConnectionSchema schema: schemas) {
+				schemasById.put(schema.getId(), schema);
+				schemasBySysname.put(schema.getSysname(), schema);
+			}
+			this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+		}
+	}
+
+	private volatile Snapshot snapshot = null;
+	//Номер сброса: снимок, прочитанный до сброса, не сохраняется
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Схема подключения по ID.
+	 * @param id ID схемы
+	 * @return схема или null, если её нет
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public ConnectionSchema getSchema(int id) {
+		return getSnapshot().schemasById.get(id);
+	}
+
+	/**
+	 * Схема подключения по псевдониму.
+	 * @param sysname псевдоним схемы
+	 * @return схема или null, если её нет
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public ConnectionSchema getSchema(String sysname) {
+		return getSnapshot().schemasBySysname.get(sysname);
+	}
+
+	/**
+	 * Все серверы Carabi (включая отключённые).
+	 * @return неизменяемый список
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public List<CarabiAppServer> getServers() {
+		return getSnapshot().servers;
+	}
+
+	/**
+	 * Сброс снимка (при изменении схем или серверов).
+	 * Данные будут перечитаны из базы при следующем обращении. Если вызов сделан
+	 * в транзакции, снимок сбрасывается повторно после её завершения.
+	 */
+	public void invalidate() {
+		reset();
+		if (transactionRegistry.getTransactionKey() != null) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					reset();
+				}
+			});
+		}
+	}
+
+	private void reset() {
+		generation.incrementAndGet();
+		snapshot = null;
+	}
+
+	/**
+	 * Периодическое перечитывание из базы.
+	 */
+	@Schedule(minute="*/5", hour="*")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void scheduledReload() {
+		reload();
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			current = reload();
+		}
+		return current;
+	}
+
+	/**
+	 * Чтение снимка из базы. Вызывается только из методов без транзакции
+	 * (NOT_SUPPORTED): вне транзакции результаты запросов не остаются под управлением JPA.
+	 */
+	private synchronized Snapshot reload() {
+		int loadingGeneration = generation.get();
+		List<ConnectionSchema> schemas = em.createNamedQuery("fullSelectAllSchemas", ConnectionSchema.class).getResultList();
+		List<CarabiAppServer> servers = em.createNamedQuery("getAllServers", CarabiAppServer.class).getResultList();
+		Snapshot loaded = new Snapshot(schemas, servers);
+		if (generation.get() == loadingGeneration) {
+			snapshot = loaded;
+		}
+		return loaded;
+	}
+}
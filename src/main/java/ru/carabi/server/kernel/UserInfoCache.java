@@ -0,0 +1,103 @@
+package ru.carabi.server.kernel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import ru.carabi.server.Settings;
+import ru.carabi.server.entities.ConnectionSchema;
+
+/**
+ * Кеш сведений о пользователях из прикладных баз
+ * ({@link AuthorizeSecondary#getDetailedUserInfo(java.sql.Connection, java.lang.String)}).
+ * Позволяет при повторной авторизации не подключаться к прикладной базе.
+ * Сведения живут не дольше {@link Settings#USER_INFO_CACHE_LIFETIME} секунд
+ * и сбрасываются при изменении пользователя через ядро.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class UserInfoCache {
+
+	private static class Entry {
+		private final Map<String, ?> userInfo;
+		private final long created = System.currentTimeMillis();
+
+		Entry(Map<String, ?> userInfo) {
+			this.userInfo = userInfo;
+		}
+
+		private boolean isExpired(long now) {
+			return now - created > Settings.USER_INFO_CACHE_LIFETIME * 1000L;
+		}
+	}
+
+	//"ID схемы|логин" -> сведения о пользователе
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Получение сведений о пользователе.
+	 * @param schema прикладная база
+	 * @param login логин пользователя
+	 * @return сведения или null, если их нет или они устарели
+	 */
+	public Map<String, ?> get(ConnectionSchema schema, String login) {
+		String key = makeKey(schema, login);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(System.currentTimeMillis())) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.userInfo;
+	}
+
+	/**
+	 * Сохранение сведений о пользователе.
+	 * @param schema прикладная база
+	 * @param login логин пользователя
+	 * @param userInfo сведения, полученные из базы (не должны меняться после сохранения)
+	 */
+	public void put(ConnectionSchema schema, String login, Map<String, ?> userInfo) {
+		if (Settings.USER_INFO_CACHE_LIFETIME > 0 && userInfo != null) {
+			entries.put(makeKey(schema, login), new Entry(userInfo));
+		}
+	}
+
+	/**
+	 * Удаление сведений о пользователе во всех базах.
+	 * @param login логин пользователя
+	 */
+	public void remove(String login) {
+		String suffix = "|" + login;
+		Iterator<String> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().endsWith(suffix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Удаление устаревших сведений.
+	 */
+	@Schedule(minute="*/10", hour="*")
+	public void removeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static String makeKey(ConnectionSchema schema, String login) {
+		return schema.getId() + "|" + login;
+	}
+}
@@ -24,6 +24,7 @@ import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.entities.Permission;
 import ru.carabi.server.kernel.oracle.CursorFetcherBean;
 import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 
 /**
  * Управление активностью пользователей.
@@ -36,12 +37,43 @@ public class UsersControllerBean {
 	private static final Logger logger = CarabiLogging.getLogger(UsersControllerBean.class);
 	
 	//Активные пользователи в соответствии с токенами.
-	private static final Map<String, UserLogon> activeUsers = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, UserLogon> activeUsers = new ConcurrentHashMap<>();
+	
+	static {
+		Metrics.gauge("carabi_sessions_active", "Active user sessions on this server", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return activeUsers.size();
+			}
+		});
+		Metrics.gauge("carabi_session_connections", "Oracle connections held by sessions", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long count = 0;
+				for (UserLogon logon: activeUsers.values()) {
+					count += logon.countConnections();
+				}
+				return count;
+			}
+		}, "state", "open");
+		Metrics.gauge("carabi_session_connections", "Oracle connections held by sessions", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long count = 0;
+				for (UserLogon logon: activeUsers.values()) {
+					count += logon.countBusyConnections();
+				}
+				return count;
+			}
+		}, "state", "busy");
+	}
 	
 	@EJB private UsersPercistenceBean usersPercistence;
 	@EJB private ConnectionsGateBean connectionsGate;
 	@EJB private CursorFetcherBean cursorFetcher;
 	@EJB private Cache cache;
+	@EJB private InvalidationBus invalidationBus;
+	@EJB private PushBean pushBean;
 	
 	/**
 	 * Добавление в систему активного пользователя.
@@ -66,6 +98,58 @@ public class UsersControllerBean {
 		return logon;
 	}
 	
+	/**
+	 * Находится ли сессия в ядре данного сервера (не удалена).
+	 * @param logon сессия
+	 * @return true, если сессия зарегистрирована под своим токеном
+	 */
+	static boolean isActive(UserLogon logon) {
+		return activeUsers.get(logon.getToken()) == logon;
+	}
+	
+	/**
+	 * Быстрое добавление в систему активного пользователя.
+	 * В отличие от {@link #addUser(ru.carabi.server.UserLogon)}, не блокирует другие авторизации
+	 * и не ждёт записи в служебную БД: токен проверяется на уникальность только среди
+	 * активных пользователей (вероятность совпадения со старым токеном из базы пренебрежимо мала),
+	 * а запись сессии в базу выполняется в фоне.
+	 * @param logon
+	 * @return Авторизованный пользователь (с установленным токеном)
+	 */
+	public UserLogon addUserLight(UserLogon logon) {
+		logon.setConnectionsGate(connectionsGate);
+		logon.setUsersController(this);
+		logon.updateLastActive();
+		String token;
+		do {
+			token = RandomStringUtils.randomAlphanumeric(Settings.TOKEN_LENGTH);
+			logon.setToken(token);
+		} while (activeUsers.putIfAbsent(token, logon) != null);
+		usersPercistence.addLogonAsynchronously(logon);
+		logger.log(Level.FINE, "{0}-th user added!", activeUsers.size());
+		return logon;
+	}
+	
+	/**
+	 * Добавление в систему пользователя без записи в служебную БД.
+	 * Выдаётся подписанный токен (см. {@link SessionTokens}), по которому сессию может
+	 * восстановить любой сервер с тем же ключом. Используется для разовых REST-вызовов.
+	 * @param logon
+	 * @return Авторизованный пользователь (с установленным токеном)
+	 */
+	public UserLogon addUserStateless(UserLogon logon) {
+		logon.setConnectionsGate(connectionsGate);
+		logon.setUsersController(this);
+		logon.updateLastActive();
+		String token;
+		do {
+			token = SessionTokens.create(logon);
+			logon.setToken(token);
+		} while (activeUsers.putIfAbsent(token, logon) != null);
+		logger.log(Level.FINE, "{0}-th user added!", activeUsers.size());
+		return logon;
+	}
+	
 	/**
 	 * Получение зарегистрированного пользователя по токену
 	 * @param token
@@ -80,12 +164,56 @@ public class UsersControllerBean {
 			logger.log(Level.FINEST, "got {0} from activeUsers", token);
 			return logon;
 		}
-		logon = usersPercistence.findUserLogon(token);
+		if (SessionTokens.isSigned(token)) {
+			logon = restoreSignedLogon(token);
+		} else {
+			logon = usersPercistence.findUserLogon(token);
+			if (logon != null) {
+				logger.log(Level.FINEST, "got {0} from JPA em", token);
+			}
+		}
 		if (logon != null) {
-			logger.log(Level.FINEST, "got {0} from JPA em", token);
 			logon.setConnectionsGate(connectionsGate);
 			logon.setUsersController(this);
+			//Запоминаем сессию, чтобы при следующих запросах не обращаться к базе
+			UserLogon previous = activeUsers.putIfAbsent(token, logon);
+			if (previous != null) {
+				return previous;
+			}
+		}
+		return logon;
+	}
+	
+	/**
+	 * Восстановление сессии по подписанному токену, выданному этим или другим сервером.
+	 * @param token подписанный токен
+	 * @return сессия или null, если токен недействителен
+	 */
+	private UserLogon restoreSignedLogon(String token) {
+		SessionTokens.Claims claims = SessionTokens.verify(token);
+		if (claims == null) {
+			return null;
+		}
+		CarabiUser user = usersPercistence.findUserByID(claims.userId);
+		if (user == null) {
+			return null;
+		}
+		UserLogon logon = new UserLogon();
+		logon.setToken(token);
+		logon.setUser(user);
+		logon.setExternalId(claims.externalId);
+		logon.setDisplay(new AuthorizeSecondaryAbstract().getUserDisplayString(user, null));
+		try {
+			if (claims.schemaId != null) {
+				logon.setSchema(connectionsGate.getConnectionSchemaByID(claims.schemaId));
+			}
+		} catch (CarabiException e) {
+			logger.log(Level.WARNING, "schema from signed token not found", e);
+			return null;
 		}
+		logon.setAppServer(Settings.getCurrentServer());
+		logon.updateLastActive();
+		logger.log(Level.FINEST, "got {0} from signature", token);
 		return logon;
 	}
 	
@@ -95,6 +223,30 @@ public class UsersControllerBean {
 	 * @param permanently Удалить так же запись в БД
 	 */
 	public void removeUserLogon(String token, boolean permanently) {
+		//Подписанный токен не хранится в базе -- без отзыва сессия будет восстановлена по подписи,
+		//в том числе на других серверах, поэтому его отзыв рассылается всегда
+		boolean signed = SessionTokens.isSigned(token);
+		UserLogon logon = removeLogonLocally(token);
+		if (!permanently && !signed) {
+			return;
+		}
+		//Сессия могла быть восстановлена на других серверах
+		invalidationBus.publish(InvalidationBus.Kind.LOGON, token);
+		if (signed) {
+			return;
+		}
+		usersPercistence.removeUserLogon(token);
+	}
+	
+	/**
+	 * Удаление сессии из ядра данного сервера (без извещения других серверов),
+	 * отзыв подписанного токена.
+	 * Вызывается также при получении извещения о завершении сессии на другом сервере.
+	 * @param token Токен удаляемого пользователя
+	 * @return удалённая сессия или null, если её не было в ядре
+	 */
+	public UserLogon removeLogonLocally(String token) {
+		SessionTokens.revoke(token);
 		UserLogon logon = activeUsers.get(token);
 		//Удаление из ядра
 		if (logon != null) {
@@ -102,11 +254,23 @@ public class UsersControllerBean {
 			removeActiveUser(logon);
 		} else {
 			logger.log(Level.FINE, "no active user with token {0}", token);
+			pushBean.disconnectToken(token);
 		}
-		if (!permanently) {
-			return;
+		return logon;
+	}
+	
+	/**
+	 * Удаление служебной сессии, созданной на время одного вызова
+	 * ({@link GuestBean#registerUserStateless}). Её токен не передавался клиенту
+	 * и другим серверам, поэтому сессия только удаляется из ядра данного сервера:
+	 * без извещения других серверов и без занесения токена в список отозванных.
+	 * @param token токен служебной сессии
+	 */
+	public void removeTemporaryLogon(String token) {
+		UserLogon logon = activeUsers.get(token);
+		if (logon != null) {
+			removeActiveUser(logon);
 		}
-		usersPercistence.removeUserLogon(token);
 	}
 	
 	/**
@@ -128,15 +292,17 @@ public class UsersControllerBean {
 				removeActiveUser(logon);
 			}
 		}
+		SessionTokens.purgeRevoked();
 	}
 	
 	/**
 	 * Удаление активной пользовательской сессии.
-	 * Закрытие её кеша, прокруток и подключений к Oracle.
+	 * Закрытие её кеша, прокруток, подключений к Oracle и WebSocket-соединений.
 	 * @param logon закрываемая сессия
 	 */
 	private void removeActiveUser(UserLogon logon) {
 		cache.removeUserData(logon.getToken());
+		pushBean.disconnectToken(logon.getToken());
 		if (logon.getSchema() != null) {
 			try {
 				cursorFetcher.closeAllFetches(logon);
@@ -156,8 +322,9 @@ public class UsersControllerBean {
 		logger.log(Level.FINE, "{0} users left", activeUsers.size());
 	}
 	/**
-	 * Проверка наличия токена в системе,
-	 * получение сессии без сохранения в кеше
+	 * Проверка наличия токена в системе, получение сессии
+	 * (найденная в базе или восстановленная по подписи сессия запоминается
+	 * в ядре, см. {@link #getUserLogon(java.lang.String)}) и отметка активности.
 	 * @param token
 	 * @return Сессия текущего пользователя
 	 * @throws RegisterException если указанного токена нет в системе
@@ -174,7 +341,11 @@ public class UsersControllerBean {
 			if (!logon.isPermanent()) {
 				logon.setAppServer(Settings.getCurrentServer());
 			}
-			usersPercistence.updateLogon(logon);
+			if (SessionTokens.isSigned(token)) {
+				logon.updateLastActive();
+			} else {
+				usersPercistence.updateLogon(logon);
+			}
 		}
 		return logon;
 	}
@@ -188,12 +359,8 @@ public class UsersControllerBean {
 	 * @throws RegisterException если пользователя с заданным токеном нет
 	 */
 	public UserLogon tokenAuthorize(String token) throws RegisterException {
-		UserLogon logon = tokenControl(token);
-		if (!activeUsers.containsKey(token)) {
-			activeUsers.put(token, logon);
-			logger.log(Level.FINEST, "put {0} to activeUsers in TokenAuth", token);
-		}
-		return logon;
+		//Сессия, найденная tokenControl, уже занесена в список активных
+		return tokenControl(token);
 	}
 	
 	/**
@@ -233,7 +400,7 @@ public class UsersControllerBean {
 	public void close() {
 		ArrayList<String> usersTokens = new ArrayList(activeUsers.keySet());
 		for (String userToken: usersTokens) {
-			removeUserLogon(userToken, false);
+			removeLogonLocally(userToken);
 		}
 	}
 	
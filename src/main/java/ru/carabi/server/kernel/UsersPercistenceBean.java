@@ -10,9 +10,14 @@ import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
 import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.Timer;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
@@ -40,6 +45,8 @@ public class UsersPercistenceBean {
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	private EntityManager em;
 	
+	@Resource private SessionContext context;
+	
 	/**
 	 * Поиск сессии в базе по токену
 	 * @param token
@@ -103,6 +110,32 @@ public class UsersPercistenceBean {
 		return logonMerged;
 	}
 	
+	/**
+	 * Запись сессии в служебную БД в фоне (см. {@link #addLogon(ru.carabi.server.UserLogon)}).
+	 * Сессия уже должна быть в списке активных пользователей.
+	 * Если сессия закрыта до записи, запись не делается; если во время записи --
+	 * запись удаляется после фиксации, т.к. удаление при закрытии могло пройти раньше неё.
+	 * @param logon новая сессия
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void addLogonAsynchronously(UserLogon logon) {
+		if (!UsersControllerBean.isActive(logon)) {
+			return;
+		}
+		//Запись и удаление -- через бизнес-интерфейс, каждое в своей транзакции
+		UsersPercistenceBean self = context.getBusinessObject(UsersPercistenceBean.class);
+		try {
+			self.addLogon(logon);
+			if (!UsersControllerBean.isActive(logon)) {
+				logger.log(Level.FINE, "logon {0} closed while saving", logon.getToken());
+				self.removeUserLogon(logon.getToken());
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "saving logon " + logon.getToken() + " failed", e);
+		}
+	}
+	
 	public void updateLogon(UserLogon logon) {
 		logon.updateLastActive();
 		Query updateQuery = em.createNativeQuery("update USER_LOGON set LASTACTIVE = ? where TOKEN = ?");
@@ -160,6 +193,15 @@ public class UsersPercistenceBean {
 		}
 	}
 	
+	/**
+	 * Поиск пользователя по ID
+	 * @param id ID пользователя в ядровой БД
+	 * @return найденный пользователь или null
+	 */
+	public CarabiUser findUserByID(long id) {
+		return em.find(CarabiUser.class, id);
+	}
+	
 	/**
 	 * Поиск пользователя по email
 	 * @param email email
@@ -0,0 +1,506 @@
+package ru.carabi.server.kernel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import ru.carabi.server.entities.CarabiUser;
+import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
+
+/**
+ * Индекс пользователей в памяти для поиска по логину, ФИО, подразделению,
+ * должности и email без обращения к базе.
+ * <p>
+ * Для запросов от трёх символов кандидаты выбираются по триграммам и проверяются
+ * на вхождение подстроки (как <code>upper(...) like '%...%'</code>), для более коротких --
+ * ищутся слова, начинающиеся с запроса.
+ * <p>
+ * Индекс строится при запуске, обновляется при сохранении пользователей через ядро
+ * (после фиксации транзакции) и по извещениям от других серверов ({@link InvalidationBus}), а также периодически
+ * перестраивается целиком (на случай изменений напрямую в базе). Пока индекс не построен,
+ * {@link #isReady()} возвращает false и поиск следует выполнять запросом к базе.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class UsersSearchIndex {
+	private static final Logger logger = CarabiLogging.getLogger(UsersSearchIndex.class);
+	private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+	private static final int GRAM = 3;
+
+	/**
+	 * Данные пользователя, нужные для поиска и краткого вывода.
+	 */
+	public static final class Entry {
+		private final long id;
+		private final String login, firstname, middlename, lastname, department, role, email;
+		private final String status, corporation;
+		//Поля в верхнем регистре, по которым идёт поиск
+		private final String[] searchable;
+
+		private Entry(Object[] data) {
+			id = ((Number) data[0]).longValue();
+			login = (String) data[1];
+			firstname = (String) data[2];
+			middlename = (String) data[3];
+			lastname = (String) data[4];
+			department = (String) data[5];
+			role = (String) data[6];
+			email = (String) data[7];
+			status = (String) data[8];
+			corporation = (String) data[9];
+			List<String> fields = new ArrayList<>(7);
+			for (String field: new String[] {login, firstname, middlename, lastname, department, role, email}) {
+				if (field != null && !field.isEmpty()) {
+					fields.add(normalize(field));
+				}
+			}
+			searchable = fields.toArray(new String[fields.size()]);
+		}
+
+		private boolean contains(String normalizedQuery) {
+			for (String field: searchable) {
+				if (field.contains(normalizedQuery)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean hasWordStartingWith(String normalizedQuery) {
+			for (String field: searchable) {
+				for (String word: WORD_SEPARATOR.split(field)) {
+					if (word.startsWith(normalizedQuery)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private Set<String> grams() {
+			Set<String> result = new HashSet<>();
+			for (String field: searchable) {
+				for (int i = 0; i + GRAM <= field.length(); i++) {
+					result.add(field.substring(i, i + GRAM));
+				}
+			}
+			return result;
+		}
+
+		private Set<String> words() {
+			Set<String> result = new HashSet<>();
+			for (String field: searchable) {
+				for (String word: WORD_SEPARATOR.split(field)) {
+					if (!word.isEmpty()) {
+						result.add(word);
+					}
+				}
+			}
+			return result;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getLogin() {
+			return login;
+		}
+
+		public String getFirstname() {
+			return firstname;
+		}
+
+		public String getMiddlename() {
+			return middlename;
+		}
+
+		public String getLastname() {
+			return lastname;
+		}
+
+		public String getDepartment() {
+			return department;
+		}
+
+		public String getRole() {
+			return role;
+		}
+	}
+
+	/**
+	 * Порядок вывода, как в запросах к базе: имя, отчество, фамилия (пустые -- в конце).
+	 */
+	private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int result = compareNullable(e1.firstname, e2.firstname);
+			if (result == 0) {
+				result = compareNullable(e1.middlename, e2.middlename);
+			}
+			if (result == 0) {
+				result = compareNullable(e1.lastname, e2.lastname);
+			}
+			return result != 0 ? result : Long.compare(e1.id, e2.id);
+		}
+	};
+
+	private static int compareNullable(String s1, String s2) {
+		if (s1 == null) {
+			return s2 == null ? 0 : 1;
+		}
+		return s2 == null ? -1 : s1.compareTo(s2);
+	}
+
+	/**
+	 * Содержимое индекса. При полном перестроении заменяется целиком.
+	 */
+	private static final class State {
+		final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+		final Map<String, Long> idsByLogin = new ConcurrentHashMap<>();
+		//триграмма -> ID пользователей
+		final Map<String, Set<Long>> grams = new ConcurrentHashMap<>();
+		//слово -> ID пользователей, упорядочено для поиска по началу слова
+		final ConcurrentSkipListMap<String, Set<Long>> words = new ConcurrentSkipListMap<>();
+	}
+
+	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
+	private EntityManager em;
+
+	@Resource private TransactionSynchronizationRegistry transactionRegistry;
+
+	private volatile State state = null;
+
+	@PostConstruct
+	public void init() {
+		Metrics.gauge("carabi_users_index_size", "Users in search index", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				State current = state;
+				return current == null ? 0 : current.entries.size();
+			}
+		});
+		try {
+			rebuild();
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Could not build users search index, search will use database", e);
+		}
+	}
+
+	/**
+	 * Периодическое перестроение индекса.
+	 */
+	@Schedule(minute="17", hour="*")
+	public void scheduledRebuild() {
+		rebuild();
+	}
+
+	/**
+	 * Полное перестроение индекса по данным из базы.
+	 */
+	public synchronized void rebuild() {
+		long start = System.currentTimeMillis();
+		TypedQuery<Object[]> query = em.createNamedQuery("getUsersSearchData", Object[].class);
+		State rebuilt = new State();
+		for (Object[] data: query.getResultList()) {
+			add(rebuilt, new Entry(data));
+		}
+		state = rebuilt;
+		logger.log(Level.FINE, "Users search index built: {0} users, {1} ms",
+				new Object[] {rebuilt.entries.size(), System.currentTimeMillis() - start});
+	}
+
+	/**
+	 * Индекс построен и может использоваться вместо запросов к базе.
+	 */
+	public boolean isReady() {
+		return state != null;
+	}
+
+	/**
+	 * Проверка, что поиск по индексу даёт тот же результат, что запрос к базе
+	 * с условием <code>upper(...) like '%...%'</code>: для коротких запросов индекс ищет
+	 * начала слов, а пробелы по краям запроса отбрасывает.
+	 * @param search строка поиска
+	 */
+	public static boolean isSubstringQuery(String search) {
+		return search != null && search.length() >= GRAM && search.trim().length() == search.length();
+	}
+
+	/**
+	 * Добавление или обновление пользователя после сохранения в базу.
+	 * Если вызов сделан в транзакции, индекс обновляется после её успешного завершения.
+	 * @param user сохранённый пользователь (с ID)
+	 */
+	public void put(CarabiUser user) {
+		if (user.getId() == null) {
+			return;
+		}
+		final Entry entry = new Entry(new Object[] {user.getId(), user.getLogin(), user.getFirstname(), user.getMiddlename(),
+				user.getLastname(), user.getCarabiDepartment(), user.getCarabiRole(), user.getEmail(),
+				user.getStatus() == null ? null : user.getStatus().getSysname(),
+				user.getCorporation() == null ? null : user.getCorporation().getSysname()});
+		afterCommit(new Runnable() {
+			@Override
+			public void run() {
+				put(entry);
+			}
+		});
+	}
+
+	/**
+	 * Перечитывание пользователя из базы (при изменении через другой сервер).
+	 * Если пользователь удалён -- он удаляется из индекса.
+	 * @param login логин пользователя
+	 */
+	public void reload(String login) {
+		if (state == null) {
+			return;
+		}
+		TypedQuery<Object[]> query = em.createNamedQuery("getUserSearchData", Object[].class);
+		query.setParameter("login", login);
+		List<Object[]> result = query.getResultList();
+		if (result.isEmpty()) {
+			removeEntry(login);
+		} else {
+			put(new Entry(result.get(0)));
+		}
+	}
+
+	private synchronized void put(Entry entry) {
+		State current = state;
+		if (current == null) {
+			return;
+		}
+		Entry old = current.entries.get(entry.id);
+		if (old != null) {
+			removePostings(current, old);
+			if (!old.login.equals(entry.login)) {
+				current.idsByLogin.remove(old.login);
+			}
+		}
+		add(current, entry);
+	}
+
+	/**
+	 * Удаление пользователя из индекса.
+	 * Если вызов сделан в транзакции, индекс обновляется после её успешного завершения.
+	 * @param login логин удалённого пользователя
+	 */
+	public void remove(final String login) {
+		afterCommit(new Runnable() {
+			@Override
+			public void run() {
+				removeEntry(login);
+			}
+		});
+	}
+
+	/**
+	 * Выполнение изменения индекса сразу или после фиксации текущей транзакции
+	 * (при откате индекс не меняется).
+	 */
+	private void afterCommit(final Runnable change) {
+		if (transactionRegistry.getTransactionKey() == null) {
+			change.run();
+			return;
+		}
+		transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					change.run();
+				}
+			}
+		});
+	}
+
+	private synchronized void removeEntry(String login) {
+		State current = state;
+		if (current == null || login == null) {
+			return;
+		}
+		Long id = current.idsByLogin.remove(login);
+		if (id == null) {
+			return;
+		}
+		Entry old = current.entries.remove(id);
+		if (old != null) {
+			removePostings(current, old);
+		}
+	}
+
+	private static void add(State target, Entry entry) {
+		target.entries.put(entry.id, entry);
+		if (entry.login != null) {
+			target.idsByLogin.put(entry.login, entry.id);
+		}
+		for (String gram: entry.grams()) {
+			posting(target.grams, gram).add(entry.id);
+		}
+		for (String word: entry.words()) {
+			posting(target.words, word).add(entry.id);
+		}
+	}
+
+	private static Set<Long> posting(Map<String, Set<Long>> postings, String key) {
+		Set<Long> ids = postings.get(key);
+		if (ids == null) {
+			ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			postings.put(key, ids);
+		}
+		return ids;
+	}
+
+	private static void removePostings(State target, Entry entry) {
+		for (String gram: entry.grams()) {
+			removePosting(target.grams, gram, entry.id);
+		}
+		for (String word: entry.words()) {
+			removePosting(target.words, word, entry.id);
+		}
+	}
+
+	private static void removePosting(Map<String, Set<Long>> postings, String key, long id) {
+		Set<Long> ids = postings.get(key);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				postings.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Поиск пользователей.
+	 * @param search строка поиска (непустая)
+	 * @param corporations системные имена корпораций, в которых ищем (null -- во всех)
+	 * @param activeOnly искать только пользователей со статусом active
+	 * @param limit максимальное количество (0 или меньше -- без ограничения)
+	 * @return найденные пользователи, упорядоченные по имени, отчеству и фамилии
+	 */
+	public List<Entry> search(String search, Collection<String> corporations, boolean activeOnly, int limit) {
+		State current = state;
+		if (current == null) {
+			return Collections.emptyList();
+		}
+		List<Entry> result = new ArrayList<>();
+		String query = normalize(search);
+		for (Long id: candidates(current, query)) {
+			Entry entry = current.entries.get(id);
+			if (entry == null || !matches(entry, query)) {
+				continue;
+			}
+			if (activeOnly && !"active".equals(entry.status)) {
+				continue;
+			}
+			if (corporations != null && !corporations.contains(entry.corporation)) {
+				continue;
+			}
+			result.add(entry);
+		}
+		Collections.sort(result, BY_NAME);
+		if (limit > 0 && result.size() > limit) {
+			return new ArrayList<>(result.subList(0, limit));
+		}
+		return result;
+	}
+
+	/**
+	 * Отбор из заданных пользователей подходящих под строку поиска.
+	 * @param ids ID пользователей
+	 * @param search строка поиска (непустая)
+	 * @return ID подходящих пользователей в исходном порядке
+	 */
+	public List<Long> filter(Collection<Long> ids, String search) {
+		State current = state;
+		List<Long> result = new ArrayList<>();
+		if (current == null) {
+			return result;
+		}
+		String query = normalize(search);
+		for (Long id: ids) {
+			Entry entry = current.entries.get(id);
+			if (entry != null && matches(entry, query)) {
+				result.add(id);
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(Entry entry, String query) {
+		return query.length() >= GRAM ? entry.contains(query) : entry.hasWordStartingWith(query);
+	}
+
+	/**
+	 * Кандидаты: пересечение списков по триграммам запроса (начиная с самого короткого)
+	 * или объединение списков слов, начинающихся с запроса.
+	 */
+	private static Collection<Long> candidates(State current, String query) {
+		if (query.length() < GRAM) {
+			Set<Long> result = new HashSet<>();
+			for (Set<Long> ids: current.words.subMap(query, true, query + Character.MAX_VALUE, true).values()) {
+				result.addAll(ids);
+			}
+			return result;
+		}
+		List<Set<Long>> postings = new ArrayList<>();
+		for (int i = 0; i + GRAM <= query.length(); i++) {
+			Set<Long> ids = current.grams.get(query.substring(i, i + GRAM));
+			if (ids == null) {
+				return Collections.emptyList();
+			}
+			postings.add(ids);
+		}
+		Set<Long> smallest = postings.get(0);
+		for (Set<Long> ids: postings) {
+			if (ids.size() < smallest.size()) {
+				smallest = ids;
+			}
+		}
+		List<Long> result = new ArrayList<>(smallest.size());
+		candidatesLoop:
+		for (Long id: smallest) {
+			for (Set<Long> ids: postings) {
+				if (ids != smallest && !ids.contains(id)) {
+					continue candidatesLoop;
+				}
+			}
+			result.add(id);
+		}
+		return result;
+	}
+
+	private static String normalize(String value) {
+		return value.trim().toUpperCase();
+	}
+}
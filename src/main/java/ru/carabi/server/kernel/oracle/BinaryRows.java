@@ -0,0 +1,210 @@
+package ru.carabi.server.kernel.oracle;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import ru.carabi.server.Utls;
+
+/**
+ * Двоичное представление строк прокрутки -- альтернатива JSON для толстых клиентов.
+ * <p>
+ * Формат (все целые -- беззнаковые varint, как в Protocol Buffers, если не сказано иное):
+ * <pre>
+ * "CRW1"                 -- сигнатура, 4 байта ASCII
+ * флаги                  -- 1 байт, бит 0: используется словарь строк
+ * число столбцов, число строк
+ * тип каждого столбца    -- по 1 байту: 1 -- строковый, 2 -- числовой
+ * ячейки по строкам, каждая начинается с метки (1 байт):
+ *   0 -- пустое значение (null)
+ *   1 -- строка: длина в байтах и текст в UTF-8
+ *   2 -- строка, как с меткой 1, которая добавляется в конец словаря
+ *   3 -- ссылка на словарь: номер строки, ранее переданной с меткой 2
+ *   4 -- целое число: varint со знаком (zigzag)
+ *   5 -- дробное число: длина и десятичная запись, как в JSON
+ * </pre>
+ * Метки 2 и 3 используются только при включённом словаре. Словарь действует в пределах
+ * одного пакета и содержит не более {@link #DICTIONARY_LIMIT} строк.
+ * Числовой тип столбца означает, что все непустые значения в нём -- числа; значения
+ * остальных столбцов передаются строками в том же виде, что и в JSON.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public final class BinaryRows {
+	/** Кодировка JSON (по умолчанию) */
+	public static final String JSON = "JSON";
+	/** Двоичный формат без словаря */
+	public static final String BINARY = "BINARY";
+	/** Двоичный формат со словарём повторяющихся строк */
+	public static final String BINARY_DICTIONARY = "BINARY_DICTIONARY";
+	/** MIME-тип двоичного формата */
+	public static final String MEDIA_TYPE = "application/x-carabi-rows";
+	/** Максимальный размер словаря строк */
+	public static final int DICTIONARY_LIMIT = 65536;
+
+	static final byte COLUMN_STRING = 1;
+	static final byte COLUMN_NUMBER = 2;
+
+	static final byte CELL_NULL = 0;
+	static final byte CELL_STRING = 1;
+	static final byte CELL_DICTIONARY_STRING = 2;
+	static final byte CELL_REFERENCE = 3;
+	static final byte CELL_INTEGER = 4;
+	static final byte CELL_DECIMAL = 5;
+
+	private static final byte[] SIGNATURE = {'C', 'R', 'W', '1'};
+	private static final int FLAG_DICTIONARY = 1;
+	//Более длинные строки не добавляются в словарь -- повторы маловероятны
+	private static final int DICTIONARY_MAX_STRING = 256;
+
+	private BinaryRows() {
+	}
+
+	/**
+	 * Выбор кодировки из предложенных клиентом.
+	 * @param accepted кодировки через запятую в порядке предпочтения
+	 * @return первая поддерживаемая из предложенных или {@link #JSON}
+	 */
+	public static String chooseEncoding(String accepted) {
+		if (accepted == null) {
+			return JSON;
+		}
+		for (String encoding: accepted.split(",")) {
+			encoding = encoding.trim().toUpperCase();
+			if (BINARY.equals(encoding) || BINARY_DICTIONARY.equals(encoding) || JSON.equals(encoding)) {
+				return encoding;
+			}
+		}
+		return JSON;
+	}
+
+	/**
+	 * Кодирование строк прокрутки в выбранном формате.
+	 * @param rows строки (как выдаёт {@link CursorFetcherBean#fetchNext})
+	 * @param encoding результат {@link #chooseEncoding(java.lang.String)}
+	 * @return двоичное представление или JSON-массив в UTF-8
+	 */
+	public static byte[] encode(List<? extends List<?>> rows, String encoding) {
+		if (BINARY.equals(encoding)) {
+			return encode(rows, false);
+		} else if (BINARY_DICTIONARY.equals(encoding)) {
+			return encode(rows, true);
+		}
+		return Utls.listToJson(rows).build().toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Кодирование строк прокрутки.
+	 * @param rows строки (как выдаёт {@link CursorFetcherBean#fetchNext})
+	 * @param useDictionary передавать повторяющиеся строки ссылками
+	 * @return двоичное представление
+	 */
+	public static byte[] encode(List<? extends List<?>> rows, boolean useDictionary) {
+		int columnsCount = rows.isEmpty() ? 0 : rows.get(0).size();
+		byte[] columnTypes = new byte[columnsCount];
+		for (int column = 0; column < columnsCount; column++) {
+			columnTypes[column] = detectColumnType(rows, column);
+		}
+		Output out = new Output(64 + rows.size() * columnsCount * 8);
+		out.write(SIGNATURE);
+		out.write(useDictionary ? FLAG_DICTIONARY : 0);
+		out.writeVarLong(columnsCount);
+		out.writeVarLong(rows.size());
+		out.write(columnTypes);
+		Map<String, Integer> dictionary = useDictionary ? new HashMap<String, Integer>() : null;
+		for (List<?> row: rows) {
+			for (int column = 0; column < columnsCount; column++) {
+				Object value = column < row.size() ? row.get(column) : null;
+				if (value == null) {
+					out.write(CELL_NULL);
+				} else if (columnTypes[column] == COLUMN_NUMBER) {
+					writeNumber(out, (Number) value);
+				} else {
+					writeString(out, value.toString(), dictionary);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static byte detectColumnType(List<? extends List<?>> rows, int column) {
+		boolean hasNumbers = false;
+		for (List<?> row: rows) {
+			Object value = column < row.size() ? row.get(column) : null;
+			if (value == null) {
+				continue;
+			}
+			if (!(value instanceof Number)) {
+				return COLUMN_STRING;
+			}
+			hasNumbers = true;
+		}
+		return hasNumbers ? COLUMN_NUMBER : COLUMN_STRING;
+	}
+
+	private static void writeNumber(Output out, Number value) {
+		if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			//Только числа без дробной части, чтобы запись совпадала с JSON
+			if (decimal.scale() == 0 && decimal.unscaledValue().bitLength() < 64) {
+				out.write(CELL_INTEGER);
+				out.writeVarLong(zigzag(decimal.longValue()));
+				return;
+			}
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.write(CELL_INTEGER);
+			out.writeVarLong(zigzag(value.longValue()));
+			return;
+		}
+		out.write(CELL_DECIMAL);
+		out.writeLengthPrefixed(value.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static void writeString(Output out, String value, Map<String, Integer> dictionary) {
+		if (dictionary != null && value.length() <= DICTIONARY_MAX_STRING) {
+			Integer index = dictionary.get(value);
+			if (index != null) {
+				out.write(CELL_REFERENCE);
+				out.writeVarLong(index);
+				return;
+			}
+			if (dictionary.size() < DICTIONARY_LIMIT) {
+				dictionary.put(value, dictionary.size());
+				out.write(CELL_DICTIONARY_STRING);
+				out.writeLengthPrefixed(value.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+		}
+		out.write(CELL_STRING);
+		out.writeLengthPrefixed(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+		Output(int size) {
+			super(size);
+		}
+
+		@Override
+		public void write(byte[] bytes) {
+			write(bytes, 0, bytes.length);
+		}
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeLengthPrefixed(byte[] bytes) {
+			writeVarLong(bytes.length);
+			write(bytes);
+		}
+	}
+}
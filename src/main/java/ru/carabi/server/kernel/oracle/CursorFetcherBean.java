@@ -1,56 +1,104 @@
 package ru.carabi.server.kernel.oracle;
 
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.Stateless;
 import javax.xml.ws.Holder;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.Settings;
 import ru.carabi.server.UserLogon;
+import ru.carabi.server.logging.Metrics;
 
 /**
  * Управление прокрутками ({@link Fetch}).
  * Модуль, хранящий открытые пользовательские прокрутки.
+ * <p>
+ * Прокрутки хранятся в конкурентных коллекциях по сессиям, поиск прокрутки по номеру
+ * не требует блокировок. Для каждой прокрутки оценивается занимаемая память
+ * ({@link Fetch#getEstimatedBytes()}). При превышении лимитов на пользователя
+ * ({@link Settings#FETCHES_BY_USER}) или на сервер ({@link Settings#FETCHES_TOTAL},
+ * {@link Settings#FETCHES_MEMORY}) закрываются прокрутки, к которым дольше всего не обращались.
+ * Прокрутка чужой сессии при этом только снимается с учёта, а её курсор закрывается
+ * при следующем обращении сессии-владельца: подключение может быть занято владельцем.
  * @author sasha<kopilov.ad@gmail.com>
  */
 @Stateless
 public class CursorFetcherBean {
-	
+	private static final Logger logger = Logger.getLogger(CursorFetcherBean.class.getName());
+
+	/**
+	 * Прокрутки одной сессии.
+	 */
+	private static class UserFetches {
+		final Map<Integer, Fetch> byTag = new ConcurrentHashMap<>();
+		final AtomicInteger nextTag = new AtomicInteger();
+		//вытесненные другими сессиями прокрутки, курсоры которых надо закрыть
+		final Queue<Fetch> evicted = new ConcurrentLinkedQueue<>();
+	}
+
 	//прокрутки, открытые пользователями
-	private static final Map<String, Map<Integer, Fetch>> fetchesForUsers= new ConcurrentHashMap<>();
-	//Номер сохранённой прокрутки у пользователя
-	private static final Map<String, Integer> usersFetchTag = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, UserFetches> fetchesForUsers = new ConcurrentHashMap<>();
 	//прокрутки, открытые на одном запросе -- этот запрос надо закрыть после закрытия всех прокруток
 	private static final Map<Statement, Set<Fetch>> fetchesOnStatements = new ConcurrentHashMap<>();
+	private static final AtomicInteger fetchesCount = new AtomicInteger();
+	private static final AtomicLong fetchesBytes = new AtomicLong();
+	private static final Metrics.Counter evictedCount = Metrics.counter("carabi_fetches_evicted_total",
+			"Saved fetches closed because of user or server limits");
 	
+	static {
+		Metrics.gauge("carabi_fetches_open", "Saved fetches (open cursors)", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return fetchesCount.get();
+			}
+		});
+		Metrics.gauge("carabi_fetches_estimated_bytes", "Estimated memory held by saved fetches", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return fetchesBytes.get();
+			}
+		});
+	}
+
 	/**
 	 * Поиск открытой прокрутки.
 	 * Находит прокрутку, открытую заданным пользователем, имеющую
-	 * заданный номер и находящуюся на заданной позиции.
+	 * заданный номер, и переводит её на заданную позицию (см. {@link Fetch#seek(int)}).
 	 * @param logon Сессия пользователя.
 	 * @param queryTag номер запроса у пользователя.
-	 * @param startPos текущая позиция в прокрутке.
-	 * @return Прокрутка, соответствующая параметрам. null, если таковой нет.
+	 * @param startPos требуемая позиция в прокрутке.
+	 * @return Прокрутка, соответствующая параметрам. null, если таковой нет
+	 * или позиция уже недоступна.
+	 * @throws SQLException ошибка при пропуске строк
 	 */
-	public Fetch searchOpenedFetch(UserLogon logon, int queryTag, int startPos) {
-		String token = logon.getToken();
-		Map<Integer, Fetch> userFetches = fetchesForUsers.get(token);
+	public Fetch searchOpenedFetch(UserLogon logon, int queryTag, int startPos) throws SQLException {
+		UserFetches userFetches = fetchesForUsers.get(logon.getToken());
 		if (userFetches == null) {
 			return null;
 		}
-		Fetch fetch = userFetches.get(queryTag);
+		closeEvicted(userFetches, logon);
+		Fetch fetch = userFetches.byTag.get(queryTag);
 		if (fetch == null) {
 			return null;
 		}
+		fetch.lastAccess = System.currentTimeMillis();
 		if (fetch.currentPosition == startPos) {
 			return fetch;
+		} else if (fetch.canSeek(startPos)) {
+			fetch.seek(startPos);
+			return fetch;
 		} else {
 			return null;
 		}
@@ -59,45 +107,54 @@ public class CursorFetcherBean {
 	/**
 	 * Сохранение открытой прокрутки.
 	 * Прокрутка сохраняется в памяти для осуществления фетчинга без повторного
-	 * обращения к базе данных.
-	 * 
+	 * обращения к базе данных. Если пользователь сохранил {@link Settings#FETCHES_BY_USER}
+	 * прокруток или превышены общие лимиты сервера, давно не используемые прокрутки закрываются.
+	 *
 	 * @param fetch сохраняемая прокрутка.
 	 * @param logon сессия пользователя, под которой был сделан запрос.
 	 * @return номер сохранённой прокрутки (для повторного обращения).
-	 * @throws CarabiException если пользователь сохранил более {@link Settings#FETCHES_BY_USER} прокруток
+	 * @throws CarabiException если сохранение прокрутки не разрешено ({@link Settings#FETCHES_BY_USER} равно 0)
 	 */
-	public synchronized int saveFetch(Fetch fetch, UserLogon logon) throws CarabiException {
+	public int saveFetch(Fetch fetch, UserLogon logon) throws CarabiException {
+		if (Settings.FETCHES_BY_USER <= 0) {
+			throw new CarabiException("User " + logon.userLogin() + " saved too many opened fetches.", Settings.OPENED_FETCHES_LIMIT_ERROR);
+		}
 		String userToken = logon.getToken();
-		Map<Integer, Fetch> userFetches;
 		//достаём/создаём прокрутки текущего пользователя
-		int tag; //номер сохраняемой прокрутки
-		if (fetchesForUsers.containsKey(userToken)) {
-			userFetches = fetchesForUsers.get(userToken);
-			tag = usersFetchTag.get(userToken);
-		} else {
-			userFetches = new ConcurrentHashMap<>();
-			fetchesForUsers.put(userToken, userFetches);
-			tag = 0;
+		UserFetches userFetches = fetchesForUsers.get(userToken);
+		if (userFetches == null) {
+			UserFetches created = new UserFetches();
+			userFetches = fetchesForUsers.putIfAbsent(userToken, created);
+			if (userFetches == null) {
+				userFetches = created;
+			}
 		}
-		//Если пользователь израсходовал лимит -- ошибка
-		if (userFetches.size() + 1 > Settings.FETCHES_BY_USER) {
-			throw new CarabiException("User " + logon.userLogin() + " saved too many opened fetches.", Settings.OPENED_FETCHES_LIMIT_ERROR);
+		closeEvicted(userFetches, logon);
+		//Если пользователь израсходовал лимит -- закрываем самую старую
+		while (userFetches.byTag.size() + 1 > Settings.FETCHES_BY_USER) {
+			if (!evictOldest(userFetches.byTag.values(), logon)) {
+				break;
+			}
 		}
-		//Сохраняем прокрутку в пользовательской коллекции
-		userFetches.put(tag, fetch);
-		usersFetchTag.put(userToken, tag + 1);
+		int tag = userFetches.nextTag.getAndIncrement();
+		fetch.owner = logon;
+		fetch.tag = tag;
+		fetch.lastAccess = System.currentTimeMillis();
 		//Сохраняем прокрутку в коллекции её запроса
-		Set<Fetch> statementsFetches;
-		if (!fetchesOnStatements.containsKey(fetch.statement)) {
-			statementsFetches = new HashSet<>();
-			fetchesOnStatements.put(fetch.statement, statementsFetches);
-		} else {
-			statementsFetches = fetchesOnStatements.get(fetch.statement);
+		Set<Fetch> statementFetches = fetchesOnStatements.get(fetch.statement);
+		if (statementFetches == null) {
+			statementFetches = Collections.newSetFromMap(new ConcurrentHashMap<Fetch, Boolean>());
+			fetchesOnStatements.put(fetch.statement, statementFetches);
 		}
-		statementsFetches.add(fetch);
+		statementFetches.add(fetch);
+		//Сохраняем прокрутку в пользовательской коллекции
+		userFetches.byTag.put(tag, fetch);
+		fetchesCount.incrementAndGet();
+		account(fetch);
+		enforceServerLimits(fetch);
 		return tag;
 	}
-	
+
 	/**
 	 * Перемещение по прокрутке.
 	 * Выборка порции данных из прокрутки, созданной SQL или XML-запросом.
@@ -120,78 +177,244 @@ public class CursorFetcherBean {
 		if (fetch == null) {
 			return Settings.SQL_EOF;
 		}
-		list.value = fetch.processFetching(fetchCount);
+		list.value = processFetching(fetch, fetchCount);
 		int size = list.value.size();
 		endpos.value = startPos + size;
 		if (size < fetchCount) {
-			
+
 			closeFetch(logon, queryTag);
 		}
 		return size;
 	}
 
+	/**
+	 * Чтение строк из сохранённой прокрутки с учётом занимаемой памяти.
+	 * Обновляет время последнего обращения к прокрутке и её размер в общем
+	 * учёте; при превышении {@link Settings#FETCHES_MEMORY} закрывает
+	 * давно не используемые прокрутки.
+	 * @param fetch сохранённая прокрутка
+	 * @param fetchCount сколько строк прочитать
+	 * @return прочитанные строки
+	 * @throws SQLException ошибка чтения из курсора
+	 */
+	public ArrayList<ArrayList<?>> processFetching(Fetch fetch, int fetchCount) throws SQLException {
+		ArrayList<ArrayList<?>> result = fetch.processFetching(fetchCount);
+		fetch.lastAccess = System.currentTimeMillis();
+		account(fetch);
+		if (fetchesBytes.get() > Settings.FETCHES_MEMORY * 1024L * 1024L) {
+			enforceServerLimits(fetch);
+		}
+		return result;
+	}
+
 	/**
 	 * Закрытие прокрутки.
 	 * Закрывает прокрутку (курсор и запрос, если на нём нет других открытых прокруток).<br/>
 	 * Прокрутку следует закрыть вручную, если не были выкачаны все данные.
 	 * При полном выкачивании закрытие происходит автоматически.
-	 * 
+	 *
 	 * @param logon сессия пользователя, под которой был сделан запрос.
 	 * @param queryTag номер сохранённой прокрутки.
-	 * @throws SQLException 
+	 * @throws SQLException
 	 */
 	public void closeFetch(UserLogon logon, int queryTag)  throws SQLException {
-		String userToken = logon.getToken();
-		if (!fetchesForUsers.containsKey(userToken)) {
+		UserFetches userFetches = fetchesForUsers.get(logon.getToken());
+		if (userFetches == null) {
 			return;
 		}
-		Map<Integer, Fetch> userFetches = fetchesForUsers.get(userToken);
+		closeEvicted(userFetches, logon);
 		//Прокрутка могла закрыться сама при исчерпании данных
-		if (!userFetches.containsKey(queryTag)) {
-			return;
-		}
-		//Удаляем прокрутку из пользовательской коллекции и закрываем её курсор
-		Fetch closingFetch = userFetches.remove(queryTag);
-		closingFetch.cursor.close();
-		//Удаляем прокрутку из списка открытых на данном запросе, если он пуст -- закрываем запрос
-		Set<Fetch> statementFetches = fetchesOnStatements.get(closingFetch.statement);
-		statementFetches.remove(closingFetch);
-		if (statementFetches.isEmpty()) {
-			closingFetch.statement.close();
-			Logger.getLogger(this.getClass().getName()).info("Statement closed");
-			logon.freeConnection(closingFetch.connectionKey);
+		Fetch closingFetch = userFetches.byTag.remove(queryTag);
+		if (closingFetch != null) {
+			close(closingFetch, logon);
 		}
 	}
 
 	/**
 	 * Закрытие всех пользовательских прокруток.
 	 * @param logon закрываемая сессия
-	 * @throws SQLException 
+	 * @throws SQLException
 	 */
 	public void closeAllFetches(UserLogon logon) throws SQLException {
-		String userToken = logon.getToken();
-		if (!fetchesForUsers.containsKey(userToken)) {
+		UserFetches userFetches = fetchesForUsers.remove(logon.getToken());
+		if (userFetches == null) {
 			return;
 		}
-		Statement statement = null;
-		Map<Integer, Fetch> userFetches = fetchesForUsers.get(userToken);
-		for (Fetch fetch: userFetches.values()) {
-			fetch.cursor.close();
-			statement = fetch.statement;
+		closeEvicted(userFetches, logon);
+		SQLException error = null;
+		for (Integer tag: new ArrayList<>(userFetches.byTag.keySet())) {
+			Fetch fetch = userFetches.byTag.remove(tag);
+			if (fetch == null) {
+				continue;
+			}
+			try {
+				close(fetch, logon);
+			} catch (SQLException e) {
+				error = e;
+			}
 		}
-		if (statement != null) {
-			fetchesOnStatements.remove(statement);
-			statement.close();
+		if (error != null) {
+			throw error;
 		}
-		fetchesForUsers.remove(userToken);
 	}
-	
-	public boolean hasThisConnection(Connection connection) throws SQLException {
-		for (Statement statement: fetchesOnStatements.keySet()) {
-			if (!statement.isClosed() && statement.getConnection() == connection) {
+
+	/**
+	 * Проверка, что на подключении пользователя есть открытые прокрутки.
+	 * @param logon сессия пользователя
+	 * @param connectionKey ключ подключения ({@link UserLogon#getConnectionKey(java.sql.Connection)})
+	 * @return true, если есть прокрутки с незакрытыми курсорами
+	 * @throws SQLException
+	 */
+	public boolean hasThisConnection(UserLogon logon, int connectionKey) throws SQLException {
+		UserFetches userFetches = fetchesForUsers.get(logon.getToken());
+		if (userFetches == null) {
+			return false;
+		}
+		for (Fetch fetch: userFetches.byTag.values()) {
+			if (fetch.connectionKey == connectionKey && !fetch.statement.isClosed()) {
+				return true;
+			}
+		}
+		for (Fetch fetch: userFetches.evicted) {
+			if (fetch.connectionKey == connectionKey && !fetch.statement.isClosed()) {
 				return true;
 			}
 		}
 		return false;
 	}
+
+	/**
+	 * Сведения об открытых прокрутках.
+	 * @return счётчики: fetches, estimatedBytes, evicted
+	 */
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> statistics = new LinkedHashMap<>();
+		statistics.put("fetches", (long) fetchesCount.get());
+		statistics.put("estimatedBytes", fetchesBytes.get());
+		statistics.put("evicted", evictedCount.get());
+		return statistics;
+	}
+
+	/**
+	 * Закрытие курсора прокрутки, уже удалённой из пользовательской коллекции,
+	 * и её запроса, если на нём не осталось открытых прокруток.
+	 */
+	private void close(Fetch fetch, UserLogon logon) throws SQLException {
+		release(fetch);
+		closeCursor(fetch, logon);
+	}
+	
+	/**
+	 * Снятие прокрутки с учёта в общих счётчиках сервера.
+	 */
+	private void release(Fetch fetch) {
+		fetchesCount.decrementAndGet();
+		synchronized (fetch) {
+			fetchesBytes.addAndGet(-fetch.accountedBytes);
+			fetch.accountedBytes = 0;
+		}
+	}
+	
+	/**
+	 * Закрытие курсора прокрутки и её запроса, если на нём не осталось открытых прокруток.
+	 * Вызывается только из сессии-владельца.
+	 */
+	private void closeCursor(Fetch fetch, UserLogon logon) throws SQLException {
+		try {
+			fetch.cursor.close();
+		} finally {
+			//Удаляем прокрутку из списка открытых на данном запросе, если он пуст -- закрываем запрос
+			Set<Fetch> statementFetches = fetchesOnStatements.get(fetch.statement);
+			if (statementFetches != null) {
+				statementFetches.remove(fetch);
+			}
+			if (statementFetches == null || (statementFetches.isEmpty() && fetchesOnStatements.remove(fetch.statement, statementFetches))) {
+				fetch.statement.close();
+				logger.fine("Statement closed");
+				logon.freeConnection(fetch.connectionKey);
+			}
+		}
+	}
+
+	/**
+	 * Закрытие курсоров прокруток сессии, вытесненных другими сессиями.
+	 */
+	private void closeEvicted(UserFetches userFetches, UserLogon logon) {
+		Fetch fetch;
+		while ((fetch = userFetches.evicted.poll()) != null) {
+			try {
+				closeCursor(fetch, logon);
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Could not close evicted fetch", e);
+			}
+		}
+	}
+	
+	private void account(Fetch fetch) {
+		long bytes = fetch.getEstimatedBytes();
+		synchronized (fetch) {
+			fetchesBytes.addAndGet(bytes - fetch.accountedBytes);
+			fetch.accountedBytes = bytes;
+		}
+	}
+
+	/**
+	 * Закрытие давно не используемых прокруток при превышении общих лимитов сервера.
+	 * @param current прокрутка, с которой сейчас работают (не закрывается)
+	 */
+	private void enforceServerLimits(Fetch current) {
+		long maxBytes = Settings.FETCHES_MEMORY * 1024L * 1024L;
+		while (fetchesCount.get() > Settings.FETCHES_TOTAL || fetchesBytes.get() > maxBytes) {
+			ArrayList<Fetch> candidates = new ArrayList<>();
+			for (UserFetches userFetches: fetchesForUsers.values()) {
+				candidates.addAll(userFetches.byTag.values());
+			}
+			candidates.remove(current);
+			if (!evictOldest(candidates, current.owner)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Закрытие прокрутки, к которой дольше всего не обращались.
+	 * Курсор прокрутки другой сессии не закрывается сразу, а передаётся
+	 * сессии-владельцу (см. {@link #closeEvicted}).
+	 * @param candidates прокрутки, из которых выбирается закрываемая
+	 * @param current сессия, из которой выполняется вытеснение
+	 * @return false, если закрыть нечего
+	 */
+	private boolean evictOldest(Iterable<Fetch> candidates, UserLogon current) {
+		Fetch oldest = null;
+		for (Fetch fetch: candidates) {
+			if (oldest == null || fetch.lastAccess < oldest.lastAccess) {
+				oldest = fetch;
+			}
+		}
+		if (oldest == null) {
+			return false;
+		}
+		UserFetches ownerFetches = fetchesForUsers.get(oldest.owner.getToken());
+		//Прокрутку мог одновременно закрыть другой поток
+		if (ownerFetches != null && ownerFetches.byTag.remove(oldest.tag, oldest)) {
+			evictedCount.increment();
+			logger.log(Level.INFO, "Evicting idle fetch {0} of {1} ({2} rows read, ~{3} bytes)",
+					new Object[]{oldest.tag, oldest.owner.userLogin(), oldest.getRowsRead(), oldest.accountedBytes});
+			release(oldest);
+			String ownerToken = oldest.owner.getToken();
+			if (!ownerToken.equals(current.getToken())) {
+				ownerFetches.evicted.add(oldest);
+				//Если сессия-владелец уже закрыта -- закрывать курсор больше некому
+				if (fetchesForUsers.get(ownerToken) == ownerFetches || !ownerFetches.evicted.remove(oldest)) {
+					return true;
+				}
+			}
+			try {
+				closeCursor(oldest, oldest.owner);
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Could not close evicted fetch", e);
+			}
+		}
+		return true;
+	}
 }
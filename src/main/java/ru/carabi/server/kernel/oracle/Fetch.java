@@ -8,21 +8,43 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import ru.carabi.server.Settings;
+import ru.carabi.server.UserLogon;
 import ru.carabi.server.Utls;
 
 /**
  * Прокручиваемый запрос.
  * Включает курсор с текущей позицией,
  * обращение к базе (для закрытия после завершения),
- * список полей
+ * список полей.
+ * Последние прочитанные строки (не более {@link Settings#FETCH_WINDOW_SIZE}) хранятся
+ * в памяти, поэтому прокрутку можно продолжить с любой позиции, начиная с первой
+ * сохранённой строки (см. {@link #seek(int)}).
  */
 public class Fetch {
+	//Сколько строк запрашивать из базы за раз при пропуске строк
+	private static final int SKIP_FETCH_SIZE = 500;
+	//Оценка объёма нестроковой ячейки
+	private static final int BYTES_PER_CELL = 32;
+	
 	public ResultSet cursor;
 	public Statement statement;//Открытое SQL-обращение -- должно быть закрыто вместе с курсором.
-	public int currentPosition;
+	public int currentPosition;//Позиция, с которой будет выдана следующая строка
 	public int connectionKey;
 	public ArrayList<ArrayList<String>> columns;
+	private ArrayList<String> columnsNames;
 	private Integer recordCount = null;
+	private int cursorPosition;//Сколько строк прочитано из курсора
+	//Последние прочитанные строки: строка с позицией N хранится в ячейке N % длина
+	private ArrayList<?>[] window;//создаётся при чтении первой строки
+	private int[] windowRowsBytes;
+	private int windowFilled = 0;
+	private long windowBytes = 0;
+	
+	//Учёт в CursorFetcherBean
+	UserLogon owner;
+	int tag;
+	volatile long lastAccess = System.currentTimeMillis();
+	long accountedBytes = 0;
 	
 	public Fetch(ResultSet cursor, Statement statement, int startpos, int connectionKey) throws SQLException {
 		this.cursor = cursor;
@@ -46,16 +68,67 @@ public class Fetch {
 	
 	private void postConstruct() throws SQLException {
 		columns = Utls.getResultSetColumns(cursor);
+		columnsNames = Utls.getResultSetColumnsNames(cursor);
 		//Если запрос открыт с середины -- крутим
-		for (int i=0; i<currentPosition; i++) {
-			if (!this.cursor.next()) {
-				break;
+		int startPosition = currentPosition;
+		cursorPosition = 0;
+		skip(startPosition);
+		currentPosition = startPosition;
+	}
+	
+	/**
+	 * Проверка, можно ли продолжить прокрутку с заданной позиции без повторного запроса.
+	 * @param position номер строки, начиная с 0
+	 * @return true, если строка ещё не прочитана или хранится в памяти
+	 */
+	public boolean canSeek(int position) {
+		return position >= cursorPosition - windowFilled;
+	}
+	
+	/**
+	 * Переход к заданной позиции.
+	 * Переход назад в пределах сохранённых строк не обращается к базе, переход вперёд
+	 * пропускает строки без их разбора, запрашивая их из базы большими порциями.
+	 * @param position номер строки, начиная с 0 (должен удовлетворять {@link #canSeek(int)})
+	 * @throws SQLException 
+	 */
+	public void seek(int position) throws SQLException {
+		if (!canSeek(position)) {
+			throw new IllegalArgumentException("Position " + position + " is not available");
+		}
+		if (position > cursorPosition) {
+			skip(position - cursorPosition);
+		}
+		currentPosition = position;
+	}
+	
+	private void skip(int count) throws SQLException {
+		if (count <= 0 || cursor.isClosed()) {
+			return;
+		}
+		int fetchSize = cursor.getFetchSize();
+		if (count > fetchSize) {
+			cursor.setFetchSize(Math.min(count, SKIP_FETCH_SIZE));
+		}
+		try {
+			for (int i=0; i<count; i++) {
+				if (!cursor.next()) {
+					cursor.close();
+					break;
+				}
+				cursorPosition++;
+			}
+		} finally {
+			if (!cursor.isClosed()) {
+				cursor.setFetchSize(fetchSize);
 			}
 		}
+		//Пропущенные строки не сохранялись -- сохранённые ранее идут не подряд с новыми
+		windowFilled = 0;
 	}
 	
 	ArrayList<ArrayList<?>> processFetching(int fetchCount) throws SQLException {
-		if (cursor.isClosed()) {//Курсор уже был закрыт (данные закончились),
+		if (cursor.isClosed() && currentPosition >= cursorPosition) {//Курсор уже был закрыт (данные закончились),
 			//но клиент может обратиться к этой прокрутке ещё раз
 			return new ArrayList<>(0);
 		}
@@ -65,20 +138,79 @@ public class Fetch {
 		} else {//fetchCount может быть задан очень большим, чтобы гарантированно получить все строки
 			result= new ArrayList<>();
 		}
-		for (int i=0; i<fetchCount; i++) {//Берём из курсора указанное число строк,
+		//После перехода назад -- сначала строки из памяти
+		while (result.size() < fetchCount && currentPosition < cursorPosition) {
+			result.add(window[currentPosition % window.length]);
+			currentPosition++;
+		}
+		boolean hasRows = !cursor.isClosed();
+		while (result.size() < fetchCount && hasRows) {//Берём из курсора указанное число строк,
 			//если их там достаточно
 			if (cursor.next()) {
-				LinkedHashMap<String, ?> rowMap = Utls.fetchRow(cursor);
-				result.add(new ArrayList<>(rowMap.values()));
+				LinkedHashMap<String, ?> rowMap = Utls.fetchRow(cursor, columnsNames);
+				ArrayList<?> row = new ArrayList<>(rowMap.values());
+				result.add(row);
+				remember(row);
 				currentPosition++;
 			} else {
 				cursor.close();
-				break;
+				hasRows = false;
 			}
 		}
 		return result;
 	}
 	
+	private void remember(ArrayList<?> row) {
+		if (window == null) {
+			window = new ArrayList<?>[Math.max(0, Settings.FETCH_WINDOW_SIZE)];
+			windowRowsBytes = new int[window.length];
+		}
+		if (window.length > 0) {
+			int index = cursorPosition % window.length;
+			int rowBytes = estimateBytes(row);
+			windowBytes += rowBytes - windowRowsBytes[index];
+			window[index] = row;
+			windowRowsBytes[index] = rowBytes;
+			windowFilled = Math.min(windowFilled + 1, window.length);
+		}
+		cursorPosition++;
+	}
+	
+	/**
+	 * Примерный объём памяти, занимаемый прокруткой: сохранённые строки и буферы драйвера.
+	 * @return оценка в байтах
+	 */
+	public long getEstimatedBytes() {
+		int fetchSize = 10;
+		try {
+			if (!cursor.isClosed()) {
+				fetchSize = Math.max(fetchSize, cursor.getFetchSize());
+			}
+		} catch (SQLException e) {
+			//оценка без учёта буфера
+		}
+		return windowBytes + (long) fetchSize * columnsNames.size() * BYTES_PER_CELL;
+	}
+	
+	/**
+	 * Сколько строк прочитано из курсора (включая пропущенные).
+	 */
+	public int getRowsRead() {
+		return cursorPosition;
+	}
+	
+	private static int estimateBytes(ArrayList<?> row) {
+		int bytes = 40 + 8 * row.size();
+		for (Object cell: row) {
+			if (cell instanceof String) {
+				bytes += 40 + 2 * ((String) cell).length();
+			} else if (cell != null) {
+				bytes += BYTES_PER_CELL;
+			}
+		}
+		return bytes;
+	}
+	
 	public Integer getRecordCount() {
 		return recordCount;
 	}
@@ -2,15 +2,13 @@ package ru.carabi.server.kernel.oracle;
 
 import ru.carabi.server.entities.QueryParameterEntity;
 import ru.carabi.server.entities.QueryEntity;
-import java.math.BigDecimal;
-import java.sql.Clob;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
-import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,8 +18,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import oracle.jdbc.OracleCallableStatement;
 import oracle.jdbc.OraclePreparedStatement;
-import oracle.jdbc.OracleTypes;
-import oracle.sql.NUMBER;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.Settings;
 import ru.carabi.server.UserLogon;
@@ -32,6 +28,19 @@ import ru.carabi.server.Utls;
  * @author sasha
  */
 public class OracleUtls {
+	//Сколько строк пакета отправляется в Oracle за один обмен
+	private static final int BATCH_CHUNK = 500;
+	
+	/**
+	 * Установка входных параметров одной строки пакета.
+	 */
+	interface RowBinder {
+		/**
+		 * @param statement выполняемое выражение
+		 * @param row номер строки пакета, начиная с 0
+		 */
+		void bind(OraclePreparedStatement statement, int row) throws SQLException, CarabiException;
+	}
 	
 	/**
 	 * Конвертирование условных наименований SQL-типов, используемых в Carabi Server, в JDBC-номера.
@@ -52,19 +61,15 @@ public class OracleUtls {
 	 * @throws CarabiException неизвестное название
 	 */
 	public static int typeIdByName(String typeName) throws CarabiException {
-		if ("VARCHAR2".equalsIgnoreCase(typeName) || "VARCHAR".equalsIgnoreCase(typeName) || "CHAR".equalsIgnoreCase(typeName)) {
-			return Types.VARCHAR;
-		} else if ("NUMBER".equalsIgnoreCase(typeName)) {
-			return Types.NUMERIC;
-		} else if ("DATE".equalsIgnoreCase(typeName)) {
-			return Types.DATE;
-		} else if ("CLOB".equalsIgnoreCase(typeName) || "CLOB_AS_VARCHAR".equalsIgnoreCase(typeName) || "CLOB_AS_CURSOR".equalsIgnoreCase(typeName)) {
-			return Types.CLOB;
-		} else if ("REFCURSOR".equalsIgnoreCase(typeName) || "CURSOR".equalsIgnoreCase(typeName)) {
-			return OracleTypes.CURSOR;
-		} else {
+		return binderByName(typeName).typeId;
+	}
+	
+	private static ParameterBinder binderByName(String typeName) throws CarabiException {
+		ParameterBinder binder = ParameterBinder.forType(typeName);
+		if (binder == null) {
 			throw new CarabiException("Unknown type: " + typeName);
 		}
+		return binder;
 	}
 	
 	/**
@@ -77,35 +82,44 @@ public class OracleUtls {
 	 * @throws CarabiException неизвестный тип или неверное значение
 	 */
 	public static void setInputParameter(OraclePreparedStatement statement, String typeName, String value, int ordernumber) throws SQLException, CarabiException {
-		Logger.getLogger(OracleUtls.class.getName()).log(Level.FINE, "Input {0}: {1} = {2}", new Object[]{ordernumber, typeName, value});
-		try {
-			if (typeName != null && typeName.startsWith("NULL_")) {
-				String type = typeName.substring(5);
-				statement.setNull(ordernumber, typeIdByName(type));
-			} else if ("VARCHAR2".equalsIgnoreCase(typeName) || "VARCHAR".equalsIgnoreCase(typeName) || "CHAR".equalsIgnoreCase(typeName)) {
-				statement.setString(ordernumber, value);
-			} else if ("NUMBER".equalsIgnoreCase(typeName)) {
-				if (value == null || value.trim().equals("") || value.equalsIgnoreCase("null")) {
-					statement.setNull(ordernumber, typeIdByName("NUMBER"));
-				} else {
-					value = value.replaceAll(" ", "");
-					value = value.replaceFirst("\\,", ".");
-					BigDecimal bd = new BigDecimal(value);
-					statement.setNUMBER(ordernumber, new NUMBER(bd));
-				}
-			} else if ("DATE".equalsIgnoreCase(typeName)) {
-				CarabiDate date = new CarabiDate(value);
-				statement.setTimestamp(ordernumber, date);
-			} else if ("CLOB".equalsIgnoreCase(typeName) || "CLOB_AS_VARCHAR".equalsIgnoreCase(typeName)) {
-				Clob clob = statement.getConnection().createClob();
-				clob.setString(1, value);
-				statement.setClob(ordernumber, clob);
-			} else {
-				Logger.getLogger(OracleUtls.class.getName()).warning(value.getClass().getName());
-			}
-		} catch (IllegalArgumentException | ParseException e) {
-			throw new CarabiException(e, Settings.PARSING_ERROR);
+		bindInput(statement, typeName, false, value, ordernumber);
+	}
+	
+	/**
+	 * Установка входящего параметра с учётом флага isNull.
+	 * @param statement выполняемое выражение
+	 * @param parameter данные о параметре от клиента (тип, значение, isNull)
+	 * @param ordernumber номер параметра в выражении, начиная с 1
+	 * @throws SQLException
+	 * @throws CarabiException неизвестный тип или неверное значение
+	 */
+	public static void setInputParameter(OraclePreparedStatement statement, QueryParameter parameter, int ordernumber) throws SQLException, CarabiException {
+		bindInput(statement, parameter.getType(), parameter.getIsNull() != null && parameter.getIsNull() > 0, parameter.getValue(), ordernumber);
+	}
+	
+	/**
+	 * Установка входящего параметра. Тип с префиксом "NULL_" означает NULL-значение
+	 * (так же, как флаг isNull).
+	 */
+	private static void bindInput(OraclePreparedStatement statement, String typeName, boolean isNull, String value, int ordernumber) throws SQLException, CarabiException {
+		if (typeName != null && typeName.startsWith("NULL_")) {
+			typeName = typeName.substring(5);
+			isNull = true;
+		}
+		Logger logger = Logger.getLogger(OracleUtls.class.getName());
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Input {0}: {1} = {2}", new Object[]{ordernumber, typeName, value});
+		}
+		if (isNull) {
+			binderByName(typeName).bindNull(statement, ordernumber);
+			return;
+		}
+		ParameterBinder binder = ParameterBinder.forType(typeName);
+		if (binder == null) {
+			logger.log(Level.WARNING, "Unknown input parameter type: {0}", typeName);
+			return;
 		}
+		binder.bindChecked(statement, ordernumber, value);
 	}
 	
 	/**
@@ -119,11 +133,7 @@ public class OracleUtls {
 	public static void setInputParameters(OraclePreparedStatement statement, ArrayList<QueryParameter> parametersInput) throws SQLException, CarabiException {
 		int i = 1;
 		for (QueryParameter inputParameter: parametersInput) {
-			String type = inputParameter.getType();
-			if (inputParameter.getIsNull() > 0) {
-				type = "NULL_" + type;
-			}
-			setInputParameter(statement, type, inputParameter.getValue(), i);
+			bindInput(statement, inputParameter.getType(), inputParameter.getIsNull() > 0, inputParameter.getValue(), i);
 			i++;
 		}
 	}
@@ -140,15 +150,11 @@ public class OracleUtls {
 	 * @throws ru.carabi.server.CarabiException
 	 */
 	public static void setInputParameter(OraclePreparedStatement statement, QueryEntity queryEntity, QueryParameter inputParameter, QueryParameterEntity parameterEntity) throws SQLException, CarabiException {
-		String type = parameterEntity.getType();
-		if (inputParameter.getIsNull() > 0) {
-			type = "NULL_" + type;
-		}
 		int ordernumber = parameterEntity.getOrdernumber();
 		if (queryEntity.isSql()) {
 			ordernumber++;
 		}
-		OracleUtls.setInputParameter(statement, type, inputParameter.getValue(), ordernumber);
+		bindInput(statement, parameterEntity.getType(), inputParameter.getIsNull() > 0, inputParameter.getValue(), ordernumber);
 	}
 	
 	public static void registerOutputParameter(OracleCallableStatement statement, QueryEntity queryEntity, QueryParameterEntity parameterEntity) throws CarabiException, SQLException {
@@ -344,4 +350,72 @@ public class OracleUtls {
 		}
 		return cursorsSaved;
 	}
+	
+	/**
+	 * Пакетное выполнение выражения для нескольких наборов входных параметров
+	 * в одной транзакции. Строки передаются в Oracle порциями по {@value #BATCH_CHUNK}.
+	 * При ошибке в любой строке транзакция откатывается целиком.
+	 * Если подключение уже работает в транзакции (без автоматической фиксации),
+	 * фиксация и откат остаются за её владельцем.
+	 * @param connection подключение, на котором подготовлено выражение
+	 * @param statement подготовленное выражение
+	 * @param rowsCount число строк пакета
+	 * @param binder установка параметров строки
+	 * @return результаты по строкам: число изменённых записей или
+	 * {@link Statement#SUCCESS_NO_INFO}, если драйвер его не сообщает (PL/SQL-блоки)
+	 * @throws BatchUpdateException ошибка при выполнении строки. {@link BatchUpdateException#getUpdateCounts()}
+	 * содержит результаты строк до ошибочной (отменённые) и {@link Statement#EXECUTE_FAILED}
+	 * для ошибочной; последующие строки не выполнялись.
+	 * @throws CarabiException неверное значение параметра (выполнение не начиналось или отменено)
+	 */
+	static int[] executeBatch(Connection connection, OraclePreparedStatement statement, int rowsCount, RowBinder binder) throws SQLException, CarabiException {
+		int[] results = new int[rowsCount];
+		boolean autoCommit = connection.getAutoCommit();
+		if (autoCommit) {
+			connection.setAutoCommit(false);
+		}
+		boolean done = false;
+		try {
+			int chunkStart = 0;
+			for (int row = 0; row < rowsCount; row++) {
+				try {
+					binder.bind(statement, row);
+				} catch (CarabiException e) {
+					throw new CarabiException("Row " + row + ": " + e.getMessage(), e.errorCode);
+				}
+				statement.addBatch();
+				if (row - chunkStart + 1 == BATCH_CHUNK || row == rowsCount - 1) {
+					try {
+						int[] chunkResults = statement.executeBatch();
+						System.arraycopy(chunkResults, 0, results, chunkStart, chunkResults.length);
+					} catch (BatchUpdateException e) {
+						int[] chunkResults = e.getUpdateCounts();
+						int executed = chunkResults == null ? 0 : Math.min(chunkResults.length, row - chunkStart);
+						if (executed > 0) {
+							System.arraycopy(chunkResults, 0, results, chunkStart, executed);
+						}
+						int[] processed = Arrays.copyOf(results, chunkStart + executed + 1);
+						processed[chunkStart + executed] = Statement.EXECUTE_FAILED;
+						throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), processed, e);
+					}
+					chunkStart = row + 1;
+				}
+			}
+			if (autoCommit) {
+				connection.commit();
+			}
+			done = true;
+			return results;
+		} finally {
+			if (autoCommit) {
+				try {
+					if (!done) {
+						connection.rollback();
+					}
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,177 @@
+package ru.carabi.server.kernel.oracle;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import oracle.jdbc.OraclePreparedStatement;
+import oracle.jdbc.OracleTypes;
+import ru.carabi.server.CarabiException;
+import ru.carabi.server.Settings;
+
+/**
+ * Установка входных параметров SQL-выражений по условному наименованию типа
+ * (см. {@link OracleUtls#typeIdByName(java.lang.String)}).
+ * Наименование разбирается один раз ({@link #forType(java.lang.String)}), далее
+ * значение передаётся в выражение без повторного сравнения строк.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+enum ParameterBinder {
+	STRING(Types.VARCHAR) {
+		@Override
+		void bind(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException {
+			statement.setString(ordernumber, value);
+		}
+	},
+	NUMBER(Types.NUMERIC) {
+		@Override
+		void bind(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException {
+			oracle.sql.NUMBER number = parseNumber(value);
+			if (number == null) {
+				statement.setNull(ordernumber, typeId);
+			} else {
+				statement.setNUMBER(ordernumber, number);
+			}
+		}
+	},
+	DATE(Types.DATE) {
+		@Override
+		void bind(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException, ParseException {
+			statement.setTimestamp(ordernumber, new CarabiDate(value));
+		}
+	},
+	CLOB(Types.CLOB) {
+		@Override
+		void bind(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException {
+			//Текст передаётся потоком, драйвер сам решает, нужен ли временный CLOB
+			if (value == null) {
+				statement.setNull(ordernumber, typeId);
+			} else {
+				statement.setClob(ordernumber, new StringReader(value), value.length());
+			}
+		}
+	},
+	/** CLOB, выдаваемый клиенту как курсор. Запись игнорируется. */
+	CLOB_AS_CURSOR(Types.CLOB),
+	CURSOR(OracleTypes.CURSOR);
+
+	private static final Logger logger = Logger.getLogger(OracleUtls.class.getName());
+	private static final Map<String, ParameterBinder> names = new HashMap<>();
+	//Наименования в том написании, в котором они встречались
+	private static final Map<String, ParameterBinder> resolved = new ConcurrentHashMap<>();
+
+	static {
+		names.put("VARCHAR2", STRING);
+		names.put("VARCHAR", STRING);
+		names.put("CHAR", STRING);
+		names.put("NUMBER", NUMBER);
+		names.put("DATE", DATE);
+		names.put("CLOB", CLOB);
+		names.put("CLOB_AS_VARCHAR", CLOB);
+		names.put("CLOB_AS_CURSOR", CLOB_AS_CURSOR);
+		names.put("REFCURSOR", CURSOR);
+		names.put("CURSOR", CURSOR);
+	}
+
+	final int typeId;
+
+	private ParameterBinder(int typeId) {
+		this.typeId = typeId;
+	}
+
+	/**
+	 * Получение объекта для установки параметра по наименованию типа.
+	 * @param typeName наименование типа (регистр не важен)
+	 * @return объект для установки параметров или null, если тип неизвестен
+	 */
+	static ParameterBinder forType(String typeName) {
+		if (typeName == null) {
+			return null;
+		}
+		ParameterBinder binder = resolved.get(typeName);
+		if (binder == null) {
+			binder = names.get(typeName.toUpperCase());
+			if (binder != null) {
+				resolved.put(typeName, binder);
+			}
+		}
+		return binder;
+	}
+
+	/**
+	 * Установка значения параметра.
+	 * @param statement выполняемое выражение
+	 * @param ordernumber номер параметра в выражении, начиная с 1
+	 * @param value строковое представление значения
+	 */
+	void bind(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException, ParseException {
+		logger.log(Level.WARNING, "Input parameter of type {0} is ignored", name());
+	}
+
+	/**
+	 * Установка значения параметра с преобразованием ошибок формата.
+	 * @throws CarabiException неверное значение
+	 */
+	void bindChecked(OraclePreparedStatement statement, int ordernumber, String value) throws SQLException, CarabiException {
+		try {
+			bind(statement, ordernumber, value);
+		} catch (IllegalArgumentException | ParseException e) {
+			throw new CarabiException(e, Settings.PARSING_ERROR);
+		}
+	}
+
+	/**
+	 * Установка пустого значения параметра.
+	 */
+	void bindNull(OraclePreparedStatement statement, int ordernumber) throws SQLException {
+		statement.setNull(ordernumber, typeId);
+	}
+
+	/**
+	 * Разбор числа в формате, принимаемом от клиентов: пробелы игнорируются,
+	 * первая запятая считается десятичным разделителем.
+	 * @param value строковое представление
+	 * @return число или null, если значение пустое или равно "null"
+	 * @throws NumberFormatException неверный формат
+	 */
+	static oracle.sql.NUMBER parseNumber(String value) {
+		if (value == null || value.trim().isEmpty() || value.equalsIgnoreCase("null")) {
+			return null;
+		}
+		int length = value.length();
+		char[] digits = new char[length];
+		int count = 0;
+		boolean commaReplaced = false;
+		boolean integer = true;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == ' ') {
+				continue;
+			}
+			if (c == ',' && !commaReplaced) {
+				c = '.';
+				commaReplaced = true;
+			}
+			if (!(c >= '0' && c <= '9') && !(count == 0 && (c == '-' || c == '+'))) {
+				integer = false;
+			}
+			digits[count++] = c;
+		}
+		//Целые до 18 знаков -- без BigDecimal
+		int signLength = digits[0] == '-' || digits[0] == '+' ? 1 : 0;
+		if (integer && count > signLength && count - signLength <= 18) {
+			long result = 0;
+			for (int i = signLength; i < count; i++) {
+				result = result * 10 + (digits[i] - '0');
+			}
+			return new oracle.sql.NUMBER(digits[0] == '-' ? -result : result);
+		}
+		return new oracle.sql.NUMBER(new BigDecimal(digits, 0, count));
+	}
+}
@@ -0,0 +1,294 @@
+package ru.carabi.server.kernel.oracle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import ru.carabi.server.Settings;
+import ru.carabi.server.UserLogon;
+import ru.carabi.server.entities.QueryEntity;
+import ru.carabi.server.entities.QueryParameterEntity;
+import ru.carabi.server.kernel.BoundedCache;
+
+/**
+ * Общий кеш результатов хранимых запросов.
+ * Кешируются только запросы с заданным временем хранения
+ * ({@link QueryEntity#getResultCacheLifetime()}) -- справочники и другие данные,
+ * одинаковые для всех пользователей прикладной базы. Ключ -- запрос, база, шаг прокрутки
+ * и значения входных параметров. Результат сохраняется, только если все курсоры
+ * прочитаны полностью, а значения имеют простые типы (строка, число, дата);
+ * курсоры хранятся компактно -- массивами строк.
+ * Объём кеша ограничен количеством ячеек ({@link Settings#QUERY_RESULT_CACHE_SIZE}).
+ * Результаты запроса сбрасываются при его изменении через ядро (в т.ч. на других серверах)
+ * и вручную через {@link ru.carabi.server.kernel.AdminBean#clearQueryResultCache}.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class QueryResultCache {
+	private static final String NULL_MARKER = "-";
+
+	/**
+	 * Сохранённый выходной параметр.
+	 */
+	private static class CachedParameter {
+		final String name;
+		final String value;
+		final String type;
+		final Integer isNull;
+		final Object valueObject;//простое значение, если параметр -- не курсор
+		final String[][] columns;//шапка курсора (название, тип)
+		final Object[][] rows;//строки курсора
+
+		CachedParameter(QueryParameter parameter, String[][] columns, Object[][] rows) {
+			name = parameter.getName();
+			value = parameter.getValue();
+			type = parameter.getType();
+			isNull = parameter.getIsNull();
+			valueObject = rows == null ? parameter.getValueObject() : null;
+			this.columns = columns;
+			this.rows = rows;
+		}
+
+		long getCells() {
+			if (rows == null) {
+				return 1;
+			}
+			return columns.length + (long) rows.length * columns.length;
+		}
+
+		QueryParameter restore() {
+			QueryParameter parameter = new QueryParameter();
+			parameter.setName(name);
+			parameter.setValue(value);
+			parameter.setType(type);
+			parameter.setIsNull(isNull);
+			if (rows == null) {
+				parameter.setValueObject(valueObject instanceof Date ? ((Date) valueObject).clone() : valueObject);
+				return parameter;
+			}
+			ArrayList<ArrayList<String>> columnsList = new ArrayList<>(columns.length);
+			for (String[] column: columns) {
+				columnsList.add(new ArrayList<>(Arrays.asList(column)));
+			}
+			ArrayList<ArrayList<?>> list = new ArrayList<>(rows.length);
+			for (Object[] row: rows) {
+				list.add(new ArrayList<>(Arrays.asList(row)));
+			}
+			Map<String, ArrayList> cursor = new HashMap<>();
+			cursor.put("columns", columnsList);
+			cursor.put("list", list);
+			parameter.setValueObject(cursor);
+			return parameter;
+		}
+	}
+
+	private static class CachedResult {
+		final List<CachedParameter> parameters;
+		final long cells;
+
+		CachedResult(List<CachedParameter> parameters) {
+			this.parameters = parameters;
+			long total = 0;
+			for (CachedParameter parameter: parameters) {
+				total += parameter.getCells();
+			}
+			cells = total;
+		}
+	}
+
+	//"ID запроса|ID базы|шаг прокрутки|входные параметры" -> результат
+	private final BoundedCache<String, CachedResult> results = new BoundedCache<>("queryResults",
+			Settings.QUERY_RESULT_CACHE_SIZE, 0, new BoundedCache.Weigher<String, CachedResult>() {
+				@Override
+				public long weigh(String key, CachedResult value) {
+					return value.cells;
+				}
+			});
+
+	/**
+	 * Проверка, что результаты запроса могут кешироваться.
+	 * @param queryEntity хранимый запрос
+	 * @return true, если для запроса задано время хранения результата
+	 */
+	public boolean isCacheable(QueryEntity queryEntity) {
+		return Settings.QUERY_RESULT_CACHE_SIZE > 0 && queryEntity.getResultCacheLifetime() > 0;
+	}
+
+	/**
+	 * Ключ для сохранения результата.
+	 * @param logon текущий пользователь
+	 * @param queryEntity хранимый запрос
+	 * @param inputParameters значения входных параметров в порядке их следования в запросе
+	 * @param fetchCount шаг прокрутки выходного курсора
+	 * @return ключ или null, если заданы не все входные параметры
+	 */
+	public String makeKey(UserLogon logon, QueryEntity queryEntity, List<QueryParameter> inputParameters, int fetchCount) {
+		StringBuilder key = new StringBuilder();
+		key.append(queryEntity.getId()).append('|');
+		if (logon.getSchema() != null) {
+			key.append(logon.getSchema().getId());
+		}
+		key.append('|').append(Math.abs(fetchCount)).append('|');
+		for (QueryParameter parameter: inputParameters) {
+			if (parameter == null) {
+				return null;
+			}
+			String value = parameter.getValue();
+			if (parameter.getIsNull() > 0 || value == null) {
+				key.append(NULL_MARKER);
+			} else {
+				//Длина перед значением -- чтобы разделитель внутри значения не давал совпадений
+				key.append(value.length()).append(':').append(value);
+			}
+			key.append(';');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Получение сохранённого результата.
+	 * @param key ключ из {@link #makeKey}
+	 * @return новые объекты выходных параметров в порядке сохранения или null,
+	 * если результата нет или он устарел
+	 */
+	public List<QueryParameter> get(String key) {
+		CachedResult result = results.get(key);
+		if (result == null) {
+			return null;
+		}
+		List<QueryParameter> parameters = new ArrayList<>(result.parameters.size());
+		for (CachedParameter parameter: result.parameters) {
+			parameters.add(parameter.restore());
+		}
+		return parameters;
+	}
+
+	/**
+	 * Сохранение результата выполненного запроса.
+	 * Результат не сохраняется, если какой-либо курсор прочитан не полностью или
+	 * значение имеет непростой тип (например, CLOB).
+	 * @param key ключ из {@link #makeKey}
+	 * @param queryEntity хранимый запрос
+	 * @param outputParameters выходные параметры после {@link OracleUtls#fetchResultCursors}
+	 * @param fetchCount шаг прокрутки выходного курсора
+	 */
+	public void put(String key, QueryEntity queryEntity, Collection<QueryParameter> outputParameters, int fetchCount) {
+		List<CachedParameter> parameters = new ArrayList<>(outputParameters.size());
+		for (QueryParameter parameter: outputParameters) {
+			CachedParameter cached = prepare(parameter, Math.abs(fetchCount));
+			if (cached == null) {
+				return;
+			}
+			parameters.add(cached);
+		}
+		results.put(key, new CachedResult(parameters), queryEntity.getResultCacheLifetime() * 1000L);
+	}
+
+	private CachedParameter prepare(QueryParameter parameter, int fetchCount) {
+		Object valueObject = parameter.getValueObject();
+		if (!"CURSOR".equals(parameter.getType())) {
+			return isSimple(valueObject) ? new CachedParameter(parameter, null, null) : null;
+		}
+		if (!(valueObject instanceof Map) || !"-1".equals(parameter.getValue())) {
+			return null;
+		}
+		Map<?, ?> cursor = (Map<?, ?>) valueObject;
+		List<?> columnsList = (List<?>) cursor.get("columns");
+		List<?> list = (List<?>) cursor.get("list");
+		//Полный шаг -- в курсоре могли остаться строки
+		if (columnsList == null || list == null || list.size() >= fetchCount) {
+			return null;
+		}
+		String[][] columns = new String[columnsList.size()][];
+		for (int i = 0; i < columns.length; i++) {
+			List<?> column = (List<?>) columnsList.get(i);
+			columns[i] = column.toArray(new String[column.size()]);
+		}
+		Object[][] rows = new Object[list.size()][];
+		for (int i = 0; i < rows.length; i++) {
+			Object[] row = ((List<?>) list.get(i)).toArray();
+			for (Object cell: row) {
+				if (!isSimple(cell)) {
+					return null;
+				}
+			}
+			rows[i] = row;
+		}
+		return new CachedParameter(parameter, columns, rows);
+	}
+
+	private static boolean isSimple(Object value) {
+		return value == null || value instanceof String || value instanceof Number || value instanceof Date;
+	}
+
+	/**
+	 * Удаление результатов запроса.
+	 * @param queryId ID хранимого запроса (null -- удалить результаты всех запросов)
+	 */
+	public void invalidate(Object queryId) {
+		if (queryId == null) {
+			results.clear();
+			return;
+		}
+		final String prefix = queryId + "|";
+		results.removeKeys(new BoundedCache.KeyFilter<String>() {
+			@Override
+			public boolean accept(String key) {
+				return key.startsWith(prefix);
+			}
+		});
+	}
+
+	/**
+	 * Статистика обращений к кешу.
+	 */
+	public Map<String, Long> getStatistics() {
+		return results.getStatistics();
+	}
+
+	/**
+	 * Удаление устаревших результатов.
+	 */
+	@Schedule(minute="*/10", hour="*")
+	public void removeExpired() {
+		results.removeExpired();
+	}
+
+	/**
+	 * Входные параметры из списка, переданного в
+	 * {@link QueryStorageBean#runQuery(ru.carabi.server.UserLogon, java.lang.String, java.util.List, int)}.
+	 */
+	static List<QueryParameter> inputsByPosition(List<QueryParameterEntity> parametersEntities, List<QueryParameter> parameters) {
+		List<QueryParameter> inputs = new ArrayList<>();
+		int i = 0;
+		for (QueryParameterEntity parameterEntity: parametersEntities) {
+			if (parameterEntity.getIsIn() > 0) {
+				inputs.add(parameters.get(i));
+			}
+			i++;
+		}
+		return inputs;
+	}
+
+	/**
+	 * Входные параметры из карты, переданной в
+	 * {@link QueryStorageBean#runQuery(ru.carabi.server.UserLogon, java.lang.String, java.util.Map, int)}.
+	 */
+	static List<QueryParameter> inputsByName(List<QueryParameterEntity> parametersEntities, Map<String, QueryParameter> parameters) {
+		List<QueryParameter> inputs = new ArrayList<>();
+		for (QueryParameterEntity parameterEntity: parametersEntities) {
+			if (parameterEntity.getIsIn() > 0) {
+				inputs.add(parameters.get(parameterEntity.getName().toUpperCase()));
+			}
+		}
+		return inputs;
+	}
+}
@@ -17,6 +17,7 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import oracle.jdbc.OracleCallableStatement;
 import oracle.jdbc.OracleConnection;
+import oracle.jdbc.OraclePreparedStatement;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.Settings;
 import ru.carabi.server.UserLogon;
@@ -39,6 +40,9 @@ public class QueryStorageBean {
 
 	@EJB
 	private CursorFetcherBean cursorFetcher;
+	
+	@EJB
+	private QueryResultCache queryResultCache;
 
 	
 	/**
@@ -73,8 +77,28 @@ public class QueryStorageBean {
 			throw new CarabiException("Number of stored parameters and number of input parameters are different", Settings.BINDING_ERROR);
 		}
 		final String parametersDump = Utls.dumpParameters(parameters);
+		String cacheKey = null;
+		if (queryResultCache.isCacheable(queryEntity)) {
+			cacheKey = queryResultCache.makeKey(logon, queryEntity, QueryResultCache.inputsByPosition(parametersEntities, parameters), fetchCount);
+		}
 		try {
 			logQueryEnter(logon, queryEntity, parametersDump);
+			List<QueryParameter> cachedResult = cacheKey == null ? null : queryResultCache.get(cacheKey);
+			if (cachedResult != null) {
+				if (queryEntity.isSql()) {
+					parameters.add(cachedResult.get(0));
+				} else {
+					int i = 0, j = 0;
+					for (QueryParameterEntity parameterEntity: parametersEntities) {
+						if (parameterEntity.getIsOut() > 0) {
+							parameters.set(i, cachedResult.get(j++));
+						}
+						i++;
+					}
+				}
+				logQueryFromCache(logon, name);
+				return;
+			}
 			Connection connection = logon.getConnection();
 			OracleConnection oracleConnection = Utls.unwrapOracleConnection(connection);
 			OracleCallableStatement statement = prepareStoredQuery(queryEntity, oracleConnection);
@@ -92,19 +116,26 @@ public class QueryStorageBean {
 				}
 				i++;
 			}
+			List<QueryParameter> outputParameters = new ArrayList<>();
 			if (queryEntity.isSql()) {
-				parameters.add(OracleUtls.executeSql(statement));
+				QueryParameter resultCursor = OracleUtls.executeSql(statement);
+				parameters.add(resultCursor);
+				outputParameters.add(resultCursor);
 			} else {
 				statement.execute();
 				i = 0;
 				for (QueryParameterEntity parameterEntity: parametersEntities) {
 					if (parameterEntity.getIsOut() > 0) {
 						OracleUtls.readOutputParameter(statement, parameters.get(i), parameterEntity);
+						outputParameters.add(parameters.get(i));
 					}
 					i++;
 				}
 			}
 			fetchResultAndLog(logon, parameters, fetchCount, connection, statement, name);
+			if (cacheKey != null) {
+				queryResultCache.put(cacheKey, queryEntity, outputParameters, fetchCount);
+			}
 		} catch(SQLException e) {
 			CarabiLogging.logError("Ошибка при выполнении запроса {0} с параметрами {1}",
 					new Object[]{name, parametersDump},
@@ -135,8 +166,25 @@ public class QueryStorageBean {
 		}
 		List<QueryParameterEntity> parametersEntities = queryEntity.getParameters();
 		final String parametersDump = Utls.dumpParameters(parameters);
+		String cacheKey = null;
+		if (queryResultCache.isCacheable(queryEntity)) {
+			cacheKey = queryResultCache.makeKey(logon, queryEntity, QueryResultCache.inputsByName(parametersEntities, parameters), fetchCount);
+		}
 		try {
 			logQueryEnter(logon, queryEntity, parametersDump);
+			List<QueryParameter> cachedResult = cacheKey == null ? null : queryResultCache.get(cacheKey);
+			if (cachedResult != null) {
+				parameters.clear();
+				if (queryEntity.isSql()) {
+					parameters.put("RESULT_CURSOR", cachedResult.get(0));
+				} else {
+					for (QueryParameter outParameter: cachedResult) {
+						parameters.put(outParameter.getName(), outParameter);
+					}
+				}
+				logQueryFromCache(logon, name);
+				return;
+			}
 			Connection connection = logon.getConnection();
 			OracleConnection oracleConnection = Utls.unwrapOracleConnection(connection);
 			OracleCallableStatement statement = prepareStoredQuery(queryEntity, oracleConnection);
@@ -166,6 +214,9 @@ public class QueryStorageBean {
 				}
 			}
 			fetchResultAndLog(logon, parameters.values(), fetchCount, connection, statement, name);
+			if (cacheKey != null) {
+				queryResultCache.put(cacheKey, queryEntity, parameters.values(), fetchCount);
+			}
 		} catch(SQLException e) {
 			CarabiLogging.logError("Ошибка Oracle при выполнении запроса {0} с параметрами {1}",
 					new Object[]{name, parametersDump},
@@ -179,21 +230,85 @@ public class QueryStorageBean {
 		}
 	}
 	
+	/**
+	 * Пакетный запуск сохранённого PL-кода для нескольких наборов параметров
+	 * в одной транзакции (см. {@link OracleUtls#executeBatch}).
+	 * Запрос не должен быть select-ом и иметь выходные параметры.
+	 * @param logon текущий пользователь.
+	 * @param name название запроса.
+	 * @param rows наборы входных параметров по именам (в верхнем регистре).
+	 * @return результаты по строкам
+	 * @throws CarabiException если запрос не найден, не подходит для пакетного запуска
+	 * или в какой-либо строке заданы не все входные параметры
+	 * @throws SQLException ошибка при выполнении, в т.ч. {@link java.sql.BatchUpdateException}
+	 * с результатами строк до ошибочной
+	 */
+	public int[] runQueryBatch(UserLogon logon,
+			String name,
+			final List<Map<String, QueryParameter>> rows
+		) throws CarabiException, SQLException {
+		final QueryEntity queryEntity = prepareNamedQuery(name, logon);
+		final List<QueryParameterEntity> parametersEntities = queryEntity.getParameters();
+		if (queryEntity.isSql()) {
+			throw new CarabiException("Stored select " + name + " can not be run in batch", Settings.BINDING_ERROR);
+		}
+		for (QueryParameterEntity parameterEntity: parametersEntities) {
+			if (parameterEntity.getIsOut() > 0) {
+				throw new CarabiException("Stored query " + name + " has output parameters and can not be run in batch", Settings.BINDING_ERROR);
+			}
+		}
+		final String parametersDump = "batch of " + rows.size() + " rows";
+		logQueryEnter(logon, queryEntity, parametersDump);
+		Connection connection = logon.getConnection();
+		OracleConnection oracleConnection = Utls.unwrapOracleConnection(connection);
+		OracleCallableStatement statement = prepareStoredQuery(queryEntity, oracleConnection);
+		try {
+			int[] results = OracleUtls.executeBatch(connection, statement, rows.size(), new OracleUtls.RowBinder() {
+				@Override
+				public void bind(OraclePreparedStatement statement, int row) throws SQLException, CarabiException {
+					Map<String, QueryParameter> parameters = rows.get(row);
+					for (QueryParameterEntity parameterEntity: parametersEntities) {
+						QueryParameter inputParameter = parameters.get(parameterEntity.getName().toUpperCase());
+						if (inputParameter == null) {
+							throw new CarabiException("Input parameter " + parameterEntity.getName() + " not given", Settings.BINDING_ERROR);
+						}
+						OracleUtls.setInputParameter(statement, queryEntity, inputParameter, parameterEntity);
+					}
+				}
+			});
+			CarabiLogging.log(logon, this, CarabiLogging.message("queryHasBeenExecuted", name),
+					CarabiLogging.message("statementClosed"));
+			return results;
+		} catch(SQLException e) {
+			CarabiLogging.logError("Ошибка Oracle при выполнении запроса {0} с параметрами {1}",
+					new Object[]{name, parametersDump},
+					logon.getMasterConnection(), true, Level.SEVERE, e);
+			throw e;
+		} finally {
+			statement.close();
+			logon.freeConnection(connection);
+		}
+	}
+	
 	private void logQueryEnter(UserLogon logon, QueryEntity queryEntity, final String parametersDump) {
 		CarabiLogging.log(logon,
 				this,
-				String.format(CarabiLogging.messages.getString("executingTheQuery"), queryEntity.getSysname(), queryEntity.getName()),
+				CarabiLogging.message("executingTheQuery", queryEntity.getSysname(), queryEntity.getName()),
 				parametersDump
 		);
 		if (queryEntity.getIsDeprecated()) {
 			CarabiLogging.log(logon,
 					this,
-					String.format(CarabiLogging.messages.getString("executingDepreatedQuery"), queryEntity.getName()),
-					String.format(CarabiLogging.messages.getString("executingDepreatedQueryDetails"), queryEntity.getSysname(), logon.getDisplay(), logon.getToken())
+					CarabiLogging.message("executingDepreatedQuery", queryEntity.getName()),
+					CarabiLogging.message("executingDepreatedQueryDetails", queryEntity.getSysname(), logon.getDisplay(), logon.getToken())
 			);
 		}
 	}
 	
+	private void logQueryFromCache(UserLogon logon, String queryName) {
+		CarabiLogging.log(logon, this, CarabiLogging.message("queryResultFromCache", queryName), "");
+	}
+	
 	/**
 	 * Подготовка хранимого запроса.
 	 * Поиск и проверка, что он может работать.
@@ -238,8 +353,8 @@ public class QueryStorageBean {
 			} else {
 				message = "cursorsOpened";
 			}
-			CarabiLogging.log(logon, this, String.format(CarabiLogging.messages.getString("queryHasBeenExecuted"), queryName),
-					CarabiLogging.messages.getString(message));
+			CarabiLogging.log(logon, this, CarabiLogging.message("queryHasBeenExecuted", queryName),
+					CarabiLogging.message(message));
 	}
 	
 	/**
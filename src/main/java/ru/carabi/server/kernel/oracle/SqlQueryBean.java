@@ -83,7 +83,7 @@ public class SqlQueryBean {
 			boolean askSaveFetch = fetchCount > 0;// по знаку fetchCount смотрим, надо ли сохранять прокрутку
 			fetchCount = Math.abs(fetchCount);
 			resultCode = fetchCount;
-			ArrayList<ArrayList<?>> data = fetch.processFetching(fetchCount);
+			ArrayList<ArrayList<?>> data = fetchIsNew ? fetch.processFetching(fetchCount) : cursorFetcher.processFetching(fetch, fetchCount);
 			count.value = data.size();
 			endpos.value += count.value;
 			//Если пользователь с долгоживущей сессией и новый
@@ -169,6 +169,54 @@ public class SqlQueryBean {
 		}
 	}
 	
+	/**
+	 * Пакетное выполнение скрипта для нескольких наборов входных параметров
+	 * в одной транзакции (см. {@link OracleUtls#executeBatch}).
+	 * Параметры задаются по порядку следования в скрипте, как в
+	 * {@link #executeScript(ru.carabi.server.UserLogon, java.lang.String, javax.xml.ws.Holder, int)};
+	 * выходные параметры не поддерживаются.
+	 * @param logon текущий пользователь
+	 * @param script текст скрипта
+	 * @param rows наборы входных параметров
+	 * @return результаты по строкам
+	 * @throws CarabiException число параметров не совпадает со скриптом или неверное значение
+	 * @throws SQLException ошибка при выполнении, в т.ч. {@link java.sql.BatchUpdateException}
+	 * с результатами строк до ошибочной
+	 */
+	public int[] executeScriptBatch(UserLogon logon, String script, final List<? extends List<QueryParameter>> rows) throws CarabiException, SQLException {
+		script = OracleUtls.removeComments(script);
+		final int parametersCount = OracleUtls.searchInOut(script).size();
+		script = OracleUtls.replaceInOut(script);
+		Connection connection = logon.getConnection();
+		OracleConnection oracleConnection = Utls.unwrapOracleConnection(connection);
+		OraclePreparedStatement statement = (OraclePreparedStatement)oracleConnection.prepareCall(script);
+		try {
+			return OracleUtls.executeBatch(connection, statement, rows.size(), new OracleUtls.RowBinder() {
+				@Override
+				public void bind(OraclePreparedStatement statement, int row) throws SQLException, CarabiException {
+					List<QueryParameter> parameters = rows.get(row);
+					if (parameters.size() != parametersCount) {
+						throw new CarabiException("Number of parameters in script and input data is different", Settings.BINDING_ERROR);
+					}
+					int i = 1;
+					for (QueryParameter parameter: parameters) {
+						if (parameter.getIsOut() != null && parameter.getIsOut() > 0) {
+							throw new CarabiException("Output parameters are not supported in batch", Settings.BINDING_ERROR);
+						}
+						OracleUtls.setInputParameter(statement, parameter, i);
+						i++;
+					}
+				}
+			});
+		} catch (SQLException ex) {
+			logger.log(Level.SEVERE, "error on executing batch: " + script, ex);
+			throw ex;
+		} finally {
+			statement.close();
+			logon.freeConnection(connection);
+		}
+	}
+	
 	public QueryParameter getCarabiTable(UserLogon logon, String tableName, List<Long> documentsList, int fetchCount) {
 		final String documentsListStr = StringUtils.join(documentsList, ", ");
 		String sql = "begin :cur := APPL_CARABI_TABLE2.GET_CURSOR('" +
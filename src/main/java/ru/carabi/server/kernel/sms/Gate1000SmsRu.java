@@ -1,71 +1,58 @@
 package ru.carabi.server.kernel.sms;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.MissingResourceException;
-import java.util.ResourceBundle;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
 
 /**
  * Доступ к API сервиса http://1000sms.ru
  * @author sasha<kopilov.ad@gmail.com>
  */
-public class Gate1000SmsRu implements SmsServiceGate {
-	ResourceBundle properties;
+public class Gate1000SmsRu extends HttpSmsGate {
 	
 	@Override
-	public void setProperties(ResourceBundle properties) {
-		this.properties = properties;
-	}
-
-	@Override
-	public void sendSmsMessage(String phoneNumber, String text, String sender) {
-		try {
-			//String apiId = properties.getString("smsRu_apiId");
-			List<NameValuePair> parameters = new ArrayList<>();
-			parameters.add(new BasicNameValuePair("method", "push_msg"));
-			parameters.add(new BasicNameValuePair("email", properties.getString("1000smsRu_login")));
-			parameters.add(new BasicNameValuePair("password", properties.getString("1000smsRu_password")));
-			String senderName;
-			if (!StringUtils.isEmpty(sender)) {
-				senderName = sender;
-			} else {
-				try {
-					senderName = properties.getString("sms4b_sender");
-				} catch (MissingResourceException e) {
-					senderName = "";
-				}
-			}
-			if (!StringUtils.isEmpty(senderName)) {
-				parameters.add(new BasicNameValuePair("sender_name", senderName));
-			}
-			parameters.add(new BasicNameValuePair("phone", phoneNumber));
-			parameters.add(new BasicNameValuePair("text", text));
-			parameters.add(new BasicNameValuePair("format", "JSON"));
-			HttpPost request = new HttpPost("http://api.1000sms.ru/");
-			//HttpPost request = new HttpPost("http://netbeans.loc/test.php");
-			HttpEntity body = new UrlEncodedFormEntity(parameters);
-			request.setEntity(body);
-			CloseableHttpClient httpClient = HttpClients.createSystem();
-			CloseableHttpResponse response = httpClient.execute(request);
-			
-			response.close();
-		} catch (UnsupportedEncodingException ex) {
-			Logger.getLogger(Gate1000SmsRu.class.getName()).log(Level.SEVERE, null, ex);
-		} catch (IOException ex) {
-			Logger.getLogger(Gate1000SmsRu.class.getName()).log(Level.SEVERE, null, ex);
+	public void sendSmsMessage(String phoneNumber, String text, String sender) throws IOException {
+		List<NameValuePair> parameters = new ArrayList<>();
+		parameters.add(new BasicNameValuePair("method", "push_msg"));
+		parameters.add(new BasicNameValuePair("email", properties.getString("1000smsRu_login")));
+		parameters.add(new BasicNameValuePair("password", properties.getString("1000smsRu_password")));
+		String senderName;
+		if (!StringUtils.isEmpty(sender)) {
+			senderName = sender;
+		} else {
+			senderName = getStringProperty("sms4b_sender", "");
+		}
+		if (!StringUtils.isEmpty(senderName)) {
+			parameters.add(new BasicNameValuePair("sender_name", senderName));
+		}
+		parameters.add(new BasicNameValuePair("phone", phoneNumber));
+		parameters.add(new BasicNameValuePair("text", text));
+		parameters.add(new BasicNameValuePair("format", "JSON"));
+		String response = post("http://api.1000sms.ru/", parameters);
+		//ответ: {"response": {"msg": {"err_code": ..., "text": ...}, ...}}, err_code 0 -- сообщение принято
+		JsonObject msg;
+		try (JsonReader reader = Json.createReader(new StringReader(response))) {
+			JsonObject responseObject = reader.readObject().getJsonObject("response");
+			msg = responseObject == null ? null : responseObject.getJsonObject("msg");
+		} catch (JsonException | ClassCastException e) {
+			throw new IOException("1000sms.ru returned unexpected response " + StringUtils.left(response, 200), e);
+		}
+		if (msg == null || !msg.containsKey("err_code")) {
+			throw new IOException("1000sms.ru returned unexpected response " + StringUtils.left(response, 200));
+		}
+		JsonValue errorCode = msg.get("err_code");
+		String code = errorCode.getValueType() == JsonValue.ValueType.STRING ? msg.getString("err_code") : errorCode.toString();
+		if (!"0".equals(code.trim())) {
+			throw new IOException("1000sms.ru returned code " + code + ": " + msg.getString("text", ""));
 		}
 	}
 	
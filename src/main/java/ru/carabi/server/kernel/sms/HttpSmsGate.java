@@ -0,0 +1,109 @@
+package ru.carabi.server.kernel.sms;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Общая часть шлюзов, работающих через HTTP API.
+ * HTTP-клиент с пулом соединений создаётся один раз при установке настроек
+ * и используется для всех сообщений, пока шлюз не будет закрыт.
+ * Таймауты задаются ключами smsGate_connectTimeout и smsGate_socketTimeout
+ * (в миллисекундах).
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public abstract class HttpSmsGate implements SmsServiceGate {
+	private static final Logger logger = CarabiLogging.getLogger(HttpSmsGate.class);
+	
+	protected ResourceBundle properties;
+	private CloseableHttpClient httpClient;
+	
+	@Override
+	public void setProperties(ResourceBundle properties) {
+		this.properties = properties;
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(getIntProperty("smsGate_connectTimeout", 5000))
+				.setConnectionRequestTimeout(getIntProperty("smsGate_connectTimeout", 5000))
+				.setSocketTimeout(getIntProperty("smsGate_socketTimeout", 15000))
+				.build();
+		close();
+		httpClient = HttpClients.custom()
+				.useSystemProperties()
+				.setDefaultRequestConfig(requestConfig)
+				.setMaxConnPerRoute(SmsServiceGateFactory.getWorkersCount())
+				.setMaxConnTotal(SmsServiceGateFactory.getWorkersCount())
+				.build();
+	}
+	
+	/**
+	 * Отправка формы методом POST.
+	 * @param url адрес API
+	 * @param parameters поля формы
+	 * @return тело ответа
+	 * @throws IOException при сетевой ошибке или коде ответа, отличном от 2xx
+	 */
+	protected String post(String url, List<NameValuePair> parameters) throws IOException {
+		HttpPost request = new HttpPost(url);
+		request.setEntity(new UrlEncodedFormEntity(parameters, "UTF-8"));
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			HttpEntity entity = response.getEntity();
+			String body = entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+			int status = response.getStatusLine().getStatusCode();
+			if (status < 200 || status >= 300) {
+				throw new IOException("HTTP " + status + " from " + url);
+			}
+			return body;
+		}
+	}
+	
+	/**
+	 * Необязательная строковая настройка.
+	 * @param key ключ
+	 * @param defaultValue значение, если ключ отсутствует
+	 */
+	protected String getStringProperty(String key, String defaultValue) {
+		try {
+			return properties.getString(key);
+		} catch (MissingResourceException e) {
+			return defaultValue;
+		}
+	}
+	
+	private int getIntProperty(String key, int defaultValue) {
+		String value = getStringProperty(key, null);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+	
+	@Override
+	public String getName() {
+		return getClass().getSimpleName();
+	}
+	
+	@Override
+	public void close() {
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "error on closing HTTP client of " + getName(), e);
+			}
+			httpClient = null;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package ru.carabi.server.kernel.sms;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.Schedule;
+import javax.ejb.Stateless;
+import javax.ejb.Timer;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.Settings;
+import ru.carabi.server.entities.CarabiAppServer;
+import ru.carabi.server.entities.CarabiUser;
+import ru.carabi.server.entities.SmsMessage;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Хранение очереди SMS-сообщений в ядровой БД (таблица SMS_MESSAGE).
+ * Каждый метод выполняется в короткой транзакции, обращения к шлюзам
+ * происходят вне транзакций (в {@link SmsSenderBean}).
+ * Очередь общая для всех серверов: сообщение захватывается сервером
+ * на время smsQueue_lease, поэтому одно сообщение не отправляется дважды
+ * одновременно.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Stateless
+public class SmsQueueBean {
+	private static final Logger logger = CarabiLogging.getLogger(SmsQueueBean.class);
+	//Максимальная пауза между попытками
+	private static final long MAX_RETRY_DELAY = 3600 * 1000L;
+	
+	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
+	private EntityManager em;
+	
+	/**
+	 * Постановка сообщения в очередь. Транзакция фиксируется сразу,
+	 * чтобы сообщение было видно потокам отправки.
+	 * @param phone номер получателя
+	 * @param text текст сообщения
+	 * @param sender отправитель для API шлюза
+	 * @param author пользователь, отправивший сообщение
+	 * @return сохранённое сообщение с заполненным id
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public SmsMessage enqueue(String phone, String text, String sender, CarabiUser author) {
+		SmsMessage message = new SmsMessage();
+		message.setPhone(phone);
+		message.setText(text);
+		message.setSender(sender);
+		message.setAuthor(author);
+		message.setStatus(SmsMessage.QUEUED);
+		Date now = new Date();
+		message.setCreated(now);
+		message.setNextAttempt(now);
+		em.persist(message);
+		em.flush();
+		return message;
+	}
+	
+	/**
+	 * Сообщения, которые пора отправлять: ожидающие очереди и зависшие
+	 * при отправке дольше smsQueue_lease.
+	 * @param limit максимальное количество
+	 * @return id сообщений в порядке очереди
+	 */
+	public List<Long> getDueMessages(int limit) {
+		TypedQuery<Long> query = em.createNamedQuery("getDueSmsMessages", Long.class);
+		query.setParameter("now", new Date());
+		query.setMaxResults(limit);
+		return query.getResultList();
+	}
+	
+	/**
+	 * Захват сообщения для отправки. Если сообщение уже захвачено
+	 * другим потоком или сервером -- возвращается null.
+	 * @param id id сообщения
+	 * @param leaseSeconds время захвата
+	 * @return захваченное сообщение или null
+	 */
+	public SmsMessage claim(long id, int leaseSeconds) {
+		Date now = new Date();
+		Query query = em.createNamedQuery("claimSmsMessage");
+		query.setParameter("id", id);
+		query.setParameter("now", now);
+		query.setParameter("leaseEnd", new Date(now.getTime() + leaseSeconds * 1000L));
+		if (query.executeUpdate() == 0) {
+			return null;
+		}
+		return em.find(SmsMessage.class, id);
+	}
+	
+	/**
+	 * Отметка об успешной отправке.
+	 * @param id id сообщения
+	 * @param gate название шлюза, принявшего сообщение
+	 */
+	public void markSent(long id, String gate) {
+		SmsMessage message = em.find(SmsMessage.class, id);
+		if (message == null) {
+			return;
+		}
+		message.setStatus(SmsMessage.SENT);
+		message.setSent(new Date());
+		message.setNextAttempt(null);
+		message.setGate(gate);
+		em.merge(message);
+		em.flush();
+	}
+	
+	/**
+	 * Отметка о неудачной попытке. Сообщение возвращается в очередь
+	 * с удвоенной паузой или получает статус failed, если попытки исчерпаны.
+	 * @param id id сообщения
+	 * @param error описание ошибки
+	 * @param maxAttempts максимальное число попыток
+	 * @param retryDelaySeconds пауза перед второй попыткой
+	 * @return новый статус сообщения
+	 */
+	public String markFailed(long id, String error, int maxAttempts, int retryDelaySeconds) {
+		SmsMessage message = em.find(SmsMessage.class, id);
+		if (message == null) {
+			return null;
+		}
+		message.setLastError(StringUtils.left(error, 1024));
+		if (message.getAttempts() >= maxAttempts) {
+			message.setStatus(SmsMessage.FAILED);
+			message.setNextAttempt(null);
+		} else {
+			int shift = Math.min(message.getAttempts() - 1, 16);
+			long delay = Math.min(retryDelaySeconds * 1000L << Math.max(shift, 0), MAX_RETRY_DELAY);
+			message.setStatus(SmsMessage.QUEUED);
+			message.setNextAttempt(new Date(System.currentTimeMillis() + delay));
+		}
+		em.merge(message);
+		em.flush();
+		return message.getStatus();
+	}
+	
+	/**
+	 * Поиск сообщения по id.
+	 * @return сообщение или null, если не найдено
+	 */
+	public SmsMessage findMessage(long id) {
+		return em.find(SmsMessage.class, id);
+	}
+	
+	/**
+	 * Удаление из базы старых отправленных и неотправленных сообщений
+	 * (старше smsQueue_keepDays дней).
+	 * @param timer
+	 */
+	@Schedule(hour="4", minute="30")
+	public void deleteOldMessages(Timer timer) {
+		CarabiAppServer currentServer = Settings.getCurrentServer();
+		if (currentServer.isMaster()) {//чисткой базы должен заниматься единственный сервер
+			Query query = em.createNamedQuery("deleteOldSmsMessages");
+			Calendar calendar = new GregorianCalendar();
+			calendar.add(GregorianCalendar.DAY_OF_MONTH, -SmsServiceGateFactory.getIntSetting("smsQueue_keepDays", 30));
+			query.setParameter("long_ago", calendar.getTime());
+			int deleted = query.executeUpdate();
+			logger.log(Level.INFO, "deleted {0} SMS messages older than {1}", new Object[]{deleted, calendar.getTime()});
+			em.flush();
+		}
+	}
+}
@@ -1,20 +1,82 @@
 package ru.carabi.server.kernel.sms;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
 import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.UserLogon;
 import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.entities.Phone;
 import ru.carabi.server.entities.PhoneType;
+import ru.carabi.server.entities.SmsMessage;
+import ru.carabi.server.logging.CarabiLogging;
+import ru.carabi.server.logging.Metrics;
 
 /**
  * Ядровой модуль для отправки SMS-сообщений.
  * Функционал, непосредственно осуществляющий отправку, должен быть представлен
  * реализациями интерфейса {@link SmsServiceGate}
+ *
+ * Сообщения ставятся в очередь ({@link SmsQueueBean}) и отправляются в фоне
+ * не более чем smsQueue_workers потоками. При ошибке перебираются резервные шлюзы,
+ * если все отказали -- попытка повторяется с удваивающейся паузой.
+ * Сообщения, поставленные в очередь, но не взятые сразу (все потоки заняты,
+ * перезапуск сервера), подбираются периодическим опросом очереди.
  * @author sasha<kopilov.ad@gmail.com>
  */
 @Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class SmsSenderBean {
-	SmsServiceGate serviceGate = SmsServiceGateFactory.createServiceGate();
+	private static final Logger logger = CarabiLogging.getLogger(SmsSenderBean.class);
+	//Сколько сообщений поток берёт из базы за одно обращение
+	private static final int QUEUE_BATCH = 20;
+	
+	@EJB private SmsQueueBean smsQueue;
+	@Resource private ManagedExecutorService executor;
+	
+	private List<SmsServiceGate> serviceGates;
+	private final int workersCount = SmsServiceGateFactory.getWorkersCount();
+	private final int maxAttempts = SmsServiceGateFactory.getIntSetting("smsQueue_attempts", 5);
+	private final int retryDelay = SmsServiceGateFactory.getIntSetting("smsQueue_retryDelay", 60);
+	private final int lease = SmsServiceGateFactory.getIntSetting("smsQueue_lease", 300);
+	private final Semaphore workers = new Semaphore(workersCount);
+	private volatile boolean stopped = false;
+	
+	@PostConstruct
+	public void init() {
+		serviceGates = SmsServiceGateFactory.createServiceGates();
+		if (serviceGates.isEmpty()) {
+			logger.severe("No SMS gates configured, messages will stay in queue");
+		}
+		Metrics.gauge("carabi_sms_workers_busy", "Threads sending SMS messages", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return workersCount - workers.availablePermits();
+			}
+		});
+	}
+	
+	@PreDestroy
+	public void destroy() {
+		stopped = true;
+		for (SmsServiceGate gate: serviceGates) {
+			gate.close();
+		}
+	}
 	
 	/**
 	 * Отправить SMS-сообщение указанному пользователю.
@@ -23,12 +85,12 @@ public class SmsSenderBean {
 	 * @param logon сессия текущего пользователя
 	 * @param receiver получатель
 	 * @param text текст сообщения
+	 * @return id сообщения в очереди (см. {@link #getMessage(ru.carabi.server.UserLogon, long)})
 	 */
-	public void sendSmsMessage(UserLogon logon, CarabiUser receiver, String text, String sender) throws CarabiException {
+	public long sendSmsMessage(UserLogon logon, CarabiUser receiver, String text, String sender) throws CarabiException {
 		for (Phone phone: receiver.getPhonesList()) {
 			if (phone.getPhoneType() != null && PhoneType.MOBILE.equals(phone.getPhoneType().getSysname())) {
-				sendSmsMessage(logon, phone, text, sender);
-				return;
+				return sendSmsMessage(logon, phone, text, sender);
 			}
 		}
 		throw new CarabiException(new IllegalStateException("User does not have mobile phone"));
@@ -40,15 +102,16 @@ public class SmsSenderBean {
 	 * @param logon сессия текущего пользователя
 	 * @param phone телефон, на который отправлять сообщение
 	 * @param text текст сообщения
+	 * @return id сообщения в очереди
 	 * @throws ru.carabi.server.CarabiException При отправке на немобильный телефон
 	 */
-	public void sendSmsMessage(UserLogon logon, Phone phone, String text, String sender) throws CarabiException {
+	public long sendSmsMessage(UserLogon logon, Phone phone, String text, String sender) throws CarabiException {
 		if (PhoneType.MOBILE.equals(phone.getPhoneType().getSysname())) {
 			StringBuilder phoneStr = new StringBuilder();
 			phoneStr.append(phone.getCountryCode());
 			phoneStr.append(phone.getRegionCode());
 			phoneStr.append(phone.getMainNumber());
-			sendSmsMessage(logon, phoneStr.toString(), text, sender);
+			return sendSmsMessage(logon, phoneStr.toString(), text, sender);
 		} else {
 			throw new CarabiException(new IllegalArgumentException("can not send SMS to this phone (not mobile)"));
 		}
@@ -56,13 +119,127 @@ public class SmsSenderBean {
 	
 	/**
 	 * Отправить SMS-сообщение на указанный номер.
+	 * Сообщение ставится в очередь, метод не ждёт ответа шлюза.
 	 * @param logon сессия текущего пользователя
 	 * @param phone телефонный номер (обычно десятизначный) без доп. символов
 	 * @param text текст сообщения
 	 * @param sender номер или название отправителя (может не поддерживаться сервисом отправки)
+	 * @return id сообщения в очереди
 	 */
-	public void sendSmsMessage(UserLogon logon, String phone, String text, String sender) throws CarabiException {
+	public long sendSmsMessage(UserLogon logon, String phone, String text, String sender) throws CarabiException {
 		logon.assertAllowed("SMS_SENDING");
-		serviceGate.sendSmsMessage(phone, text, sender);
+		SmsMessage message = smsQueue.enqueue(phone, text, sender, logon.getUser());
+		startWorkers(1);
+		return message.getId();
+	}
+	
+	/**
+	 * Получение сообщения из очереди для проверки статуса.
+	 * Доступно автору сообщения и администраторам пользователей
+	 * (право ADMINISTRATING-USERS-VIEW).
+	 * @param logon сессия текущего пользователя
+	 * @param id id сообщения, возвращённый при отправке
+	 * @return сообщение (статус -- {@link SmsMessage#getStatus()})
+	 * @throws CarabiException если сообщение не найдено или отправлено другим пользователем
+	 */
+	public SmsMessage getMessage(UserLogon logon, long id) throws CarabiException {
+		logon.assertAllowed("SMS_SENDING");
+		SmsMessage message = smsQueue.findMessage(id);
+		if (message == null || !(isAuthor(logon, message) || logon.havePermission("ADMINISTRATING-USERS-VIEW"))) {
+			//чужое сообщение не отличается от несуществующего
+			throw new CarabiException("SMS message " + id + " not found");
+		}
+		return message;
+	}
+	
+	private boolean isAuthor(UserLogon logon, SmsMessage message) {
+		return message.getAuthor() != null && message.getAuthor().getId().equals(logon.getUser().getId());
+	}
+	
+	/**
+	 * Периодический опрос очереди: повторные попытки, сообщения, не взятые
+	 * при постановке в очередь, и зависшие отправки.
+	 */
+	@Schedule(second="*/20", minute="*", hour="*", persistent=false)
+	public void pollQueue() {
+		startWorkers(workersCount);
+	}
+	
+	/**
+	 * Запуск потоков отправки, если есть свободные.
+	 * @param count сколько потоков требуется
+	 */
+	private void startWorkers(int count) {
+		for (int i = 0; i < count && !stopped && workers.tryAcquire(); i++) {
+			try {
+				executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							processQueue();
+						} catch (RuntimeException e) {
+							logger.log(Level.SEVERE, "SMS queue processing failed", e);
+						} finally {
+							workers.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				workers.release();
+				logger.log(Level.WARNING, "SMS worker rejected", e);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Отправка сообщений из очереди, пока есть готовые к отправке.
+	 */
+	private void processQueue() {
+		while (!stopped) {
+			List<Long> due = smsQueue.getDueMessages(QUEUE_BATCH);
+			boolean claimed = false;
+			for (Long id: due) {
+				SmsMessage message = smsQueue.claim(id, lease);
+				if (message != null) {
+					claimed = true;
+					deliver(message);
+				}
+			}
+			if (!claimed) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Отправка сообщения через первый шлюз, принявший его.
+	 */
+	private void deliver(SmsMessage message) {
+		StringBuilder errors = new StringBuilder();
+		for (SmsServiceGate gate: serviceGates) {
+			long start = System.nanoTime();
+			try {
+				gate.sendSmsMessage(message.getPhone(), message.getText(), message.getSender());
+				Metrics.histogram("carabi_sms_gate_seconds", "SMS gate request latency", "gate", gate.getName()).recordSince(start);
+				Metrics.counter("carabi_sms_sent_total", "SMS messages accepted by gate", "gate", gate.getName()).increment();
+			} catch (IOException | RuntimeException e) {
+				Metrics.counter("carabi_sms_gate_failures_total", "SMS gate errors", "gate", gate.getName()).increment();
+				logger.log(Level.WARNING, "SMS " + message.getId() + " was not sent by " + gate.getName(), e);
+				errors.append(gate.getName()).append(": ").append(e.getMessage()).append("; ");
+				continue;
+			}
+			//вне try: ошибка записи в базу не должна приводить к повторной отправке через другой шлюз
+			smsQueue.markSent(message.getId(), gate.getName());
+			return;
+		}
+		if (serviceGates.isEmpty()) {
+			errors.append("no SMS gates configured");
+		}
+		String status = smsQueue.markFailed(message.getId(), errors.toString(), maxAttempts, retryDelay);
+		if (SmsMessage.FAILED.equals(status)) {
+			Metrics.counter("carabi_sms_failed_total", "SMS messages failed after all attempts").increment();
+			logger.log(Level.SEVERE, "SMS {0} to {1} failed after {2} attempts", new Object[]{message.getId(), message.getPhone(), message.getAttempts()});
+		}
 	}
 }
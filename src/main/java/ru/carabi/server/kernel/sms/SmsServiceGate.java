@@ -1,9 +1,12 @@
 package ru.carabi.server.kernel.sms;
 
+import java.io.IOException;
 import java.util.ResourceBundle;
 
 /**
  * Обобщённый интерфейс для доступа к сервисам отправки SMS-сообщений.
+ * Реализация создаётся один раз и используется из нескольких потоков
+ * очереди отправки ({@link SmsSenderBean}).
  * @author sasha<kopilov.ad@gmail.com>
  */
 public interface SmsServiceGate {
@@ -20,6 +23,17 @@ public interface SmsServiceGate {
 	 * @param phoneNumber номер телефона без разделителей (обычно 10-значный)
 	 * @param text текст сообщения
 	 * @param sender отправитель (номер или название)
+	 * @throws IOException если сервис недоступен или отказал в отправке
 	 */
-	public void sendSmsMessage(String phoneNumber, String text, String sender);
+	public void sendSmsMessage(String phoneNumber, String text, String sender) throws IOException;
+	
+	/**
+	 * Название шлюза для журналов и статуса сообщений.
+	 */
+	public String getName();
+	
+	/**
+	 * Освободить ресурсы (соединения с сервисом).
+	 */
+	public void close();
 }
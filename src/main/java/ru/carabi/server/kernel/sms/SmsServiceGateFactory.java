@@ -1,8 +1,12 @@
 package ru.carabi.server.kernel.sms;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
 import ru.carabi.server.logging.CarabiLogging;
 
 /**
@@ -16,7 +20,30 @@ public class SmsServiceGateFactory {
 	public static final ResourceBundle smsGatesSettings = ResourceBundle.getBundle("ru.carabi.server.SmsGates");
 	
 	static SmsServiceGate createServiceGate() {
-		String smsServiceGateName = smsGatesSettings.getString("currentSmsServiceGate");
+		return createServiceGate(smsGatesSettings.getString("currentSmsServiceGate"));
+	}
+	
+	/**
+	 * Создание основного шлюза (currentSmsServiceGate) и резервных
+	 * (reserveSmsServiceGates, через запятую) в порядке перебора при отправке.
+	 * Шлюзы, которые не удалось создать, пропускаются.
+	 */
+	static List<SmsServiceGate> createServiceGates() {
+		List<SmsServiceGate> gates = new ArrayList<>();
+		SmsServiceGate mainGate = createServiceGate();
+		if (mainGate != null) {
+			gates.add(mainGate);
+		}
+		for (String gateName: StringUtils.split(getSetting("reserveSmsServiceGates", ""), ", ")) {
+			SmsServiceGate gate = createServiceGate(gateName);
+			if (gate != null) {
+				gates.add(gate);
+			}
+		}
+		return gates;
+	}
+	
+	private static SmsServiceGate createServiceGate(String smsServiceGateName) {
 		try {
 			SmsServiceGate smsServiceGate = (SmsServiceGate) Class.forName(smsServiceGateName).newInstance();
 			smsServiceGate.setProperties(smsGatesSettings);
@@ -27,4 +54,31 @@ public class SmsServiceGateFactory {
 		return null;
 	}
 	
+	/**
+	 * Число потоков, одновременно отправляющих сообщения (smsQueue_workers).
+	 */
+	static int getWorkersCount() {
+		return getIntSetting("smsQueue_workers", 4);
+	}
+	
+	/**
+	 * Необязательная целочисленная настройка.
+	 * @param key ключ в SmsGates.properties
+	 * @param defaultValue значение, если ключ отсутствует или пуст
+	 */
+	static int getIntSetting(String key, int defaultValue) {
+		String value = getSetting(key, "");
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+	
+	private static String getSetting(String key, String defaultValue) {
+		try {
+			return smsGatesSettings.getString(key);
+		} catch (MissingResourceException e) {
+			return defaultValue;
+		}
+	}
 }
@@ -10,7 +10,9 @@ import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
@@ -111,9 +113,26 @@ public abstract class CarabiLogging {
 		context = event.getServletContext();
 		errorLoggers.put(context.getContextPath(), getLogger(CarabiLogging.class, "carabi_errors_log"));
 		statisticsLoggers.put(context.getContextPath(), getLogger(CarabiLogging.class, "carabi_statistics_log"));
+		userLogQueue = new UserLogQueue(Settings.CARABI_LOG_QUEUE_SIZE, new UserLogQueue.Writer() {
+			@Override
+			public void write(List<UserLogQueue.Entry> batch) {
+				writeUserLog(batch);
+			}
+			
+			@Override
+			public void idle() {
+				userLogSinks.closeIdle();
+			}
+		});
 	}
 
 	public static void contextDestroyed(ServletContextEvent sce) {
+		UserLogQueue queue = userLogQueue;
+		userLogQueue = null;
+		if (queue != null) {
+			queue.stop();
+		}
+		userLogSinks.closeAll();
 		for (FileHandler handler: handlers.values()) {
 			for (Logger logger: loggers) {
 				logger.removeHandler(handler);
@@ -164,7 +183,6 @@ public abstract class CarabiLogging {
 	 * @return ID созданного лога
 	 */
 	public static int openUserLog(UserLogon logon, Connection connection) throws SQLException, CarabiException, NamingException {
-		createLoggersIfNotExists(logon);
 		return openDatabaseLog(connection, logon);
 	}
 
@@ -172,17 +190,31 @@ public abstract class CarabiLogging {
 		return -1;//cutted
 	}
 	
-	private static final Map<String, Map<String, Logger>> personalLoggers = new ConcurrentHashMap<>();
-	private static void createLoggersIfNotExists(UserLogon logon) {
-		if (!personalLoggers.containsKey(logon.getToken())) {
-			Map<String, Logger> loggersPerContext = new ConcurrentHashMap<>();
-			personalLoggers.put(logon.getToken(), loggersPerContext);
-		}
+	//Файлы пользовательских журналов (по одному на пользователя, количество открытых ограничено)
+	private static final UserLogSinks userLogSinks = new UserLogSinks(Settings.CARABI_LOGS_LOCATION,
+			Settings.CARABI_LOGS_MAX_OPEN_FILES, Settings.CARABI_LOGS_IDLE_TIMEOUT * 1000L);
+	
+	/**
+	 * Сообщение из {@link #messages}, форматируемое только при записи в журнал.
+	 * @param messageKey ключ сообщения (шаблон для String.format)
+	 * @param arguments аргументы шаблона
+	 * @return объект, метод toString которого возвращает отформатированное сообщение
+	 */
+	public static Object message(final String messageKey, final Object... arguments) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return String.format(messages.getString(messageKey), arguments);
+			}
+		};
 	}
 	
 	public static void log(UserLogon logon, Object context, String message, String details) {
 		log(logon, context.getClass().getName(), message, details, Level.FINE);
 	}
+	public static void log(UserLogon logon, Object context, Object message, Object details) {
+		log(logon, context.getClass().getName(), message, details, Level.FINE);
+	}
 	public static void log(UserLogon logon, Class context, String message, String details) {
 		log(logon, context.getName(), message, details, Level.FINE);
 	}
@@ -207,32 +239,54 @@ public abstract class CarabiLogging {
 	public static void severe(UserLogon logon, String context, String message, String details) {
 		log(logon, context, message, details, Level.SEVERE);
 	}
-	public static void log(UserLogon logon, String context, String message, String details, Level level) {
+	
+	//Фоновая запись пользовательских журналов (null до инициализации контекста и после его закрытия)
+	private static volatile UserLogQueue userLogQueue = null;
+	
+	/**
+	 * Запись в пользовательский журнал.
+	 * Запись ставится в очередь и пишется в файлы и базу фоновым потоком.
+	 * Если очередь заполнена, записи уровня WARNING и выше пишутся сразу, остальные отбрасываются.
+	 * @param logon сессия пользователя
+	 * @param context источник записи (имя класса)
+	 * @param message сообщение (преобразуется в строку при записи)
+	 * @param details подробности (преобразуются в строку при записи)
+	 * @param level уровень записи
+	 */
+	public static void log(UserLogon logon, String context, Object message, Object details, Level level) {
+		UserLogQueue.Entry entry = new UserLogQueue.Entry(logon.getToken(), logon.userLogin(), context, level, message, details);
+		UserLogQueue queue = userLogQueue;
+		if (queue != null && queue.offer(entry)) {
+			return;
+		}
+		if (queue == null || level.intValue() >= Level.WARNING.intValue()) {
+			writeUserLog(Collections.singletonList(entry));
+		}
+	}
+	
+	/**
+	 * Запись пачки записей пользовательских журналов в файлы и базу.
+	 */
+	private static void writeUserLog(List<UserLogQueue.Entry> batch) {
 		if (Settings.WRITE_CARABI_LOGS) {
-			createLoggersIfNotExists(logon);
-			Logger logger;
-			logger = personalLoggers.get(logon.getToken()).get(context);
-			if (logger == null) {
-				logger = getLogger(context);
-				addHandler(logger, getLogonLogLocation(logon));
-				personalLoggers.get(logon.getToken()).put(context, logger);
+			for (UserLogQueue.Entry entry: batch) {
+				LogRecord record = new LogRecord(entry.level, "{0} | {1} | {2}");
+				record.setParameters(new Object[]{entry.token, entry.message, entry.details});
+				record.setMillis(entry.millis);
+				record.setSourceClassName(entry.context);
+				record.setSourceMethodName("log");
+				userLogSinks.write(entry.login, formatter.format(record));
 			}
-			logger.log(level, "{0} | {1}", new Object[]{message, details});
+			userLogSinks.flush();
 		}
-		
-		logToDatabase(logon, message, details);
+		logToDatabase(batch);
 	}
 
-	private static void logToDatabase(UserLogon logon, String message, String details) {
+	private static void logToDatabase(List<UserLogQueue.Entry> batch) {
 		//cutted
 	}
 	
-	private static String getLogonLogLocation(UserLogon logon) {
-		return Settings.CARABI_LOGS_LOCATION + "/" + logon.userLogin() + "/" + logon.getToken();
-	}
-	
 	public static void closeUserLog(UserLogon logon) throws SQLException {
-		personalLoggers.remove(logon.getToken());
 		if (logon.getExternalId() >= 0) {
 			Connection connection = logon.getMasterConnection();
 			closeDatabaseLog(connection, logon);
@@ -0,0 +1,404 @@
+package ru.carabi.server.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Счётчики, показатели и гистограммы задержек сервера.
+ * <p>
+ * Метрики регистрируются по имени и меткам ({@link #counter}, {@link #histogram},
+ * {@link #gauge}) и хранятся до остановки приложения. Запись не требует блокировок:
+ * счётчики разбиты на несколько ячеек по потокам, гистограмма хранит число значений
+ * в логарифмических интервалах (16 интервалов на каждое удвоение: ширина интервала --
+ * не более 6,25% его нижней границы), как HdrHistogram. Квантили выдаются по верхней
+ * границе интервала, т.е. завышены не более чем на 6,25%. Объект метрики следует получать один раз и сохранять в поле,
+ * если метки не меняются.
+ * <p>
+ * Выгрузка -- в текстовом формате Prometheus ({@link #toPrometheus()}) и в JSON
+ * ({@link #toJson()}).
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+public final class Metrics {
+	private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+	//Ограничение числа рядов -- защита от неограниченного роста при ошибочных метках
+	private static final int SERIES_LIMIT = 2000;
+	//Число ячеек счётчиков (степень двойки) и шаг между ними (разные строки кеша процессора)
+	private static final int STRIPES = 8;
+	private static final int PADDING = 8;
+
+	private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+	private static final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+	private static final AtomicLong rejectedSeries = new AtomicLong();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Значение, вычисляемое при выгрузке (размер очереди, число сессий и т.п.).
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	private enum Type {
+		COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+		final String prometheusName;
+
+		private Type(String prometheusName) {
+			this.prometheusName = prometheusName;
+		}
+	}
+
+	private static class Family {
+		final String name;
+		final String help;
+		final Type type;
+		//метки -> метрика
+		final Map<String, Object> members = new ConcurrentSkipListMap<>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	/**
+	 * Монотонно возрастающий счётчик.
+	 */
+	public static final class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		public void increment() {
+			add(1);
+		}
+
+		public void add(long delta) {
+			cells.getAndAdd(stripe() * PADDING, delta);
+		}
+
+		public long get() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Гистограмма длительностей (хранятся в микросекундах, выгружаются в секундах).
+	 */
+	public static final class Histogram {
+		//Значения меньше 16 мкс -- по одному на интервал, далее по 16 интервалов на удвоение до 2^40 мкс
+		private static final int SUB_BUCKETS = 16;
+		private static final int MAX_EXPONENT = 40;
+		private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+		private static final double[] PROMETHEUS_BOUNDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+		private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+		private final AtomicLongArray sums = new AtomicLongArray(STRIPES * PADDING);
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Запись длительности.
+		 * @param nanos длительность в наносекундах (разность {@link System#nanoTime()})
+		 */
+		public void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int stripe = stripe();
+			counts.getAndIncrement(stripe * BUCKETS + bucket(micros));
+			sums.getAndAdd(stripe * PADDING, micros);
+			long currentMax = max.get();
+			while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+				currentMax = max.get();
+			}
+		}
+
+		/**
+		 * Запись длительности с заданного момента до текущего.
+		 * @param startNanos значение {@link System#nanoTime()} в начале операции
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		static int bucket(long micros) {
+			if (micros < SUB_BUCKETS) {
+				return (int) micros;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			if (exponent > MAX_EXPONENT) {
+				return BUCKETS - 1;
+			}
+			int sub = (int) (micros >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+			return SUB_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Верхняя граница интервала (не включая).
+		 */
+		static long bucketUpperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket + 1;
+			}
+			int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 4;
+			int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return (long) (SUB_BUCKETS + sub + 1) << (exponent - 4);
+		}
+
+		private long[] snapshot() {
+			long[] snapshot = new long[BUCKETS];
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				for (int i = 0; i < BUCKETS; i++) {
+					snapshot[i] += counts.get(stripe * BUCKETS + i);
+				}
+			}
+			return snapshot;
+		}
+
+		private long sumMicros() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += sums.get(i * PADDING);
+			}
+			return sum;
+		}
+
+		private static long percentile(long[] snapshot, long total, double fraction) {
+			long rank = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				seen += snapshot[i];
+				if (seen >= rank && snapshot[i] > 0) {
+					return bucketUpperBound(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Сводка: число значений, среднее, процентили и максимум (в микросекундах).
+		 */
+		public JsonObject toJson() {
+			long[] snapshot = snapshot();
+			long total = 0;
+			for (long count: snapshot) {
+				total += count;
+			}
+			JsonObjectBuilder result = Json.createObjectBuilder();
+			result.add("count", total);
+			result.add("meanMicros", total == 0 ? 0 : sumMicros() / total);
+			result.add("p50Micros", percentile(snapshot, total, 0.5));
+			result.add("p90Micros", percentile(snapshot, total, 0.9));
+			result.add("p99Micros", percentile(snapshot, total, 0.99));
+			result.add("p999Micros", percentile(snapshot, total, 0.999));
+			result.add("maxMicros", max.get());
+			return result.build();
+		}
+
+		private void writePrometheus(StringBuilder out, String name, String labels) {
+			long[] snapshot = snapshot();
+			long cumulative = 0;
+			int bucket = 0;
+			for (double bound: PROMETHEUS_BOUNDS) {
+				long boundMicros = (long) (bound * 1000000);
+				//интервалы, целиком лежащие ниже границы
+				while (bucket < BUCKETS && bucketUpperBound(bucket) <= boundMicros) {
+					cumulative += snapshot[bucket++];
+				}
+				writeSample(out, name + "_bucket", withLabel(labels, "le", Double.toString(bound)), cumulative);
+			}
+			while (bucket < BUCKETS) {
+				cumulative += snapshot[bucket++];
+			}
+			writeSample(out, name + "_bucket", withLabel(labels, "le", "+Inf"), cumulative);
+			out.append(name).append("_sum").append(labels).append(' ').append(sumMicros() / 1000000.0).append('\n');
+			writeSample(out, name + "_count", labels, cumulative);
+		}
+	}
+
+	/**
+	 * Получение (при первом обращении -- создание) счётчика.
+	 * @param name имя в формате Prometheus, например carabi_chat_messages_total
+	 * @param help описание
+	 * @param labels пары "имя метки", "значение"
+	 */
+	public static Counter counter(String name, String help, String... labels) {
+		return register(name, help, Type.COUNTER, labels, new Counter());
+	}
+
+	/**
+	 * Получение (при первом обращении -- создание) гистограммы длительностей.
+	 * @param name имя в формате Prometheus, например carabi_request_seconds
+	 * @param help описание
+	 * @param labels пары "имя метки", "значение"
+	 */
+	public static Histogram histogram(String name, String help, String... labels) {
+		return register(name, help, Type.HISTOGRAM, labels, new Histogram());
+	}
+
+	/**
+	 * Регистрация показателя. Повторная регистрация с теми же метками заменяет прежний.
+	 * @param name имя в формате Prometheus
+	 * @param help описание
+	 * @param gauge источник значения (вызывается при выгрузке)
+	 * @param labels пары "имя метки", "значение"
+	 */
+	public static void gauge(String name, String help, Gauge gauge, String... labels) {
+		Family family = family(name, help, Type.GAUGE);
+		if (family != null) {
+			family.members.put(formatLabels(labels), gauge);
+		}
+	}
+
+	/**
+	 * Регистрация счётчика, значение которого хранится в другом месте
+	 * (например, статистика {@link ru.carabi.server.kernel.BoundedCache}).
+	 * Повторная регистрация с теми же метками заменяет прежний.
+	 * @param name имя в формате Prometheus
+	 * @param help описание
+	 * @param source источник значения (вызывается при выгрузке)
+	 * @param labels пары "имя метки", "значение"
+	 */
+	public static void counter(String name, String help, Gauge source, String... labels) {
+		Family family = family(name, help, Type.COUNTER);
+		if (family != null) {
+			family.members.put(formatLabels(labels), source);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T register(String name, String help, Type type, String[] labels, T created) {
+		String labelsText = formatLabels(labels);
+		String key = name + labelsText;
+		Object existing = series.get(key);
+		if (existing != null) {
+			return (T) existing;
+		}
+		Family family = family(name, help, type);
+		if (family == null || series.size() >= SERIES_LIMIT) {
+			//метрика работает, но не выгружается
+			if (rejectedSeries.getAndIncrement() == 0) {
+				logger.log(Level.WARNING, "Metric {0} is not registered: wrong type or too many series", key);
+			}
+			return created;
+		}
+		existing = series.putIfAbsent(key, created);
+		if (existing != null) {
+			return (T) existing;
+		}
+		family.members.put(labelsText, created);
+		return created;
+	}
+
+	private static Family family(String name, String help, Type type) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		return family.type == type ? family : null;
+	}
+
+	private static String formatLabels(String[] labels) {
+		if (labels.length == 0) {
+			return "";
+		}
+		StringBuilder result = new StringBuilder("{");
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0) {
+				result.append(',');
+			}
+			result.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		return result.append('}').toString();
+	}
+
+	private static String withLabel(String labels, String name, String value) {
+		String label = name + "=\"" + value + "\"";
+		if (labels.isEmpty()) {
+			return "{" + label + "}";
+		}
+		return labels.substring(0, labels.length() - 1) + "," + label + "}";
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static void writeSample(StringBuilder out, String name, String labels, long value) {
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static long gaugeValue(Gauge gauge) {
+		try {
+			return gauge.value();
+		} catch (RuntimeException e) {
+			logger.log(Level.FINE, "Gauge failed", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Выгрузка всех метрик в текстовом формате Prometheus (version 0.0.4).
+	 */
+	public static String toPrometheus() {
+		StringBuilder out = new StringBuilder(8192);
+		for (Family family: families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help.replace("\n", " ")).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type.prometheusName).append('\n');
+			for (Map.Entry<String, Object> member: family.members.entrySet()) {
+				Object metric = member.getValue();
+				if (metric instanceof Counter) {
+					writeSample(out, family.name, member.getKey(), ((Counter) metric).get());
+				} else if (metric instanceof Gauge) {
+					writeSample(out, family.name, member.getKey(), gaugeValue((Gauge) metric));
+				} else {
+					((Histogram) metric).writePrometheus(out, family.name, member.getKey());
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Выгрузка всех метрик в JSON: имя ряда (с метками) -> значение или сводка гистограммы.
+	 */
+	public static JsonObject toJson() {
+		JsonObjectBuilder result = Json.createObjectBuilder();
+		for (Family family: families.values()) {
+			for (Map.Entry<String, Object> member: family.members.entrySet()) {
+				String key = family.name + member.getKey();
+				Object metric = member.getValue();
+				if (metric instanceof Counter) {
+					result.add(key, ((Counter) metric).get());
+				} else if (metric instanceof Gauge) {
+					result.add(key, gaugeValue((Gauge) metric));
+				} else {
+					result.add(key, ((Histogram) metric).toJson());
+				}
+			}
+		}
+		return result.build();
+	}
+}
@@ -0,0 +1,151 @@
+package ru.carabi.server.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Очередь записей пользовательских журналов с фоновой записью.
+ * Вызывающий поток только кладёт запись в неблокирующую очередь ограниченного объёма,
+ * форматирование и запись в файлы и базу выполняются фоновым потоком пачками.
+ * Если очередь заполнена, {@link #offer(Entry)} возвращает false -- решение
+ * (отбросить запись или записать её синхронно) принимает вызывающий код.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+class UserLogQueue implements Runnable {
+	private static final Logger logger = Logger.getLogger(UserLogQueue.class.getName());
+	private static final int BATCH_SIZE = 256;
+	private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/**
+	 * Запись журнала. Сообщение и подробности преобразуются в строку (toString)
+	 * только при записи.
+	 */
+	static class Entry {
+		final String token;
+		final String login;
+		final String context;
+		final Level level;
+		final Object message;
+		final Object details;
+		final long millis = System.currentTimeMillis();
+
+		Entry(String token, String login, String context, Level level, Object message, Object details) {
+			this.token = token;
+			this.login = login;
+			this.context = context;
+			this.level = level;
+			this.message = message;
+			this.details = details;
+		}
+	}
+
+	/**
+	 * Запись пачки записей в журналы.
+	 */
+	interface Writer {
+		void write(List<Entry> batch);
+
+		/**
+		 * Вызывается, когда очередь пуста (для закрытия неиспользуемых файлов и т.п.).
+		 */
+		void idle();
+	}
+
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final int capacity;
+	private final Writer writer;
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	/**
+	 * @param capacity максимальное количество записей в очереди
+	 * @param writer обработчик пачек записей
+	 */
+	UserLogQueue(int capacity, Writer writer) {
+		this.capacity = capacity;
+		this.writer = writer;
+		thread = new Thread(this, "carabi-user-log-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Постановка записи в очередь.
+	 * @param entry запись
+	 * @return false, если очередь заполнена или остановлена и запись не принята
+	 */
+	boolean offer(Entry entry) {
+		if (!running) {
+			return false;
+		}
+		int newSize = size.incrementAndGet();
+		if (newSize > capacity) {
+			size.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		queue.offer(entry);
+		if (newSize == BATCH_SIZE) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (running || !queue.isEmpty()) {
+			List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+			Entry entry;
+			while (batch.size() < BATCH_SIZE && (entry = queue.poll()) != null) {
+				batch.add(entry);
+			}
+			if (batch.isEmpty()) {
+				reportDropped();
+				try {
+					writer.idle();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "user logs maintenance failed", e);
+				}
+				LockSupport.parkNanos(this, FLUSH_INTERVAL);
+				continue;
+			}
+			size.addAndGet(-batch.size());
+			try {
+				writer.write(batch);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "writing user logs failed", e);
+			}
+		}
+		reportDropped();
+	}
+
+	private void reportDropped() {
+		long droppedCount = dropped.getAndSet(0);
+		if (droppedCount > 0) {
+			logger.log(Level.WARNING, "{0} user log records dropped: queue is full", droppedCount);
+		}
+	}
+
+	/**
+	 * Остановка с дописыванием записей, оставшихся в очереди.
+	 */
+	void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package ru.carabi.server.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Открытые файлы пользовательских журналов.
+ * Журнал ведётся на пользователя (а не на сессию) в каталоге
+ * CARABI_LOGS_LOCATION/логин, файлы ротируются по размеру.
+ * Количество одновременно открытых файлов ограничено: при превышении закрывается
+ * давно не использованный, также закрываются файлы, в которые долго не писали.
+ * Закрытый файл при следующей записи открывается заново на дописывание.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+class UserLogSinks {
+	private static final Logger logger = Logger.getLogger(UserLogSinks.class.getName());
+	private static final String FILE_NAME = "carabi.log";
+	private static final long FILE_LIMIT = 1024 * 1024;
+	private static final int FILE_COUNT = 10;
+
+	/**
+	 * Открытый файл журнала одного пользователя.
+	 */
+	private static class Sink {
+		private final File file;
+		private OutputStream output;
+		//размер файла в байтах
+		private long size;
+		private long lastUsed;
+
+		Sink(File file) throws IOException {
+			this.file = file;
+			file.getParentFile().mkdirs();
+			open();
+		}
+
+		private void open() throws IOException {
+			size = file.length();
+			output = new BufferedOutputStream(new FileOutputStream(file, true));
+		}
+
+		void write(String text) throws IOException {
+			if (size >= FILE_LIMIT) {
+				rotate();
+			}
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			output.write(bytes);
+			size += bytes.length;
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Сдвиг архивных файлов (carabi.log.1 -> carabi.log.2 и т.д.) и начало нового.
+		 */
+		private void rotate() throws IOException {
+			output.close();
+			String path = file.getPath();
+			new File(path + "." + (FILE_COUNT - 1)).delete();
+			for (int i = FILE_COUNT - 2; i >= 1; i--) {
+				new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+			}
+			file.renameTo(new File(path + ".1"));
+			open();
+		}
+
+		void flush() throws IOException {
+			output.flush();
+		}
+
+		void close() {
+			try {
+				output.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "closing " + file, e);
+			}
+		}
+	}
+
+	private final String location;
+	private final int maxOpen;
+	private final long idleTimeout;
+	//Открытые файлы в порядке использования: логин -> файл
+	private final LinkedHashMap<String, Sink> sinks = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * @param location корневой каталог пользовательских журналов
+	 * @param maxOpen максимальное количество одновременно открытых файлов
+	 * @param idleTimeout время в миллисекундах, после которого неиспользуемый файл закрывается
+	 */
+	UserLogSinks(String location, int maxOpen, long idleTimeout) {
+		this.location = location;
+		this.maxOpen = Math.max(1, maxOpen);
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Запись в журнал пользователя (без сброса буфера, см. {@link #flush()}).
+	 * @param login логин пользователя
+	 * @param text отформатированная запись
+	 */
+	synchronized void write(String login, String text) {
+		Sink sink = sinks.get(login);
+		try {
+			if (sink == null) {
+				sink = new Sink(new File(location + "/" + login + "/" + FILE_NAME));
+				sinks.put(login, sink);
+				closeEldest();
+			}
+			sink.write(text);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not write user log for " + login, e);
+			if (sink != null) {
+				sink.close();
+				sinks.remove(login);
+			}
+		}
+	}
+
+	/**
+	 * Сброс буферов всех открытых файлов на диск.
+	 */
+	synchronized void flush() {
+		for (Sink sink: sinks.values()) {
+			try {
+				sink.flush();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "could not flush " + sink.file, e);
+			}
+		}
+	}
+
+	/**
+	 * Закрытие файлов, в которые не писали дольше заданного времени.
+	 */
+	synchronized void closeIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Sink> iterator = sinks.values().iterator();
+		while (iterator.hasNext()) {
+			Sink sink = iterator.next();
+			if (now - sink.lastUsed <= idleTimeout) {
+				//Далее только более свежие
+				break;
+			}
+			sink.close();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Закрытие всех файлов.
+	 */
+	synchronized void closeAll() {
+		List<Sink> opened = new ArrayList<>(sinks.values());
+		sinks.clear();
+		for (Sink sink: opened) {
+			sink.close();
+		}
+	}
+
+	private void closeEldest() {
+		Iterator<Map.Entry<String, Sink>> iterator = sinks.entrySet().iterator();
+		while (sinks.size() > maxOpen && iterator.hasNext()) {
+			iterator.next().getValue().close();
+			iterator.remove();
+		}
+	}
+}
@@ -28,6 +28,7 @@ import ru.carabi.server.entities.ConnectionSchema;
 import ru.carabi.server.UserLogon;
 import ru.carabi.server.kernel.GuestBean;
 import ru.carabi.server.kernel.UsersControllerBean;
+import ru.carabi.server.kernel.UsersSearchIndex;
 import ru.carabi.server.kernel.EventerBean;
 
 /**
@@ -45,6 +46,8 @@ public class Authorize {
 	private EventerBean eventer;
 	@EJB
 	private UsersControllerBean usersController;
+	@EJB
+	private UsersSearchIndex usersSearchIndex;
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	private EntityManager em;
 	@Context
@@ -93,6 +96,8 @@ public class Authorize {
 				
 				user.setAllowedSchemas(allowedSchemas);
 				user = em.merge(user);
+				em.flush();
+				usersSearchIndex.put(user);
 			}
 			Holder<String> gettingToken = new Holder();
 			guest.registerUserLight(user, password, "RestService", requireSession, false, getConnectionProperties(clientIp), new Holder(schemaName), gettingToken);
@@ -0,0 +1,97 @@
+package ru.carabi.server.rest;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.EJB;
+import javax.enterprise.context.RequestScoped;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.xml.ws.Holder;
+import ru.carabi.server.CarabiException;
+import ru.carabi.server.RegisterException;
+import ru.carabi.server.UserLogon;
+import ru.carabi.server.Utls;
+import ru.carabi.server.kernel.UsersControllerBean;
+import ru.carabi.server.kernel.oracle.BinaryRows;
+import ru.carabi.server.kernel.oracle.CursorFetcherBean;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Чтение строк из прокрутки (аналог {@link ru.carabi.server.soap.QueryService#fetchNext}).
+ * Вызывается по URL
+ * <pre>{адрес сервера}/webresources/fetch_next?token=...&amp;query_tag=...&amp;start_pos=...&amp;fetch_count=...</pre>
+ * Формат ответа выбирается по заголовку Accept:
+ * <ul>
+ * <li>application/json (по умолчанию) &mdash; объект с полями result, endpos и list;</li>
+ * <li>{@value BinaryRows#MEDIA_TYPE} &mdash; строки в двоичном формате {@link BinaryRows},
+ * result и endpos передаются в заголовках X-Carabi-Fetch-Result и X-Carabi-Endpos.
+ * Параметр dictionary=false отключает словарь строк.</li>
+ * </ul>
+ *
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Path("fetch_next")
+@RequestScoped
+public class FetchNext {
+	private static final Logger logger = CarabiLogging.getLogger(FetchNext.class);
+
+	@EJB private UsersControllerBean uc;
+	@EJB private CursorFetcherBean cursorFetcher;
+
+	@GET
+	@Produces("application/json")
+	public JsonObject fetchNextJson(
+			@QueryParam("token") String token,
+			@QueryParam("query_tag") int queryTag,
+			@QueryParam("start_pos") int startPos,
+			@QueryParam("fetch_count") int fetchCount
+		) {
+		Holder<ArrayList<ArrayList<?>>> list = new Holder<>();
+		Holder<Integer> endpos = new Holder<>();
+		int result = fetchNext(token, queryTag, startPos, fetchCount, list, endpos);
+		return Json.createObjectBuilder()
+				.add("result", result)
+				.add("endpos", endpos.value == null ? startPos : endpos.value)
+				.add("list", Utls.listToJson(list.value))
+				.build();
+	}
+
+	@GET
+	@Produces(BinaryRows.MEDIA_TYPE + ";qs=0.9")
+	public Response fetchNextBinary(
+			@QueryParam("token") String token,
+			@QueryParam("query_tag") int queryTag,
+			@QueryParam("start_pos") int startPos,
+			@QueryParam("fetch_count") int fetchCount,
+			@DefaultValue("true") @QueryParam("dictionary") boolean dictionary
+		) {
+		Holder<ArrayList<ArrayList<?>>> list = new Holder<>();
+		Holder<Integer> endpos = new Holder<>();
+		int result = fetchNext(token, queryTag, startPos, fetchCount, list, endpos);
+		byte[] data = BinaryRows.encode(list.value == null ? new ArrayList<ArrayList<?>>() : list.value, dictionary);
+		return Response.ok(data, BinaryRows.MEDIA_TYPE)
+				.header("X-Carabi-Fetch-Result", result)
+				.header("X-Carabi-Endpos", endpos.value == null ? startPos : endpos.value)
+				.build();
+	}
+
+	private int fetchNext(String token, int queryTag, int startPos, int fetchCount, Holder<ArrayList<ArrayList<?>>> list, Holder<Integer> endpos) {
+		try (UserLogon logon = uc.tokenAuthorize(token)) {
+			return cursorFetcher.fetchNext(logon, queryTag, startPos, fetchCount, list, endpos);
+		} catch (RegisterException ex) {
+			logger.log(Level.INFO, null, ex);
+			throw new RestException("unknown user or token", Response.Status.UNAUTHORIZED);
+		} catch (CarabiException | SQLException ex) {
+			logger.log(Level.SEVERE, null, ex);
+			throw new RestException(ex.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package ru.carabi.server.rest;
+
+import javax.ejb.EJB;
+import javax.enterprise.context.RequestScoped;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import ru.carabi.server.kernel.MonitorBean;
+
+/**
+ * Выгрузка показателей производительности для Prometheus.
+ * Вызывается по URL 
+ * <pre>{адрес сервера}/webresources/metrics</pre>
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Path("metrics")
+@RequestScoped
+public class Metrics {
+	@EJB private MonitorBean monitor;
+	
+	/**
+	 * Показатели в текстовом формате Prometheus (версия 0.0.4).
+	 */
+	@GET
+	@Produces("text/plain; version=0.0.4; charset=utf-8")
+	public String getMetrics() {
+		return monitor.getMetricsText();
+	}
+}
@@ -0,0 +1,37 @@
+package ru.carabi.server.rest;
+
+import javax.ejb.EJB;
+import javax.enterprise.context.RequestScoped;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import ru.carabi.server.kernel.PushBean;
+
+/**
+ * Приём событий, пересланных другими серверами, для WebSocket-клиентов
+ * данного сервера. Вызывается из {@link PushBean#forward}, тело запроса
+ * подписывается общим ключом серверов.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@Path("push_event")
+@RequestScoped
+public class PushEvent {
+	
+	@EJB private PushBean pushBean;
+	
+	@POST
+	@Consumes("application/json")
+	@Produces("text/plain")
+	public String pushEvent(
+			@HeaderParam(PushBean.SIGNATURE_HEADER) String signature,
+			String body
+		) {
+		if (!pushBean.acceptForwarded(body, signature)) {
+			throw new RestException("bad signature or stale event", Response.Status.FORBIDDEN);
+		}
+		return "Event sent";
+	}
+}
@@ -83,7 +83,7 @@ public class RunStoredQuery {
 				Holder<String> schemaHolder = new Holder<>();
 				schemaHolder.value = schema;
 				Holder<String> tokenTmp = new Holder<>();
-				guest.registerUserLight(user, passwordHash, "Temporary session (run stored query REST)", false, true, new Properties(), schemaHolder, tokenTmp);
+				guest.registerUserStateless(user, passwordHash, "Temporary session (run stored query REST)", true, new Properties(), schemaHolder, tokenTmp);
 				token = tokenTmp.value;
 				temporarySession = true;
 			}
@@ -125,7 +125,7 @@ public class RunStoredQuery {
 			return result.build();
 		} finally {
 			if (temporarySession) {
-				usersController.removeUserLogon(token, true);
+				usersController.removeTemporaryLogon(token);
 			}
 		}
 	}
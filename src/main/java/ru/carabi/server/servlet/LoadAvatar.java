@@ -3,6 +3,8 @@ package ru.carabi.server.servlet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.Iterator;
 import java.util.List;
@@ -29,6 +31,7 @@ import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.entities.FileOnServer;
 import ru.carabi.server.kernel.AdminBean;
 import ru.carabi.server.kernel.FileStorage;
+import ru.carabi.server.kernel.ImagesCache;
 import ru.carabi.server.kernel.ImagesBean;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.logging.CarabiLogging;
@@ -36,6 +39,8 @@ import ru.carabi.server.rest.RestException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.FileUploadException;
 
@@ -59,6 +64,7 @@ public class LoadAvatar extends HttpServlet {
 	@EJB private UsersControllerBean uc;
 	@EJB private AdminBean admin;
 	@EJB private ImagesBean imagesBean;
+	@EJB private ImagesCache imagesCache;
 
 	/**
 	 * Обработка метода GET. Возвращает аватар.
@@ -85,31 +91,31 @@ public class LoadAvatar extends HttpServlet {
 			if (StringUtils.isEmpty(login)) {
 				login = logon.getUser().getLogin();
 			}
-			CarabiUser findUser = null;
-			try {
-				findUser = uc.findUser(login);
-			} catch (CarabiException e) {
-				sendError(response, HttpServletResponse.SC_NOT_FOUND, "user not found");
-				return;
-			}
-			FileOnServer file = findUser.getAvatar();
-			if (file == null) {
-				sendError(response, HttpServletResponse.SC_NOT_FOUND, "no avatar for that user");
-				return;
-			}
-			logger.log(Level.INFO, "getScaledAvatar {0}x{1}", new Object[]{width, height});
-			file = getScaledAvatar(logon, file, width, height);
-			//etag -- идентификатор совпадения контента
-			String etag = "avatar_" + file.getId();
-			if (width > 0 || height > 0) {
-				if (width > 0) {
-					etag += ("_w" + width);
+			//приводим размер к стандартному, чтобы не плодить миниатюры и записи в кеше
+			int[] size = ImagesBean.snapToLadder(width, height);
+			width = size[0];
+			height = size[1];
+			//данные о файле и ETag -- из индекса или из базы
+			ImagesCache.CachedImage image = imagesCache.getAvatar(login, width, height);
+			if (image == null) {
+				CarabiUser findUser = null;
+				try {
+					findUser = uc.findUser(login);
+				} catch (CarabiException e) {
+					sendError(response, HttpServletResponse.SC_NOT_FOUND, "user not found");
+					return;
 				}
-				if (height > 0) {
-					etag += ("_h" + height);
+				FileOnServer original = findUser.getAvatar();
+				if (original == null) {
+					sendError(response, HttpServletResponse.SC_NOT_FOUND, "no avatar for that user");
+					return;
 				}
-				etag += ("_thumb" + file.getId());
+				logger.log(Level.INFO, "getScaledAvatar {0}x{1}", new Object[]{width, height});
+				FileOnServer file = getScaledAvatar(logon, original, width, height);
+				image = imagesCache.putAvatar(login, width, height, original, file, makeEtag(file, width, height));
 			}
+			FileOnServer file = image.getFile();
+			String etag = image.getEtag();
 			response.setHeader("Filename-Base64", DatatypeConverter.printBase64Binary(file.getName().getBytes("UTF-8")));
 			response.setHeader("Content-Type", file.getMimeType());
 			response.setHeader("ETag", etag);
@@ -118,6 +124,20 @@ public class LoadAvatar extends HttpServlet {
 				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
 				return;
 			}
+			//горячие аватары отдаются из памяти
+			byte[] content = imagesCache.getContent(image);
+			if (content == null && Settings.getCurrentServer().equals(Settings.getMasterServer()) && imagesCache.isCacheable(file.getContentLength())) {
+				content = Files.readAllBytes(Paths.get(file.getContentAddress()));
+				imagesCache.putContent(image, content);
+			}
+			if (content != null) {
+				response.setHeader("Content-Length", "" + content.length);
+				try (OutputStream outputStream = response.getOutputStream()) {
+					outputStream.write(content);
+					outputStream.flush();
+				}
+				return;
+			}
 			response.setHeader("Content-Length", "" +file.getContentLength());
 			//передача клиенту (чтение или проксирование)
 			try (FileStreamer fileStreamer = FileStreamer.makeFileStreamer(Settings.getMasterServer(), null, file, token, request, urlPattern, null)) {
@@ -152,6 +172,26 @@ public class LoadAvatar extends HttpServlet {
 		}
 	}
 
+	/**
+	 * ETag -- идентификатор совпадения контента.
+	 * @param file отдаваемый файл (оригинал или миниатюра)
+	 * @param width требуемая ширина
+	 * @param height требуемая высота
+	 */
+	private String makeEtag(FileOnServer file, int width, int height) {
+		String etag = "avatar_" + file.getId();
+		if (width > 0 || height > 0) {
+			if (width > 0) {
+				etag += ("_w" + width);
+			}
+			if (height > 0) {
+				etag += ("_h" + height);
+			}
+			etag += ("_thumb" + file.getId());
+		}
+		return etag;
+	}
+
 	private int parceIntParam(HttpServletRequest request, HttpServletResponse response, int defaultValue, String... paramName) throws IOException {
 		int value = defaultValue;
 		String valueStr = request.getParameter(paramName[0]);
@@ -201,20 +241,15 @@ public class LoadAvatar extends HttpServlet {
 			InputStream inputStream;
 			boolean isMultipartContent = ServletFileUpload.isMultipartContent(request);
 			if (isMultipartContent) {
-				FileItemFactory factory = new DiskFileItemFactory();
-				ServletFileUpload upload = new ServletFileUpload(factory);
-				List<FileItem> fields = upload.parseRequest(request);
-				Iterator<FileItem> it = fields.iterator();
-				if (!it.hasNext()) {
-					//No fields found;
-					return;
-				}
+				//потоковый разбор -- файл пишется сразу на место, без временной копии
+				ServletFileUpload upload = new ServletFileUpload();
+				FileItemIterator it = upload.getItemIterator(request);
 				while (it.hasNext()) {
-					FileItem fileItem = it.next();
-					boolean isFormField = fileItem.isFormField();
-					if (!isFormField) {
-						inputStream = fileItem.getInputStream();
-						uploadAvatar(inputStream, streamer, response);
+					FileItemStream fileItem = it.next();
+					if (!fileItem.isFormField()) {
+						try (InputStream itemStream = fileItem.openStream()) {
+							uploadAvatar(itemStream, streamer, response);
+						}
 						return;
 					}
 				}
@@ -248,7 +283,9 @@ public class LoadAvatar extends HttpServlet {
 			}
 			@Override
 			public FileOnServer updateFileMetadata(FileOnServer fileMetadata) {
-				return admin.refreshAvatar(fileMetadata);
+				FileOnServer avatar = admin.refreshAvatar(fileMetadata);
+				imagesBean.createStandardThumbnails(avatar, true);
+				return avatar;
 			}
 		};
 	}
@@ -335,6 +372,7 @@ public class LoadAvatar extends HttpServlet {
 			//Отправляем файл по назначению
 			CarabiAppServer targetServer = Settings.getMasterServer();
 			Long avatarId = handleAvatar(logon, targetServer, user, request, inputStream, CarabiFunc.encrypt(token));
+			imagesCache.removeAvatar(user.getLogin());
 			response.getWriter().print(0);
 		} catch (RegisterException e) {
 			sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "Unknown token");
@@ -4,10 +4,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
 import javax.ejb.EJB;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
 import javax.mail.internet.MimeUtility;
 import javax.servlet.ServletException;
@@ -17,10 +28,11 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.ws.Holder;
 import org.apache.commons.lang3.StringUtils;
 import ru.carabi.libs.CarabiFunc;
 import ru.carabi.server.CarabiException;
+import ru.carabi.server.ChunkedUpload;
+import ru.carabi.server.FanOutWriter;
 import ru.carabi.server.FileStreamer;
 import ru.carabi.server.RegisterException;
 import ru.carabi.server.Settings;
@@ -31,7 +43,9 @@ import ru.carabi.server.entities.CarabiUser;
 import ru.carabi.server.entities.ChatMessage;
 import ru.carabi.server.entities.FileOnServer;
 import ru.carabi.server.kernel.ChatBean;
+import ru.carabi.server.kernel.ChunkedUploadsBean;
 import ru.carabi.server.kernel.FileStorage;
+import ru.carabi.server.kernel.ImagesBean;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.logging.CarabiLogging;
 import ru.carabi.server.rest.RestException;
@@ -46,6 +60,16 @@ import ru.carabi.server.rest.RestException;
  * <code>{адрес сервера}/load_chat_attach?token_sender={токен отправителя}&login_receiver={логин получателя}</code>.
  * Имя файла можно передать в параметре filename или заголовке Filename-Base64.
  * В теле POST-запроса передать загружаемый файл.
+ * <br/>
+ * Большие файлы можно отправлять частями с докачкой ({@link ChunkedUpload}):
+ * <ol>
+ * <li>POST <code>?upload=init&token_sender=...&login_receiver=...&filename=...&length={полный размер}</code>
+ * (плюс необязательные save_sent и comment) -- возвращает <code>{"upload_id": ..., "offset": 0}</code>;
+ * <li>PUT <code>?token_sender=...&upload_id=...&offset={смещение}</code> с частью файла в теле и
+ * необязательным заголовком Chunk-CRC32 -- возвращает новое смещение;
+ * <li>GET <code>?token_sender=...&upload_id=...</code> -- текущее смещение для продолжения после обрыва;
+ * <li>POST <code>?upload=commit&token_sender=...&upload_id=...</code> -- отправка сообщения, возвращает его id.
+ * </ol>
  * @author sasha<kopilov.ad@gmail.com>
  */
 @WebServlet(name = "LoadChatAttach", urlPatterns = {"/load_chat_attach"}, asyncSupported = true)
@@ -55,6 +79,9 @@ public class LoadChatAttach extends HttpServlet {
 
 	@EJB private UsersControllerBean uc;
 	@EJB private ChatBean chatBean;
+	@EJB private ImagesBean imagesBean;
+	@EJB private ChunkedUploadsBean uploads;
+	@Resource private ManagedExecutorService executor;
 
 	/**
 	 * Обработка метода GET. Возвращает вложение из чата.
@@ -64,6 +91,15 @@ public class LoadChatAttach extends HttpServlet {
 	 */
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getParameter("upload_id") != null) {
+			ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), getUploadToken(request));
+			if (upload == null) {
+				sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+				return;
+			}
+			sendUploadState(response, upload, null);
+			return;
+		}
 		String token = request.getParameter("token");
 		if (StringUtils.isEmpty(token)) {
 			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter token required");
@@ -104,6 +140,10 @@ public class LoadChatAttach extends HttpServlet {
 	 */
 	@Override
 	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getParameter("upload_id") != null) {
+			putChunk(request, response);
+			return;
+		}
 		String token = request.getHeader("Token");
 		String filenameInput = request.getHeader("Filename-Base64");
 		if (StringUtils.isEmpty(token) || StringUtils.isEmpty(filenameInput)) {
@@ -144,7 +184,9 @@ public class LoadChatAttach extends HttpServlet {
 			}
 			@Override
 			public FileOnServer updateFileMetadata(FileOnServer fileMetadata) {
-				return chatBean.updateAttachment(fileMetadata);
+				FileOnServer attachment = chatBean.updateAttachment(fileMetadata);
+				imagesBean.createStandardThumbnails(attachment, false);
+				return attachment;
 			}
 		};
 	}
@@ -157,6 +199,9 @@ public class LoadChatAttach extends HttpServlet {
 	 * В параметрах необходимо передать токен отправителя("token_sender") и логин получателя("login_receiver").<br/>
 	 * Имя файла можно передать в параметре "filename", используя urlencode или"
 	 * в заголовке "Filename-Base64".<br/>
+	 * Параметр "login_receiver" можно передать несколько раз -- сообщение получит каждый адресат,
+	 * а файл будет записан один раз на каждый из их серверов; в ответе будут также поля "ids"
+	 * (id сообщений по логинам) и "failed" (логины, для которых не удалось сохранить файл).<br/>
 	 * Логический параметр "save_sent" &mdash; сохранять файл у отправителя. При передаче
 	 * любой непустой строки, кроме "0" или "false" файл записывается не только получателю, но и
 	 * отправителю. (Если их обслужвает один сервер, то дубликат в ФС не создаётся.)
@@ -167,6 +212,11 @@ public class LoadChatAttach extends HttpServlet {
 	 */
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String uploadAction = request.getParameter("upload");
+		if (!StringUtils.isEmpty(uploadAction)) {
+			handleUploadAction(uploadAction, request, response);
+			return;
+		}
 		//валидация параметров и заголовков
 		String token = request.getParameter("token_sender");
 		if (StringUtils.isEmpty(token)) {
@@ -183,21 +233,12 @@ public class LoadChatAttach extends HttpServlet {
 			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter login_receiver required");
 			return;
 		}
-		String filenameInput = request.getParameter("filename");
-		String filenameUser;
-		if (StringUtils.isEmpty(filenameInput)) {
-			filenameInput = request.getHeader("Filename-Base64");
-			if (filenameInput == null) {
-				sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter filename or header Filename-Base64 required");
-				return;
-			} else {
-				filenameUser = new String(DatatypeConverter.parseBase64Binary(filenameInput), "UTF-8");
-			}
-		} else {
-			filenameUser = Utls.decodeStringAsByteArray(filenameInput);
+		String filenameUser = getFilename(request);
+		if (filenameUser == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter filename or header Filename-Base64 required");
+			return;
 		}
-		String saveSentStr = request.getParameter("save_sent");
-		boolean saveSent = (!StringUtils.isEmpty(saveSentStr) && !"0".equals(saveSentStr) && !"false".equalsIgnoreCase(saveSentStr));
+		boolean saveSent = isSaveSent(request);
 		String comment = request.getParameter("comment");
 		if (StringUtils.isEmpty(comment)) {
 			comment = filenameUser;
@@ -205,18 +246,47 @@ public class LoadChatAttach extends HttpServlet {
 		try (UserLogon logonSender = uc.tokenAuthorize(token)) {
 			
 			//Определяем сервера
-			CarabiUser receiver = uc.findUser(loginReceiver);
 			CarabiUser sender = logonSender.getUser();
-			CarabiAppServer receiverServer = receiver.getMainServer();
 			CarabiAppServer senderServer = sender.getMainServer();
+			List<CarabiUser> receivers = new ArrayList<>();
+			Set<CarabiAppServer> targetServers = new LinkedHashSet<>();
+			for (String login: request.getParameterValues("login_receiver")) {
+				CarabiUser receiver = uc.findUser(login);
+				receivers.add(receiver);
+				targetServers.add(receiver.getMainServer());
+			}
+			if (saveSent) {
+				targetServers.add(senderServer);
+			}
 			//Отправляем файл по назначению
-			Holder<Long> receiverAttachmentId = new Holder<>();
-			Holder<Long> senderAttachmentId = new Holder<>();
-			handleAttachment(receiverServer, senderServer, saveSent, filenameUser, request, CarabiFunc.encrypt(token), receiverAttachmentId, senderAttachmentId);
+			Map<CarabiAppServer, Long> attachmentsIds = handleAttachment(targetServers, filenameUser, request, CarabiFunc.encrypt(token));
+			Long senderAttachmentId = saveSent ? attachmentsIds.get(senderServer) : null;
 			//Отправляем уведомления
-			Long id = chatBean.sendMessage(sender, receiver, comment, senderAttachmentId.value, receiverAttachmentId.value, null, null, false);
 			JsonObjectBuilder result = Json.createObjectBuilder();
-			result.add("id", id);
+			JsonObjectBuilder ids = Json.createObjectBuilder();
+			JsonArrayBuilder failed = Json.createArrayBuilder();
+			Long firstId = null;
+			for (CarabiUser receiver: receivers) {
+				Long receiverAttachmentId = attachmentsIds.get(receiver.getMainServer());
+				if (receiverAttachmentId == null) {
+					failed.add(receiver.getLogin());
+					continue;
+				}
+				Long id = chatBean.sendMessage(sender, receiver, comment, senderAttachmentId, receiverAttachmentId, null, null, false);
+				ids.add(receiver.getLogin(), id);
+				if (firstId == null) {
+					firstId = id;
+				}
+			}
+			if (firstId == null) {
+				sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Attachment was not saved for any receiver");
+				return;
+			}
+			result.add("id", firstId);
+			if (receivers.size() > 1) {
+				result.add("ids", ids);
+				result.add("failed", failed);
+			}
 			response.getWriter().print(result.build().toString());
 		} catch (RegisterException e) {
 			sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "Unknown token");
@@ -232,50 +302,346 @@ public class LoadChatAttach extends HttpServlet {
 	}
 	
 	/**
-	 * Конечная обработка запроса с вложением. Для сервера отправителя и получателя: сохраняет вложение на текущем сервере
-	 * (если он -- целевой) или проксирует на целевой.
-	 * @param receiverServer
-	 * @param senderServer
+	 * Конечная обработка запроса с вложением. Для серверов получателей (и отправителя) сохраняет
+	 * вложение на текущем сервере (если он -- целевой) или проксирует на целевой.
+	 * Если серверов несколько, запись в них идёт параллельно через {@link FanOutWriter}:
+	 * медленный сервер не задерживает остальные, а ошибка на одном не отменяет другие копии.
+	 * @param targetServers сервера, на которых должно быть сохранено вложение
 	 * @param filename
 	 * @param request
 	 * @param token
-	 * @return
-	 * @throws IOException 
+	 * @return ID вложений на серверах, куда запись прошла успешно
+	 * @throws IOException при ошибке чтения запроса или если запись не удалась никуда
 	 */
-	private Long handleAttachment(
-			CarabiAppServer receiverServer,
-			CarabiAppServer senderServer,
-			boolean saveSent,
+	private Map<CarabiAppServer, Long> handleAttachment(
+			Collection<CarabiAppServer> targetServers,
 			String filename,
 			HttpServletRequest request,
-			String token,
-			Holder<Long> receiverAttachmentId,
-			Holder<Long> senderAttachmentId
+			String token
 	) throws IOException {
-		//подготовка потока для получателя
-		try (FileStreamer receiverAttachmentStreamer = FileStreamer.makeFileStreamer(receiverServer, filename, null, token, request, urlPattern, wrapFileStorage())) {
-			FileStreamer senderAttachmentStreamer = null;
-			//подготовка потока для отправителя, если надо и сервера не совпадают
-			if (saveSent && !senderServer.equals(receiverServer)) {
-				senderAttachmentStreamer = FileStreamer.makeFileStreamer(senderServer, filename, null, token, request, urlPattern, wrapFileStorage());
+		Map<CarabiAppServer, Long> result = new HashMap<>();
+		Map<CarabiAppServer, FileStreamer> streamers = new LinkedHashMap<>();
+		try {
+			//подготовка потоков
+			for (CarabiAppServer targetServer: targetServers) {
+				streamers.put(targetServer, FileStreamer.makeFileStreamer(targetServer, filename, null, token, request, urlPattern, wrapFileStorage()));
 			}
-			//Перекачивание
-			if (senderAttachmentStreamer != null) {
-				Utls.proxyStreams(request.getInputStream(), receiverAttachmentStreamer.getOutputStream(), senderAttachmentStreamer.getOutputStream());
-			} else {
-				Utls.proxyStreams(request.getInputStream(), receiverAttachmentStreamer.getOutputStream());
+			if (streamers.size() == 1) {
+				Map.Entry<CarabiAppServer, FileStreamer> streamer = streamers.entrySet().iterator().next();
+				Utls.proxyStreams(request.getInputStream(), streamer.getValue().getOutputStream());
+				result.put(streamer.getKey(), streamer.getValue().getFileId());
+				return result;
 			}
+			//Параллельное перекачивание
+			FanOutWriter fanOutWriter = new FanOutWriter(executor, Settings.ATTACHMENT_FAN_OUT_BUFFER);
+			Map<CarabiAppServer, Integer> targets = new HashMap<>();
+			for (Map.Entry<CarabiAppServer, FileStreamer> streamer: streamers.entrySet()) {
+				try {
+					targets.put(streamer.getKey(), fanOutWriter.addTarget(streamer.getKey().getComputer(), streamer.getValue().getOutputStream()));
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "can not open attachment stream to " + streamer.getKey().getComputer(), e);
+				}
+			}
+			if (targets.isEmpty()) {
+				throw new IOException("Can not open attachment stream to any server");
+			}
+			fanOutWriter.transfer(request.getInputStream());
 			//Получение ID
-			receiverAttachmentId.value = receiverAttachmentStreamer.getFileId();
-			if (senderAttachmentStreamer != null) {
-				senderAttachmentId.value = senderAttachmentStreamer.getFileId();
-				senderAttachmentStreamer.close();
-			} else if (saveSent) {
-				assert senderServer.equals(receiverServer);
-				senderAttachmentId.value = receiverAttachmentId.value;
+			for (Map.Entry<CarabiAppServer, Integer> target: targets.entrySet()) {
+				if (fanOutWriter.getError(target.getValue()) == null) {
+					result.put(target.getKey(), streamers.get(target.getKey()).getFileId());
+				}
+			}
+			return result;
+		} finally {
+			//transfer завершается (и при ошибке чтения) только после остановки потоков записи
+			for (FileStreamer streamer: streamers.values()) {
+				try {
+					streamer.close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, null, e);
+				}
 			}
-		}//receiverOutputStreamer.close()
-		return null;
+		}
+	}
+	
+	/**
+	 * Имя файла из параметра "filename" (urlencode) или заголовка "Filename-Base64".
+	 * @return имя файла или null, если оно не передано
+	 */
+	private String getFilename(HttpServletRequest request) throws IOException {
+		String filenameInput = request.getParameter("filename");
+		if (StringUtils.isEmpty(filenameInput)) {
+			filenameInput = request.getHeader("Filename-Base64");
+			if (filenameInput == null) {
+				return null;
+			} else {
+				return new String(DatatypeConverter.parseBase64Binary(filenameInput), "UTF-8");
+			}
+		} else {
+			return Utls.decodeStringAsByteArray(filenameInput);
+		}
+	}
+	
+	private boolean isSaveSent(HttpServletRequest request) {
+		String saveSentStr = request.getParameter("save_sent");
+		return (!StringUtils.isEmpty(saveSentStr) && !"0".equals(saveSentStr) && !"false".equalsIgnoreCase(saveSentStr));
+	}
+	
+	/**
+	 * Токен владельца докачиваемой загрузки: параметр "token_sender" от клиента
+	 * или зашифрованный заголовок "Token" от другого сервера.
+	 */
+	private String getUploadToken(HttpServletRequest request) {
+		String token = request.getParameter("token_sender");
+		if (!StringUtils.isEmpty(token)) {
+			return token;
+		}
+		String encryptedToken = request.getHeader("Token");
+		if (StringUtils.isEmpty(encryptedToken)) {
+			return null;
+		}
+		try {
+			return CarabiFunc.decrypt(encryptedToken);
+		} catch (GeneralSecurityException ex) {
+			logger.log(Level.INFO, "Token " + encryptedToken + " incorrect", ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Обработка этапов докачиваемой загрузки, выполняемых методом POST.
+	 * "init" и "commit" вызываются клиентом, "init_file", "commit_file" и "abort" --
+	 * сервером, принявшим загрузку от клиента, если файл хранится на другом сервере.
+	 */
+	private void handleUploadAction(String uploadAction, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String token = getUploadToken(request);
+		if (StringUtils.isEmpty(token)) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter token_sender required");
+			return;
+		}
+		try {
+			switch (uploadAction) {
+				case "init":
+					initUpload(token, request, response);
+					break;
+				case "init_file":
+					initFileUpload(token, request, response);
+					break;
+				case "commit":
+					commitUpload(token, request, response);
+					break;
+				case "commit_file":
+					commitFileUpload(token, request, response);
+					break;
+				case "abort":
+					ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), token);
+					if (upload != null) {
+						uploads.abortUpload(upload);
+					}
+					sendUploadState(response, null, null);
+					break;
+				default:
+					sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown upload action " + uploadAction);
+			}
+		} catch (NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter length invalid");
+		} catch (RegisterException e) {
+			sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "Unknown token");
+		} catch (CarabiException ex) {
+			logger.log(Level.SEVERE, null, ex);
+			sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Начало загрузки от клиента. Создаёт файлы у получателя и (при необходимости)
+	 * отправителя -- на текущем сервере или через такую же загрузку на удалённом.
+	 */
+	private void initUpload(String token, HttpServletRequest request, HttpServletResponse response) throws IOException, CarabiException {
+		long contentLength = Long.parseLong(request.getParameter("length"));
+		if (!checkUploadLength(contentLength, response)) {
+			return;
+		}
+		String loginReceiver = request.getParameter("login_receiver");
+		if (StringUtils.isEmpty(loginReceiver)) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter login_receiver required");
+			return;
+		}
+		String filenameUser = getFilename(request);
+		if (filenameUser == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter filename or header Filename-Base64 required");
+			return;
+		}
+		boolean saveSent = isSaveSent(request);
+		String comment = request.getParameter("comment");
+		if (StringUtils.isEmpty(comment)) {
+			comment = filenameUser;
+		}
+		try (UserLogon logonSender = uc.tokenAuthorize(token)) {
+			CarabiUser receiver = uc.findUser(loginReceiver);
+			CarabiAppServer receiverServer = receiver.getMainServer();
+			CarabiAppServer senderServer = logonSender.getUser().getMainServer();
+			ChunkedUpload upload = uploads.createUpload(token, contentLength);
+			try {
+				upload.addTarget(makeUploadTarget(receiverServer, token, filenameUser, contentLength));
+				if (saveSent && !senderServer.equals(receiverServer)) {
+					upload.addTarget(makeUploadTarget(senderServer, token, filenameUser, contentLength));
+				}
+			} catch (IOException e) {
+				uploads.abortUpload(upload);
+				throw e;
+			}
+			upload.getProperties().put("login_receiver", loginReceiver);
+			upload.getProperties().put("comment", comment);
+			upload.getProperties().put("save_sent", String.valueOf(saveSent));
+			sendUploadState(response, upload, null);
+		}
+	}
+	
+	/**
+	 * Проверка заявленного размера загружаемого файла.
+	 * @return false, если размер отрицательный или больше {@link Settings#maxAttachmentSize}
+	 * (клиенту уже отправлена ошибка)
+	 */
+	private boolean checkUploadLength(long contentLength, HttpServletResponse response) throws IOException {
+		if (contentLength < 0) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter length invalid");
+			return false;
+		}
+		if (contentLength > Settings.maxAttachmentSize) {
+			sendError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Max attachment size is: " + Settings.maxAttachmentSize + ", your is: " + contentLength);
+			return false;
+		}
+		return true;
+	}
+	
+	private ChunkedUpload.Target makeUploadTarget(CarabiAppServer targetServer, String token, String filename, long contentLength) throws IOException {
+		if (Settings.getCurrentServer().equals(targetServer)) {
+			return new ChunkedUpload.LocalTarget(filename, wrapFileStorage());
+		} else {
+			return new ChunkedUpload.RemoteTarget(targetServer, urlPattern, token, filename, contentLength);
+		}
+	}
+	
+	/**
+	 * Начало загрузки от другого сервера: файл создаётся только на текущем.
+	 */
+	private void initFileUpload(String token, HttpServletRequest request, HttpServletResponse response) throws IOException, CarabiException {
+		long contentLength = Long.parseLong(request.getParameter("length"));
+		if (!checkUploadLength(contentLength, response)) {
+			return;
+		}
+		String filenameUser = getFilename(request);
+		if (filenameUser == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Header Filename-Base64 required");
+			return;
+		}
+		try (UserLogon logon = uc.tokenAuthorize(token)) {
+			ChunkedUpload upload = uploads.createUpload(token, contentLength);
+			upload.addTarget(new ChunkedUpload.LocalTarget(filenameUser, wrapFileStorage()));
+			sendUploadState(response, upload, null);
+		}
+	}
+	
+	/**
+	 * Приём части файла (метод PUT).
+	 */
+	private void putChunk(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), getUploadToken(request));
+		if (upload == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+			return;
+		}
+		long offset;
+		try {
+			offset = Long.parseLong(request.getParameter("offset"));
+		} catch (NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter offset invalid");
+			return;
+		}
+		try {
+			upload.writeChunk(offset, request.getInputStream(), request.getHeader("Chunk-CRC32"));
+			sendUploadState(response, upload, null);
+		} catch (ChunkedUpload.ChunkException e) {
+			response.setStatus(e.isChecksumError() ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_CONFLICT);
+			sendUploadState(response, upload, e.getMessage());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "chunk writing failed", e);
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			sendUploadState(response, upload, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Завершение загрузки от клиента: отправка сообщения с вложением.
+	 */
+	private void commitUpload(String token, HttpServletRequest request, HttpServletResponse response) throws IOException, CarabiException {
+		ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), token);
+		if (upload == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+			return;
+		}
+		if (!upload.isComplete()) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			sendUploadState(response, upload, "Upload is not complete");
+			return;
+		}
+		try (UserLogon logonSender = uc.tokenAuthorize(token)) {
+			CarabiUser receiver = uc.findUser(upload.getProperties().get("login_receiver"));
+			List<Long> attachmentsIds = upload.commit();
+			uploads.removeUpload(upload);
+			Long receiverAttachmentId = attachmentsIds.get(0);
+			Long senderAttachmentId = null;
+			if (attachmentsIds.size() > 1) {
+				senderAttachmentId = attachmentsIds.get(1);
+			} else if (Boolean.parseBoolean(upload.getProperties().get("save_sent"))) {
+				senderAttachmentId = receiverAttachmentId;
+			}
+			Long id = chatBean.sendMessage(logonSender.getUser(), receiver, upload.getProperties().get("comment"), senderAttachmentId, receiverAttachmentId, null, null, false);
+			JsonObjectBuilder result = Json.createObjectBuilder();
+			result.add("id", id);
+			response.getWriter().print(result.build().toString());
+		}
+	}
+	
+	/**
+	 * Завершение загрузки от другого сервера: выдача ID созданного файла.
+	 */
+	private void commitFileUpload(String token, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), token);
+		if (upload == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+			return;
+		}
+		if (!upload.isComplete()) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			sendUploadState(response, upload, "Upload is not complete");
+			return;
+		}
+		Long fileId = upload.commit().get(0);
+		uploads.removeUpload(upload);
+		JsonObjectBuilder result = Json.createObjectBuilder();
+		result.add("file_id", fileId);
+		response.getWriter().print(result.build().toString());
+	}
+	
+	/**
+	 * Вывод состояния докачиваемой загрузки в JSON.
+	 * @param upload загрузка (null -- при отмене)
+	 * @param details описание ошибки (если есть)
+	 */
+	private void sendUploadState(HttpServletResponse response, ChunkedUpload upload, String details) throws IOException {
+		JsonObjectBuilder result = Json.createObjectBuilder();
+		if (upload != null) {
+			result.add("upload_id", upload.getId());
+			result.add("offset", upload.getOffset());
+			result.add("length", upload.getContentLength());
+		}
+		if (details != null) {
+			result.add("details", details);
+		}
+		response.getWriter().print(result.build().toString());
 	}
 	
 	/**
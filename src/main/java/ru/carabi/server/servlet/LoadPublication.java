@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.EJB;
@@ -30,6 +31,7 @@ import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.lang3.StringUtils;
 import ru.carabi.server.CarabiException;
+import ru.carabi.server.ChunkedUpload;
 import ru.carabi.server.EntityManagerTool;
 import ru.carabi.server.RegisterException;
 import ru.carabi.server.UserLogon;
@@ -39,13 +41,23 @@ import ru.carabi.server.entities.Department;
 import ru.carabi.server.entities.FileOnServer;
 import ru.carabi.server.entities.Publication;
 import ru.carabi.server.face.injectable.CurrentClient;
+import ru.carabi.server.kernel.ChunkedUploadsBean;
 import ru.carabi.server.kernel.ProductionBean;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.kernel.UsersPercistenceBean;
 import ru.carabi.server.logging.CarabiLogging;
 
 /**
- * Загрузка и выгрузка публикаций
+ * Загрузка и выгрузка публикаций.
+ * Кроме загрузки одним POST-запросом, поддерживается загрузка частями с докачкой ({@link ChunkedUpload}):
+ * <ol>
+ * <li>POST <code>?upload=init&token=...&filename=...&length={полный размер}</code> с параметрами публикации
+ * (name, description, loginReceiver, departmentDestinationId, isCommon) -- возвращает upload_id;
+ * <li>PUT <code>?token=...&upload_id=...&offset={смещение}</code> с частью файла в теле и
+ * необязательным заголовком Chunk-CRC32;
+ * <li>GET <code>?token=...&upload_id=...</code> -- текущее смещение для продолжения после обрыва;
+ * <li>POST <code>?upload=commit&token=...&upload_id=...</code> -- создание публикации.
+ * </ol>
  * @author sasha<kopilov.ad@gmail.com>
  */
 @WebServlet(name = "LoadPublication", urlPatterns = {"/load_publication"})
@@ -56,12 +68,22 @@ public class LoadPublication extends HttpServlet {
 	@EJB private UsersControllerBean usersController;
 	@EJB private ProductionBean productionBean;
 	@EJB private UsersPercistenceBean usersPercistence;
+	@EJB private ChunkedUploadsBean uploads;
 	
 	@PersistenceContext(unitName = "ru.carabi.server_carabiserver-kernel")
 	private EntityManager em;
 	
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getParameter("upload_id") != null) {
+			ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), getToken(request));
+			if (upload == null) {
+				sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+				return;
+			}
+			sendUploadState(response, upload, null);
+			return;
+		}
 		String publicationIdStr = request.getParameter("publication_id");
 		Long publicationId;
 		//валидация ID
@@ -75,13 +97,7 @@ public class LoadPublication extends HttpServlet {
 			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter publication_id is invalid");
 			return;
 		}
-		//token из сессии если есть или из параметров
-		String token;
-		if (currentClient.getIsAuthorized()) {
-			token = currentClient.getUserLogon().getToken();
-		} else {
-			token = request.getParameter("token");
-		}
+		String token = getToken(request);
 		
 		try (UserLogon logon = usersController.tokenAuthorize(token)){
 			Publication publication = productionBean.getPublication(publicationId);
@@ -111,8 +127,56 @@ public class LoadPublication extends HttpServlet {
 		}
 	}
 	
+	/**
+	 * token из сессии если есть или из параметров
+	 */
+	private String getToken(HttpServletRequest request) {
+		if (currentClient.getIsAuthorized()) {
+			return currentClient.getUserLogon().getToken();
+		} else {
+			return request.getParameter("token");
+		}
+	}
+	
+	/**
+	 * Обработка метода PUT -- приём части файла при загрузке частями.
+	 */
+	@Override
+	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), getToken(request));
+		if (upload == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+			return;
+		}
+		long offset;
+		try {
+			offset = Long.parseLong(request.getParameter("offset"));
+		} catch (NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter offset invalid");
+			return;
+		}
+		try {
+			upload.writeChunk(offset, request.getInputStream(), request.getHeader("Chunk-CRC32"));
+			sendUploadState(response, upload, null);
+		} catch (ChunkedUpload.ChunkException e) {
+			response.setStatus(e.isChecksumError() ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_CONFLICT);
+			sendUploadState(response, upload, e.getMessage());
+		}
+	}
+	
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String uploadAction = request.getParameter("upload");
+		if ("init".equals(uploadAction)) {
+			initUpload(request, response);
+			return;
+		} else if ("commit".equals(uploadAction)) {
+			commitUpload(request, response);
+			return;
+		} else if (!StringUtils.isEmpty(uploadAction)) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown upload action " + uploadAction);
+			return;
+		}
 		String token = null;
 		
 		if (currentClient.getIsAuthorized()) {
@@ -207,6 +271,112 @@ public class LoadPublication extends HttpServlet {
 		
 	}
 
+	/**
+	 * Начало загрузки частями: проверка прав и создание пустого файла публикации.
+	 */
+	private void initUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String filename = request.getParameter("filename");
+		String loginReceiver = request.getParameter("loginReceiver");
+		String departmentDestinationIdStr = request.getParameter("departmentDestinationId");
+		boolean isCommon = !StringUtils.isEmpty(request.getParameter("isCommon"));
+		long contentLength;
+		int departmentDestinationId = -1;
+		try {
+			contentLength = Long.parseLong(request.getParameter("length"));
+			if (!StringUtils.isEmpty(departmentDestinationIdStr)) {
+				departmentDestinationId = Integer.parseInt(departmentDestinationIdStr);
+			}
+		} catch (NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter length or departmentDestinationId invalid");
+			return;
+		}
+		if (StringUtils.isEmpty(filename)) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter filename required");
+			return;
+		}
+		if (!isCommon && StringUtils.isEmpty(loginReceiver) && departmentDestinationId < 0) { //Если публикация не общедоступная -- должен быть задан адресат
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "No receiver (user, department or everybody)");
+			return;
+		}
+		String token = getToken(request);
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			CarabiUser receiver = null;
+			if (!StringUtils.isEmpty(loginReceiver)) {
+				receiver = usersPercistence.findUser(loginReceiver);
+			}
+			Department departmentDestination = null;
+			if (departmentDestinationId >= 0) {
+				departmentDestination = EntityManagerTool.createOrFind(em, Department.class, departmentDestinationId);
+			}
+			FileOnServer attachment = productionBean.preparePublicationFile(logon, filename, receiver, departmentDestination, isCommon);
+			ChunkedUpload upload = uploads.createUpload(token, contentLength);
+			upload.addTarget(new ChunkedUpload.LocalTarget(attachment, null));
+			upload.getProperties().put("name", request.getParameter("name"));
+			upload.getProperties().put("description", request.getParameter("description"));
+			upload.getProperties().put("loginReceiver", loginReceiver);
+			upload.getProperties().put("departmentDestinationId", String.valueOf(departmentDestinationId));
+			sendUploadState(response, upload, null);
+		} catch (CarabiException ex) {
+			sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+			Logger.getLogger(LoadPublication.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Завершение загрузки частями: запись публикации в БД.
+	 */
+	private void commitUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String token = getToken(request);
+		ChunkedUpload upload = uploads.getUpload(request.getParameter("upload_id"), token);
+		if (upload == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+			return;
+		}
+		if (!upload.isComplete()) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			sendUploadState(response, upload, "Upload is not complete");
+			return;
+		}
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			Map<String, String> properties = upload.getProperties();
+			CarabiUser receiver = null;
+			if (!StringUtils.isEmpty(properties.get("loginReceiver"))) {
+				receiver = usersPercistence.findUser(properties.get("loginReceiver"));
+			}
+			Department departmentDestination = null;
+			int departmentDestinationId = Integer.parseInt(properties.get("departmentDestinationId"));
+			if (departmentDestinationId >= 0) {
+				departmentDestination = EntityManagerTool.createOrFind(em, Department.class, departmentDestinationId);
+			}
+			upload.commit();
+			uploads.removeUpload(upload);
+			ChunkedUpload.LocalTarget target = (ChunkedUpload.LocalTarget) upload.getTargets().get(0);
+			Publication createdPublication = productionBean.createPublication(properties.get("name"), properties.get("description"), target.getFileMetadata(), receiver, departmentDestination);
+			JsonObjectBuilder result = Json.createObjectBuilder();
+			result.add("status", "ok");
+			result.add("createdPublicationId", createdPublication.getId());
+			response.getOutputStream().println(result.build().toString());
+		} catch (CarabiException ex) {
+			sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+			Logger.getLogger(LoadPublication.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Вывод состояния загрузки частями в JSON.
+	 */
+	private void sendUploadState(HttpServletResponse response, ChunkedUpload upload, String details) throws IOException {
+		JsonObjectBuilder result = Json.createObjectBuilder();
+		result.add("status", details == null ? "ok" : "error");
+		result.add("upload_id", upload.getId());
+		result.add("offset", upload.getOffset());
+		result.add("length", upload.getContentLength());
+		if (details != null) {
+			result.add("details", details);
+		}
+		response.getOutputStream().println(result.build().toString());
+	}
+	
 	/**
 	 * Returns a short description of the servlet.
 	 *
@@ -27,6 +27,7 @@ import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.lang3.StringUtils;
+import ru.carabi.server.BinaryDelta;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.RegisterException;
 import ru.carabi.server.UserLogon;
@@ -47,6 +48,9 @@ import ru.carabi.server.rest.RestException;
  * Скачивание и загрузка программного обеспечения.
  * Данные о ПО, передаваемом через данный сервлет, хранятся в виде объектов
  * {@link SoftwareProduct} и {@link ProductVersion} 
+ * <br>
+ * При скачивании по названию продукта клиент может передать установленную версию
+ * (параметр currentVersion) -- тогда, если подготовлен патч, отдаётся он.
  * @author sasha<kopilov.ad@gmail.com>
  */
 @WebServlet(name = "LoadSoftware", urlPatterns = {"/load_software"})
@@ -105,7 +109,7 @@ public class LoadSoftware extends HttpServlet {
 						return;
 					}
 				}
-				downloadProductVersion(productVersion, response);
+				downloadProductVersion(productVersion, request, response);
 			} else {//загрузка по названию и номеру версии
 				String productName = request.getParameter("productName");
 				if (productName == null) {
@@ -115,16 +119,37 @@ public class LoadSoftware extends HttpServlet {
 				SoftwareProduct product = productionBean.findProduct(productName);
 				if (product == null) {
 					sendError(response, HttpServletResponse.SC_NOT_FOUND, "Product " + productName + " not found");
+					return;
 				}
 				//ToDo: Проверить, что у пользователя есть право на продукт
 				ProductVersion productVersion;
 				String versionNumber = request.getParameter("versionNumber");
 				if (versionNumber == null) {
 					productVersion = productionBean.getLastVersion(logon, productName, null, false);
+					//в списке версий файл представлен только ID -- берём полные данные
+					if (productVersion != null) {
+						productVersion = productionBean.getProductVersion(productVersion.getId());
+					}
 				} else {
 					productVersion = productionBean.getProductVersion(logon, productName, versionNumber);
 				}
-				downloadProductVersion(productVersion, response);
+				//если клиент сообщил установленную версию -- пробуем отдать патч от неё
+				String currentVersionNumber = request.getParameter("currentVersion");
+				if (currentVersionNumber != null && productVersion != null) {
+					if (currentVersionNumber.equals(productVersion.getVersionNumber())) {
+						response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+					ProductVersion currentVersion = productionBean.getProductVersion(logon, productName, currentVersionNumber);
+					if (currentVersion != null && productVersion.getFile() != null) {
+						File delta = productionBean.getDeltaFile(currentVersion, productVersion);
+						if (delta.exists()) {
+							downloadDelta(currentVersion, productVersion, delta, response);
+							return;
+						}
+					}
+				}
+				downloadProductVersion(productVersion, request, response);
 			}
 		} catch (NumberFormatException e) {
 			sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
@@ -142,20 +167,43 @@ public class LoadSoftware extends HttpServlet {
 	}
 	
 	/**
-	 * Выгрузка из файла, если он есть, или отправка редиректа на сохранённый URL
+	 * Выгрузка из файла, если он есть, или отправка редиректа на сохранённый URL.
+	 * Если клиент принимает gzip и сжатая копия уже подготовлена -- отдаётся она.
+	 * Файлы версий не меняются, поэтому ETag строится по ID версии.
 	 * @param productVersion
+	 * @param request
 	 * @param response
 	 * @throws UnsupportedEncodingException
 	 * @throws IOException 
 	 */
-	private void downloadProductVersion(ProductVersion productVersion, HttpServletResponse response) throws UnsupportedEncodingException, IOException {
+	private void downloadProductVersion(ProductVersion productVersion, HttpServletRequest request, HttpServletResponse response) throws UnsupportedEncodingException, IOException {
+		if (productVersion == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Product version not found");
+			return;
+		}
 		FileOnServer fileMetadata = productVersion.getFile();
 		if (fileMetadata != null) {
+			File file = new File(fileMetadata.getContentAddress());
+			long contentLength = fileMetadata.getContentLength();
+			File compressed = productionBean.getCompressedFile(productVersion);
+			String acceptEncoding = request.getHeader("Accept-Encoding");
+			boolean useGzip = acceptEncoding != null && acceptEncoding.contains("gzip") && compressed.exists();
+			String etag = "\"" + productVersion.getId() + (useGzip ? "-gz" : "") + "\"";
+			response.setHeader("ETag", etag);
+			response.setHeader("Vary", "Accept-Encoding");
+			if (etag.equals(request.getHeader("If-None-Match"))) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			if (useGzip) {
+				file = compressed;
+				contentLength = compressed.length();
+				response.setHeader("Content-Encoding", "gzip");
+			}
 			response.setHeader("Content-Disposition", "attachment; filename=\"" + MimeUtility.encodeText(fileMetadata.getName()) +"\"");
 			response.setHeader("Filename-Base64", DatatypeConverter.printBase64Binary(fileMetadata.getName().getBytes("UTF-8")));
 			response.setHeader("Content-Type", fileMetadata.getMimeType());
-			response.setHeader("Content-Length", "" +fileMetadata.getContentLength());
-			File file = new File(fileMetadata.getContentAddress());
+			response.setHeader("Content-Length", "" + contentLength);
 			try (InputStream inputStream = new FileInputStream(file)) {
 				Utls.proxyStreams(inputStream, response.getOutputStream());
 			}
@@ -167,6 +215,29 @@ public class LoadSoftware extends HttpServlet {
 		}
 	}
 	
+	/**
+	 * Выгрузка патча для перехода с установленной у клиента версии на целевую
+	 * (формат -- см. {@link BinaryDelta}).
+	 * @param fromVersion версия, установленная у клиента
+	 * @param toVersion целевая версия
+	 * @param delta файл с патчем
+	 * @param response
+	 * @throws IOException 
+	 */
+	private void downloadDelta(ProductVersion fromVersion, ProductVersion toVersion, File delta, HttpServletResponse response) throws IOException {
+		FileOnServer fileMetadata = toVersion.getFile();
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + MimeUtility.encodeText(fileMetadata.getName()) + ".delta\"");
+		response.setHeader("Filename-Base64", DatatypeConverter.printBase64Binary(fileMetadata.getName().getBytes("UTF-8")));
+		response.setHeader("Content-Type", "application/octet-stream");
+		response.setHeader("Content-Length", "" + delta.length());
+		response.setHeader("Delta-From-Version", fromVersion.getVersionNumber());
+		response.setHeader("Delta-To-Version", toVersion.getVersionNumber());
+		response.setHeader("Target-Length", "" + fileMetadata.getContentLength());
+		try (InputStream inputStream = new FileInputStream(delta)) {
+			Utls.proxyStreams(inputStream, response.getOutputStream());
+		}
+	}
+	
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
@@ -260,6 +331,7 @@ public class LoadSoftware extends HttpServlet {
 				productionBean.removeVersions(product, departmentDestination);
 			}
 			ProductVersion uploadedVersion = productionBean.uploadProductVersion(logon, product, versionNumber, inputStream, filename, singularity, isSignificantUpdate, departmentDestination);
+			productionBean.prepareDistribution(uploadedVersion);
 			JsonObjectBuilder result = Json.createObjectBuilder();
 			result.add("status", "ok");
 			result.add("uploadedVersionId", uploadedVersion.getId());
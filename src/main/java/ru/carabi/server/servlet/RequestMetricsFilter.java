@@ -0,0 +1,97 @@
+package ru.carabi.server.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import ru.carabi.server.logging.Metrics;
+
+/**
+ * Замер длительности обработки запросов к SOAP-сервисам, REST-ресурсам и сервлетам.
+ * Запросы группируются по сервису (первая часть пути) или REST-ресурсу
+ * (первая часть пути после webresources), ответы с кодом 500 и выше считаются ошибками.
+ * Запросы к несуществующим адресам (код 404) попадают в общую группу other.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@WebFilter(filterName = "RequestMetricsFilter", urlPatterns = {"/*"}, asyncSupported = true)
+public class RequestMetricsFilter implements Filter {
+	private static final String REST_PREFIX = "webresources";
+	//Имена, которые могут быть метками: прочие пути не порождают новых рядов
+	private static final Pattern SERVICE_NAME = Pattern.compile("[A-Z][A-Za-z]{0,40}Service");
+	private static final Pattern SERVLET_NAME = Pattern.compile("load_[a-z_]{1,40}");
+	private static final Pattern RESOURCE_NAME = Pattern.compile("[a-z][a-z_]{0,40}");
+
+	private static final AtomicInteger requestsInFlight = new AtomicInteger();
+
+	static {
+		Metrics.gauge("carabi_requests_in_flight", "HTTP requests being processed", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return requestsInFlight.get();
+			}
+		});
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		long start = System.nanoTime();
+		requestsInFlight.incrementAndGet();
+		boolean failed = true;
+		int status = 0;
+		try {
+			chain.doFilter(request, response);
+			status = ((HttpServletResponse) response).getStatus();
+			failed = status >= 500;
+		} finally {
+			requestsInFlight.decrementAndGet();
+			String[] endpoint = status == HttpServletResponse.SC_NOT_FOUND ? new String[] {"other", "other"} : endpoint((HttpServletRequest) request);
+			Metrics.histogram("carabi_request_seconds", "HTTP request latency by API and endpoint",
+					"api", endpoint[0], "endpoint", endpoint[1]).recordSince(start);
+			if (failed) {
+				Metrics.counter("carabi_request_errors_total", "HTTP requests failed with status 500 or exception",
+						"api", endpoint[0], "endpoint", endpoint[1]).increment();
+			}
+		}
+	}
+
+	/**
+	 * Определение группы запроса.
+	 * @return тип API (soap, rest, servlet) и имя сервиса или ресурса
+	 */
+	private static String[] endpoint(HttpServletRequest request) {
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		String[] parts = path.split("/", 4);
+		String first = parts.length > 1 ? parts[1] : "";
+		if (REST_PREFIX.equals(first)) {
+			String resource = parts.length > 2 ? parts[2] : "";
+			return new String[] {"rest", RESOURCE_NAME.matcher(resource).matches() ? resource : "other"};
+		}
+		if (SERVICE_NAME.matcher(first).matches()) {
+			return new String[] {"soap", first};
+		}
+		if (SERVLET_NAME.matcher(first).matches()) {
+			return new String[] {"servlet", first};
+		}
+		return new String[] {"other", "other"};
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
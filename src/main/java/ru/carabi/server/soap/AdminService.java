@@ -545,6 +545,24 @@ public class AdminService {
 		}
 	}
 	
+	/**
+	 * Удаление сохранённых на серверах результатов хранимого запроса.
+	 * Применяется для запросов с заданным временем хранения результата, если данные
+	 * в прикладной базе изменились раньше окончания этого времени.
+	 * @param token токен авторизации
+	 * @param id id запроса (пустое значение -- удалить результаты всех запросов)
+	 * @throws CarabiException при ошибке авторизации или отсутствии прав
+	 */
+	@WebMethod(operationName = "clearQueryResultCache")
+	public void clearQueryResultCache(
+			@WebParam(name = "token") String token,
+			@WebParam(name = "id") Long id
+		) throws CarabiException {
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			admin.clearQueryResultCache(logon, id);
+		}
+	}
+	
 	/**
 	 * Создать связь между пользователями
 	 * @param token токен авторизации текущего пользователя или администратора
@@ -444,6 +444,28 @@ public class ChatService {
 		}
 	}
 	
+	/**
+	 * Быстрый поиск контактов для подсказок при наборе (без обращения к базе).
+	 * Ищет среди тех же пользователей, что и {@link #getContactList}: запрос до трёх
+	 * символов -- по началу слов, более длинный -- по вхождению.
+	 * @param token авторизационный токен клиента
+	 * @param department кодовое название подразделения, в котором ищем (null -- искать во всех)
+	 * @param search строка поиска по ФИО, логину, подразделению, должности, email
+	 * @param limit максимальное количество результатов (0 -- без ограничения)
+	 * @return JSON-массив: id, login, firstname, middlename, lastname, department, role
+	 */
+	@WebMethod(operationName = "searchContacts")
+	public String searchContacts(
+			@WebParam(name = "token") String token,
+			@WebParam(name = "department") String department,
+			@WebParam(name = "search") String search,
+			@WebParam(name = "limit") int limit
+		) throws CarabiException {
+		try (UserLogon logon = uc.tokenAuthorize(token)) {
+			return chatBean.searchContacts(logon, department, search, limit);
+		}
+	}
+	
 	/**
 	 * Получение списка связанных пользователей.
 	 * @param token авторизационный токен клиента
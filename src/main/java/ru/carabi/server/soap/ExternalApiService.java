@@ -3,13 +3,17 @@ package ru.carabi.server.soap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.EJB;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
 import javax.jws.WebService;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import ru.carabi.server.CarabiException;
 import ru.carabi.server.UserLogon;
+import ru.carabi.server.entities.SmsMessage;
 import ru.carabi.server.kernel.UsersControllerBean;
 import ru.carabi.server.kernel.sms.SmsSenderBean;
+import ru.carabi.server.kernel.oracle.CarabiDate;
 import ru.carabi.server.logging.CarabiLogging;
 
 /**
@@ -42,17 +46,52 @@ public class ExternalApiService {
 	 * @param receiverLogin логин получателя
 	 * @param text текст сообщения
 	 * @param sender название или телефон отправителя -- для API SMS-шлюзов
+	 * @return id сообщения в очереди отправки (для {@link #getSmsStatus(java.lang.String, long)})
 	 * @throws CarabiException 
 	 */
 	@WebMethod(operationName = "sendSms")
-	public void sendSms (
+	public long sendSms (
 			@WebParam(name = "token") String token,
 			@WebParam(name = "receiverLogin") String receiverLogin,
 			@WebParam(name = "text") String text,
 			@WebParam(name = "sender") String sender
 		) throws CarabiException {
 		try (UserLogon logon = usersController.tokenAuthorize(token)) {
-			smsSender.sendSmsMessage(logon, usersController.findUser(receiverLogin), text, sender);
+			return smsSender.sendSmsMessage(logon, usersController.findUser(receiverLogin), text, sender);
+		}
+	}
+	
+	/**
+	 * Статус отправки SMS.
+	 * @param token токен авторизации текущего пользователя
+	 * @param smsId id сообщения, возвращённый {@link #sendSms}
+	 * @return JSON-объект: status (queued, sending, sent, failed), attempts,
+	 * created, sent, gate (шлюз, принявший сообщение), lastError
+	 * @throws CarabiException если сообщение не найдено или отправлено другим пользователем
+	 * (доступно автору и администраторам пользователей)
+	 */
+	@WebMethod(operationName = "getSmsStatus")
+	public String getSmsStatus (
+			@WebParam(name = "token") String token,
+			@WebParam(name = "smsId") long smsId
+		) throws CarabiException {
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			SmsMessage message = smsSender.getMessage(logon, smsId);
+			JsonObjectBuilder result = Json.createObjectBuilder();
+			result.add("id", message.getId());
+			result.add("status", message.getStatus());
+			result.add("attempts", message.getAttempts());
+			result.add("created", new CarabiDate(message.getCreated()).toString());
+			if (message.getSent() != null) {
+				result.add("sent", new CarabiDate(message.getSent()).toString());
+			}
+			if (message.getGate() != null) {
+				result.add("gate", message.getGate());
+			}
+			if (message.getLastError() != null) {
+				result.add("lastError", message.getLastError());
+			}
+			return result.build().toString();
 		}
 	}
 }
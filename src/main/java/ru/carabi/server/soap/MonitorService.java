@@ -32,4 +32,15 @@ public class MonitorService {
 	public int getKernelDBLockcount() {
 		return monitor.getKernelDBLockcount();
 	}
+	
+	/**
+	 * Получение показателей производительности: длительность запросов по сервисам,
+	 * подключения к Oracle, состояние кешей, прокруток, чата и Eventer.
+	 * @return JSON-объект: счётчики, текущие значения и гистограммы
+	 * (количество, среднее, 50/90/99/99.9 перцентили и максимум в микросекундах)
+	 */
+	@WebMethod(operationName = "getMetrics")
+	public String getMetrics() {
+		return monitor.getMetricsJson();
+	}
 }
@@ -4,14 +4,24 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.EJB;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebService;
@@ -26,6 +36,7 @@ import ru.carabi.server.UserLogon;
 import ru.carabi.server.Utls;
 import ru.carabi.server.kernel.Cache;
 import ru.carabi.server.kernel.UsersControllerBean;
+import ru.carabi.server.kernel.oracle.BinaryRows;
 import ru.carabi.server.kernel.oracle.CursorFetcherBean;
 import ru.carabi.server.kernel.oracle.QueryParameter;
 import ru.carabi.server.kernel.oracle.QueryStorageBean;
@@ -117,6 +128,49 @@ public class QueryService {
 		}
 	}
 	
+	/**
+	 * Читает строки из прокрутки, как {@link #fetchNext}, в формате, согласованном с клиентом.
+	 * Клиент перечисляет поддерживаемые форматы в порядке предпочтения:
+	 * {@link BinaryRows#BINARY_DICTIONARY}, {@link BinaryRows#BINARY} или {@link BinaryRows#JSON};
+	 * сервер возвращает выбранный (JSON, если ни один не поддерживается).
+	 * Описание двоичного формата -- в {@link BinaryRows}.
+	 * @param token авторизационный токен
+	 * @param startPos номер записи, начиная с которой выводим результат
+	 * @param fetchCount количество записей
+	 * @param queryTag номер прокрутки
+	 * @param encoding на входе &ndash; поддерживаемые клиентом форматы через запятую,
+	 * на выходе &ndash; выбранный формат
+	 * @param data выходной параметр &ndash; выдача в выбранном формате (для JSON &ndash; текст в UTF-8)
+	 * @param endpos выходной параметр &ndash; текущая позиция в выдаче после выполнения функции
+	 * @return то же, что {@link #fetchNext}
+	 */
+	@WebMethod(operationName = "fetchNextEncoded")
+	public int fetchNextEncoded(
+			@WebParam(name = "token") String token,
+			@WebParam(name = "startPos") int startPos,
+			@WebParam(name = "fetchCount") int fetchCount,
+			@WebParam(name = "queryTag") int queryTag,
+			@WebParam(name = "encoding", mode= WebParam.Mode.INOUT) Holder<String> encoding,
+			@WebParam(name = "data", mode= WebParam.Mode.OUT) Holder<byte[]> data,
+			@WebParam(name = "endpos", mode= WebParam.Mode.OUT) Holder<Integer> endpos
+		) throws CarabiException {
+		logger.log(
+			Level.FINE,
+			" fetchNextEncoded token={0}, startPos={1}, fetchCount={2}, queryTag={3}, encoding={4}", 
+			new Object[] {token, startPos, fetchCount, queryTag, encoding.value}
+		);
+		Holder<ArrayList<ArrayList<?>>> list = new Holder<>();
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			int result = cursorFetcher.fetchNext(logon, queryTag, startPos, fetchCount, list, endpos);
+			encoding.value = BinaryRows.chooseEncoding(encoding.value);
+			data.value = BinaryRows.encode(list.value == null ? new ArrayList<ArrayList<?>>() : list.value, encoding.value);
+			return result;
+		} catch (SQLException ex) {
+			logger.log(Level.SEVERE, null, ex);
+			throw new CarabiOracleError(ex);
+		}
+	}
+	
 	/**
 	 * Закрывает прокрутку.
 	 * @param token авторизационный токен
@@ -255,6 +309,177 @@ public class QueryService {
 		}
 	}
 	
+	/**
+	 * Пакетный запуск сохранённого PL-скрипта для множества наборов параметров.
+	 * Все строки выполняются одним обращением к Oracle (JDBC batch) в одной транзакции:
+	 * при ошибке в любой строке изменения всех строк отменяются.
+	 * Запрос не должен быть select-ом и иметь выходные параметры.
+	 * @param token авторизационный токен
+	 * @param queryName имя хранимого запроса
+	 * @param rowsJson JSON-массив объектов, каждый задаёт значения входных параметров
+	 * одной строки по именам: <code>[{"ID":"1","NAME":"a"},{"ID":"2","NAME":null}, ...]</code>
+	 * @param results результаты по строкам: число изменённых записей или -2, если
+	 * Oracle его не сообщает. При ошибке &ndash; результаты строк до ошибочной
+	 * (отменённые) и -3 для ошибочной.
+	 * @param errorMessage текст ошибки Oracle, если выполнение прервано
+	 * @return 0 при успешном выполнении, {@link Settings#SQL_ERROR} при ошибке выполнения строки
+	 */
+	@WebMethod(operationName = "runStoredQueryBatch")
+	public int runStoredQueryBatch(
+			@WebParam(name = "token") String token,
+			@WebParam(name = "queryName") String queryName,
+			@WebParam(name = "rowsJson") String rowsJson,
+			@WebParam(name = "results", mode= WebParam.Mode.OUT) Holder<ArrayList<Integer>> results,
+			@WebParam(name = "errorMessage", mode= WebParam.Mode.OUT) Holder<String> errorMessage
+		) throws CarabiException, CarabiOracleError {
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			List<Map<String, QueryParameter>> rows = parseBatchRows(rowsJson);
+			logger.log(Level.FINE, "runStoredQueryBatch token={0}, queryName={1}, rows={2}",
+					new Object[] {token, queryName, rows.size()});
+			try {
+				results.value = toList(queryStorage.runQueryBatch(logon, queryName, rows));
+				return 0;
+			} catch (BatchUpdateException e) {
+				results.value = toList(e.getUpdateCounts());
+				String carabiMessage = Utls.filterCarabiBusinessLogic(e);
+				errorMessage.value = carabiMessage != null ? carabiMessage : e.getMessage();
+				logger.log(Level.WARNING, "Batch failed on row " + (results.value.size() - 1), e);
+				return Settings.SQL_ERROR;
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Oracle error:", e);
+			throw new CarabiOracleError(e);
+		} catch (CarabiException e) {
+			logger.log(Level.WARNING, "Internal or logic eror:", e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Пакетное выполнение PL-скрипта для множества наборов параметров
+	 * (см. {@link #runStoredQueryBatch}). Параметры задаются по порядку следования
+	 * в скрипте; выходные параметры не поддерживаются.
+	 * Требуется право ADMINISTRATING-QUERIES-EDIT, т.к. текст скрипта задаёт клиент.
+	 * @param token авторизационный токен
+	 * @param script текст скрипта
+	 * @param typesJson JSON-массив типов параметров: <code>["NUMBER","VARCHAR2"]</code>
+	 * @param rowsJson JSON-массив строк, каждая -- массив значений параметров по порядку:
+	 * <code>[["1","a"],["2",null], ...]</code>
+	 * @param results результаты по строкам, как в {@link #runStoredQueryBatch}
+	 * @param errorMessage текст ошибки Oracle, если выполнение прервано
+	 * @return 0 при успешном выполнении, {@link Settings#SQL_ERROR} при ошибке выполнения строки
+	 */
+	@WebMethod(operationName = "executeScriptBatch")
+	public int executeScriptBatch(
+			@WebParam(name = "token") String token,
+			@WebParam(name = "script") String script,
+			@WebParam(name = "typesJson") String typesJson,
+			@WebParam(name = "rowsJson") String rowsJson,
+			@WebParam(name = "results", mode= WebParam.Mode.OUT) Holder<ArrayList<Integer>> results,
+			@WebParam(name = "errorMessage", mode= WebParam.Mode.OUT) Holder<String> errorMessage
+		) throws CarabiException, CarabiOracleError {
+		try (UserLogon logon = usersController.tokenAuthorize(token)) {
+			logon.assertAllowed("ADMINISTRATING-QUERIES-EDIT");
+			List<List<QueryParameter>> rows = parseScriptBatchRows(typesJson, rowsJson);
+			logger.log(Level.FINE, "executeScriptBatch token={0}, rows={1}",
+					new Object[] {token, rows.size()});
+			try {
+				results.value = toList(sqlQuery.executeScriptBatch(logon, script, rows));
+				return 0;
+			} catch (BatchUpdateException e) {
+				results.value = toList(e.getUpdateCounts());
+				String carabiMessage = Utls.filterCarabiBusinessLogic(e);
+				errorMessage.value = carabiMessage != null ? carabiMessage : e.getMessage();
+				logger.log(Level.WARNING, "Batch failed on row " + (results.value.size() - 1), e);
+				return Settings.SQL_ERROR;
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Oracle error:", e);
+			throw new CarabiOracleError(e);
+		} catch (CarabiException e) {
+			logger.log(Level.WARNING, "Internal or logic eror:", e);
+			throw e;
+		}
+	}
+	
+	private static List<Map<String, QueryParameter>> parseBatchRows(String rowsJson) throws CarabiException {
+		JsonArray rowsArray = readJsonArray(rowsJson);
+		List<Map<String, QueryParameter>> rows = new ArrayList<>(rowsArray.size());
+		for (int i = 0; i < rowsArray.size(); i++) {
+			JsonObject rowObject;
+			try {
+				rowObject = rowsArray.getJsonObject(i);
+			} catch (ClassCastException e) {
+				throw new CarabiException("Row " + i + " is not an object", Settings.PARSING_ERROR);
+			}
+			Map<String, QueryParameter> row = new HashMap<>();
+			for (Map.Entry<String, JsonValue> field: rowObject.entrySet()) {
+				QueryParameter parameter = new QueryParameter();
+				parameter.setName(field.getKey());
+				setBatchValue(parameter, field.getValue());
+				row.put(field.getKey().toUpperCase(), parameter);
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+	
+	private static List<List<QueryParameter>> parseScriptBatchRows(String typesJson, String rowsJson) throws CarabiException {
+		JsonArray typesArray = readJsonArray(typesJson);
+		JsonArray rowsArray = readJsonArray(rowsJson);
+		List<List<QueryParameter>> rows = new ArrayList<>(rowsArray.size());
+		for (int i = 0; i < rowsArray.size(); i++) {
+			JsonArray rowArray;
+			try {
+				rowArray = rowsArray.getJsonArray(i);
+			} catch (ClassCastException e) {
+				throw new CarabiException("Row " + i + " is not an array", Settings.PARSING_ERROR);
+			}
+			if (rowArray.size() != typesArray.size()) {
+				throw new CarabiException("Row " + i + " has " + rowArray.size() + " values, " + typesArray.size() + " types given", Settings.PARSING_ERROR);
+			}
+			List<QueryParameter> row = new ArrayList<>(rowArray.size());
+			for (int j = 0; j < rowArray.size(); j++) {
+				QueryParameter parameter = new QueryParameter();
+				try {
+					parameter.setType(typesArray.getString(j));
+				} catch (ClassCastException e) {
+					throw new CarabiException("Type " + j + " is not a string", Settings.PARSING_ERROR);
+				}
+				setBatchValue(parameter, rowArray.get(j));
+				row.add(parameter);
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+	
+	private static JsonArray readJsonArray(String json) throws CarabiException {
+		try (JsonReader reader = Json.createReader(new StringReader(json))) {
+			return reader.readArray();
+		} catch (JsonException | ClassCastException | NullPointerException e) {
+			throw new CarabiException(e, Settings.PARSING_ERROR);
+		}
+	}
+	
+	private static void setBatchValue(QueryParameter parameter, JsonValue value) {
+		if (value.getValueType() == JsonValue.ValueType.NULL) {
+			parameter.setIsNull(1);
+		} else if (value.getValueType() == JsonValue.ValueType.STRING) {
+			parameter.setValue(((JsonString) value).getString());
+		} else {
+			parameter.setValue(value.toString());
+		}
+	}
+	
+	private static ArrayList<Integer> toList(int[] values) {
+		ArrayList<Integer> list = new ArrayList<>(values.length);
+		for (int value: values) {
+			list.add(value);
+		}
+		return list;
+	}
+	
 	private void wrapJson(Holder<ArrayList<QueryParameter>> parameters) throws SQLException {
 		for (QueryParameter queryParameter: parameters.value) {
 			wrapJson(queryParameter);
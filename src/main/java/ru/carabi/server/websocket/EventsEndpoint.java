@@ -0,0 +1,85 @@
+package ru.carabi.server.websocket;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.EJB;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+import ru.carabi.server.UserLogon;
+import ru.carabi.server.kernel.PushBean;
+import ru.carabi.server.kernel.PushConnection;
+import ru.carabi.server.kernel.UsersControllerBean;
+import ru.carabi.server.logging.CarabiLogging;
+
+/**
+ * Получение событий по WebSocket вместо Eventer.
+ * Подключение по адресу
+ * <pre>ws://{адрес сервера}/events?token={токен клиентского приложения}</pre>
+ * События приходят текстовыми сообщениями в виде JSON-объектов
+ * <code>{"schema": ..., "eventcode": ..., "message": ...}</code>.
+ * Сообщения от клиента не обрабатываются, но продлевают сессию клиента: без них
+ * сессия завершается по неактивности ({@link ru.carabi.server.Settings#SESSION_LIFETIME}).
+ * При выходе клиента или завершении сессии соединение закрывается сервером.
+ * @author sasha<kopilov.ad@gmail.com>
+ */
+@ServerEndpoint("/events")
+public class EventsEndpoint {
+	private static final Logger logger = CarabiLogging.getLogger(EventsEndpoint.class);
+	private static final String CONNECTION = PushConnection.class.getName();
+	
+	@EJB private UsersControllerBean usersController;
+	@EJB private PushBean pushBean;
+	
+	@OnOpen
+	public void onOpen(Session session) throws IOException {
+		List<String> tokens = session.getRequestParameterMap().get("token");
+		String token = tokens == null || tokens.isEmpty() ? null : tokens.get(0);
+		UserLogon logon = usersController.getUserLogon(token);
+		if (logon == null) {
+			session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Unknown token"));
+			return;
+		}
+		PushConnection connection = pushBean.register(session, logon.userLogin(), token);
+		session.getUserProperties().put(CONNECTION, connection);
+		logger.log(Level.FINE, "{0} connected to events", logon.userLogin());
+	}
+	
+	@OnMessage
+	public void onMessage(String message, Session session) throws IOException {
+		PushConnection connection = (PushConnection) session.getUserProperties().get(CONNECTION);
+		if (connection == null) {
+			return;
+		}
+		UserLogon logon = usersController.getUserLogon(connection.getToken());
+		if (logon == null) {
+			connection.getSession().close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Session closed"));
+			return;
+		}
+		logon.updateLastActive();
+	}
+	
+	@OnClose
+	public void onClose(Session session) {
+		unregister(session);
+	}
+	
+	@OnError
+	public void onError(Session session, Throwable error) {
+		logger.log(Level.FINE, "WebSocket error", error);
+		unregister(session);
+	}
+	
+	private void unregister(Session session) {
+		PushConnection connection = (PushConnection) session.getUserProperties().remove(CONNECTION);
+		if (connection != null) {
+			pushBean.unregister(connection);
+		}
+	}
+}
@@ -309,7 +309,8 @@ create table ORACLE_QUERY (
 	--CATEGORY varchar(256), --Название категории для пользователей-администраторов БД 
 	SQL_QUERY varchar(32000) not null, --SQL текст запроса
 	COUNT_QUERY varchar(32000), --Запрос, возвращающий объём выборки основного запроса
-	SCHEMA_ID integer references CONNECTION_SCHEMA (SCHEMA_ID) --ID схемы БД, для которой предназначен запрос
+	SCHEMA_ID integer references CONNECTION_SCHEMA (SCHEMA_ID), --ID схемы БД, для которой предназначен запрос
+	RESULT_CACHE_LIFETIME integer default 0 --Время хранения результата на сервере в секундах (0 -- не кешировать)
 );
 
 create sequence parameter_id_gen;
@@ -415,4 +416,27 @@ create table PUBLICATION (
 	PERMISSION_TO_READ integer references USER_PERMISSION (PERMISSION_ID), --право, необходимое, чтобы увидеть публикацию, если она не адресована лично пользователю
 	ISSUE_DATE date
 );
+
+/**
+ * Очередь исходящих SMS-сообщений.
+ * Сообщения со статусом queued отправляются, когда наступает NEXT_ATTEMPT.
+ * Для сообщений со статусом sending NEXT_ATTEMPT -- окончание захвата сервером:
+ * после него сообщение может быть отправлено повторно.
+ */
+create sequence sms_message_id_gen;
+create table SMS_MESSAGE (
+	SMS_ID bigint primary key default nextval('sms_message_id_gen'),
+	PHONE varchar(32) not null, --номер получателя без разделителей
+	TEXT varchar(32000) not null,
+	SENDER varchar(256), --название или номер отправителя для API шлюза
+	AUTHOR_ID bigint references CARABI_USER(USER_ID) on delete set null,
+	STATUS varchar(16) not null, --queued, sending, sent, failed
+	ATTEMPTS integer default 0 not null,
+	NEXT_ATTEMPT timestamp,
+	CREATED timestamp not null,
+	SENT timestamp,
+	GATE varchar(256), --шлюз, через который отправлено сообщение
+	LAST_ERROR varchar(1024)
+);
+create index SMS_MESSAGE_QUEUE on SMS_MESSAGE(STATUS, NEXT_ATTEMPT);
 --commit;
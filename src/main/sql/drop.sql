@@ -1,5 +1,6 @@
 set SEARCH_PATH to CARABI_KERNEL;
 
+drop table SMS_MESSAGE;
 drop table MESSAGES_GROUP;
 drop table MESSAGE_EXTENSION_TYPE;
 drop table PRODUCT_VERSION;
@@ -52,6 +53,7 @@ drop sequence production_id_gen;
 drop sequence product_version_id_gen;
 drop sequence extension_type_id_gen;
 drop sequence messages_group_id_gen;
+drop sequence sms_message_id_gen;
 
 drop schema CARABI_KERNEL restrict;
 commit;